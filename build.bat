@@ -2,4 +2,4 @@
 if not exist build\icon.png (
 xcopy icon.png build
 )
-javac -d build src\com\russellsayshi\stockpile\client\*.java src\com\russellsayshi\stockpile\server\*.java src\com\russellsayshi\stockpile\inventory\*.java src\com\russellsayshi\stockpile\gui\*.java
\ No newline at end of file
+javac -d build src\com\russellsayshi\stockpile\client\*.java src\com\russellsayshi\stockpile\server\*.java src\com\russellsayshi\stockpile\inventory\*.java src\com\russellsayshi\stockpile\protocol\*.java src\com\russellsayshi\stockpile\gui\*.java
\ No newline at end of file
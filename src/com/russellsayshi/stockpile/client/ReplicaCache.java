@@ -0,0 +1,119 @@
+package com.russellsayshi.stockpile.client;
+
+import com.russellsayshi.stockpile.inventory.Entry;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * A copy of a server's database kept on disk by a client,
+ * so that it has something to show straight away the next
+ * time it starts, and the server only has to send what
+ * changed in between.
+ *
+ * The file is one entry per line, like the server's own
+ * snapshot, under a header saying which server it is a
+ * copy of and the position it was at:
+ * <code>#replica server=host:port since=position</code>.
+ * It is replaced all at once, by writing a new file and
+ * renaming it over the old one, so it is never half written.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public class ReplicaCache {
+	private static final String HEADER_PREFIX = "#replica";
+	private static final String SERVER_PREFIX = "server=";
+	private static final String SINCE_PREFIX = "since=";
+
+	private final File file;
+
+	/**
+	 * Constructs a cache kept in a file.
+	 *
+	 * @param file The file, which does not have to exist yet
+	 */
+	public ReplicaCache(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Reads the copy of a server's database.
+	 *
+	 * @param server The server, from
+	 *  <code>ServerConnection.getServerAddress</code>
+	 * @param entries Given each entry in turn, unless there
+	 *  is no copy or it is of some other server
+	 * @return The position the copy is at, or null if there
+	 *  is no copy, it is of some other server, or it was saved
+	 *  without a position
+	 * @throws IOException If the file could not be read or
+	 *  is not a replica at all. Some entries may have been
+	 *  handed over already.
+	 */
+	public String load(String server, Consumer<Entry> entries) throws IOException {
+		if(!file.exists() || file.length() == 0) return null;
+		try(BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 16)) {
+			Map<String, String> header = parseHeader(reader.readLine());
+			if(!server.equals(header.get(SERVER_PREFIX))) return null;
+			String read;
+			int line = 1;
+			while((read = reader.readLine()) != null) {
+				line++;
+				try {
+					entries.accept(new Entry(read));
+				} catch(IllegalArgumentException iae) {
+					throw new IOException("Invalid entry on line " + line + " of " + file + ".", iae);
+				}
+			}
+			return header.get(SINCE_PREFIX);
+		}
+	}
+
+	/**
+	 * Replaces the copy.
+	 *
+	 * @param server The server it is a copy of
+	 * @param position The position the copy is at, or null
+	 *  if the server does not number its updates
+	 * @param entries The entries
+	 * @throws IOException If the file could not be written.
+	 *  The old copy is left as it was.
+	 */
+	public void save(String server, String position, Collection<Entry> entries) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		try(Writer writer = new BufferedWriter(new FileWriter(temp), 1 << 16)) {
+			writer.write(HEADER_PREFIX + " " + SERVER_PREFIX + server);
+			if(position != null) writer.write(" " + SINCE_PREFIX + position);
+			writer.write('\n');
+			for(Entry e : entries) {
+				e.appendAbsoluteRepresentation(writer);
+				writer.write('\n');
+			}
+		}
+		Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Splits the header into its parts.
+	 *
+	 * @param line The first line of the file
+	 * @return Each part's value, keyed by its prefix
+	 * @throws IOException if the line is not a header
+	 */
+	private Map<String, String> parseHeader(String line) throws IOException {
+		if(line == null || !line.startsWith(HEADER_PREFIX + " ")) {
+			throw new IOException(file + " is not a replica.");
+		}
+		Map<String, String> ret = new HashMap<>();
+		for(String part : line.substring(HEADER_PREFIX.length() + 1).split(" ")) {
+			for(String prefix : new String[] {SERVER_PREFIX, SINCE_PREFIX}) {
+				if(part.startsWith(prefix)) ret.put(prefix, part.substring(prefix.length()));
+			}
+		}
+		return ret;
+	}
+}
@@ -1,17 +1,32 @@
 package com.russellsayshi.stockpile.client;
 
 import com.russellsayshi.stockpile.inventory.*;
+import com.russellsayshi.stockpile.protocol.*;
+import com.russellsayshi.stockpile.server.DatabaseUpdater;
 import com.russellsayshi.stockpile.server.Server;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.*;
 import java.util.function.*;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 
 /**
  * This class does all of the backend work
  * for a connection to the server.
  *
+ * If the connection drops, <code>reconnect</code> picks
+ * up where it left off: a server that still remembers
+ * everything that was missed sends just that, as ordinary
+ * updates, instead of the whole database again.
+ *
+ * A client that only needs to look things up can search
+ * the server's database with <code>query</code> instead of
+ * keeping a copy, and with <code>setQueryOnly</code> not be
+ * sent the database or any updates at all.
+ *
  * @author Russell Coleman
  * @version 1.0.0
  */
@@ -33,15 +48,47 @@ public class ServerConnection {
 	private String hostname;
 	private int port;
 	private Thread serverListenerThread;
-	private BufferedReader serverReader;
+	private BufferedReader serverReader; //text protocol only
+	private InputStream serverInput; //binary protocol only
 	private ReentrantLock serverReadLock = new ReentrantLock();
 	private Socket socket;
-	private PrintWriter serverWriter; //only to be accessed with below lock
+	private PrintWriter serverWriter; //text protocol only, accessed with below lock
+	private OutputStream serverOutput; //binary protocol only, accessed with below lock
 	private ReentrantLock serverWriteLock = new ReentrantLock();
 	private Vector<ServerUpdateListener> remoteUpdateListeners = new Vector<>();
+	private Vector<ServerPositionListener> positionListeners = new Vector<>();
 	private Vector<ServerStateChangeListener> stateChangeListeners
 		= new Vector<>();
 	public static final int DEFAULT_PORT = Server.PORT;
+	private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+	private boolean tcpNoDelay = true;
+	private int sendBufferBytes = 0;
+	private int receiveBufferBytes = 0;
+	private boolean askForBinary = true;
+	private boolean askForCompression = true;
+	private boolean askToResume = true;
+	private boolean askQueryOnly = false;
+	private boolean binary = false;
+	private volatile boolean queries = false;
+	private boolean queryOnly = false;
+	private boolean compressedSync = false;
+	//Tells the server which updates were ours after reconnecting
+	private final String clientId = UUID.randomUUID().toString();
+	//Where we are in the server's stream of updates. The epoch
+	//is null if the server does not number its updates.
+	private volatile String epoch;
+	private volatile long lastSequence;
+	//Updates waiting to go out together as one batch.
+	//Only to be accessed with serverWriteLock.
+	private List<EntryUpdate> pendingUpdates = new ArrayList<>();
+	private long batchWindowMillis = 5;
+	private Timer batchTimer;
+	//Searches waiting on results, by tag, and the cursors of
+	//searches on this connection that have more pages to get
+	private final AtomicInteger lastTag = new AtomicInteger();
+	private final ConcurrentHashMap<Integer, CompletableFuture<QueryResults>> pendingQueries
+		= new ConcurrentHashMap<>();
+	private final Set<Integer> openCursors = ConcurrentHashMap.newKeySet();
 
 	/**
 	 * Constructs a connection instance
@@ -66,6 +113,151 @@ public class ServerConnection {
 		this(hostname, DEFAULT_PORT);
 	}
 
+	/**
+	 * Sets the options for the socket. Only has an
+	 * effect before connecting.
+	 *
+	 * @param tcpNoDelay Whether to turn off Nagle's algorithm
+	 * @param sendBufferBytes Socket send buffer size, or 0
+	 *  for the system default
+	 * @param receiveBufferBytes Socket receive buffer size, or 0
+	 *  for the system default
+	 */
+	public void setSocketOptions(boolean tcpNoDelay, int sendBufferBytes,
+			int receiveBufferBytes) {
+		this.tcpNoDelay = tcpNoDelay;
+		this.sendBufferBytes = sendBufferBytes;
+		this.receiveBufferBytes = receiveBufferBytes;
+	}
+
+	/**
+	 * Sets whether to ask the server for the binary protocol.
+	 * On by default. Servers that do not know it answer in
+	 * text, so asking is always safe. Only has an effect
+	 * before connecting.
+	 *
+	 * @param askForBinary Whether to ask
+	 */
+	public void setBinaryProtocol(boolean askForBinary) {
+		this.askForBinary = askForBinary;
+	}
+
+	/**
+	 * Sets whether to ask the server to compress the initial
+	 * database. On by default; worth turning off on fast links
+	 * where compressing costs more than it saves. Only has an
+	 * effect before connecting.
+	 *
+	 * @param askForCompression Whether to ask
+	 */
+	public void setCompressedSync(boolean askForCompression) {
+		this.askForCompression = askForCompression;
+	}
+
+	/**
+	 * Sets whether to ask the server to number its updates
+	 * so that <code>reconnect</code> can get just the ones
+	 * that were missed. On by default. Only has an effect
+	 * before connecting.
+	 *
+	 * @param askToResume Whether to ask
+	 */
+	public void setResume(boolean askToResume) {
+		this.askToResume = askToResume;
+	}
+
+	/**
+	 * Sets whether to only search the server, and not be
+	 * sent the database or any updates. Off by default.
+	 * Updates can still be sent. Only has an effect before
+	 * connecting.
+	 *
+	 * @param askQueryOnly Whether to ask
+	 */
+	public void setQueryOnly(boolean askQueryOnly) {
+		this.askQueryOnly = askQueryOnly;
+	}
+
+	/**
+	 * Checks whether the server agreed to only take
+	 * searches, and sent neither the database nor updates.
+	 *
+	 * @return Whether it did, always false before connecting
+	 */
+	public boolean isQueryOnly() {
+		return queryOnly;
+	}
+
+	/**
+	 * Checks whether the server takes searches.
+	 *
+	 * @return Whether it does, always false before connecting
+	 */
+	public boolean isQueryable() {
+		return queries;
+	}
+
+	/**
+	 * Sets where to pick up from on connecting, for a
+	 * client that kept a copy of the database from before.
+	 * If the server still has every update after that
+	 * position, it sends just those instead of the whole
+	 * database. Only has an effect before connecting.
+	 *
+	 * @param position A position from <code>getPosition</code>
+	 *  or a position listener, or null to start over
+	 * @throws IllegalArgumentException if it is not a position
+	 */
+	public void setPosition(String position) {
+		if(position == null) {
+			epoch = null;
+		} else {
+			epoch = WireProtocol.positionEpoch(position);
+			lastSequence = WireProtocol.positionSequence(position);
+		}
+	}
+
+	/**
+	 * Gets the position of the last update passed on to the
+	 * update listeners, or of the initial database if none
+	 * have been yet.
+	 *
+	 * @return The position, or null if the server does not
+	 *  number its updates
+	 */
+	public String getPosition() {
+		String epoch = this.epoch;
+		return epoch == null ? null : WireProtocol.position(epoch, lastSequence);
+	}
+
+	/**
+	 * Gets the server this connects to.
+	 *
+	 * @return The hostname and port, separated by a colon
+	 */
+	public String getServerAddress() {
+		return hostname + ":" + port;
+	}
+
+	/**
+	 * Checks whether the server compressed the initial database.
+	 *
+	 * @return Whether it did, always false before connecting
+	 */
+	public boolean isCompressedSync() {
+		return compressedSync;
+	}
+
+	/**
+	 * Checks whether the server agreed to the binary protocol.
+	 *
+	 * @return Whether this connection speaks binary, always
+	 *  false before connecting
+	 */
+	public boolean isBinaryProtocol() {
+		return binary;
+	}
+
 	/**
 	 * Takes a consumer and notifies said consumer
 	 * whenever the server changes state, by telling
@@ -102,6 +294,41 @@ public class ServerConnection {
 		}
 	}
 
+	/**
+	 * Notifies all position listeners that an
+	 * update, batch, or initial database is done.
+	 *
+	 * @param resynced Whether it was the whole database
+	 */
+	private void notifyPositionListeners(boolean resynced) {
+		String position = getPosition();
+		for(ServerPositionListener positionListener : positionListeners) {
+			positionListener.positionReached(position, resynced);
+		}
+	}
+
+	/**
+	 * Takes a consumer and notifies said consumer
+	 * whenever the server has finished sending an update,
+	 * a batch, or the initial database, by giving it the
+	 * position that has been reached and whether the
+	 * whole database was just sent. Each update or batch
+	 * reaches the update listeners first, one update at a
+	 * time, so a copy of the database kept up to date from
+	 * the listeners is at the position once this is called.
+	 * Updates sent with <code>update</code> never reach the
+	 * update listeners, but do count towards the position.
+	 *
+	 * Called on the connecting thread once the initial
+	 * database is in, before any updates, and on the
+	 * listener thread after that.
+	 *
+	 * @param callback The consumer function
+	 */
+	public void addPositionListener(ServerPositionListener callback) {
+		positionListeners.add(callback);
+	}
+
 	/**
 	 * Takes a consumer and notifies said consumer
 	 * whenever the server sends data, by giving
@@ -114,22 +341,219 @@ public class ServerConnection {
 	}
 
 	/**
-	 * Sends an update to the server.
+	 * Sets how long updates wait for company before
+	 * they get sent. Everything sent within the window
+	 * goes to the server as one batch.
+	 *
+	 * @param batchWindowMillis The window in milliseconds,
+	 *  or 0 to send every update right away
+	 */
+	public void setBatchWindowMillis(long batchWindowMillis) {
+		if(batchWindowMillis < 0) throw new IllegalArgumentException("Window cannot be negative.");
+		this.batchWindowMillis = batchWindowMillis;
+	}
+
+	/**
+	 * Sends an update to the server. It may wait for
+	 * up to the batch window to be sent along with others.
 	 *
 	 * @param update The update to send
 	 */
 	public void update(String update) {
 		if(update == null) {
 		       throw new NullPointerException("Update to server cannot be null.");
+		}
+		update(Collections.singletonList(update));
+	}
+
+	/**
+	 * Sends several updates to the server. The server
+	 * applies, logs, and passes on every update in the
+	 * same batch together, and rejects the whole batch
+	 * if any of them is invalid.
+	 *
+	 * @param updates The updates to send
+	 * @throws IllegalArgumentException If any update is invalid.
+	 *  Nothing gets sent in that case, so a bad update can never
+	 *  take others in the same window down with it.
+	 */
+	public void update(List<String> updates) {
+		if(updates == null || updates.contains(null)) {
+		       throw new NullPointerException("Update to server cannot be null.");
 		} else if(socket == null || socket.isClosed()) {
 			throw new IllegalStateException("Cannot update an invalid socket.");
 		}
+		List<EntryUpdate> parsed = new ArrayList<>(updates.size());
+		for(String update : updates) {
+			parsed.add(DatabaseUpdater.parse(update));
+		}
+		if(parsed.isEmpty()) return;
+		serverWriteLock.lock();
+		try {
+			boolean startWindow = pendingUpdates.isEmpty();
+			pendingUpdates.addAll(parsed);
+			if(batchWindowMillis == 0) {
+				flushUpdates();
+			} else if(startWindow) {
+				batchTimer.schedule(new TimerTask() {
+					@Override
+					public void run() {
+						flushUpdates();
+					}
+				}, batchWindowMillis);
+			}
+		} finally {
+			serverWriteLock.unlock();
+		}
+	}
+
+	/**
+	 * Sends every pending update to the server,
+	 * as a batch if there is more than one.
+	 */
+	private void flushUpdates() {
+		serverWriteLock.lock();
+		try {
+			if(pendingUpdates.isEmpty()) return;
+			if(binary) {
+				serverOutput.write(WireProtocol.toFrame(pendingUpdates));
+				serverOutput.flush();
+			} else if(pendingUpdates.size() == 1) {
+				serverWriter.println(pendingUpdates.get(0).toCommandString());
+				serverWriter.flush();
+			} else {
+				List<String> commands = new ArrayList<>(pendingUpdates.size());
+				for(EntryUpdate update : pendingUpdates) {
+					commands.add(update.toCommandString());
+				}
+				serverWriter.println(DatabaseUpdater.toBatchFrame(commands));
+				serverWriter.flush();
+			}
+			pendingUpdates = new ArrayList<>();
+		} catch(IOException ioe) {
+			//the listener thread finds out the socket is gone
+			ioe.printStackTrace();
+		} finally {
+			serverWriteLock.unlock();
+		}
+	}
+
+	/**
+	 * Searches the server's database, the same way
+	 * <code>EntryMatcher</code> would once the query is
+	 * made lowercase. Any updates waiting to be sent go
+	 * first, so the search sees them.
+	 *
+	 * The results are completed on the listener thread, in
+	 * line with the updates around them, so a search sees
+	 * every update passed on before it and none after.
+	 * If the connection drops first, they complete
+	 * exceptionally with an <code>IOException</code>.
+	 *
+	 * @param query What to search for
+	 * @param limit The most entries to get in the first page;
+	 *  the server may send fewer
+	 * @return The first page of results
+	 * @throws IllegalStateException if the server does not
+	 *  take searches, or the connection is not open
+	 * @throws IllegalArgumentException if the limit is not
+	 *  positive or the query has a line break
+	 */
+	public CompletableFuture<QueryResults> query(String query, int limit) {
+		return sendQuery(QueryRequest.find(nextTag(), limit, query));
+	}
+
+	/**
+	 * Gets the next page of a search's results. Each page
+	 * can only be asked to carry on once, and only on the
+	 * connection it came from.
+	 *
+	 * @param page The last page
+	 * @param limit The most entries to get
+	 * @return The next page, which fails with an
+	 *  <code>IOException</code> if the server no longer has
+	 *  the rest, since it only keeps so many searches per client
+	 * @throws IllegalStateException if the page is the last
+	 *  one, came from an earlier connection, or was already
+	 *  carried on from
+	 */
+	public CompletableFuture<QueryResults> more(QueryResults page, int limit) {
+		if(!page.hasMore()) throw new IllegalStateException("No more results to get.");
+		if(!openCursors.remove(page.getCursor())) {
+			throw new IllegalStateException("Those results can no longer be carried on from.");
+		}
+		return sendQuery(QueryRequest.more(nextTag(), page.getCursor(), limit));
+	}
+
+	/**
+	 * Picks a tag no search waiting on results has.
+	 *
+	 * @return The tag
+	 */
+	private int nextTag() {
+		return lastTag.updateAndGet(t -> t == Integer.MAX_VALUE ? 0 : t + 1);
+	}
+
+	/**
+	 * Sends a search, after any updates waiting to go.
+	 *
+	 * @param request The search
+	 * @return Completed when the results come back
+	 */
+	private CompletableFuture<QueryResults> sendQuery(QueryRequest request) {
+		if(!queries) {
+			throw new IllegalStateException("Server does not take queries.");
+		} else if(socket == null || socket.isClosed()) {
+			throw new IllegalStateException("Cannot query an invalid socket.");
+		}
+		CompletableFuture<QueryResults> ret = new CompletableFuture<>();
+		pendingQueries.put(request.getTag(), ret);
 		serverWriteLock.lock();
 		try {
-			serverWriter.println(update);
+			flushUpdates();
+			if(binary) {
+				serverOutput.write(request.toFrame());
+				serverOutput.flush();
+			} else {
+				serverWriter.println(request.toLine());
+				serverWriter.flush();
+			}
+		} catch(IOException ioe) {
+			//the listener thread finds out the socket is gone
+			ioe.printStackTrace();
 		} finally {
 			serverWriteLock.unlock();
 		}
+		//the listener may have given up on searches before this one was waiting
+		if(socket.isClosed()) failPendingQueries();
+		return ret;
+	}
+
+	/**
+	 * Hands a page of results to the search waiting on it.
+	 *
+	 * @param results The page
+	 */
+	private void resultsArrived(QueryResults results) {
+		CompletableFuture<QueryResults> waiting = pendingQueries.remove(results.getTag());
+		if(waiting == null) return;
+		if(results.isFailed()) {
+			waiting.completeExceptionally(new IOException("Server no longer has those results."));
+			return;
+		}
+		if(results.hasMore()) openCursors.add(results.getCursor());
+		waiting.complete(results);
+	}
+
+	/**
+	 * Fails every search still waiting on results, because
+	 * the connection is gone.
+	 */
+	private void failPendingQueries() {
+		for(Integer tag : pendingQueries.keySet()) {
+			CompletableFuture<QueryResults> waiting = pendingQueries.remove(tag);
+			if(waiting != null) waiting.completeExceptionally(new IOException("Connection to server lost."));
+		}
 	}
 
 	/**
@@ -140,14 +564,116 @@ public class ServerConnection {
 	 * server as a list of strings.
 	 */
 	public List<String> connectAndFetchDatabase() throws IOException {
+		ArrayList<String> ret = new ArrayList<>();
+		connectAndStreamDatabase(e -> ret.add(e.getAbsoluteRepresentation()));
+		return ret;
+	}
+
+	/**
+	 * Connects to the server and opens the appropriate
+	 * thread, handing over the initial database one entry
+	 * at a time as it arrives. Entries are handed over on
+	 * the calling thread, all before this returns, and
+	 * before any update reaches the update listeners.
+	 *
+	 * @param initialEntries Given each entry of the
+	 *  initial database in turn
+	 */
+	public void connectAndStreamDatabase(Consumer<Entry> initialEntries) throws IOException {
 		if(socket != null) throw new IllegalStateException("Cannot connect more than once.");
-		socket = new Socket(hostname, port);
-		serverReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+		connect(initialEntries);
+	}
+
+	/**
+	 * Connects to the server again after the connection
+	 * dropped, or hangs up and connects again if it has not.
+	 * Safe to call from a state change listener.
+	 *
+	 * If the server still has every update that was missed,
+	 * nothing is handed to <code>initialEntries</code> and the
+	 * missed updates go to the update listeners, ahead of any
+	 * new ones. Otherwise the whole database is handed over
+	 * just like <code>connectAndStreamDatabase</code> does, and
+	 * should replace whatever the caller had.
+	 *
+	 * Updates that had not made it to the server when the
+	 * connection dropped are not sent again.
+	 *
+	 * @param initialEntries Given each entry of the database
+	 *  in turn, if the whole database gets sent
+	 * @return Whether only the missed updates were sent
+	 */
+	public boolean reconnect(Consumer<Entry> initialEntries) throws IOException {
+		if(socket == null) throw new IllegalStateException("Cannot reconnect before connecting.");
+		try {
+			if(!socket.isClosed()) socket.close();
+		} catch(IOException ioe) {
+			//going anyway
+		}
+		//every update the old listener passed on has to be
+		//counted before asking for the ones after it
+		if(serverListenerThread != null && Thread.currentThread() != serverListenerThread) {
+			try {
+				serverListenerThread.join();
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while hanging up.");
+			}
+		}
+		serverWriteLock.lock();
+		try {
+			pendingUpdates = new ArrayList<>();
+		} finally {
+			serverWriteLock.unlock();
+		}
+		return connect(initialEntries);
+	}
+
+	/**
+	 * Connects to the server, sends it our position if we
+	 * have one, reads the initial database if it sends one,
+	 * and starts the listener thread.
+	 *
+	 * @param initialEntries Given each entry of the initial
+	 *  database in turn
+	 * @return Whether the server skipped the database and is
+	 *  just sending what was missed
+	 */
+	private boolean connect(Consumer<Entry> initialEntries) throws IOException {
+		Socket socket = new Socket();
+		this.socket = socket;
+		socket.setTcpNoDelay(tcpNoDelay);
+		if(sendBufferBytes > 0) socket.setSendBufferSize(sendBufferBytes);
+		//must be set before connecting to get windows over 64K
+		if(receiveBufferBytes > 0) socket.setReceiveBufferSize(receiveBufferBytes);
+		socket.connect(new InetSocketAddress(hostname, port));
+		InputStream input = new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER_SIZE);
+		OutputStream output = new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_SIZE);
+		List<String> asked = new ArrayList<>();
+		if(askForBinary) asked.add(WireProtocol.BINARY);
+		asked.add(WireProtocol.QUERY);
+		asked.add(WireProtocol.BATCHES);
+		if(askQueryOnly) asked.add(WireProtocol.QUERY_ONLY);
+		if(askForCompression && !askQueryOnly) asked.add(WireProtocol.DEFLATE);
+		if(askToResume && !askQueryOnly) {
+			asked.add(WireProtocol.RESUME);
+			asked.add(WireProtocol.feature(WireProtocol.CLIENT, clientId));
+			if(epoch != null) {
+				asked.add(WireProtocol.feature(WireProtocol.SINCE,
+						WireProtocol.position(epoch, lastSequence)));
+			}
+		}
+		//say hello even without asking for anything, so the
+		//server does not sit waiting to see if we will
+		WireProtocol.writeGreeting(output, WireProtocol.greeting(WireProtocol.HELLO, asked));
+		output.flush();
+		boolean delta;
+		BufferedReader reader = null;
 		serverReadLock.lock();
-		ArrayList<String> ret = new ArrayList<>();
 		try {
-			String read = serverReader.readLine();
-			if(!read.equals("ACK_STOCKPILE_SERVER")) {
+			Set<String> agreed = WireProtocol.parseGreeting(
+					WireProtocol.readGreeting(input), WireProtocol.ACK);
+			if(agreed == null) {
 				//something is wrong. we're not connected
 				//to a stockpile server.
 
@@ -160,47 +686,226 @@ public class ServerConnection {
 
 				throw new IOException("Handshake with server failed.");
 			}
-			
-			//Read from the server its current database
-			while(!((read = serverReader.readLine()).equals("BULK_DONE"))) {
-				ret.add(read);
+			binary = askForBinary && agreed.contains(WireProtocol.BINARY);
+			queries = agreed.contains(WireProtocol.QUERY);
+			queryOnly = askQueryOnly && agreed.contains(WireProtocol.QUERY_ONLY);
+			openCursors.clear();
+			delta = agreed.contains(WireProtocol.DELTA);
+			compressedSync = !delta && askForCompression && agreed.contains(WireProtocol.DEFLATE);
+			String since = WireProtocol.featureValue(agreed, WireProtocol.SINCE);
+			if(askToResume && agreed.contains(WireProtocol.RESUME) && since != null) {
+				try {
+					epoch = WireProtocol.positionEpoch(since);
+					lastSequence = WireProtocol.positionSequence(since);
+				} catch(IllegalArgumentException iae) {
+					throw new IOException("Invalid position from server.", iae);
+				}
+			} else if(delta) {
+				throw new IOException("Server skipped the database without saying from where.");
+			} else {
+				epoch = null;
+			}
+
+			//Read from the server its current database,
+			//unless it is just sending what we missed
+			//or we are only here to search
+			if(delta || queryOnly) {
+				if(binary) serverInput = input;
+				else reader = new BufferedReader(new InputStreamReader(input), STREAM_BUFFER_SIZE);
+			} else {
+				InputStream syncInput = compressedSync ? new ChunkedInflaterInputStream(input) : input;
+				if(binary) {
+					readBulkFrames(syncInput, initialEntries);
+					serverInput = input;
+				} else {
+					BufferedReader syncReader = new BufferedReader(new InputStreamReader(syncInput),
+							STREAM_BUFFER_SIZE);
+					readBulkLines(syncReader, initialEntries);
+					//the compressed part ends right where the bulk
+					//does, so the rest of the stream is still ours
+					reader = compressedSync
+						? new BufferedReader(new InputStreamReader(input), STREAM_BUFFER_SIZE)
+						: syncReader;
+				}
+				if(compressedSync) syncInput.close();
+			}
+			serverReader = reader;
+		} catch(IOException ioe) {
+			try {
+				if(!socket.isClosed()) socket.close();
+			} catch(IOException closeFailure) {
+				//ignore it
 			}
+			throw ioe;
 		} finally {
 			serverReadLock.unlock();
 		}
-		serverWriter = new PrintWriter(socket.getOutputStream(), true);
+		serverWriteLock.lock();
+		try {
+			if(binary) {
+				serverOutput = output;
+			} else {
+				//no autoflush: updates get flushed once per batch
+				serverWriter = new PrintWriter(new OutputStreamWriter(output), false);
+			}
+		} finally {
+			serverWriteLock.unlock();
+		}
+		if(batchTimer == null) batchTimer = new Timer("stockpile-batcher", true);
+		if(!queryOnly) notifyPositionListeners(!delta);
+		notifyStateChangeListeners(State.CONNECTED, Optional.empty());
+		InputStream frames = serverInput;
+		BufferedReader lines = reader;
+		boolean listenForFrames = binary;
 		serverListenerThread = new Thread(() -> {
 			try {
-				String read;
-				while(true) {
-					read = serverReader.readLine();
-					//check if data is valid
-					if(read == null) {
-						//it's not valid, kill the server
-						notifyStateChangeListeners(State.DISCONNECTED, Optional.empty());
-						try {
-							if(!socket.isClosed()) socket.close();
-						} catch(IOException ioe) {
-							ioe.printStackTrace();
-						}
-						break;
-					}
-
-					//it is valid! go for it!
-					notifyRemoteUpdateListeners(read);
-				}
+				if(listenForFrames) listenForFrames(frames);
+				else listenForLines(lines);
+				//the server hung up
+				notifyStateChangeListeners(State.DISCONNECTED, Optional.empty());
 			} catch(IOException ioe) {
-				notifyStateChangeListeners(State.ERROR, Optional.of(ioe.getMessage()));
-				ioe.printStackTrace();
+				if(socket.isClosed()) {
+					//we hung up, to reconnect
+					notifyStateChangeListeners(State.DISCONNECTED, Optional.empty());
+				} else {
+					notifyStateChangeListeners(State.ERROR, Optional.of(ioe.getMessage()));
+					ioe.printStackTrace();
+				}
 			} finally {
 				try {
 					if(!socket.isClosed()) socket.close();
 				} catch(IOException ioe) {
 					ioe.printStackTrace();
 				}
+				failPendingQueries();
 			}
 		});
 		serverListenerThread.start();
-		return ret;
+		return delta;
+	}
+
+	/**
+	 * Reads the initial database from a text server,
+	 * up to <code>BULK_DONE</code>.
+	 *
+	 * @param reader Where the lines come from
+	 * @param initialEntries Given each entry in turn
+	 * @throws IOException If the connection breaks first
+	 */
+	private void readBulkLines(BufferedReader reader, Consumer<Entry> initialEntries)
+			throws IOException {
+		String read;
+		while(!WireProtocol.BULK_DONE.equals(read = reader.readLine())) {
+			if(read == null) throw new EOFException("Server hung up during the initial sync.");
+			Entry entry;
+			try {
+				entry = new Entry(read);
+			} catch(IllegalArgumentException iae) {
+				throw new IOException("Invalid entry from server.", iae);
+			}
+			initialEntries.accept(entry);
+		}
+	}
+
+	/**
+	 * Reads the initial database from a binary server,
+	 * up to <code>END_OF_BULK</code>.
+	 *
+	 * @param input Where the frames come from
+	 * @param initialEntries Given each entry in turn
+	 * @throws IOException If the connection breaks first or
+	 *  the server sends something that does not decode
+	 */
+	private void readBulkFrames(InputStream input, Consumer<Entry> initialEntries)
+			throws IOException {
+		ByteBuffer frame = null;
+		while(true) {
+			frame = WireProtocol.readFrame(input, frame);
+			if(frame == null) throw new EOFException("Server hung up during the initial sync.");
+			byte type = WireProtocol.getType(frame);
+			if(type == WireProtocol.END_OF_BULK) return;
+			if(type != WireProtocol.ENTRIES) throw new IOException("Unexpected frame during the initial sync.");
+			try {
+				WireProtocol.getEntries(frame, initialEntries);
+			} catch(IllegalArgumentException iae) {
+				throw new IOException("Corrupted frame from server.", iae);
+			}
+		}
+	}
+
+	/**
+	 * Passes update lines from a text server on to the
+	 * listeners until the server hangs up, counting each
+	 * update or batch once it has been passed on. A batch
+	 * is only passed on once all of it has arrived. Search
+	 * results go to the searches waiting on them.
+	 *
+	 * @param reader Where the lines come from
+	 * @throws IOException If the connection breaks
+	 */
+	private void listenForLines(BufferedReader reader) throws IOException {
+		String read;
+		while((read = reader.readLine()) != null) {
+			if(QueryResults.isResultsLine(read)) {
+				//not an update, so not counted
+				resultsArrived(QueryResults.readLines(read, reader));
+				continue;
+			}
+			if(DatabaseUpdater.isBatchHeader(read)) {
+				int size = DatabaseUpdater.parseBatchHeader(read);
+				//nothing is passed on until the whole batch is here
+				List<String> batch = new ArrayList<>(size);
+				for(int i = 0; i < size; i++) {
+					read = reader.readLine();
+					if(read == null) throw new EOFException("Server hung up in the middle of a batch.");
+					batch.add(read);
+				}
+				for(String update : batch) notifyRemoteUpdateListeners(update);
+			} else if(!WireProtocol.APPLIED_LINE.equals(read)) {
+				notifyRemoteUpdateListeners(read);
+			}
+			lastSequence++;
+			notifyPositionListeners(false);
+		}
+	}
+
+	/**
+	 * Passes updates from a binary server on to the
+	 * listeners until the server hangs up, counting each
+	 * frame once it has been passed on. Search results go
+	 * to the searches waiting on them.
+	 *
+	 * @param input Where the frames come from
+	 * @throws IOException If the connection breaks or the
+	 *  server sends something that does not decode
+	 */
+	private void listenForFrames(InputStream input) throws IOException {
+		ByteBuffer frame = null;
+		while((frame = WireProtocol.readFrame(input, frame)) != null) {
+			if(QueryResults.isResultsFrame(frame)) {
+				try {
+					resultsArrived(QueryResults.fromFrame(frame));
+				} catch(IllegalArgumentException iae) {
+					throw new IOException("Corrupted frame from server.", iae);
+				}
+				continue;
+			}
+			if(frame.hasRemaining() && WireProtocol.getType(frame) == WireProtocol.APPLIED) {
+				lastSequence++;
+				notifyPositionListeners(false);
+				continue;
+			}
+			List<EntryUpdate> updates;
+			try {
+				updates = WireProtocol.getUpdates(frame);
+			} catch(IllegalArgumentException iae) {
+				throw new IOException("Corrupted frame from server.", iae);
+			}
+			for(EntryUpdate update : updates) {
+				notifyRemoteUpdateListeners(update.toCommandString());
+			}
+			lastSequence++;
+			notifyPositionListeners(false);
+		}
 	}
 }
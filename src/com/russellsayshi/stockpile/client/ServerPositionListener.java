@@ -0,0 +1,10 @@
+package com.russellsayshi.stockpile.client;
+
+/**
+ * Functional interface for when the server has
+ * finished sending an update, a batch, or the
+ * initial database.
+ */
+public interface ServerPositionListener {
+	void positionReached(String position, boolean resynced);
+}
@@ -7,12 +7,17 @@ import com.russellsayshi.stockpile.inventory.*;
 /**
  * A ListModel for use by the GUI class
  * to display in the JList
+ *
+ * It shows either a plain list or an entry store. A
+ * store is shown as it is, in its order, so changing it
+ * never means shuffling a list along.
  * 
  * @author Russell Coleman
  * @version 1.0.0
  */
 public class EntryListModel extends AbstractListModel<Entry> {
 	protected List<Entry> list;
+	protected EntryStore store;
 
 	/**
 	 * Constructs the model with an underlying list
@@ -23,6 +28,16 @@ public class EntryListModel extends AbstractListModel<Entry> {
 		this.list = list;
 	}
 
+	/**
+	 * Constructs the model with an underlying store
+	 * instead of a list
+	 *
+	 * @param store The underlying store
+	 */
+	public EntryListModel(EntryStore store) {
+		this.store = store;
+	}
+
 	/**
 	 * Adds an element to the underlying list
 	 * and updates the contents
@@ -30,16 +45,89 @@ public class EntryListModel extends AbstractListModel<Entry> {
 	 * @param element The Entry to add to the list
 	 */
 	public void addElement(Entry element) {
-		list.add(element);
-		int addedLoc = list.size();
-		fireContentsChanged(element, addedLoc, addedLoc);
+		int oldSize = getSize();
+		if(store != null) store.add(element);
+		else list.add(element);
+		fireResized(oldSize);
+	}
+
+	/**
+	 * Adds elements to the end of the underlying list
+	 * and tells the list about them all at once
+	 *
+	 * @param elements The Entries to add to the list
+	 */
+	public void addElements(List<Entry> elements) {
+		if(elements.isEmpty()) return;
+		int oldSize = getSize();
+		if(store != null) {
+			for(Entry e : elements) store.add(e);
+		} else {
+			list.addAll(elements);
+		}
+		fireResized(oldSize);
+	}
+
+	/**
+	 * Replaces everything in the underlying list
+	 * and updates the contents
+	 *
+	 * @param elements The Entries the list should hold
+	 */
+	public void setElements(List<Entry> elements) {
+		int oldSize = getSize();
+		if(store != null) store.clear();
+		else list.clear();
+		if(oldSize > 0) fireIntervalRemoved(this, 0, oldSize - 1);
+		if(store != null) {
+			for(Entry e : elements) store.add(e);
+		} else {
+			list.addAll(elements);
+		}
+		if(getSize() > 0) fireIntervalAdded(this, 0, getSize() - 1);
+	}
+
+	/**
+	 * Applies updates to the underlying list
+	 * and updates the contents
+	 *
+	 * @param updates The updates, in order
+	 */
+	public void applyUpdates(List<EntryUpdate> updates) {
+		if(updates.isEmpty()) return;
+		int oldSize = getSize();
+		for(EntryUpdate update : updates) {
+			if(store != null) update.applyTo(store);
+			else update.applyTo(list);
+		}
+		fireResized(oldSize);
+	}
+
+	/**
+	 * Tells the list its contents changed, and by
+	 * how much its size did.
+	 *
+	 * @param oldSize How big it was before
+	 */
+	private void fireResized(int oldSize) {
+		int newSize = getSize();
+		if(newSize < oldSize) {
+			fireIntervalRemoved(this, newSize, oldSize - 1);
+		} else if(newSize > oldSize) {
+			fireIntervalAdded(this, oldSize, newSize - 1);
+		}
+		//removing shifts everything after it, and a copy
+		//of an entry goes in next to the others
+		if(Math.min(oldSize, newSize) > 0) {
+			fireContentsChanged(this, 0, Math.min(oldSize, newSize) - 1);
+		}
 	}
 
 	/**
 	 * Refreshes the entire contents of the list
 	 */
 	public void fireDataChanged() {
-		int listSize = list.size();
+		int listSize = getSize();
 		fireContentsChanged(this, listSize, listSize);
 	}
 
@@ -49,7 +137,7 @@ public class EntryListModel extends AbstractListModel<Entry> {
 	 * @return The list size
 	 */
 	public int getSize() {
-		return list.size();
+		return store != null ? store.size() : list.size();
 	}
 
 	/**
@@ -60,6 +148,6 @@ public class EntryListModel extends AbstractListModel<Entry> {
 	 */
 	@Override
 	public Entry getElementAt(int index) {
-		return list.get(index);
+		return store != null ? store.get(index) : list.get(index);
 	}
 }
@@ -17,6 +17,20 @@ import java.util.*;
  */
 public class FileFetcher {
 	private static final String DEFAULT_FILENAME = "entries.db";
+	//Not entries.db, so a client started next to the
+	//server can never write over the server's snapshot
+	private static final String REPLICA_FILENAME = "entries.replica";
+
+	/**
+	 * Gets the file the client keeps its copy of
+	 * the server's database in. It is only a cache,
+	 * so the user never gets asked about it.
+	 *
+	 * @return The file, which may not exist yet
+	 */
+	public static File getReplicaFile() {
+		return new File(REPLICA_FILENAME);
+	}
 
 	/**
 	 * Gets the file handle
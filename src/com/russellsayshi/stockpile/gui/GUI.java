@@ -2,26 +2,129 @@ package com.russellsayshi.stockpile.gui;
 
 import com.russellsayshi.stockpile.inventory.*;
 import com.russellsayshi.stockpile.client.*;
+import com.russellsayshi.stockpile.server.DatabaseUpdater;
 import javax.swing.*;
+import javax.swing.event.*;
+import javax.swing.tree.*;
 import java.awt.BorderLayout;
 import java.awt.Color;
+import java.awt.event.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 /**
  * Stockpile class
+ *
+ * Shows the copy of the database saved last time
+ * straight away, then connects in the background and
+ * catches up on whatever changed. If the server can not
+ * be reached the saved copy stays up, and the GUI keeps
+ * trying to reconnect.
+ *
  * @author Russell Coleman
  * @version 1.0.0
  */
 public class GUI {
 	private static final String ICON_PATH = "icon.png";
+	//How many entries of the initial database to show at a time
+	private static final int INITIAL_BATCH_SIZE = 1000;
+	//How often to save the copy of the database if it changed
+	private static final int SAVE_MILLIS = 30 * 1000;
+	//How long to wait between tries to reach the server
+	private static final long MIN_RETRY_MILLIS = 1000;
+	private static final long MAX_RETRY_MILLIS = 30 * 1000;
+	//How long typing has to stop for before searching
+	private static final int SEARCH_DELAY_MILLIS = 150;
+	//How many completions to offer under the search box
+	private static final int MAX_COMPLETIONS = 8;
 	private JFrame frame;
 	private JTextField searchBox;
 	private JList<Entry> entryJList = new JList<>();
-	private List<Entry> entryList = new ArrayList<>();
-	private EntryListModel listModel = new EntryListModel(entryList);
+	//Everything in the list, and the indexes on it. Only touched
+	//on the event dispatch thread; other threads get snapshots.
+	private EntryStore entryStore = new EntryStore();
+	private PrefixIndex prefixIndex = new PrefixIndex(entryStore);
+	private FuzzyIndex fuzzyIndex = new FuzzyIndex(entryStore);
+	private LocationTree locationTree = new LocationTree(entryStore,
+			System.getProperty("stockpile.locationSeparator", LocationTree.DEFAULT_SEPARATOR));
+	private JPopupMenu completionPopup = new JPopupMenu();
+	private EntryListModel listModel = new EntryListModel(entryStore);
+	private EntryListModel resultsModel = new EntryListModel(new ArrayList<>());
 	private ServerConnection connectionToServer = new ServerConnection("localhost");
 	private JLabel serverStatus;
+	private ReplicaCache replica = new ReplicaCache(FileFetcher.getReplicaFile());
+	private ExecutorService replicaSaver = Executors.newSingleThreadExecutor(r -> {
+		Thread ret = new Thread(r, "stockpile-replica-saver");
+		ret.setDaemon(true);
+		return ret;
+	});
+	//Position the list is at, and whether it changed since it
+	//was last saved. Only touched on the event dispatch thread.
+	private String listPosition;
+	private boolean listChanged = false;
+	//Updates the server sent since it last reached a position.
+	//Only touched by whichever thread the connection calls back on,
+	//and by the connecting thread once that connection has ended.
+	private List<EntryUpdate> arrivingUpdates = new ArrayList<>();
+	//Entries of a database the server is in the middle of sending,
+	//and the ones of them not shown yet. Only touched by the
+	//connecting thread.
+	private List<Entry> arrivingEntries = new ArrayList<>();
+	private List<Entry> unshownEntries = new ArrayList<>();
+	private boolean showWhileArriving;
+	//One permit for every connection that has ended
+	private Semaphore disconnected = new Semaphore(0);
+	//The search being worked on, and the last one shown along
+	//with what the list looked like then, counted in changes.
+	//Only touched on the event dispatch thread.
+	private javax.swing.Timer searchDelay;
+	private SearchWorker search;
+	private String shownQuery = "";
+	private List<Entry> shownResults;
+	private long shownVersion;
+	private long listVersion = 0;
+
+	/**
+	 * Finds the entries matching a search off the event
+	 * dispatch thread, then shows them all at once unless
+	 * another search has replaced it in the meantime.
+	 */
+	private class SearchWorker extends SwingWorker<List<Entry>, Void> {
+		private final String query;
+		private final List<Entry> entries;
+		private final long version;
+
+		/**
+		 * Constructs a search.
+		 *
+		 * @param query The lowercase query
+		 * @param entries What to look through, which nothing
+		 *  else may change
+		 * @param version The version of the list it is from
+		 */
+		SearchWorker(String query, List<Entry> entries, long version) {
+			this.query = query;
+			this.entries = entries;
+			this.version = version;
+		}
+
+		@Override
+		protected List<Entry> doInBackground() {
+			return EntrySearcher.search(entries, query, EntrySearcher.NO_LIMIT, () -> isCancelled());
+		}
+
+		@Override
+		protected void done() {
+			if(isCancelled() || search != this) return;
+			search = null;
+			try {
+				showResults(query, get(), version);
+			} catch(InterruptedException|ExecutionException e) {
+				e.printStackTrace();
+			}
+		}
+	}
 
 	/**
 	 * Entry point of the application. Creates a GUI.
@@ -51,19 +154,330 @@ public class GUI {
 	}
 
 	/**
-	 * Initializes the list with the stored items.
-	 * Only call it once.
+	 * Shows the copy of the database saved last time, if
+	 * there is one for this server, and picks up from it
+	 * when connecting. Call before connecting.
+	 *
+	 * @return Whether there was a copy to show
 	 */
-	private void connectToServerAndPopulateList() {
-		if(entryList.size() > 0) throw new IllegalStateException("Cannot populate list again.");
+	private boolean showSavedReplica() {
+		List<Entry> saved = new ArrayList<>();
+		String position;
 		try {
-			List<String> serverDatabase = connectionToServer.connectAndFetchDatabase();
-			for(String s : serverDatabase) {
-				entryList.add(new Entry(s));
+			position = replica.load(connectionToServer.getServerAddress(), e -> saved.add(e));
+			connectionToServer.setPosition(position);
+		} catch(IOException|IllegalArgumentException e) {
+			//not worth showing, the server will send it all again
+			e.printStackTrace();
+			return false;
+		}
+		if(saved.isEmpty() && position == null) return false;
+		SwingUtilities.invokeLater(() -> {
+			listModel.addElements(saved);
+			listUpdated();
+			listPosition = position;
+			serverStatus.setText("Showing the copy saved last time. Connecting...");
+		});
+		return true;
+	}
+
+	/**
+	 * Connects to the server, and keeps reconnecting
+	 * whenever the connection drops, waiting longer
+	 * each time the server can not be reached. Meant to
+	 * be run on its own thread.
+	 *
+	 * @param nothingShown Whether to show the entries of the
+	 *  first database the server sends as they arrive, because
+	 *  there is nothing else to show in the meantime
+	 */
+	private void keepConnected(boolean nothingShown) {
+		showWhileArriving = nothingShown;
+		boolean tried = false;
+		long retryMillis = MIN_RETRY_MILLIS;
+		try {
+			while(true) {
+				if(showWhileArriving) {
+					//whatever a failed try showed goes
+					SwingUtilities.invokeLater(() -> listModel.setElements(new ArrayList<>()));
+				}
+				try {
+					if(tried) connectionToServer.reconnect(e -> entryArrived(e));
+					else connectionToServer.connectAndStreamDatabase(e -> entryArrived(e));
+					retryMillis = MIN_RETRY_MILLIS;
+					disconnected.acquire();
+				} catch(IOException ioe) {
+					ioe.printStackTrace();
+					SwingUtilities.invokeLater(() -> handleServerStateChange(
+							ServerConnection.State.ERROR,
+							Optional.of("Unable to reach the server. Trying again...")));
+					retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+				}
+				tried = true;
+				//the server sends these again, or the whole database
+				arrivingUpdates.clear();
+				arrivingEntries.clear();
+				unshownEntries.clear();
+				Thread.sleep(retryMillis);
+			}
+		} catch(InterruptedException ie) {
+			//asked to stop
+		}
+	}
+
+	/**
+	 * Takes an entry of a database the server is sending.
+	 *
+	 * @param entry The entry
+	 */
+	private void entryArrived(Entry entry) {
+		arrivingEntries.add(entry);
+		if(showWhileArriving) {
+			unshownEntries.add(entry);
+			if(unshownEntries.size() >= INITIAL_BATCH_SIZE) publishEntries(unshownEntries);
+		}
+	}
+
+	/**
+	 * Takes an update the server sent.
+	 *
+	 * @param update The update string
+	 */
+	private void updateArrived(String update) {
+		try {
+			arrivingUpdates.add(DatabaseUpdater.parse(update));
+		} catch(IllegalArgumentException iae) {
+			System.err.println("Invalid update from server: " + update);
+		}
+	}
+
+	/**
+	 * Shows what the server has sent since the last
+	 * time it reached a position, all at once, so that
+	 * the list is never shown or saved part way through
+	 * a batch.
+	 *
+	 * @param position The position
+	 * @param resynced Whether the server sent the whole
+	 *  database, which replaces whatever is shown
+	 */
+	private void positionReached(String position, boolean resynced) {
+		List<EntryUpdate> updates = arrivingUpdates;
+		arrivingUpdates = new ArrayList<>();
+		List<Entry> entries = null;
+		if(resynced) {
+			//replaces anything shown while it arrived, all at once
+			entries = new ArrayList<>(arrivingEntries);
+			arrivingEntries.clear();
+			unshownEntries.clear();
+			showWhileArriving = false;
+		}
+		List<Entry> database = entries;
+		SwingUtilities.invokeLater(() -> {
+			if(database != null) listModel.setElements(database);
+			listModel.applyUpdates(updates);
+			listUpdated();
+			listPosition = position;
+			listChanged = true;
+		});
+	}
+
+	/**
+	 * Saves a copy of the list if it changed since the
+	 * last time. Only call on the event dispatch thread.
+	 *
+	 * @return When the save is done
+	 */
+	private Future<?> saveReplica() {
+		if(!listChanged) return CompletableFuture.completedFuture(null);
+		listChanged = false;
+		List<Entry> copy = entryStore.snapshot();
+		String position = listPosition;
+		String server = connectionToServer.getServerAddress();
+		return replicaSaver.submit(() -> {
+			try {
+				replica.save(server, position, copy);
+			} catch(IOException ioe) {
+				ioe.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * Hands entries over to the list on the event
+	 * dispatch thread, and empties the given list.
+	 *
+	 * @param entries The entries to show
+	 */
+	private void publishEntries(List<Entry> entries) {
+		if(entries.isEmpty()) return;
+		List<Entry> batch = new ArrayList<>(entries);
+		entries.clear();
+		SwingUtilities.invokeLater(() -> {
+			listModel.addElements(batch);
+			listUpdated();
+		});
+	}
+
+	/**
+	 * Searches again after the list has changed, if a
+	 * search is being shown. Only call on the event
+	 * dispatch thread.
+	 */
+	private void listUpdated() {
+		listVersion++;
+		if(!shownQuery.isEmpty() || search != null) searchDelay.restart();
+	}
+
+	/**
+	 * Starts searching for whatever is in the search box,
+	 * dropping any search already under way. A search that
+	 * only adds to the last one shown just looks through its
+	 * results. Only call on the event dispatch thread.
+	 */
+	private void startSearch() {
+		String query = searchBox.getText().toLowerCase();
+		if(search != null) {
+			search.cancel(false);
+			search = null;
+		}
+		if(query.isEmpty()) {
+			showResults(query, null, listVersion);
+			return;
+		}
+		if(FuzzyIndex.isFuzzyQuery(query)) {
+			//the index only looks at a few names, so this is quick enough to do here
+			showResults(query, fuzzyIndex.search(query), listVersion);
+			return;
+		}
+		if(LocationTree.isLocationQuery(query)) {
+			showResults(query, locationTree.entriesUnder(query), listVersion);
+			return;
+		}
+		List<Entry> entries;
+		if(shownResults != null && shownVersion == listVersion
+				&& narrows(shownQuery, query)) {
+			entries = shownResults;
+		} else {
+			//the list keeps changing on this thread, so search a snapshot
+			entries = entryStore.snapshot();
+		}
+		search = new SearchWorker(query, entries, listVersion);
+		search.execute();
+	}
+
+	/**
+	 * Checks if everything matching one query also
+	 * matches another, so that searching the first's
+	 * results for it finds everything.
+	 *
+	 * @param previous The query searched already
+	 * @param query The query to search for
+	 * @return Whether the results of the first will do
+	 */
+	private static boolean narrows(String previous, String query) {
+		if(previous.isEmpty() || !query.contains(previous)) return false;
+		//fuzzy and location results are not everything containing the query
+		if(FuzzyIndex.isFuzzyQuery(previous) || LocationTree.isLocationQuery(previous)) return false;
+		//anything missing matches a query mentioning it, whatever else it says
+		return previous.contains("missing") || !query.contains("missing");
+	}
+
+	/**
+	 * Offers the names and locations starting with
+	 * whatever is in the search box, the ones the most
+	 * entries have first. Only call on the event
+	 * dispatch thread.
+	 */
+	private void showCompletions() {
+		String typed = searchBox.getText().toLowerCase();
+		//how many entries have each, counting a name that is also a location twice
+		Map<String, Integer> copies = new HashMap<>();
+		if(!typed.isEmpty()) {
+			for(PrefixIndex.Field field : PrefixIndex.Field.values()) {
+				NavigableMap<String, Integer> all = prefixIndex.all(field);
+				for(String completion : prefixIndex.complete(field, typed, MAX_COMPLETIONS + 1)) {
+					//no point offering what is already typed
+					if(!completion.equals(typed)) copies.merge(completion, all.get(completion), Integer::sum);
+				}
 			}
-			listModel.fireDataChanged();
-		} catch(IOException ioe) {
-			ioe.printStackTrace();
+		}
+		List<String> completions = new ArrayList<>(copies.keySet());
+		completions.sort(Comparator.<String>comparingInt(copies::get).reversed()
+				.thenComparing(Comparator.naturalOrder()));
+		if(completions.size() > MAX_COMPLETIONS) completions = completions.subList(0, MAX_COMPLETIONS);
+		completionPopup.setVisible(false);
+		if(completions.isEmpty() || !searchBox.isFocusOwner()) return;
+		completionPopup.removeAll();
+		for(String completion : completions) {
+			JMenuItem item = new JMenuItem(completion);
+			item.addActionListener(ae -> searchBox.setText(completion));
+			completionPopup.add(item);
+		}
+		completionPopup.pack();
+		completionPopup.show(searchBox, 0, searchBox.getHeight());
+	}
+
+	/**
+	 * Opens a window showing every location as a tree,
+	 * with how many entries are in each and how many of
+	 * those are missing, as they were when it opened.
+	 * Picking one lists everything in it. Only call on
+	 * the event dispatch thread.
+	 */
+	private void showLocations() {
+		JTree tree = new JTree(treeNodeFor(locationTree.getRoot()));
+		tree.getSelectionModel().setSelectionMode(TreeSelectionModel.SINGLE_TREE_SELECTION);
+		tree.addTreeSelectionListener(tse -> {
+			DefaultMutableTreeNode selected = (DefaultMutableTreeNode)tree.getLastSelectedPathComponent();
+			if(selected == null) return;
+			LocationTree.Node location = (LocationTree.Node)selected.getUserObject();
+			searchBox.setText(location.getParent() == null
+				? ""
+				: LocationTree.LOCATION_PREFIX + location.getPath());
+		});
+		JDialog dialog = new JDialog(frame, "Locations", false);
+		dialog.setContentPane(new JScrollPane(tree));
+		dialog.setSize(300, 400);
+		dialog.setLocationRelativeTo(frame);
+		dialog.setVisible(true);
+	}
+
+	/**
+	 * Copies a location and everything inside it into
+	 * nodes a <code>JTree</code> can show.
+	 *
+	 * @param location The location
+	 * @return Its node
+	 */
+	private static DefaultMutableTreeNode treeNodeFor(LocationTree.Node location) {
+		DefaultMutableTreeNode ret = new DefaultMutableTreeNode(location);
+		for(LocationTree.Node child : location.getChildren()) {
+			ret.add(treeNodeFor(child));
+		}
+		return ret;
+	}
+
+	/**
+	 * Shows the results of a search in place of the
+	 * list, in one go. Only call on the event dispatch
+	 * thread.
+	 *
+	 * @param query The query searched for
+	 * @param results What matched, or null to show
+	 *  the whole list
+	 * @param version The version of the list searched
+	 */
+	private void showResults(String query, List<Entry> results, long version) {
+		shownQuery = query;
+		shownResults = results;
+		shownVersion = version;
+		if(results == null) {
+			resultsModel.setElements(new ArrayList<>());
+			if(entryJList.getModel() != listModel) entryJList.setModel(listModel);
+		} else {
+			resultsModel.setElements(results);
+			if(entryJList.getModel() != resultsModel) entryJList.setModel(resultsModel);
 		}
 	}
 
@@ -71,7 +485,12 @@ public class GUI {
 	 * Initializes server change/update handlers.
 	 */
 	private void setupServerHandlers() {
-		connectionToServer.addStateChangeListener((a, b) -> handleServerStateChange(a, b));
+		connectionToServer.addStateChangeListener((a, b) -> {
+			if(a != ServerConnection.State.CONNECTED) disconnected.release();
+			SwingUtilities.invokeLater(() -> handleServerStateChange(a, b));
+		});
+		connectionToServer.addRemoteUpdateListener(u -> updateArrived(u));
+		connectionToServer.addPositionListener((p, r) -> positionReached(p, r));
 	}
 
 	/**
@@ -111,8 +530,17 @@ public class GUI {
 		//Add components to frame
 		JPanel panel = new JPanel(new BorderLayout());
 		frame.setContentPane(panel);
-		panel.add((searchBox = new JTextField("")), BorderLayout.NORTH);
-		panel.add(entryJList, BorderLayout.CENTER);
+		JPanel searchPanel = new JPanel(new BorderLayout());
+		searchPanel.add((searchBox = new JTextField("")), BorderLayout.CENTER);
+		JButton locationsButton = new JButton("Locations");
+		locationsButton.addActionListener(ae -> showLocations());
+		searchPanel.add(locationsButton, BorderLayout.EAST);
+		panel.add(searchPanel, BorderLayout.NORTH);
+		entryJList.setModel(listModel);
+		//every row the same size, so the list only ever looks at the rows it shows
+		entryJList.setPrototypeCellValue(new Entry("Something with a fairly long name",
+				"somewhere a good way down", 0));
+		panel.add(new JScrollPane(entryJList), BorderLayout.CENTER);
 		panel.add((serverStatus = new JLabel("No connection.")), BorderLayout.SOUTH);
 
 		//Show frame
@@ -120,10 +548,52 @@ public class GUI {
 		frame.setSize(600, 400);
 		frame.setLocationRelativeTo(null);
 		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		frame.addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosing(WindowEvent we) {
+				try {
+					saveReplica().get();
+				} catch(InterruptedException|ExecutionException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		new javax.swing.Timer(SAVE_MILLIS, ae -> saveReplica()).start();
+		searchDelay = new javax.swing.Timer(SEARCH_DELAY_MILLIS, ae -> startSearch());
+		searchDelay.setRepeats(false);
+		//the popup must not take focus away from typing
+		completionPopup.setFocusable(false);
+		searchBox.getDocument().addDocumentListener(new DocumentListener() {
+			@Override
+			public void insertUpdate(DocumentEvent de) {
+				searchDelay.restart();
+				SwingUtilities.invokeLater(() -> showCompletions());
+			}
+
+			@Override
+			public void removeUpdate(DocumentEvent de) {
+				searchDelay.restart();
+				SwingUtilities.invokeLater(() -> showCompletions());
+			}
+
+			@Override
+			public void changedUpdate(DocumentEvent de) {
+				searchDelay.restart();
+			}
+		});
+		searchBox.addFocusListener(new FocusAdapter() {
+			@Override
+			public void focusLost(FocusEvent fe) {
+				completionPopup.setVisible(false);
+			}
+		});
 		frame.setVisible(true);
 
 		//Cool cool. Do stuff with server now
 		setupServerHandlers();
-		connectToServerAndPopulateList();
+		boolean showedReplica = showSavedReplica();
+		Thread connector = new Thread(() -> keepConnected(!showedReplica), "stockpile-connector");
+		connector.setDaemon(true);
+		connector.start();
 	}
 }
@@ -0,0 +1,351 @@
+package com.russellsayshi.stockpile.inventory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A list of entries that keeps them packed into arrays
+ * instead of as an object each, for inventories so big
+ * that the objects and their strings take up most of the
+ * heap.
+ *
+ * Names are kept as UTF-8 in one big byte array, with
+ * their lowercase form right after them unless it is the
+ * same. Locations repeat a lot, so each different one is
+ * kept once and every entry just has its number. What is
+ * left for each entry is a handful of ints in columns.
+ *
+ * <code>get</code> hands out a small read-only
+ * <code>Entry</code> that reads from the arrays, made on
+ * the spot. It keeps what it read, so it stays the same
+ * even after the list changes. Searching with an
+ * <code>EntryMatcher.ColumnQuery</code> looks at the
+ * arrays directly and never makes one at all.
+ *
+ * Removing or replacing entries leaves their names behind
+ * in the byte array until there is more left behind than
+ * in use, and then the array is packed again. Locations
+ * are only forgotten when the list is cleared.
+ *
+ * Not thread safe.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public class ColumnarEntryList extends AbstractList<Entry> implements RandomAccess {
+	/**
+	 * An entry read out of the arrays. Its name is only
+	 * turned into a string if something asks for it.
+	 */
+	private static final class View extends Entry {
+		private final byte[] names;
+		private final int nameStart;
+		private final int nameLength;
+		private final int lowerLength;
+		private final String location;
+		private final String locationLower;
+		private final int flags;
+		private String name;
+		private String nameLower;
+
+		View(byte[] names, int nameStart, int nameLength, int lowerLength,
+				String location, String locationLower, int flags) {
+			this.names = names;
+			this.nameStart = nameStart;
+			this.nameLength = nameLength;
+			this.lowerLength = lowerLength;
+			this.location = location;
+			this.locationLower = locationLower;
+			this.flags = flags;
+		}
+
+		@Override
+		public String getName() {
+			if(name == null) {
+				name = new String(names, nameStart, nameLength, StandardCharsets.UTF_8);
+			}
+			return name;
+		}
+
+		@Override
+		public String getNameLower() {
+			if(nameLower == null) {
+				nameLower = lowerLength == 0
+					? getName()
+					: new String(names, nameStart + nameLength, lowerLength, StandardCharsets.UTF_8);
+			}
+			return nameLower;
+		}
+
+		@Override
+		public String getLocation() {
+			return location;
+		}
+
+		@Override
+		public String getLocationLower() {
+			return locationLower;
+		}
+
+		@Override
+		public int getFlags() {
+			return flags;
+		}
+
+		@Override
+		public void setName(String name) {
+			throw new UnsupportedOperationException("Entries in a ColumnarEntryList can not be changed.");
+		}
+
+		@Override
+		public void setLocation(String location) {
+			throw new UnsupportedOperationException("Entries in a ColumnarEntryList can not be changed.");
+		}
+
+		@Override
+		public void setFlags(int flags) {
+			throw new UnsupportedOperationException("Entries in a ColumnarEntryList can not be changed.");
+		}
+	}
+
+	//every name, and its lowercase form if different, one after another
+	private byte[] names = new byte[1024];
+	private int namesUsed = 0;
+	private int namesUnused = 0;
+	//the columns, one element for each entry
+	private int[] nameStarts = new int[16];
+	private int[] nameLengths = new int[16];
+	private int[] lowerLengths = new int[16]; //0 if already lowercase
+	private int[] locationIds = new int[16];
+	private int[] flags = new int[16];
+	private int size = 0;
+	//each different location once, by number
+	private final ArrayList<String> locations = new ArrayList<>();
+	private final ArrayList<String> locationsLower = new ArrayList<>();
+	private final HashMap<String, Integer> locationIdsByName = new HashMap<>();
+
+	/**
+	 * Constructs an empty list.
+	 */
+	public ColumnarEntryList() {
+	}
+
+	/**
+	 * Constructs a list holding some entries.
+	 *
+	 * @param entries The entries, in order
+	 */
+	public ColumnarEntryList(Collection<Entry> entries) {
+		for(Entry e : entries) add(e);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Entry get(int index) {
+		checkIndex(index, size);
+		return new View(names, nameStarts[index], nameLengths[index], lowerLengths[index],
+				locations.get(locationIds[index]), locationsLower.get(locationIds[index]),
+				flags[index]);
+	}
+
+	@Override
+	public Entry set(int index, Entry entry) {
+		checkIndex(index, size);
+		Entry ret = get(index);
+		namesUnused += nameLengths[index] + lowerLengths[index];
+		store(index, entry);
+		packIfWasteful();
+		return ret;
+	}
+
+	@Override
+	public void add(int index, Entry entry) {
+		checkIndex(index, size + 1);
+		if(size == flags.length) grow();
+		shift(index, index + 1, size - index);
+		size++;
+		store(index, entry);
+		modCount++;
+	}
+
+	@Override
+	public Entry remove(int index) {
+		checkIndex(index, size);
+		Entry ret = get(index);
+		namesUnused += nameLengths[index] + lowerLengths[index];
+		shift(index + 1, index, size - index - 1);
+		size--;
+		modCount++;
+		packIfWasteful();
+		return ret;
+	}
+
+	@Override
+	public void clear() {
+		names = new byte[1024];
+		namesUsed = 0;
+		namesUnused = 0;
+		size = 0;
+		locations.clear();
+		locationsLower.clear();
+		locationIdsByName.clear();
+		modCount++;
+	}
+
+	/**
+	 * Gets how many different locations the list has
+	 * numbered, which is one more than the biggest
+	 * location number.
+	 *
+	 * @return The number of locations
+	 */
+	int locationCount() {
+		return locations.size();
+	}
+
+	/**
+	 * Gets a location by its number.
+	 *
+	 * @param id The number
+	 * @return The location, lowercase
+	 */
+	String locationLower(int id) {
+		return locationsLower.get(id);
+	}
+
+	/**
+	 * Gets the number of an entry's location.
+	 *
+	 * @param index Which entry
+	 * @return The location's number
+	 */
+	int locationId(int index) {
+		return locationIds[index];
+	}
+
+	/**
+	 * Gets an entry's flags.
+	 *
+	 * @param index Which entry
+	 * @return The flags
+	 */
+	int flags(int index) {
+		return flags[index];
+	}
+
+	/**
+	 * Gets the bytes holding the names. Each entry's
+	 * lowercase name is at <code>lowerStart</code> for
+	 * <code>lowerLength</code> bytes.
+	 *
+	 * @return The bytes, which must not be changed
+	 */
+	byte[] names() {
+		return names;
+	}
+
+	/**
+	 * Gets where an entry's lowercase name starts.
+	 *
+	 * @param index Which entry
+	 * @return Its offset into <code>names()</code>
+	 */
+	int lowerStart(int index) {
+		return lowerLengths[index] == 0 ? nameStarts[index] : nameStarts[index] + nameLengths[index];
+	}
+
+	/**
+	 * Gets how long an entry's lowercase name is.
+	 *
+	 * @param index Which entry
+	 * @return Its length in bytes
+	 */
+	int lowerLength(int index) {
+		return lowerLengths[index] == 0 ? nameLengths[index] : lowerLengths[index];
+	}
+
+	/**
+	 * Writes an entry into the columns.
+	 *
+	 * @param index Where
+	 * @param entry The entry
+	 */
+	private void store(int index, Entry entry) {
+		byte[] name = entry.getName().getBytes(StandardCharsets.UTF_8);
+		byte[] lower = entry.getNameLower().equals(entry.getName())
+			? new byte[0]
+			: entry.getNameLower().getBytes(StandardCharsets.UTF_8);
+		if(namesUsed + name.length + lower.length > names.length) {
+			names = Arrays.copyOf(names, Math.max(names.length * 2, namesUsed + name.length + lower.length));
+		}
+		nameStarts[index] = namesUsed;
+		nameLengths[index] = name.length;
+		lowerLengths[index] = lower.length;
+		System.arraycopy(name, 0, names, namesUsed, name.length);
+		System.arraycopy(lower, 0, names, namesUsed + name.length, lower.length);
+		namesUsed += name.length + lower.length;
+		Integer id = locationIdsByName.get(entry.getLocation());
+		if(id == null) {
+			id = locations.size();
+			locations.add(entry.getLocation());
+			locationsLower.add(entry.getLocationLower());
+			locationIdsByName.put(entry.getLocation(), id);
+		}
+		locationIds[index] = id;
+		flags[index] = entry.getFlags();
+	}
+
+	/**
+	 * Moves a run of entries along the columns.
+	 *
+	 * @param from Where the run starts
+	 * @param to Where it should start
+	 * @param length How many entries are in it
+	 */
+	private void shift(int from, int to, int length) {
+		System.arraycopy(nameStarts, from, nameStarts, to, length);
+		System.arraycopy(nameLengths, from, nameLengths, to, length);
+		System.arraycopy(lowerLengths, from, lowerLengths, to, length);
+		System.arraycopy(locationIds, from, locationIds, to, length);
+		System.arraycopy(flags, from, flags, to, length);
+	}
+
+	private void grow() {
+		int capacity = flags.length * 2;
+		nameStarts = Arrays.copyOf(nameStarts, capacity);
+		nameLengths = Arrays.copyOf(nameLengths, capacity);
+		lowerLengths = Arrays.copyOf(lowerLengths, capacity);
+		locationIds = Arrays.copyOf(locationIds, capacity);
+		flags = Arrays.copyOf(flags, capacity);
+	}
+
+	/**
+	 * Packs the names again once more of the byte array
+	 * is left behind than in use. Views already handed
+	 * out keep the old array.
+	 */
+	private void packIfWasteful() {
+		if(namesUnused < 4096 || namesUnused < namesUsed - namesUnused) return;
+		byte[] packed = new byte[Math.max(1024, (namesUsed - namesUnused) * 2)];
+		int used = 0;
+		for(int i = 0; i < size; i++) {
+			int length = nameLengths[i] + lowerLengths[i];
+			System.arraycopy(names, nameStarts[i], packed, used, length);
+			nameStarts[i] = used;
+			used += length;
+		}
+		names = packed;
+		namesUsed = used;
+		namesUnused = 0;
+	}
+
+	private static void checkIndex(int index, int bound) {
+		if(index < 0 || index >= bound) {
+			throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + bound);
+		}
+	}
+}
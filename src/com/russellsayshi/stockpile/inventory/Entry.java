@@ -5,13 +5,21 @@ import java.io.*;
 /**
  * Contains a single stockpile entry
  *
+ * Everything but the getters and setters goes through
+ * the getters, so that a subclass can keep its name,
+ * location and flags somewhere else.
+ *
  * @author Russell Coleman
  * @version 1.0.0
  */
 public class Entry implements Comparable<Entry> {
+	//Names and locations repeat a lot, so every entry
+	//shares one copy of each from here
+	private static final StringPool POOL = new StringPool();
 	//Both nameLower and locationLower serve to
 	//cache lowercase versions of the name and location
-	//for easier searching
+	//for easier searching. They are the same strings
+	//as name and location if those are already lowercase.
 	private String name;
 	private transient String nameLower;
 	private String location;
@@ -26,10 +34,8 @@ public class Entry implements Comparable<Entry> {
 	 * @param flags The flags associated with the item
 	 */
 	public Entry(String name, String location, int flags) {
-		this.name = name;
-		this.nameLower = name.toLowerCase();
-		this.location = location;
-		this.locationLower = location.toLowerCase();
+		setName(name);
+		setLocation(location);
 		this.flags = flags;
 	}
 
@@ -39,10 +45,15 @@ public class Entry implements Comparable<Entry> {
 	 * @param Entry The entry to copy from
 	 */
 	public Entry(Entry other) {
-		this.name = other.name;
-		this.nameLower = other.nameLower;
-		this.location = other.location;
-		this.flags = other.flags;
+		this(other.getName(), other.getLocation(), other.getFlags());
+	}
+
+	/**
+	 * Constructs an entry that keeps its name, location
+	 * and flags itself, for subclasses that override
+	 * every getter and setter.
+	 */
+	protected Entry() {
 	}
 
 	/**
@@ -51,7 +62,7 @@ public class Entry implements Comparable<Entry> {
 	 * @return Whether or not it is missing
 	 */
 	public boolean isMissing() {
-		return (flags & 1) != 0;
+		return (getFlags() & 1) != 0;
 	}
 
 	/**
@@ -61,7 +72,16 @@ public class Entry implements Comparable<Entry> {
 	 *  be marked missing
 	 */
 	public void setMissing(boolean missing) {
-		this.flags = flags & (~1) | (missing ? 1 : 0);
+		setFlags(getFlags() & (~1) | (missing ? 1 : 0));
+	}
+
+	/**
+	 * Sets all of the flags of the item
+	 *
+	 * @param flags The new flags
+	 */
+	public void setFlags(int flags) {
+		this.flags = flags;
 	}
 
 	/**
@@ -70,8 +90,8 @@ public class Entry implements Comparable<Entry> {
 	 * @param name The new name
 	 */
 	public void setName(String name) {
-		this.name = name;
-		this.nameLower = name.toLowerCase();
+		this.name = POOL.intern(name);
+		this.nameLower = POOL.lowerCase(this.name);
 	}
 
 	/**
@@ -80,8 +100,8 @@ public class Entry implements Comparable<Entry> {
 	 * @param location The new location
 	 */
 	public void setLocation(String location) {
-		this.location = location;
-		this.locationLower = location.toLowerCase();
+		this.location = POOL.intern(location);
+		this.locationLower = POOL.lowerCase(this.location);
 	}
 
 	/**
@@ -102,6 +122,15 @@ public class Entry implements Comparable<Entry> {
 		return location;
 	}
 
+	/**
+	 * Getter method for all of the flags of the item
+	 *
+	 * @return The flags
+	 */
+	public int getFlags() {
+		return flags;
+	}
+
 	/**
 	 * Gets the cached lower case location.
 	 *
@@ -128,17 +157,23 @@ public class Entry implements Comparable<Entry> {
 	 */
 	@Override
 	public String toString() {
-		return "Entry[name='" + name + "' location='" + location + "']";
+		return "Entry[name='" + getName() + "' location='" + getLocation() + "']";
 	}
 
 	/**
-	 * Sum of the hashes of name, location, and flags
+	 * Combines the hashes of name, location, and flags
+	 * so that entries that only differ by which string
+	 * holds what do not collide. Entries get looked up
+	 * by hash in <code>EntryStore</code>.
 	 *
 	 * @return The hashcode
 	 */
 	@Override
 	public int hashCode() {
-		return name.hashCode() + location.hashCode() + flags;
+		int hash = getName().hashCode();
+		hash = 31 * hash + getLocation().hashCode();
+		hash = 31 * hash + getFlags();
+		return hash;
 	}
 
 	/**
@@ -150,9 +185,9 @@ public class Entry implements Comparable<Entry> {
 	public boolean equals(Object obj) {
 		if(!(obj instanceof Entry)) return false;
 		Entry other = (Entry)obj;
-		return name.equals(other.name)
-		    && location.equals(other.location)
-		    && flags == other.flags;
+		return getName().equals(other.getName())
+		    && getLocation().equals(other.getLocation())
+		    && getFlags() == other.getFlags();
 	}
 
 	/**
@@ -163,15 +198,15 @@ public class Entry implements Comparable<Entry> {
 	@Override
 	public int compareTo(Entry other) {
 		//See if the names are the same
-		int namediff = name.compareTo(other.name);
+		int namediff = getName().compareTo(other.getName());
 		if(namediff != 0) return namediff;
 
 		//If the names have no difference, check location
-		int locationdiff = location.compareTo(other.location);
+		int locationdiff = getLocation().compareTo(other.getLocation());
 		if(locationdiff != 0) return locationdiff;
 
 		//Return the difference between the flags otherwise
-		return flags - other.flags;
+		return getFlags() - other.getFlags();
 	}
 
 	/**
@@ -182,17 +217,78 @@ public class Entry implements Comparable<Entry> {
 	 * @return The string representation of Entry
 	 */
 	public String getAbsoluteRepresentation() {
-		StringBuilder ret = new StringBuilder();
-		int nameLen = name.length();
-		ret.append(Integer.toHexString(nameLen));
-		ret.append("|");
-		ret.append(Integer.toHexString(flags));
-		ret.append("|");
-		ret.append(name);
-		ret.append(location);
+		StringBuilder ret = new StringBuilder(getName().length() + getLocation().length() + 12);
+		try {
+			appendAbsoluteRepresentation(ret);
+		} catch(IOException ioe) {
+			//a StringBuilder never throws
+		}
 		return ret.toString();
 	}
 
+	/**
+	 * Writes the same thing <code>getAbsoluteRepresentation()</code>
+	 * returns straight to somewhere, without building a
+	 * string for it first.
+	 *
+	 * @param out Where to write it
+	 * @throws IOException If writing fails
+	 * @see Entry#getAbsoluteRepresentation()
+	 */
+	public void appendAbsoluteRepresentation(Appendable out) throws IOException {
+		String name = getName();
+		appendHex(out, name.length());
+		out.append('|');
+		appendHex(out, getFlags());
+		out.append('|');
+		out.append(name);
+		out.append(getLocation());
+	}
+
+	/**
+	 * Writes a number in hex, the same as
+	 * <code>Integer.toHexString</code>.
+	 *
+	 * @param out Where to write it
+	 * @param value The number, treated as unsigned
+	 * @throws IOException If writing fails
+	 */
+	private static void appendHex(Appendable out, int value) throws IOException {
+		int shift = 28;
+		while(shift > 0 && (value >>> shift) == 0) shift -= 4;
+		for(; shift >= 0; shift -= 4) {
+			out.append(Character.forDigit((value >>> shift) & 0xf, 16));
+		}
+	}
+
+	/**
+	 * Checks whether the absolute representation of this
+	 * entry can be read back. It can not if the name or
+	 * location contains a <code>|</code>, which the parser
+	 * splits on, or a line break, which the protocol and
+	 * the database files split on.
+	 *
+	 * @return Whether or not the representation round trips
+	 * @see Entry#getAbsoluteRepresentation()
+	 */
+	public boolean hasAbsoluteRepresentation() {
+		return isPlain(getName()) && isPlain(getLocation());
+	}
+
+	/**
+	 * Checks a string for <code>|</code> and line breaks.
+	 *
+	 * @param s The string
+	 * @return Whether or not it has none
+	 */
+	private static boolean isPlain(String s) {
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c == '|' || c == '\n' || c == '\r') return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Constructs an entry from an absolute string representation
 	 * yielded by the method <code>getAbsoluteRepresentation()</code>.
@@ -201,24 +297,63 @@ public class Entry implements Comparable<Entry> {
 	 * @see Entry#getAbsoluteRepresentation()
 	 */
 	public Entry(String absoluteRepresentation) {
-		String[] parts = absoluteRepresentation.split("\\|");
-		if(parts.length != 3) {
+		fill(absoluteRepresentation, 0, absoluteRepresentation.length());
+	}
+
+	/**
+	 * Constructs an entry from an absolute string representation
+	 * somewhere in a bigger run of characters, like a buffer
+	 * of lines read from a file. Nothing is made along the
+	 * way except the entry, and its name and location if no
+	 * other entry shares them.
+	 *
+	 * @param chars Holds the representation
+	 * @param start Where it starts
+	 * @param end Where it ends, exclusive
+	 * @return The entry
+	 * @throws IllegalArgumentException if it is not a
+	 *  valid representation
+	 * @see Entry#Entry(String)
+	 */
+	public static Entry parse(CharSequence chars, int start, int end) {
+		Entry ret = new Entry();
+		ret.fill(chars, start, end);
+		return ret;
+	}
+
+	/**
+	 * Fills in this entry from an absolute representation,
+	 * accepting and rejecting exactly what splitting it on
+	 * <code>|</code> and parsing the parts used to.
+	 *
+	 * @param chars Holds the representation
+	 * @param start Where it starts
+	 * @param end Where it ends, exclusive
+	 */
+	private void fill(CharSequence chars, int start, int end) {
+		//splitting dropped empty parts off the end, so a | on the end never counted
+		int last = end;
+		while(last > start && chars.charAt(last - 1) == '|') last--;
+		int firstBar = indexOfBar(chars, start, last);
+		int secondBar = firstBar == -1 ? -1 : indexOfBar(chars, firstBar + 1, last);
+		if(secondBar == -1 || indexOfBar(chars, secondBar + 1, last) != -1) {
 			throw new IllegalArgumentException("Invalid representation string for Entry");
 		}
 		try {
-			int nameLen = Integer.parseInt(parts[0], 16);
-			int flags = Integer.parseInt(parts[1], 16);
+			int nameLen = parseHex(chars, start, firstBar);
+			int flags = parseHex(chars, firstBar + 1, secondBar);
 
-			String namelocation = parts[2];
-			String name = namelocation.substring(0, nameLen);
-			String location = namelocation.substring(nameLen);
+			int nameStart = secondBar + 1;
+			if(nameLen < 0 || nameLen > last - nameStart) {
+				throw new IndexOutOfBoundsException();
+			}
 
 			//WE GOT IT ALL. The rest of this should be nonthrowing.
-			this.name = name;
-			this.location = location;
+			this.name = POOL.intern(chars, nameStart, nameStart + nameLen);
+			this.nameLower = POOL.lowerCase(this.name);
+			this.location = POOL.intern(chars, nameStart + nameLen, last);
+			this.locationLower = POOL.lowerCase(this.location);
 			this.flags = flags;
-			this.nameLower = name.toLowerCase();
-			this.locationLower = location.toLowerCase();
 			//Done constructing class!
 		} catch(NumberFormatException nfe) {
 			throw new IllegalArgumentException("Invalid number in absolute representation.");
@@ -226,4 +361,51 @@ public class Entry implements Comparable<Entry> {
 			throw new IllegalArgumentException("Invalid name length in string representation");
 		}
 	}
+
+	/**
+	 * Finds the next <code>|</code>.
+	 *
+	 * @param chars Where to look
+	 * @param from Where to start
+	 * @param to Where to stop, exclusive
+	 * @return Where it is, or -1 if there is none
+	 */
+	private static int indexOfBar(CharSequence chars, int from, int to) {
+		for(int i = from; i < to; i++) {
+			if(chars.charAt(i) == '|') return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Reads a hex number in place, accepting exactly
+	 * what <code>Integer.parseInt(s, 16)</code> does.
+	 *
+	 * @param chars Holds the number
+	 * @param start Where it starts
+	 * @param end Where it ends, exclusive
+	 * @return The number
+	 * @throws NumberFormatException if it is not one
+	 */
+	private static int parseHex(CharSequence chars, int start, int end) {
+		if(start == end) throw new NumberFormatException();
+		int i = start;
+		boolean negative = false;
+		char first = chars.charAt(i);
+		if(first < '0') {
+			if(first == '-') negative = true;
+			else if(first != '+') throw new NumberFormatException();
+			if(end - start == 1) throw new NumberFormatException();
+			i++;
+		}
+		long limit = negative ? -(long)Integer.MIN_VALUE : Integer.MAX_VALUE;
+		long ret = 0;
+		for(; i < end; i++) {
+			int digit = Character.digit(chars.charAt(i), 16);
+			if(digit < 0) throw new NumberFormatException();
+			ret = ret * 16 + digit;
+			if(ret > limit) throw new NumberFormatException();
+		}
+		return (int)(negative ? -ret : ret);
+	}
 }
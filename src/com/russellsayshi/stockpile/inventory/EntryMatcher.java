@@ -1,5 +1,7 @@
 package com.russellsayshi.stockpile.inventory;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Determines if entries match a search
  *
@@ -22,4 +24,76 @@ public class EntryMatcher {
 		if(searchQuery.contains("missing") && entry.isMissing()) return true;
 		return false;
 	}
+
+	/**
+	 * A search ready to check the entries of a
+	 * <code>ColumnarEntryList</code> where they lie, the
+	 * same way <code>matchesLowerCaseQuery</code> checks
+	 * an <code>Entry</code>. Each location is only checked
+	 * once, however many entries are in it.
+	 *
+	 * Only good for the list as it was when this was made.
+	 *
+	 * @author Russell Coleman
+	 * @version 1.0.0
+	 */
+	public static class ColumnQuery {
+		private final ColumnarEntryList entries;
+		private final byte[] query;
+		private final boolean missing;
+		private final boolean[] locationMatches;
+
+		/**
+		 * Gets a search ready.
+		 *
+		 * @param entries The entries to check
+		 * @param searchQuery A string (MUST BE LOWERCASE) to search for.
+		 */
+		public ColumnQuery(ColumnarEntryList entries, String searchQuery) {
+			this.entries = entries;
+			this.query = searchQuery.getBytes(StandardCharsets.UTF_8);
+			this.missing = searchQuery.contains("missing");
+			this.locationMatches = new boolean[entries.locationCount()];
+			for(int i = 0; i < locationMatches.length; i++) {
+				locationMatches[i] = entries.locationLower(i).contains(searchQuery);
+			}
+		}
+
+		/**
+		 * Checks to see if an entry matches.
+		 *
+		 * @param index Which entry
+		 * @return Whether or not it matches
+		 */
+		public boolean matches(int index) {
+			//UTF-8 never has one character's bytes in the middle of another's
+			if(contains(entries.names(), entries.lowerStart(index), entries.lowerLength(index))) {
+				return true;
+			}
+			if(locationMatches[entries.locationId(index)]) return true;
+			if(missing && (entries.flags(index) & 1) != 0) return true;
+			return false;
+		}
+
+		/**
+		 * Checks if some bytes contain the query.
+		 *
+		 * @param bytes The bytes
+		 * @param start Where to start looking
+		 * @param length How many bytes to look at
+		 * @return Whether or not the query is in there
+		 */
+		private boolean contains(byte[] bytes, int start, int length) {
+			if(query.length == 0) return true;
+			byte first = query[0];
+			int last = start + length - query.length;
+			for(int i = start; i <= last; i++) {
+				if(bytes[i] != first) continue;
+				int j = 1;
+				while(j < query.length && bytes[i + j] == query[j]) j++;
+				if(j == query.length) return true;
+			}
+			return false;
+		}
+	}
 }
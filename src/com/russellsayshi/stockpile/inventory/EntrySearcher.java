@@ -0,0 +1,230 @@
+package com.russellsayshi.stockpile.inventory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntPredicate;
+
+/**
+ * Checks every entry in a list against a search, using
+ * every core when the list is big enough for it to help.
+ * This is for the searches nothing can narrow down, like
+ * very short ones or ones for missing entries.
+ *
+ * Big lists are split into chunks that are searched on
+ * the common <code>ForkJoinPool</code>. Small lists, or
+ * machines with one core, are searched right there, since
+ * handing the work out would take longer than doing it.
+ * Either way the results come back in the list's order.
+ * A <code>ColumnarEntryList</code> is searched where its
+ * entries lie, and only the ones that match are taken out.
+ *
+ * A search can stop after the first so many results.
+ * Chunks further on are then skipped as soon as the ones
+ * before them are known to hold enough.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public class EntrySearcher {
+	/**
+	 * A limit that keeps every result.
+	 */
+	public static final int NO_LIMIT = Integer.MAX_VALUE;
+
+	//Lists shorter than this are searched without splitting them up
+	private static final int PARALLEL_THRESHOLD = 16 * 1024;
+	private static final int MIN_CHUNK_SIZE = 4096;
+	//Chunks per thread, so threads that finish early can take on more
+	private static final int CHUNKS_PER_THREAD = 4;
+	//How many entries to check between looking for a reason to stop
+	private static final int CHECK_INTERVAL = 1024;
+
+	/**
+	 * What one parallel search has found so far.
+	 */
+	private static class Search {
+		final List<Entry> entries;
+		final String query;
+		final int limit;
+		final BooleanSupplier cancelled;
+		final IntPredicate matches;
+		final int chunkSize;
+		final List<Entry>[] results;
+		final boolean[] done;
+		//chunks from 0 up to here are all done, and hold this many results
+		int doneUpTo = 0;
+		int resultsUpTo = 0;
+		//chunks from here on are not needed
+		volatile int cutoff = Integer.MAX_VALUE;
+		volatile boolean stopped = false;
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Search(List<Entry> entries, String query, int limit,
+				BooleanSupplier cancelled, int chunkSize) {
+			this.entries = entries;
+			this.query = query;
+			this.limit = limit;
+			this.cancelled = cancelled;
+			this.matches = matcher(entries, query);
+			this.chunkSize = chunkSize;
+			int chunks = (entries.size() + chunkSize - 1) / chunkSize;
+			this.results = new List[chunks];
+			this.done = new boolean[chunks];
+		}
+
+		/**
+		 * Searches one chunk.
+		 *
+		 * @param chunk Which chunk
+		 */
+		void searchChunk(int chunk) {
+			List<Entry> found = new ArrayList<>();
+			int start = chunk * chunkSize;
+			int end = Math.min(start + chunkSize, entries.size());
+			for(int i = start; i < end && found.size() < limit; i++) {
+				if((i - start) % CHECK_INTERVAL == 0 && shouldStop(chunk)) break;
+				if(matches.test(i)) found.add(entries.get(i));
+			}
+			finished(chunk, found);
+		}
+
+		/**
+		 * Checks if a chunk can be given up on.
+		 *
+		 * @param chunk Which chunk
+		 * @return Whether the search was cancelled or
+		 *  enough has been found before the chunk
+		 */
+		boolean shouldStop(int chunk) {
+			if(stopped) return true;
+			if(cancelled.getAsBoolean()) {
+				stopped = true;
+				return true;
+			}
+			return chunk >= cutoff;
+		}
+
+		/**
+		 * Records what a chunk found, and cuts off the rest
+		 * once the chunks so far hold enough.
+		 *
+		 * @param chunk Which chunk
+		 * @param found What it found
+		 */
+		synchronized void finished(int chunk, List<Entry> found) {
+			results[chunk] = found;
+			done[chunk] = true;
+			while(doneUpTo < done.length && done[doneUpTo]) {
+				resultsUpTo += results[doneUpTo++].size();
+			}
+			if(resultsUpTo >= limit && cutoff == Integer.MAX_VALUE) cutoff = doneUpTo;
+		}
+	}
+
+	/**
+	 * Splits a run of chunks in half until there is only one.
+	 */
+	private static class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Search search;
+		private final int from, to;
+
+		ChunkTask(Search search, int from, int to) {
+			this.search = search;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from == 1) {
+				search.searchChunk(from);
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new ChunkTask(search, from, middle),
+						new ChunkTask(search, middle, to));
+			}
+		}
+	}
+
+	/**
+	 * Finds every entry in a list that matches a search.
+	 *
+	 * @param entries The entries, which must not change
+	 *  while they are searched
+	 * @param lowerCaseQuery A string (MUST BE LOWERCASE) to search for
+	 * @return The matching entries, in order
+	 */
+	public static List<Entry> search(List<Entry> entries, String lowerCaseQuery) {
+		return search(entries, lowerCaseQuery, NO_LIMIT, () -> false);
+	}
+
+	/**
+	 * Finds the first entries in a list that match a search.
+	 *
+	 * @param entries The entries, which must not change
+	 *  while they are searched
+	 * @param lowerCaseQuery A string (MUST BE LOWERCASE) to search for
+	 * @param limit The most entries to find
+	 * @param cancelled Checked every so often, from any
+	 *  thread, to see if the search is still wanted
+	 * @return The first matching entries, in order, or
+	 *  null if the search was cancelled
+	 */
+	public static List<Entry> search(List<Entry> entries, String lowerCaseQuery,
+			int limit, BooleanSupplier cancelled) {
+		if(limit <= 0) throw new IllegalArgumentException("Limit must be positive.");
+		if(!(entries instanceof RandomAccess)) entries = new ArrayList<>(entries);
+		int threads = ForkJoinPool.getCommonPoolParallelism();
+		if(entries.size() < PARALLEL_THRESHOLD || threads < 2) {
+			return searchHere(entries, lowerCaseQuery, limit, cancelled);
+		}
+		int chunkSize = Math.max(MIN_CHUNK_SIZE,
+				entries.size() / (threads * CHUNKS_PER_THREAD) + 1);
+		Search search = new Search(entries, lowerCaseQuery, limit, cancelled, chunkSize);
+		ForkJoinPool.commonPool().invoke(new ChunkTask(search, 0, search.results.length));
+		if(search.stopped) return null;
+		List<Entry> ret = new ArrayList<>();
+		for(int i = 0; i < search.results.length && ret.size() < limit; i++) {
+			List<Entry> found = search.results[i];
+			ret.addAll(found.subList(0, Math.min(found.size(), limit - ret.size())));
+		}
+		return ret;
+	}
+
+	/**
+	 * Searches a list on this thread.
+	 *
+	 * @param entries The entries
+	 * @param query The lowercase query
+	 * @param limit The most entries to find
+	 * @param cancelled Whether the search is still wanted
+	 * @return The matching entries, or null if cancelled
+	 */
+	private static List<Entry> searchHere(List<Entry> entries, String query,
+			int limit, BooleanSupplier cancelled) {
+		List<Entry> ret = new ArrayList<>();
+		IntPredicate matches = matcher(entries, query);
+		for(int i = 0; i < entries.size() && ret.size() < limit; i++) {
+			if(i % CHECK_INTERVAL == 0 && cancelled.getAsBoolean()) return null;
+			if(matches.test(i)) ret.add(entries.get(i));
+		}
+		return ret;
+	}
+
+	/**
+	 * Picks how to check the entries of a list.
+	 *
+	 * @param entries The entries
+	 * @param query The lowercase query
+	 * @return Whether the entry at an index matches
+	 */
+	private static IntPredicate matcher(List<Entry> entries, String query) {
+		if(entries instanceof ColumnarEntryList) {
+			return new EntryMatcher.ColumnQuery((ColumnarEntryList)entries, query)::matches;
+		}
+		return i -> EntryMatcher.matchesLowerCaseQuery(entries.get(i), query);
+	}
+}
@@ -0,0 +1,508 @@
+package com.russellsayshi.stockpile.inventory;
+
+import java.util.*;
+
+/**
+ * A collection of entries that can hold the same
+ * entry more than once, like a list, but that finds
+ * entries by hash so adding, removing and moving
+ * (changing every copy of one entry into another)
+ * all take constant time, or close to it.
+ *
+ * Copies of an entry are kept together, at the spot
+ * the first one was added. Entries are otherwise kept
+ * in the order they were added. Entries must not be
+ * changed while they are in the store.
+ *
+ * The order is kept in a wide tree whose leaves hold
+ * the entries, each entry in the next free spot, with
+ * every branch knowing how many copies are under it.
+ * That makes <code>snapshot</code> take constant time:
+ * it just hands out the root. After a snapshot, a change
+ * copies the few nodes on its way down instead of
+ * changing them, so the snapshot never sees it and
+ * shares everything else with the store. Until the
+ * next snapshot, changes go straight into the copies.
+ * Spots left empty by removed entries are skipped over,
+ * and the tree is built again without them once there
+ * are more empty spots than full ones.
+ *
+ * Not thread safe, but snapshots are, so any number of
+ * threads can read one while the store carries on
+ * changing.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public class EntryStore implements Iterable<Entry> {
+	private static final int BITS = 5;
+	private static final int WIDTH = 1 << BITS;
+	private static final int MASK = WIDTH - 1;
+
+	/**
+	 * Where an entry is in the tree and how many copies
+	 * of it there are, for finding it by hash.
+	 */
+	private static class Slot {
+		int position;
+		int count;
+
+		Slot(int position) {
+			this.position = position;
+		}
+	}
+
+	/**
+	 * A piece of the tree. A leaf holds entries and how
+	 * many copies of each there are, and a branch holds
+	 * nodes and how many copies are under each.
+	 */
+	private static class Node {
+		//only changed in place if made since the last snapshot
+		final long edit;
+		final Object[] children;
+		final int[] counts;
+
+		Node(long edit) {
+			this.edit = edit;
+			this.children = new Object[WIDTH];
+			this.counts = new int[WIDTH];
+		}
+
+		Node(long edit, Node other) {
+			this.edit = edit;
+			this.children = other.children.clone();
+			this.counts = other.counts.clone();
+		}
+	}
+
+	/**
+	 * Every entry in a store at one moment, which no
+	 * later change to the store can touch. Safe to read
+	 * from any number of threads at once.
+	 *
+	 * The first time an entry is asked for by index, the
+	 * snapshot is laid out in an array, once, however many
+	 * threads ask at the same time. After that, going over
+	 * it by index is as quick as with an <code>ArrayList</code>.
+	 * Going over it with the iterator never needs one.
+	 *
+	 * @author Russell Coleman
+	 * @version 1.0.0
+	 */
+	public static final class Snapshot extends AbstractList<Entry> implements RandomAccess {
+		private final Node root;
+		private final int shift;
+		private final int size;
+		//laid out by whichever thread gets to it first
+		private volatile Entry[] flat;
+
+		private Snapshot(Node root, int shift, int size) {
+			this.root = root;
+			this.shift = shift;
+			this.size = size;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public Entry get(int index) {
+			if(index < 0 || index >= size) {
+				throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+			}
+			Entry[] entries = flat;
+			if(entries == null) {
+				synchronized(this) {
+					entries = flat;
+					if(entries == null) {
+						entries = new Entry[size];
+						int i = 0;
+						for(Entry e : this) entries[i++] = e;
+						flat = entries;
+					}
+				}
+			}
+			return entries[index];
+		}
+
+		@Override
+		public Iterator<Entry> iterator() {
+			return new Walker(root, shift);
+		}
+	}
+
+	/**
+	 * Goes over a tree in order, giving back each copy
+	 * of an entry separately and skipping anything
+	 * with no copies under it.
+	 */
+	private static class Walker implements Iterator<Entry> {
+		private final Node[] path;
+		private final int[] at;
+		private int depth;
+		private Entry entry;
+		private int left = 0; //copies of entry still to give out
+
+		Walker(Node root, int shift) {
+			path = new Node[shift / BITS + 1];
+			at = new int[path.length];
+			path[0] = root;
+			at[0] = -1;
+			depth = root == null ? -1 : 0;
+			advance();
+		}
+
+		/**
+		 * Moves on to the next entry with any copies.
+		 */
+		private void advance() {
+			while(depth >= 0) {
+				Node node = path[depth];
+				int i = ++at[depth];
+				if(i == WIDTH) {
+					depth--;
+				} else if(node.counts[i] == 0) {
+					continue;
+				} else if(depth == path.length - 1) {
+					entry = (Entry)node.children[i];
+					left = node.counts[i];
+					return;
+				} else {
+					path[++depth] = (Node)node.children[i];
+					at[depth] = -1;
+				}
+			}
+			entry = null;
+		}
+
+		/**
+		 * Moves on to the next entry, skipping the rest
+		 * of this one's copies.
+		 */
+		void skipCopies() {
+			left = 0;
+			advance();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return left > 0;
+		}
+
+		@Override
+		public Entry next() {
+			if(left == 0) throw new NoSuchElementException();
+			Entry ret = entry;
+			if(--left == 0) advance();
+			return ret;
+		}
+	}
+
+	private final HashMap<Entry, Slot> index = new HashMap<>();
+	private final List<EntryStoreListener> listeners = new ArrayList<>();
+	private Node root;
+	private int shift = 0; //how far to shift a position for the root's part of it
+	private long edit = 0;
+	private int nextPosition = 0;
+	private int emptyPositions = 0;
+	private int size = 0;
+
+	/**
+	 * Constructs an empty store.
+	 */
+	public EntryStore() {
+	}
+
+	/**
+	 * Constructs a store holding the given entries.
+	 *
+	 * @param entries The entries to add
+	 */
+	public EntryStore(Collection<Entry> entries) {
+		for(Entry e : entries) add(e);
+	}
+
+	/**
+	 * Adds a copy of an entry.
+	 *
+	 * @param entry The entry to add
+	 */
+	public void add(Entry entry) {
+		if(entry == null) throw new NullPointerException("Cannot store a null entry.");
+		Slot slot = index.get(entry);
+		boolean added = slot == null;
+		if(added) {
+			slot = new Slot(nextPosition++);
+			index.put(entry, slot);
+		}
+		slot.count++;
+		size++;
+		write(slot.position, entry, 1);
+		if(added) {
+			for(EntryStoreListener l : listeners) l.entryAdded(entry);
+		}
+		for(EntryStoreListener l : listeners) l.copiesChanged(entry, 1);
+	}
+
+	/**
+	 * Removes one copy of an entry.
+	 *
+	 * @param entry The entry to remove
+	 * @return Whether or not there was a copy to remove
+	 */
+	public boolean remove(Entry entry) {
+		Slot slot = index.get(entry);
+		if(slot == null) return false;
+		slot.count--;
+		size--;
+		if(slot.count == 0) {
+			index.remove(entry);
+			write(slot.position, null, -1);
+			emptyPositions++;
+			for(EntryStoreListener l : listeners) l.entryRemoved(entry);
+		} else {
+			write(slot.position, entry, -1);
+		}
+		for(EntryStoreListener l : listeners) l.copiesChanged(entry, -1);
+		packIfSparse();
+		return true;
+	}
+
+	/**
+	 * Changes every copy of one entry into another.
+	 *
+	 * @param from The entry to change
+	 * @param to What to change it to
+	 * @return How many copies were changed
+	 */
+	public int move(Entry from, Entry to) {
+		if(to == null) throw new NullPointerException("Cannot store a null entry.");
+		Slot slot = index.get(from);
+		if(slot == null) return 0;
+		int moved = slot.count;
+		if(from.equals(to)) return moved;
+		index.remove(from);
+		Slot existing = index.get(to);
+		if(existing == null) {
+			//take over the old entry's spot
+			index.put(to, slot);
+			write(slot.position, to, 0);
+			for(EntryStoreListener l : listeners) l.entryMoved(from, to);
+		} else {
+			existing.count += moved;
+			write(slot.position, null, -moved);
+			write(existing.position, to, moved);
+			emptyPositions++;
+			for(EntryStoreListener l : listeners) l.entryRemoved(from);
+		}
+		for(EntryStoreListener l : listeners) {
+			l.copiesChanged(from, -moved);
+			l.copiesChanged(to, moved);
+		}
+		packIfSparse();
+		return moved;
+	}
+
+	/**
+	 * Counts the copies of an entry.
+	 *
+	 * @param entry The entry to look for
+	 * @return How many copies are stored
+	 */
+	public int count(Entry entry) {
+		Slot slot = index.get(entry);
+		return slot == null ? 0 : slot.count;
+	}
+
+	/**
+	 * Checks for at least one copy of an entry.
+	 *
+	 * @param entry The entry to look for
+	 * @return Whether or not it is stored
+	 */
+	public boolean contains(Entry entry) {
+		return index.containsKey(entry);
+	}
+
+	/**
+	 * Gets the number of entries, counting every copy.
+	 *
+	 * @return The size of the store
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the number of different entries.
+	 *
+	 * @return The number of distinct entries
+	 */
+	public int distinctSize() {
+		return index.size();
+	}
+
+	/**
+	 * Gets an entry by where it is in order, counting
+	 * every copy. Finds it by going down the tree, so it
+	 * is quick enough for showing a few at a time but not
+	 * for going over them all; use the iterator for that.
+	 *
+	 * @param index Where the entry is, from 0
+	 * @return The entry
+	 */
+	public Entry get(int index) {
+		if(index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+		}
+		Node node = root;
+		for(int level = shift; ; level -= BITS) {
+			int i = 0;
+			while(index >= node.counts[i]) index -= node.counts[i++];
+			if(level == 0) return (Entry)node.children[i];
+			node = (Node)node.children[i];
+		}
+	}
+
+	/**
+	 * Checks if there are no entries.
+	 *
+	 * @return Whether or not the store is empty
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Removes every entry.
+	 */
+	public void clear() {
+		index.clear();
+		root = null;
+		shift = 0;
+		nextPosition = 0;
+		emptyPositions = 0;
+		size = 0;
+		for(EntryStoreListener l : listeners) l.cleared();
+	}
+
+	/**
+	 * Adds a listener that is told about every entry
+	 * that comes, goes or moves from now on.
+	 *
+	 * @param listener The listener
+	 */
+	public void addListener(EntryStoreListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Stops telling a listener about changes.
+	 *
+	 * @param listener The listener
+	 */
+	public void removeListener(EntryStoreListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Copies every entry, in order, into a list.
+	 *
+	 * @return The new list
+	 */
+	public List<Entry> toList() {
+		ArrayList<Entry> ret = new ArrayList<>(size);
+		for(Entry e : this) ret.add(e);
+		return ret;
+	}
+
+	/**
+	 * Gets every entry as it is right now, in constant
+	 * time. The snapshot never changes, whatever happens
+	 * to the store afterwards.
+	 *
+	 * @return The snapshot
+	 */
+	public Snapshot snapshot() {
+		//everything there now belongs to the snapshot too
+		edit++;
+		return new Snapshot(root, shift, size);
+	}
+
+	/**
+	 * Goes over every entry in order, giving back
+	 * each copy of an entry separately.
+	 *
+	 * @return The iterator
+	 */
+	@Override
+	public Iterator<Entry> iterator() {
+		return new Walker(root, shift);
+	}
+
+	/**
+	 * Changes what is at one spot in the tree, copying
+	 * any node on the way that a snapshot may hold.
+	 *
+	 * @param position The spot
+	 * @param entry What goes there, or null to empty it
+	 * @param change How many copies it gains or loses
+	 */
+	private void write(int position, Entry entry, int change) {
+		if(root == null) root = new Node(edit);
+		while(position >>> shift >= WIDTH) {
+			//out of room, so the whole tree goes under a new root
+			Node grown = new Node(edit);
+			grown.children[0] = root;
+			for(int count : root.counts) grown.counts[0] += count;
+			root = grown;
+			shift += BITS;
+		}
+		root = writable(root);
+		Node node = root;
+		for(int level = shift; level > 0; level -= BITS) {
+			int i = (position >>> level) & MASK;
+			Node child = (Node)node.children[i];
+			child = child == null ? new Node(edit) : writable(child);
+			node.children[i] = child;
+			node.counts[i] += change;
+			node = child;
+		}
+		int i = position & MASK;
+		node.children[i] = entry;
+		node.counts[i] += change;
+	}
+
+	/**
+	 * Gets a node that can be changed in place.
+	 *
+	 * @param node The node
+	 * @return The node itself if no snapshot can see it,
+	 *  or else a copy
+	 */
+	private Node writable(Node node) {
+		return node.edit == edit ? node : new Node(edit, node);
+	}
+
+	/**
+	 * Builds the tree again without the empty spots once
+	 * there are more of them than spots in use.
+	 */
+	private void packIfSparse() {
+		if(emptyPositions < WIDTH || emptyPositions < nextPosition - emptyPositions) return;
+		Node oldRoot = root;
+		int oldShift = shift;
+		root = null;
+		shift = 0;
+		nextPosition = 0;
+		emptyPositions = 0;
+		for(Walker walker = new Walker(oldRoot, oldShift); walker.hasNext(); walker.skipCopies()) {
+			Slot slot = index.get(walker.entry);
+			slot.position = nextPosition++;
+			write(slot.position, walker.entry, walker.left);
+		}
+	}
+}
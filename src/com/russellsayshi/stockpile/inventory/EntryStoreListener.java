@@ -0,0 +1,60 @@
+package com.russellsayshi.stockpile.inventory;
+
+/**
+ * Interface for keeping something in step with an
+ * <code>EntryStore</code>. The different entries and their
+ * order are reported with <code>entryAdded</code>,
+ * <code>entryRemoved</code> and <code>entryMoved</code>,
+ * which say nothing about extra copies. How many copies
+ * there are of each is reported separately, with
+ * <code>copiesChanged</code>, so a listener usually only
+ * cares about one kind and ignores the other.
+ *
+ * Everything is reported once the store has changed.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public interface EntryStoreListener {
+	/**
+	 * Called when the first copy of an entry is added,
+	 * at the end of the order.
+	 *
+	 * @param entry The entry
+	 */
+	void entryAdded(Entry entry);
+
+	/**
+	 * Called when the last copy of an entry is gone,
+	 * including when it is moved onto an entry that
+	 * was already stored.
+	 *
+	 * @param entry The entry
+	 */
+	void entryRemoved(Entry entry);
+
+	/**
+	 * Called when an entry is changed into one that was
+	 * not stored yet, which takes over its spot.
+	 *
+	 * @param from The old entry
+	 * @param to The new entry
+	 */
+	void entryMoved(Entry from, Entry to);
+
+	/**
+	 * Called whenever copies of an entry are added or
+	 * removed, including the first and the last, and
+	 * for both entries when copies are moved.
+	 *
+	 * @param entry The entry
+	 * @param change How many copies were added, or
+	 *  removed if negative
+	 */
+	void copiesChanged(Entry entry, int change);
+
+	/**
+	 * Called when every entry is removed at once.
+	 */
+	void cleared();
+}
@@ -0,0 +1,145 @@
+package com.russellsayshi.stockpile.inventory;
+
+import java.util.List;
+
+/**
+ * A single parsed change to a set of entries:
+ * adding one, removing one, or moving every copy
+ * of one entry to another.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public class EntryUpdate {
+	/**
+	 * What kind of change an update is.
+	 *
+	 * @author Russell Coleman
+	 * @version 1.0.0
+	 */
+	public enum Type {
+		ADD,
+		REMOVE,
+		MOVE
+	}
+
+	private final Type type;
+	private final Entry entry;
+	private final Entry target;
+
+	/**
+	 * Constructs an update.
+	 *
+	 * @param type The kind of update
+	 * @param entry The entry to add or remove, or to move from
+	 * @param target The entry to move to. Only used by MOVE.
+	 */
+	public EntryUpdate(Type type, Entry entry, Entry target) {
+		if(type == null || entry == null || (type == Type.MOVE && target == null)) {
+			throw new IllegalArgumentException("Incomplete update.");
+		}
+		this.type = type;
+		this.entry = entry;
+		this.target = type == Type.MOVE ? target : null;
+	}
+
+	/**
+	 * Gets the kind of update.
+	 *
+	 * @return The type
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Gets the entry being added or removed,
+	 * or moved from.
+	 *
+	 * @return The entry
+	 */
+	public Entry getEntry() {
+		return entry;
+	}
+
+	/**
+	 * Gets the entry being moved to.
+	 *
+	 * @return The target, or null if this is not a move
+	 */
+	public Entry getTarget() {
+		return target;
+	}
+
+	/**
+	 * Applies the update to a store.
+	 *
+	 * @param store The store
+	 */
+	public void applyTo(EntryStore store) {
+		switch(type) {
+			case ADD:
+				store.add(entry);
+				break;
+			case REMOVE:
+				store.remove(entry);
+				break;
+			case MOVE:
+				store.move(entry, target);
+				break;
+		}
+	}
+
+	/**
+	 * Applies the update to a list. Removing and
+	 * moving have to search the whole list.
+	 *
+	 * @param list The list
+	 */
+	public void applyTo(List<Entry> list) {
+		switch(type) {
+			case ADD:
+				list.add(entry);
+				break;
+			case REMOVE:
+				list.remove(entry);
+				break;
+			case MOVE:
+				for(int i = 0; i < list.size(); i++) {
+					if(entry.equals(list.get(i))) {
+						list.set(i, target);
+					}
+				}
+				break;
+		}
+	}
+
+	/**
+	 * Gets the command string for this update,
+	 * as parsed by <code>DatabaseUpdater</code>.
+	 *
+	 * @return The command string
+	 */
+	public String toCommandString() {
+		switch(type) {
+			case ADD:
+				return "+" + entry.getAbsoluteRepresentation();
+			case REMOVE:
+				return "-" + entry.getAbsoluteRepresentation();
+			default:
+				String from = entry.getAbsoluteRepresentation();
+				return ">" + from.length() + ">" + from + target.getAbsoluteRepresentation();
+		}
+	}
+
+	/**
+	 * <code>toString()</code> implementation that
+	 * gives the command string.
+	 *
+	 * @return The string representation
+	 */
+	@Override
+	public String toString() {
+		return toCommandString();
+	}
+}
@@ -0,0 +1,356 @@
+package com.russellsayshi.stockpile.inventory;
+
+import java.util.*;
+
+/**
+ * Finds the entries in an <code>EntryStore</code> whose
+ * names are close to a search, for when it has been
+ * mistyped. Every word of the search has to be within a
+ * few single character insertions, deletions or changes
+ * (the edit distance) of some word of the name, and the
+ * entries needing the fewest come first.
+ *
+ * Every different word in a lowercase name goes into
+ * a BK-tree, where each word hangs off another
+ * by its distance from it. Since distances obey the
+ * triangle inequality, only the branches whose distance
+ * from a word is within the limit of the search's distance
+ * from it can hold anything close enough, and the rest of
+ * the tree is never looked at.
+ *
+ * The index listens to the store, so it keeps up as
+ * entries are added, removed and moved. Words nothing has
+ * any more stay in the tree, skipped, until there are more
+ * of them than of the rest, and then the tree is built
+ * again.
+ *
+ * Not thread safe, and must only be touched by whatever
+ * is allowed to touch the store.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public class FuzzyIndex implements EntryStoreListener {
+	/**
+	 * What a search starts with to be fuzzy.
+	 */
+	public static final String FUZZY_PREFIX = "~";
+
+	/**
+	 * One word in the tree.
+	 */
+	private static class Node {
+		final String word;
+		//the entries with this word, in the order they came
+		final LinkedHashSet<Entry> entries = new LinkedHashSet<>();
+		HashMap<Integer, Node> children;
+		//the distance of the furthest child
+		int furthest = 0;
+
+		Node(String word) {
+			this.word = word;
+		}
+	}
+
+	/**
+	 * A word close enough to a search, and how close.
+	 */
+	private static class Match {
+		final Node node;
+		final int distance;
+
+		Match(Node node, int distance) {
+			this.node = node;
+			this.distance = distance;
+		}
+	}
+
+	private final EntryStore store;
+	private final HashMap<String, Node> words = new HashMap<>();
+	private Node root;
+	//words in the tree that no entry has any more
+	private int unused = 0;
+
+	/**
+	 * Indexes a store and keeps up with it from then on.
+	 *
+	 * @param store The store
+	 */
+	public FuzzyIndex(EntryStore store) {
+		this.store = store;
+		Entry last = null;
+		for(Entry e : store) {
+			//copies come one after another, and only need indexing once
+			if(e != last) entryAdded(e);
+			last = e;
+		}
+		store.addListener(this);
+	}
+
+	/**
+	 * Checks if a search asks to be fuzzy.
+	 *
+	 * @param query The search
+	 * @return Whether it starts with <code>FUZZY_PREFIX</code>
+	 */
+	public static boolean isFuzzyQuery(String query) {
+		return query.startsWith(FUZZY_PREFIX);
+	}
+
+	/**
+	 * Finds the entries close to a fuzzy search, allowing
+	 * one mistake in short words and two in longer ones.
+	 *
+	 * @param lowerCaseQuery A string (MUST BE LOWERCASE) to
+	 *  search for, with or without <code>FUZZY_PREFIX</code>
+	 * @return The entries, closest first
+	 * @see #search(String, int)
+	 */
+	public List<Entry> search(String lowerCaseQuery) {
+		String[] queryWords = wordsOf(stripPrefix(lowerCaseQuery));
+		int[] limits = new int[queryWords.length];
+		for(int i = 0; i < queryWords.length; i++) {
+			limits[i] = queryWords[i].length() <= 4 ? 1 : 2;
+		}
+		return search(queryWords, limits);
+	}
+
+	/**
+	 * Finds the entries with a word in their name within
+	 * some edit distance of every word in a search. How
+	 * close an entry is counts the edits for all of them.
+	 *
+	 * @param lowerCaseQuery A string (MUST BE LOWERCASE) to
+	 *  search for, with or without <code>FUZZY_PREFIX</code>
+	 * @param maxDistance The most edits allowed for each word
+	 * @return The entries, closest first and then by
+	 *  name, with every copy of an entry given separately
+	 */
+	public List<Entry> search(String lowerCaseQuery, int maxDistance) {
+		if(maxDistance < 0) throw new IllegalArgumentException("Distance cannot be negative.");
+		String[] queryWords = wordsOf(stripPrefix(lowerCaseQuery));
+		int[] limits = new int[queryWords.length];
+		Arrays.fill(limits, maxDistance);
+		return search(queryWords, limits);
+	}
+
+	private static String stripPrefix(String query) {
+		return isFuzzyQuery(query) ? query.substring(FUZZY_PREFIX.length()) : query;
+	}
+
+	/**
+	 * Finds the entries close to every word of a search.
+	 *
+	 * @param queryWords The words
+	 * @param limits The most edits allowed for each
+	 * @return The entries, closest first and then by name
+	 */
+	private List<Entry> search(String[] queryWords, int[] limits) {
+		List<Entry> ret = new ArrayList<>();
+		if(queryWords.length == 0 || root == null) return ret;
+		//how close each entry is so far, dropping those too far from any word
+		HashMap<Entry, Integer> closeness = null;
+		for(int i = 0; i < queryWords.length; i++) {
+			HashMap<Entry, Integer> found = new HashMap<>();
+			for(Match m : closeWords(queryWords[i], limits[i])) {
+				for(Entry e : m.node.entries) {
+					if(closeness != null && !closeness.containsKey(e)) continue;
+					found.merge(e, m.distance, Math::min);
+				}
+			}
+			if(closeness != null) {
+				for(Map.Entry<Entry, Integer> pair : found.entrySet()) {
+					pair.setValue(pair.getValue() + closeness.get(pair.getKey()));
+				}
+			}
+			closeness = found;
+			if(closeness.isEmpty()) return ret;
+		}
+		List<Map.Entry<Entry, Integer>> ranked = new ArrayList<>(closeness.entrySet());
+		ranked.sort((a, b) -> !a.getValue().equals(b.getValue())
+				? Integer.compare(a.getValue(), b.getValue())
+				: a.getKey().compareTo(b.getKey()));
+		for(Map.Entry<Entry, Integer> pair : ranked) {
+			for(int i = store.count(pair.getKey()); i > 0; i--) ret.add(pair.getKey());
+		}
+		return ret;
+	}
+
+	/**
+	 * Walks the tree for the words some entry still has
+	 * that are close to a word.
+	 *
+	 * @param word The word
+	 * @param maxDistance The most edits allowed
+	 * @return The words, and how close each one is
+	 */
+	private List<Match> closeWords(String word, int maxDistance) {
+		List<Match> ret = new ArrayList<>();
+		ArrayDeque<Node> toVisit = new ArrayDeque<>();
+		toVisit.push(root);
+		while(!toVisit.isEmpty()) {
+			Node node = toVisit.pop();
+			//past the furthest child plus the limit, the real distance picks out nothing
+			int distance = distance(node.word, word, node.furthest + maxDistance);
+			if(distance <= maxDistance && !node.entries.isEmpty()) {
+				ret.add(new Match(node, distance));
+			}
+			if(node.children == null) continue;
+			for(int d = Math.max(1, distance - maxDistance); d <= distance + maxDistance; d++) {
+				Node child = node.children.get(d);
+				if(child != null) toVisit.push(child);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Works out the edit distance between two strings.
+	 *
+	 * @param a A string
+	 * @param b Another
+	 * @return The distance
+	 */
+	static int distance(String a, String b) {
+		//it never takes more edits than the longer one is long
+		return distance(a, b, Math.max(a.length(), b.length()));
+	}
+
+	/**
+	 * Works out the edit distance between two strings,
+	 * giving up once it is known to be too big.
+	 *
+	 * @param a A string
+	 * @param b Another
+	 * @param max The biggest distance that matters
+	 * @return The distance, or <code>max + 1</code> if
+	 *  it is more than <code>max</code>
+	 */
+	static int distance(String a, String b, int max) {
+		if(Math.abs(a.length() - b.length()) > max) return max + 1;
+		int[] previous = new int[b.length() + 1];
+		int[] current = new int[b.length() + 1];
+		for(int j = 0; j <= b.length(); j++) previous[j] = j;
+		for(int i = 1; i <= a.length(); i++) {
+			current[0] = i;
+			int smallest = i;
+			for(int j = 1; j <= b.length(); j++) {
+				int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+				current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1),
+						previous[j - 1] + cost);
+				smallest = Math.min(smallest, current[j]);
+			}
+			//every row only gets bigger, so there is no coming back from this
+			if(smallest > max) return max + 1;
+			int[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+		return Math.min(previous[b.length()], max + 1);
+	}
+
+	/**
+	 * Splits some lowercase text into words.
+	 *
+	 * @param text The text
+	 * @return The words, without any empty ones
+	 */
+	private static String[] wordsOf(String text) {
+		String trimmed = text.trim();
+		if(trimmed.isEmpty()) return new String[0];
+		return trimmed.split("\\s+");
+	}
+
+	/**
+	 * Gets the different words in an entry's name.
+	 *
+	 * @param entry The entry
+	 * @return The words, lowercase
+	 */
+	private static Set<String> wordsOf(Entry entry) {
+		return new HashSet<>(Arrays.asList(wordsOf(entry.getNameLower())));
+	}
+
+	/**
+	 * Puts a word in the tree.
+	 *
+	 * @param word The word, which must not be there already
+	 * @return Its node
+	 */
+	private Node insert(String word) {
+		Node node = new Node(word);
+		words.put(word, node);
+		if(root == null) {
+			root = node;
+			return node;
+		}
+		Node at = root;
+		while(true) {
+			int distance = distance(at.word, word);
+			if(at.children == null) at.children = new HashMap<>();
+			Node child = at.children.get(distance);
+			if(child == null) {
+				at.children.put(distance, node);
+				at.furthest = Math.max(at.furthest, distance);
+				return node;
+			}
+			at = child;
+		}
+	}
+
+	@Override
+	public void entryAdded(Entry entry) {
+		for(String word : wordsOf(entry)) {
+			Node node = words.get(word);
+			if(node == null) node = insert(word);
+			else if(node.entries.isEmpty()) unused--;
+			node.entries.add(entry);
+		}
+	}
+
+	@Override
+	public void entryRemoved(Entry entry) {
+		for(String word : wordsOf(entry)) {
+			Node node = words.get(word);
+			if(node == null || !node.entries.remove(entry)) continue;
+			if(node.entries.isEmpty()) unused++;
+		}
+		//dropping words from a BK-tree means building it again, so only do it now and then
+		if(unused > 64 && unused > words.size() - unused) rebuild();
+	}
+
+	@Override
+	public void entryMoved(Entry from, Entry to) {
+		entryRemoved(from);
+		entryAdded(to);
+	}
+
+	@Override
+	public void copiesChanged(Entry entry, int change) {
+		//copies are counted by the store when searching
+	}
+
+	@Override
+	public void cleared() {
+		words.clear();
+		root = null;
+		unused = 0;
+	}
+
+	/**
+	 * Builds the tree again from only the words that
+	 * some entry still has.
+	 */
+	private void rebuild() {
+		List<Node> kept = new ArrayList<>();
+		for(Node node : words.values()) {
+			if(!node.entries.isEmpty()) kept.add(node);
+		}
+		words.clear();
+		root = null;
+		unused = 0;
+		for(Node old : kept) {
+			insert(old.word).entries.addAll(old.entries);
+		}
+	}
+}
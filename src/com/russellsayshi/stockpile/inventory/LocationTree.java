@@ -0,0 +1,310 @@
+package com.russellsayshi.stockpile.inventory;
+
+import java.util.*;
+
+/**
+ * The locations of the entries in an <code>EntryStore</code>
+ * as a tree, treating each one as a path like
+ * <code>garage/shelf 3/bin 2</code>. Every place in the tree
+ * knows how many entries are in it, counting everything
+ * inside it, and how many of those are missing, so asking
+ * about the garage or shelf 3 never means looking through
+ * every entry.
+ *
+ * Parts of a path are matched without caring about case or
+ * the spaces around them. Entries whose location is empty
+ * are in the root.
+ *
+ * The tree listens to the store, so it keeps up as copies
+ * are added, removed and moved, each one only touching the
+ * places on its path. Places with nothing left in them are
+ * dropped.
+ *
+ * Not thread safe, and must only be touched by whatever
+ * is allowed to touch the store.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public class LocationTree implements EntryStoreListener {
+	/**
+	 * What splits a location into parts unless told otherwise.
+	 */
+	public static final String DEFAULT_SEPARATOR = "/";
+
+	/**
+	 * What a search starts with to list everything in a
+	 * place, like <code>@garage/shelf 3</code>.
+	 */
+	public static final String LOCATION_PREFIX = "@";
+
+	/**
+	 * One place in the tree.
+	 *
+	 * @author Russell Coleman
+	 * @version 1.0.0
+	 */
+	public static class Node {
+		private final Node parent;
+		private final String name;
+		private final String path;
+		private final TreeMap<String, Node> children = new TreeMap<>();
+		//the entries right here, not in any place inside
+		private final LinkedHashSet<Entry> entries = new LinkedHashSet<>();
+		private int items = 0;
+		private int missing = 0;
+
+		private Node(Node parent, String name, String path) {
+			this.parent = parent;
+			this.name = name;
+			this.path = path;
+		}
+
+		/**
+		 * Gets the place this one is in.
+		 *
+		 * @return The parent, or null for the root
+		 */
+		public Node getParent() {
+			return parent;
+		}
+
+		/**
+		 * Gets the name of this place, as the first entry
+		 * put here spelled it.
+		 *
+		 * @return The name, or an empty string for the root
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Gets the full path to this place.
+		 *
+		 * @return The path, or an empty string for the root
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * Gets the places inside this one.
+		 *
+		 * @return The places, sorted by lowercase name
+		 */
+		public Collection<Node> getChildren() {
+			return Collections.unmodifiableCollection(children.values());
+		}
+
+		/**
+		 * Gets how many entries are in this place,
+		 * counting the places inside it.
+		 *
+		 * @return The number of entries
+		 */
+		public int getItemCount() {
+			return items;
+		}
+
+		/**
+		 * Gets how many entries in this place are missing,
+		 * counting the places inside it.
+		 *
+		 * @return The number of missing entries
+		 */
+		public int getMissingCount() {
+			return missing;
+		}
+
+		@Override
+		public String toString() {
+			return (parent == null ? "(everything)" : name) + " (" + items + ", "
+				+ missing + " missing)";
+		}
+	}
+
+	private final EntryStore store;
+	private final String separator;
+	private final Node root = new Node(null, "", "");
+
+	/**
+	 * Builds the tree for a store and keeps up with it
+	 * from then on.
+	 *
+	 * @param store The store
+	 * @param separator What splits a location into parts
+	 * @throws IllegalArgumentException if the separator is empty
+	 */
+	public LocationTree(EntryStore store, String separator) {
+		if(separator.isEmpty()) throw new IllegalArgumentException("Separator cannot be empty.");
+		this.store = store;
+		this.separator = separator;
+		Entry last = null;
+		for(Entry e : store) {
+			//copies come one after another, and only need placing once
+			if(e != last) entryAdded(e);
+			copiesChanged(e, 1);
+			last = e;
+		}
+		store.addListener(this);
+	}
+
+	/**
+	 * Checks if a search asks for everything in a place.
+	 *
+	 * @param query The search
+	 * @return Whether it starts with <code>LOCATION_PREFIX</code>
+	 */
+	public static boolean isLocationQuery(String query) {
+		return query.startsWith(LOCATION_PREFIX);
+	}
+
+	/**
+	 * Gets what splits a location into parts.
+	 *
+	 * @return The separator
+	 */
+	public String getSeparator() {
+		return separator;
+	}
+
+	/**
+	 * Gets the top of the tree, which every entry is in.
+	 *
+	 * @return The root
+	 */
+	public Node getRoot() {
+		return root;
+	}
+
+	/**
+	 * Finds a place in the tree.
+	 *
+	 * @param path The path to it
+	 * @return The place, or null if nothing is there
+	 */
+	public Node find(String path) {
+		Node at = root;
+		for(String part : split(path)) {
+			at = at.children.get(part.toLowerCase());
+			if(at == null) return null;
+		}
+		return at;
+	}
+
+	/**
+	 * Lists everything in a place, including the places
+	 * inside it, looking only at that part of the tree.
+	 *
+	 * @param query The path to the place, with or without
+	 *  <code>LOCATION_PREFIX</code>
+	 * @return The entries, a place at a time in order,
+	 *  with every copy of an entry given separately
+	 */
+	public List<Entry> entriesUnder(String query) {
+		String path = isLocationQuery(query) ? query.substring(LOCATION_PREFIX.length()) : query;
+		List<Entry> ret = new ArrayList<>();
+		Node node = find(path);
+		if(node == null) return ret;
+		ArrayDeque<Node> toVisit = new ArrayDeque<>();
+		toVisit.push(node);
+		while(!toVisit.isEmpty()) {
+			Node at = toVisit.pop();
+			for(Entry e : at.entries) {
+				for(int i = store.count(e); i > 0; i--) ret.add(e);
+			}
+			//pushed backwards so they come off in order
+			for(Node child : at.children.descendingMap().values()) toVisit.push(child);
+		}
+		return ret;
+	}
+
+	/**
+	 * Splits a location into the parts of its path.
+	 *
+	 * @param location The location
+	 * @return The parts, trimmed, without any empty ones
+	 */
+	private List<String> split(String location) {
+		List<String> ret = new ArrayList<>();
+		int from = 0;
+		while(from <= location.length()) {
+			int to = location.indexOf(separator, from);
+			if(to == -1) to = location.length();
+			String part = location.substring(from, to).trim();
+			if(!part.isEmpty()) ret.add(part);
+			from = to + separator.length();
+		}
+		return ret;
+	}
+
+	/**
+	 * Finds where an entry goes in the tree, making any
+	 * places on the way that are not there yet.
+	 *
+	 * @param entry The entry
+	 * @return Its place
+	 */
+	private Node placeOf(Entry entry) {
+		Node at = root;
+		for(String part : split(entry.getLocation())) {
+			Node parent = at;
+			at = parent.children.computeIfAbsent(part.toLowerCase(), key -> new Node(parent, part,
+					parent == root ? part : parent.path + separator + part));
+		}
+		return at;
+	}
+
+	/**
+	 * Drops places with nothing in them, working up from
+	 * one until reaching one that still has something.
+	 *
+	 * @param node Where to start
+	 */
+	private void prune(Node node) {
+		while(node != root && node.items == 0 && node.entries.isEmpty()
+				&& node.children.isEmpty()) {
+			node.parent.children.remove(node.name.toLowerCase());
+			node = node.parent;
+		}
+	}
+
+	@Override
+	public void entryAdded(Entry entry) {
+		placeOf(entry).entries.add(entry);
+	}
+
+	@Override
+	public void entryRemoved(Entry entry) {
+		Node node = find(entry.getLocation());
+		if(node == null) return;
+		node.entries.remove(entry);
+		prune(node);
+	}
+
+	@Override
+	public void entryMoved(Entry from, Entry to) {
+		entryAdded(to);
+		entryRemoved(from);
+	}
+
+	@Override
+	public void copiesChanged(Entry entry, int change) {
+		Node node = placeOf(entry);
+		int missingChange = entry.isMissing() ? change : 0;
+		for(Node at = node; at != null; at = at.parent) {
+			at.items += change;
+			at.missing += missingChange;
+		}
+		prune(node);
+	}
+
+	@Override
+	public void cleared() {
+		root.children.clear();
+		root.entries.clear();
+		root.items = 0;
+		root.missing = 0;
+	}
+}
@@ -0,0 +1,191 @@
+package com.russellsayshi.stockpile.inventory;
+
+import java.util.*;
+
+/**
+ * Keeps the lowercase names and locations of the entries
+ * in an <code>EntryStore</code> sorted, with how many
+ * copies of an entry have each one. Everything starting
+ * with some text, or falling between two strings, is then
+ * a range of a sorted map, found in logarithmic time no
+ * matter how many entries there are. This is what the
+ * search box's autocomplete is built on.
+ *
+ * The index listens to the store, so it keeps up as copies
+ * are added, removed and moved and never has to be built
+ * again.
+ *
+ * Not thread safe, and must only be touched by whatever
+ * is allowed to touch the store. The maps it hands out
+ * are views, which change along with the store.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public class PrefixIndex implements EntryStoreListener {
+	/**
+	 * Which part of an entry to look through.
+	 */
+	public enum Field {
+		NAME, LOCATION
+	}
+
+	/**
+	 * Most entries first, then in order.
+	 */
+	private static final Comparator<Map.Entry<String, Integer>> BY_RANK =
+			Comparator.<Map.Entry<String, Integer>>comparingInt(Map.Entry::getValue).reversed()
+				.thenComparing(Map.Entry::getKey);
+
+	private final TreeMap<String, Integer> names = new TreeMap<>();
+	private final TreeMap<String, Integer> locations = new TreeMap<>();
+
+	/**
+	 * Indexes a store and keeps up with it from then on.
+	 *
+	 * @param store The store
+	 */
+	public PrefixIndex(EntryStore store) {
+		for(Entry e : store) {
+			copiesChanged(e, 1);
+		}
+		store.addListener(this);
+	}
+
+	/**
+	 * Gets every different name or location, with how
+	 * many entries have it.
+	 *
+	 * @param field Names or locations
+	 * @return A sorted, unmodifiable view
+	 */
+	public NavigableMap<String, Integer> all(Field field) {
+		return Collections.unmodifiableNavigableMap(map(field));
+	}
+
+	/**
+	 * Gets every different name or location starting
+	 * with some text, with how many entries have it.
+	 *
+	 * @param field Names or locations
+	 * @param lowerCasePrefix The text (MUST BE LOWERCASE)
+	 * @return A sorted, unmodifiable view
+	 */
+	public NavigableMap<String, Integer> withPrefix(Field field, String lowerCasePrefix) {
+		String end = prefixEnd(lowerCasePrefix);
+		NavigableMap<String, Integer> map = map(field);
+		NavigableMap<String, Integer> ret = end == null
+				? map.tailMap(lowerCasePrefix, true)
+				: map.subMap(lowerCasePrefix, true, end, false);
+		return Collections.unmodifiableNavigableMap(ret);
+	}
+
+	/**
+	 * Gets every different name or location from one
+	 * string up to but not including another, with how
+	 * many entries have it.
+	 *
+	 * @param field Names or locations
+	 * @param lowerCaseFrom Where to start (MUST BE LOWERCASE)
+	 * @param lowerCaseTo Where to stop (MUST BE LOWERCASE)
+	 * @return A sorted, unmodifiable view
+	 * @throws IllegalArgumentException if the range ends
+	 *  before it starts
+	 */
+	public NavigableMap<String, Integer> between(Field field,
+			String lowerCaseFrom, String lowerCaseTo) {
+		return Collections.unmodifiableNavigableMap(
+				map(field).subMap(lowerCaseFrom, true, lowerCaseTo, false));
+	}
+
+	/**
+	 * Gets the names or locations that start with some
+	 * text and the most entries have, most first. Ones
+	 * that just as many have come in order.
+	 *
+	 * Only the best so far are kept while going through
+	 * them, so this takes no more memory however many
+	 * there are.
+	 *
+	 * @param field Names or locations
+	 * @param lowerCasePrefix The text (MUST BE LOWERCASE)
+	 * @param count The most to get
+	 * @return The completions, which may include the
+	 *  prefix itself
+	 */
+	public List<String> complete(Field field, String lowerCasePrefix, int count) {
+		if(count <= 0) return new ArrayList<>();
+		//the worst of the best so far on top, ready to be pushed out
+		PriorityQueue<Map.Entry<String, Integer>> best = new PriorityQueue<>(
+				Collections.reverseOrder(BY_RANK));
+		for(Map.Entry<String, Integer> key : withPrefix(field, lowerCasePrefix).entrySet()) {
+			if(best.size() < count) {
+				best.add(key);
+			} else if(BY_RANK.compare(key, best.peek()) < 0) {
+				best.poll();
+				best.add(key);
+			}
+		}
+		String[] ret = new String[best.size()];
+		for(int i = ret.length - 1; i >= 0; i--) ret[i] = best.poll().getKey();
+		return new ArrayList<>(Arrays.asList(ret));
+	}
+
+	/**
+	 * Works out the first string after everything
+	 * starting with some text.
+	 *
+	 * @param prefix The text
+	 * @return The string, or null if nothing comes after
+	 */
+	private static String prefixEnd(String prefix) {
+		int last = prefix.length() - 1;
+		//nothing comes after the biggest character, so carry over to the one before
+		while(last >= 0 && prefix.charAt(last) == Character.MAX_VALUE) last--;
+		if(last < 0) return null;
+		return prefix.substring(0, last) + (char)(prefix.charAt(last) + 1);
+	}
+
+	private TreeMap<String, Integer> map(Field field) {
+		return field == Field.NAME ? names : locations;
+	}
+
+	/**
+	 * Adds to or takes away from how many entries have
+	 * a key, forgetting it once none do.
+	 *
+	 * @param map The names or locations
+	 * @param key The key
+	 * @param change How much to add
+	 */
+	private static void count(TreeMap<String, Integer> map, String key, int change) {
+		map.merge(key, change, (a, b) -> a + b == 0 ? null : a + b);
+	}
+
+	@Override
+	public void entryAdded(Entry entry) {
+		//copies are counted as they change
+	}
+
+	@Override
+	public void entryRemoved(Entry entry) {
+		//copies are counted as they change
+	}
+
+	@Override
+	public void entryMoved(Entry from, Entry to) {
+		//copies are counted as they change
+	}
+
+	@Override
+	public void copiesChanged(Entry entry, int change) {
+		count(names, entry.getNameLower(), change);
+		count(locations, entry.getLocationLower(), change);
+	}
+
+	@Override
+	public void cleared() {
+		names.clear();
+		locations.clear();
+	}
+}
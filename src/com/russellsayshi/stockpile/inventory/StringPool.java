@@ -0,0 +1,263 @@
+package com.russellsayshi.stockpile.inventory;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * Hands out one shared copy of each different string, so
+ * that thousands of entries in the same location, or with
+ * the same name, hold one string between them instead of
+ * a copy each.
+ *
+ * The pool only holds its strings weakly. Once the last
+ * entry using a string is gone, it is garbage collected
+ * and drops out of the pool on its own.
+ *
+ * A string can be looked up straight from the characters
+ * it is being parsed from, so nothing is made unless it
+ * is new. The pool also remembers each string's lowercase
+ * copy once it has been asked for, so it is only worked
+ * out once.
+ *
+ * Thread safe. The pool is split into stripes by hash so
+ * that threads parsing entries at once rarely wait on
+ * each other.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public class StringPool {
+	private static final int STRIPES = 16;
+	private static final int INITIAL_BUCKETS = 64;
+
+	/**
+	 * One string in the pool. It must not hold the string
+	 * strongly, or it would never go.
+	 */
+	private static class Node extends WeakReference<String> {
+		final int hash;
+		Node next;
+		//null until asked for, and not kept if it is the string itself
+		String lower;
+		boolean alreadyLower;
+
+		Node(String string, int hash, Node next, ReferenceQueue<String> queue) {
+			super(string, queue);
+			this.hash = hash;
+			this.next = next;
+		}
+	}
+
+	/**
+	 * One share of the pool: a hash table of its own,
+	 * chained, with its own lock.
+	 */
+	private static class Stripe {
+		Node[] buckets = new Node[INITIAL_BUCKETS];
+		int size = 0;
+		final ReferenceQueue<String> collected = new ReferenceQueue<>();
+
+		/**
+		 * Finds the node for some characters.
+		 *
+		 * @return The node, or null if the string is not
+		 *  pooled or has been collected
+		 */
+		Node find(CharSequence chars, int start, int end, int hash) {
+			for(Node n = buckets[bucket(hash, buckets.length)]; n != null; n = n.next) {
+				if(n.hash != hash) continue;
+				String s = n.get();
+				if(s != null && sameChars(s, chars, start, end)) return n;
+			}
+			return null;
+		}
+
+		/**
+		 * Adds a string that is not pooled yet.
+		 */
+		void add(String s, int hash) {
+			forgetCollected();
+			if(size >= buckets.length - (buckets.length >> 2)) resize();
+			int at = bucket(hash, buckets.length);
+			buckets[at] = new Node(s, hash, buckets[at], collected);
+			size++;
+		}
+
+		/**
+		 * Unlinks every node whose string has been collected.
+		 */
+		void forgetCollected() {
+			Object gone;
+			while((gone = collected.poll()) != null) {
+				Node node = (Node)gone;
+				int at = bucket(node.hash, buckets.length);
+				Node previous = null;
+				for(Node n = buckets[at]; n != null; previous = n, n = n.next) {
+					if(n != node) continue;
+					if(previous == null) buckets[at] = n.next;
+					else previous.next = n.next;
+					size--;
+					break;
+				}
+			}
+		}
+
+		void resize() {
+			Node[] old = buckets;
+			buckets = new Node[old.length * 2];
+			for(Node head : old) {
+				for(Node n = head; n != null;) {
+					Node next = n.next;
+					int at = bucket(n.hash, buckets.length);
+					n.next = buckets[at];
+					buckets[at] = n;
+					n = next;
+				}
+			}
+		}
+	}
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	/**
+	 * Constructs an empty pool.
+	 */
+	public StringPool() {
+		for(int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * Gets the shared copy of a string, making this
+	 * one the shared copy if there is none yet.
+	 *
+	 * @param s The string
+	 * @return A string equal to it, which may be the same one
+	 */
+	public String intern(String s) {
+		int hash = s.hashCode();
+		Stripe stripe = stripeFor(hash);
+		synchronized(stripe) {
+			Node node = stripe.find(s, 0, s.length(), hash);
+			String shared = node == null ? null : node.get();
+			if(shared != null) return shared;
+			stripe.add(s, hash);
+			return s;
+		}
+	}
+
+	/**
+	 * Gets the shared copy of some characters as a string,
+	 * only making a string if there is no copy yet.
+	 *
+	 * @param chars Holds the characters
+	 * @param start Where they start
+	 * @param end Where they end, exclusive
+	 * @return The shared string
+	 */
+	public String intern(CharSequence chars, int start, int end) {
+		//the same as String.hashCode, so either way finds it
+		int hash = 0;
+		for(int i = start; i < end; i++) {
+			hash = 31 * hash + chars.charAt(i);
+		}
+		Stripe stripe = stripeFor(hash);
+		synchronized(stripe) {
+			Node node = stripe.find(chars, start, end, hash);
+			String shared = node == null ? null : node.get();
+			if(shared != null) return shared;
+			String s = chars.subSequence(start, end).toString();
+			stripe.add(s, hash);
+			return s;
+		}
+	}
+
+	/**
+	 * Gets the shared lowercase copy of a string,
+	 * the same as <code>toLowerCase()</code> would.
+	 *
+	 * @param s A string handed out by this pool
+	 * @return The same string if it is already lowercase
+	 */
+	public String lowerCase(String s) {
+		if(isPlainLowerCase(s)) return s;
+		int hash = s.hashCode();
+		Stripe stripe = stripeFor(hash);
+		Node node;
+		synchronized(stripe) {
+			node = stripe.find(s, 0, s.length(), hash);
+			if(node != null) {
+				if(node.alreadyLower) return s;
+				if(node.lower != null) return node.lower;
+			}
+		}
+		//worked out without the lock, as interning it may need another stripe's
+		String lower = s.toLowerCase();
+		boolean same = lower.equals(s);
+		if(!same) lower = intern(lower);
+		if(node != null) {
+			synchronized(stripe) {
+				if(same) node.alreadyLower = true;
+				else node.lower = lower;
+			}
+		}
+		return same ? s : lower;
+	}
+
+	/**
+	 * Counts the different strings in the pool, including
+	 * any that are no longer used but not forgotten yet.
+	 *
+	 * @return The number of strings
+	 */
+	public int size() {
+		int ret = 0;
+		for(Stripe stripe : stripes) {
+			synchronized(stripe) {
+				stripe.forgetCollected();
+				ret += stripe.size;
+			}
+		}
+		return ret;
+	}
+
+	private Stripe stripeFor(int hash) {
+		return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+	}
+
+	/**
+	 * Picks a bucket, using different bits of the hash
+	 * than picking the stripe does.
+	 */
+	private static int bucket(int hash, int buckets) {
+		return ((hash ^ (hash >>> 16)) >>> 4) & (buckets - 1);
+	}
+
+	/**
+	 * Checks if a string is ASCII with no capitals, which
+	 * lowercasing never changes whatever the locale.
+	 */
+	private static boolean isPlainLowerCase(String s) {
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c >= 0x80 || (c >= 'A' && c <= 'Z')) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if a string has the same characters as
+	 * part of something else.
+	 */
+	private static boolean sameChars(String s, CharSequence chars, int start, int end) {
+		if(s.length() != end - start) return false;
+		if(chars instanceof String) {
+			return s.regionMatches(0, (String)chars, start, end - start);
+		}
+		for(int i = 0; i < s.length(); i++) {
+			if(s.charAt(i) != chars.charAt(start + i)) return false;
+		}
+		return true;
+	}
+}
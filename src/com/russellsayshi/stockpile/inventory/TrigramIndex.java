@@ -0,0 +1,325 @@
+package com.russellsayshi.stockpile.inventory;
+
+import java.util.*;
+
+/**
+ * Finds the entries in an <code>EntryStore</code> that
+ * match a search without looking at every one of them.
+ *
+ * Every run of three characters (a trigram) in each
+ * entry's lowercase name and location is indexed, listing
+ * the entries that have it. Anything containing the query
+ * has to have all of the query's trigrams, so only the
+ * entries on every one of those lists can match. Each of
+ * them is then checked with the same
+ * <code>EntryMatcher</code> a plain search uses, so the
+ * results are exactly the same, just found sooner.
+ * Queries shorter than three characters have no trigrams,
+ * so the index can not help with them, and they are left
+ * to an <code>EntrySearcher</code> over a snapshot of the
+ * store; see <code>canNarrow</code>.
+ *
+ * The index listens to the store, so it keeps up as
+ * entries are added, removed and moved and never has to
+ * be built again. Entries are numbered in the store's
+ * order, which is how results come back in that order.
+ *
+ * Not thread safe, and must only be touched by whatever
+ * is allowed to touch the store.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public class TrigramIndex implements EntryStoreListener {
+	/**
+	 * The numbers of the entries that have one trigram,
+	 * smallest first.
+	 */
+	private static class Postings {
+		int[] ids = new int[4];
+		int size = 0;
+
+		void add(int id) {
+			if(size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+			if(size == 0 || ids[size - 1] < id) {
+				ids[size++] = id;
+				return;
+			}
+			//only moved entries land anywhere but the end
+			int at = -Arrays.binarySearch(ids, 0, size, id) - 1;
+			if(at < 0) return;
+			System.arraycopy(ids, at, ids, at + 1, size - at);
+			ids[at] = id;
+			size++;
+		}
+
+		void remove(int id) {
+			int at = Arrays.binarySearch(ids, 0, size, id);
+			if(at < 0) return;
+			System.arraycopy(ids, at + 1, ids, at, size - at - 1);
+			size--;
+		}
+	}
+
+	private static final String MISSING_KEYWORD = "missing";
+
+	private final EntryStore store;
+	private final HashMap<Long, Postings> postings = new HashMap<>();
+	private final Postings missing = new Postings();
+	private final HashMap<Entry, Integer> ids = new HashMap<>();
+	private Entry[] entries = new Entry[16]; //by number, null once gone
+	private int nextId = 0;
+
+	/**
+	 * Indexes a store and keeps up with it from then on.
+	 *
+	 * @param store The store
+	 */
+	public TrigramIndex(EntryStore store) {
+		this.store = store;
+		Entry last = null;
+		for(Entry e : store) {
+			//copies come one after another, and only need indexing once
+			if(e != last) entryAdded(e);
+			last = e;
+		}
+		store.addListener(this);
+	}
+
+	/**
+	 * Checks if the index can narrow down a search,
+	 * rather than every entry having to be checked.
+	 *
+	 * @param lowerCaseQuery The search
+	 * @return Whether or not it is long enough
+	 */
+	public boolean canNarrow(String lowerCaseQuery) {
+		return lowerCaseQuery.length() >= 3;
+	}
+
+	/**
+	 * Finds every entry that matches a search, the same
+	 * as checking each entry in the store with
+	 * <code>EntryMatcher.matchesLowerCaseQuery</code>.
+	 *
+	 * @param lowerCaseQuery A string (MUST BE LOWERCASE) to search for
+	 * @return The matching entries, in the store's order,
+	 *  with every copy of an entry given separately
+	 * @throws IllegalArgumentException if the index can not
+	 *  narrow the search down
+	 */
+	public List<Entry> search(String lowerCaseQuery) {
+		if(!canNarrow(lowerCaseQuery)) {
+			throw new IllegalArgumentException("Query too short to search with trigrams.");
+		}
+		List<Entry> ret = new ArrayList<>();
+		int[] candidates = candidates(lowerCaseQuery);
+		for(int id : candidates) {
+			Entry e = entries[id];
+			if(EntryMatcher.matchesLowerCaseQuery(e, lowerCaseQuery)) {
+				for(int i = store.count(e); i > 0; i--) ret.add(e);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Finds the numbers of the entries that might match
+	 * a search.
+	 *
+	 * @param query The search, at least three characters long
+	 * @return The numbers, smallest first
+	 */
+	private int[] candidates(String query) {
+		long[] trigrams = trigrams(query, "");
+		Postings[] lists = new Postings[trigrams.length];
+		int[] ret = new int[0];
+		boolean none = false;
+		for(int i = 0; i < trigrams.length; i++) {
+			lists[i] = postings.get(trigrams[i]);
+			if(lists[i] == null) none = true;
+		}
+		if(!none) {
+			//start from the shortest list, so there is the least to check
+			Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+			ret = Arrays.copyOf(lists[0].ids, lists[0].size);
+			for(int i = 1; i < lists.length && ret.length > 0; i++) {
+				ret = intersect(ret, lists[i]);
+			}
+		}
+		if(query.contains(MISSING_KEYWORD)) {
+			ret = union(ret, Arrays.copyOf(missing.ids, missing.size));
+		}
+		return ret;
+	}
+
+	/**
+	 * Keeps only the numbers that are also on a list.
+	 *
+	 * @param ids The numbers, smallest first
+	 * @param list The list, which is at least as long
+	 * @return The numbers on both
+	 */
+	private static int[] intersect(int[] ids, Postings list) {
+		int kept = 0;
+		int from = 0;
+		for(int id : ids) {
+			int at = Arrays.binarySearch(list.ids, from, list.size, id);
+			if(at >= 0) {
+				ids[kept++] = id;
+				from = at + 1;
+			} else {
+				from = -at - 1;
+			}
+		}
+		return Arrays.copyOf(ids, kept);
+	}
+
+	/**
+	 * Merges two lists of numbers.
+	 *
+	 * @param a Some numbers, smallest first
+	 * @param b Some more, smallest first
+	 * @return The numbers on either, smallest first
+	 */
+	private static int[] union(int[] a, int[] b) {
+		int[] ret = new int[a.length + b.length];
+		int i = 0, j = 0, k = 0;
+		while(i < a.length || j < b.length) {
+			if(j == b.length || (i < a.length && a[i] < b[j])) ret[k++] = a[i++];
+			else if(i == a.length || b[j] < a[i]) ret[k++] = b[j++];
+			else {
+				ret[k++] = a[i++];
+				j++;
+			}
+		}
+		return Arrays.copyOf(ret, k);
+	}
+
+	@Override
+	public void entryAdded(Entry entry) {
+		if(nextId == entries.length) entries = Arrays.copyOf(entries, nextId * 2);
+		int id = nextId++;
+		entries[id] = entry;
+		ids.put(entry, id);
+		index(entry, id, true);
+	}
+
+	@Override
+	public void entryRemoved(Entry entry) {
+		Integer id = ids.remove(entry);
+		if(id == null) return;
+		entries[id] = null;
+		index(entry, id, false);
+		//numbers are never handed out again, so squeeze out the gaps now and then
+		if(nextId > 64 && nextId > ids.size() * 2) renumber();
+	}
+
+	@Override
+	public void entryMoved(Entry from, Entry to) {
+		Integer id = ids.remove(from);
+		if(id == null) return;
+		index(from, id, false);
+		entries[id] = to;
+		ids.put(to, id);
+		index(to, id, true);
+	}
+
+	@Override
+	public void copiesChanged(Entry entry, int change) {
+		//copies are counted by the store when searching
+	}
+
+	@Override
+	public void cleared() {
+		postings.clear();
+		missing.size = 0;
+		ids.clear();
+		entries = new Entry[16];
+		nextId = 0;
+	}
+
+	/**
+	 * Adds an entry's number to, or takes it off, the
+	 * lists for all of its trigrams.
+	 *
+	 * @param entry The entry
+	 * @param id Its number
+	 * @param add True to add it, false to take it off
+	 */
+	private void index(Entry entry, int id, boolean add) {
+		for(long trigram : trigrams(entry.getNameLower(), entry.getLocationLower())) {
+			if(add) {
+				postings.computeIfAbsent(trigram, t -> new Postings()).add(id);
+			} else {
+				Postings list = postings.get(trigram);
+				if(list == null) continue;
+				list.remove(id);
+				if(list.size == 0) postings.remove(trigram);
+			}
+		}
+		if(entry.isMissing()) {
+			if(add) missing.add(id);
+			else missing.remove(id);
+		}
+	}
+
+	/**
+	 * Numbers the entries from 0 again, in the same order,
+	 * and fixes up every list to match.
+	 */
+	private void renumber() {
+		int[] renumbered = new int[nextId];
+		Entry[] kept = new Entry[Math.max(16, ids.size() * 2)];
+		int count = 0;
+		for(int id = 0; id < nextId; id++) {
+			if(entries[id] == null) continue;
+			renumbered[id] = count;
+			kept[count] = entries[id];
+			ids.put(entries[id], count);
+			count++;
+		}
+		for(Postings list : postings.values()) renumber(list, renumbered);
+		renumber(missing, renumbered);
+		entries = kept;
+		nextId = count;
+	}
+
+	/**
+	 * Changes every number on a list to its new one,
+	 * which keeps it in order.
+	 *
+	 * @param list The list
+	 * @param renumbered Each old number's new one
+	 */
+	private static void renumber(Postings list, int[] renumbered) {
+		for(int i = 0; i < list.size; i++) list.ids[i] = renumbered[list.ids[i]];
+	}
+
+	/**
+	 * Gets every different trigram in some text.
+	 *
+	 * @param first Some lowercase text
+	 * @param second Some more, which trigrams are not
+	 *  run across into from the first
+	 * @return The trigrams, each as its three characters
+	 *  packed into a number
+	 */
+	private static long[] trigrams(String first, String second) {
+		long[] ret = new long[Math.max(0, first.length() - 2) + Math.max(0, second.length() - 2)];
+		int count = 0;
+		for(String text : new String[] {first, second}) {
+			for(int i = 0; i + 2 < text.length(); i++) {
+				ret[count++] = ((long)text.charAt(i) << 32)
+						| ((long)text.charAt(i + 1) << 16)
+						| text.charAt(i + 2);
+			}
+		}
+		Arrays.sort(ret);
+		int distinct = 0;
+		for(int i = 0; i < count; i++) {
+			if(distinct == 0 || ret[distinct - 1] != ret[i]) ret[distinct++] = ret[i];
+		}
+		return Arrays.copyOf(ret, distinct);
+	}
+}
@@ -0,0 +1,125 @@
+package com.russellsayshi.stockpile.protocol;
+
+import java.io.*;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses whatever is written to it and passes it on
+ * as chunks: a varint length followed by that many bytes
+ * of deflate output. <code>finish</code> ends the stream
+ * with an empty chunk, so the other side can tell where
+ * the compressed part stops and go back to reading the
+ * stream as it was, without reading too far.
+ *
+ * Closing this stream finishes it but leaves the stream
+ * underneath open.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ * @see ChunkedInflaterInputStream
+ */
+public class ChunkedDeflaterOutputStream extends OutputStream {
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private final OutputStream out;
+	private final Deflater deflater;
+	private final byte[] chunk = new byte[CHUNK_SIZE];
+	private final byte[] oneByte = new byte[1];
+	private long compressedBytes = 0;
+	private boolean finished = false;
+
+	/**
+	 * Constructs a stream.
+	 *
+	 * @param out Where the chunks go
+	 * @param level The deflate level, from
+	 *  <code>Deflater.BEST_SPEED</code> to <code>BEST_COMPRESSION</code>
+	 */
+	public ChunkedDeflaterOutputStream(OutputStream out, int level) {
+		this.out = out;
+		this.deflater = new Deflater(level);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		oneByte[0] = (byte)b;
+		write(oneByte, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(finished) throw new IOException("Stream already finished.");
+		if(len == 0) return;
+		deflater.setInput(b, off, len);
+		while(!deflater.needsInput()) {
+			writeChunk(deflater.deflate(chunk));
+		}
+	}
+
+	/**
+	 * Passes on a chunk of deflate output.
+	 *
+	 * @param length How much of the chunk buffer to pass on
+	 */
+	private void writeChunk(int length) throws IOException {
+		if(length == 0) return;
+		writeLength(length);
+		out.write(chunk, 0, length);
+		compressedBytes += length;
+	}
+
+	/**
+	 * Writes a chunk length as a varint.
+	 *
+	 * @param length The length
+	 */
+	private void writeLength(int length) throws IOException {
+		while((length & ~0x7F) != 0) {
+			out.write((length & 0x7F) | 0x80);
+			length >>>= 7;
+		}
+		out.write(length);
+	}
+
+	/**
+	 * Compresses whatever is left, ends the stream with
+	 * an empty chunk, and frees the deflater. Does not
+	 * flush the stream underneath.
+	 */
+	public void finish() throws IOException {
+		if(finished) return;
+		finished = true;
+		try {
+			deflater.finish();
+			while(!deflater.finished()) {
+				writeChunk(deflater.deflate(chunk));
+			}
+			writeLength(0);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Gets how many compressed bytes have been passed on
+	 * so far, not counting chunk lengths.
+	 *
+	 * @return The number of bytes
+	 */
+	public long getCompressedBytes() {
+		return compressedBytes;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Finishes the stream, leaving the stream underneath open.
+	 */
+	@Override
+	public void close() throws IOException {
+		finish();
+	}
+}
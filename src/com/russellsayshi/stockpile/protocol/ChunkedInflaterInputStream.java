@@ -0,0 +1,113 @@
+package com.russellsayshi.stockpile.protocol;
+
+import java.io.*;
+import java.util.zip.*;
+
+/**
+ * Reads what a <code>ChunkedDeflaterOutputStream</code>
+ * wrote. Ends at the empty chunk that finishes it, having
+ * read nothing past it, so the stream underneath can go
+ * on being read as it was.
+ *
+ * Closing this stream reads through to the empty chunk,
+ * so the stream underneath is left just past it even if
+ * not everything was read, then frees the inflater. The
+ * stream underneath stays open.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ * @see ChunkedDeflaterOutputStream
+ */
+public class ChunkedInflaterInputStream extends InputStream {
+	private final InputStream in;
+	private final Inflater inflater = new Inflater();
+	private byte[] chunk = new byte[4096];
+	private final byte[] oneByte = new byte[1];
+	private boolean ended = false;
+
+	/**
+	 * Constructs a stream.
+	 *
+	 * @param in Where the chunks come from
+	 */
+	public ChunkedInflaterInputStream(InputStream in) {
+		this.in = in;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(oneByte, 0, 1) == -1 ? -1 : oneByte[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) return 0;
+		while(!ended) {
+			int inflated;
+			try {
+				inflated = inflater.inflate(b, off, len);
+			} catch(DataFormatException dfe) {
+				throw new IOException("Corrupted compressed data.", dfe);
+			}
+			if(inflated > 0) return inflated;
+			if(inflater.needsDictionary()) {
+				throw new IOException("Corrupted compressed data.");
+			}
+			int length = readLength();
+			if(length == 0) {
+				if(!inflater.finished()) throw new EOFException("Compressed data cut off.");
+				ended = true;
+			} else if(inflater.finished()) {
+				throw new IOException("Junk after compressed data.");
+			} else {
+				if(chunk.length < length) chunk = new byte[length];
+				int read = 0;
+				while(read < length) {
+					int now = in.read(chunk, read, length - read);
+					if(now == -1) throw new EOFException("Compressed data cut off.");
+					read += now;
+				}
+				inflater.setInput(chunk, 0, length);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Reads the length of the next chunk.
+	 *
+	 * @return The length
+	 */
+	private int readLength() throws IOException {
+		int ret = 0;
+		for(int i = 0; i < EntryCodec.MAX_VARINT_BYTES; i++) {
+			int b = in.read();
+			if(b == -1) throw new EOFException("Compressed data cut off.");
+			ret |= (b & 0x7F) << (7 * i);
+			if((b & 0x80) == 0) {
+				if(ret < 0 || ret > WireProtocol.MAX_FRAME_BYTES) {
+					throw new IOException("Chunk too long.");
+				}
+				return ret;
+			}
+		}
+		throw new IOException("Corrupted chunk length.");
+	}
+
+	/**
+	 * Skips to the end of the compressed data and frees the
+	 * inflater, leaving the stream underneath open.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			byte[] skipped = new byte[4096];
+			while(read(skipped, 0, skipped.length) != -1) {
+				//the other side has nothing left we care about
+			}
+		} finally {
+			ended = true;
+			inflater.end();
+		}
+	}
+}
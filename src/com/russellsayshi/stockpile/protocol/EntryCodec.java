@@ -0,0 +1,307 @@
+package com.russellsayshi.stockpile.protocol;
+
+import com.russellsayshi.stockpile.inventory.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes entries and updates to bytes for the binary
+ * protocol, and decodes them back.
+ *
+ * An entry is its flags as a varint, then its name and its
+ * location, each as a varint byte length followed by that
+ * many bytes of UTF-8. Nothing is escaped, so names and
+ * locations can hold any character at all.
+ *
+ * Varints are unsigned, seven bits to a byte, lowest bits
+ * first, with the top bit set on every byte but the last.
+ *
+ * Everything reads from and writes to a
+ * <code>ByteBuffer</code> directly. Encoding never builds
+ * a byte array or a string along the way, and decoding
+ * only builds the name and location themselves.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public final class EntryCodec {
+	/**
+	 * Most bytes a varint can take up.
+	 */
+	public static final int MAX_VARINT_BYTES = 5;
+
+	private EntryCodec() {
+	}
+
+	/**
+	 * Gets how many bytes a varint takes up.
+	 *
+	 * @param value The value, taken as unsigned
+	 * @return The number of bytes
+	 */
+	public static int varintLength(int value) {
+		int ret = 1;
+		while((value & ~0x7F) != 0) {
+			value >>>= 7;
+			ret++;
+		}
+		return ret;
+	}
+
+	/**
+	 * Writes a varint.
+	 *
+	 * @param buffer The buffer to write to
+	 * @param value The value, taken as unsigned
+	 */
+	public static void putVarint(ByteBuffer buffer, int value) {
+		while((value & ~0x7F) != 0) {
+			buffer.put((byte)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte)value);
+	}
+
+	/**
+	 * Reads a varint.
+	 *
+	 * @param buffer The buffer to read from
+	 * @return The value
+	 * @throws IllegalArgumentException if the varint is too
+	 *  long or runs off the end of the buffer
+	 */
+	public static int getVarint(ByteBuffer buffer) {
+		int ret = 0;
+		for(int shift = 0; shift < 7 * MAX_VARINT_BYTES; shift += 7) {
+			if(!buffer.hasRemaining()) {
+				throw new IllegalArgumentException("Varint cut off.");
+			}
+			byte b = buffer.get();
+			ret |= (b & 0x7F) << shift;
+			if(b >= 0) return ret;
+		}
+		throw new IllegalArgumentException("Varint too long.");
+	}
+
+	/**
+	 * Gets how many bytes a string takes up in UTF-8.
+	 * Unpaired surrogates count as the one byte of the
+	 * <code>?</code> they get written as, the same as
+	 * <code>String.getBytes</code> would.
+	 *
+	 * @param s The string
+	 * @return The number of bytes
+	 */
+	public static int utf8Length(String s) {
+		int length = s.length();
+		int ret = length;
+		for(int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if(c < 0x80) continue;
+			if(c < 0x800) {
+				ret++;
+			} else if(Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				ret += 2; //four bytes for the two chars
+				i++;
+			} else if(!Character.isSurrogate(c)) {
+				ret += 2;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Gets how many bytes a string takes up with its length.
+	 *
+	 * @param s The string
+	 * @return The number of bytes
+	 */
+	public static int stringLength(String s) {
+		int length = utf8Length(s);
+		return varintLength(length) + length;
+	}
+
+	/**
+	 * Writes a string as a varint byte length followed
+	 * by that many bytes of UTF-8.
+	 *
+	 * @param buffer The buffer to write to, with at least
+	 *  <code>stringLength</code> bytes remaining
+	 * @param s The string
+	 */
+	public static void putString(ByteBuffer buffer, String s) {
+		putVarint(buffer, utf8Length(s));
+		putUtf8(buffer, s);
+	}
+
+	/**
+	 * Writes a string as UTF-8, without a length.
+	 *
+	 * @param buffer The buffer to write to
+	 * @param s The string
+	 */
+	private static void putUtf8(ByteBuffer buffer, String s) {
+		int length = s.length();
+		for(int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if(c < 0x80) {
+				buffer.put((byte)c);
+			} else if(c < 0x800) {
+				buffer.put((byte)(0xC0 | (c >> 6)));
+				buffer.put((byte)(0x80 | (c & 0x3F)));
+			} else if(Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, s.charAt(++i));
+				buffer.put((byte)(0xF0 | (codePoint >> 18)));
+				buffer.put((byte)(0x80 | ((codePoint >> 12) & 0x3F)));
+				buffer.put((byte)(0x80 | ((codePoint >> 6) & 0x3F)));
+				buffer.put((byte)(0x80 | (codePoint & 0x3F)));
+			} else if(Character.isSurrogate(c)) {
+				buffer.put((byte)'?');
+			} else {
+				buffer.put((byte)(0xE0 | (c >> 12)));
+				buffer.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+				buffer.put((byte)(0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+	/**
+	 * Reads a length prefixed UTF-8 string.
+	 *
+	 * @param buffer The buffer to read from
+	 * @return The string
+	 * @throws IllegalArgumentException if the length runs
+	 *  off the end of the buffer
+	 */
+	public static String getString(ByteBuffer buffer) {
+		int length = getVarint(buffer);
+		if(length < 0 || length > buffer.remaining()) {
+			throw new IllegalArgumentException("String length runs off the end of the buffer.");
+		}
+		String ret;
+		if(buffer.hasArray()) {
+			ret = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+					length, StandardCharsets.UTF_8);
+			buffer.position(buffer.position() + length);
+		} else {
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			ret = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return ret;
+	}
+
+	/**
+	 * Gets how many bytes an entry takes up.
+	 *
+	 * @param entry The entry
+	 * @return The number of bytes
+	 */
+	public static int encodedLength(Entry entry) {
+		int nameLength = utf8Length(entry.getName());
+		int locationLength = utf8Length(entry.getLocation());
+		return varintLength(entry.getFlags())
+			+ varintLength(nameLength) + nameLength
+			+ varintLength(locationLength) + locationLength;
+	}
+
+	/**
+	 * Writes an entry.
+	 *
+	 * @param buffer The buffer to write to, with at least
+	 *  <code>encodedLength(entry)</code> bytes remaining
+	 * @param entry The entry
+	 */
+	public static void encode(ByteBuffer buffer, Entry entry) {
+		putVarint(buffer, entry.getFlags());
+		putVarint(buffer, utf8Length(entry.getName()));
+		putUtf8(buffer, entry.getName());
+		putVarint(buffer, utf8Length(entry.getLocation()));
+		putUtf8(buffer, entry.getLocation());
+	}
+
+	/**
+	 * Reads an entry.
+	 *
+	 * @param buffer The buffer to read from
+	 * @return The entry
+	 * @throws IllegalArgumentException if the bytes are not
+	 *  a whole entry
+	 */
+	public static Entry decode(ByteBuffer buffer) {
+		int flags = getVarint(buffer);
+		String name = getString(buffer);
+		String location = getString(buffer);
+		return new Entry(name, location, flags);
+	}
+
+	/**
+	 * Gets how many bytes an update takes up.
+	 *
+	 * @param update The update
+	 * @return The number of bytes
+	 */
+	public static int encodedLength(EntryUpdate update) {
+		int ret = 1 + encodedLength(update.getEntry());
+		if(update.getType() == EntryUpdate.Type.MOVE) {
+			ret += encodedLength(update.getTarget());
+		}
+		return ret;
+	}
+
+	/**
+	 * Writes an update: its type, its entry, and its
+	 * target if it is a move.
+	 *
+	 * @param buffer The buffer to write to, with at least
+	 *  <code>encodedLength(update)</code> bytes remaining
+	 * @param update The update
+	 */
+	public static void encode(ByteBuffer buffer, EntryUpdate update) {
+		switch(update.getType()) {
+			case ADD:
+				buffer.put(WireProtocol.ADD);
+				encode(buffer, update.getEntry());
+				break;
+			case REMOVE:
+				buffer.put(WireProtocol.REMOVE);
+				encode(buffer, update.getEntry());
+				break;
+			case MOVE:
+				buffer.put(WireProtocol.MOVE);
+				encode(buffer, update.getEntry());
+				encode(buffer, update.getTarget());
+				break;
+		}
+	}
+
+	/**
+	 * Reads an update.
+	 *
+	 * @param buffer The buffer to read from
+	 * @return The update
+	 * @throws IllegalArgumentException if the bytes are not
+	 *  a whole update
+	 */
+	public static EntryUpdate decodeUpdate(ByteBuffer buffer) {
+		try {
+			byte type = buffer.get();
+			switch(type) {
+				case WireProtocol.ADD:
+					return new EntryUpdate(EntryUpdate.Type.ADD, decode(buffer), null);
+				case WireProtocol.REMOVE:
+					return new EntryUpdate(EntryUpdate.Type.REMOVE, decode(buffer), null);
+				case WireProtocol.MOVE:
+					Entry from = decode(buffer);
+					return new EntryUpdate(EntryUpdate.Type.MOVE, from, decode(buffer));
+				default:
+					throw new IllegalArgumentException(type + " is not a valid update type.");
+			}
+		} catch(BufferUnderflowException bue) {
+			throw new IllegalArgumentException("Update cut off.");
+		}
+	}
+}
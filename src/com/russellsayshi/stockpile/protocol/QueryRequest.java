@@ -0,0 +1,237 @@
+package com.russellsayshi.stockpile.protocol;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A client asking the server to search its database:
+ * either a new search, or the next page of the results
+ * of one it already started.
+ *
+ * As a line, a new search is <code>FIND tag limit query</code>
+ * and the next page is <code>MORE tag cursor limit</code>,
+ * where the query is the rest of the line and may hold
+ * spaces. As a frame, <code>FIND</code> carries the tag and
+ * limit as varints and then the query as a string, and
+ * <code>MORE</code> carries the tag, cursor and limit.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ * @see QueryResults
+ */
+public final class QueryRequest {
+	private final int tag;
+	private final int cursor;
+	private final int limit;
+	private final String query;
+
+	private QueryRequest(int tag, int cursor, int limit, String query) {
+		if(tag < 0) throw new IllegalArgumentException("Invalid tag " + tag + ".");
+		if(cursor < 0) throw new IllegalArgumentException("Invalid cursor " + cursor + ".");
+		if(limit <= 0) throw new IllegalArgumentException("Invalid limit " + limit + ".");
+		if(query != null && (query.indexOf('\n') != -1 || query.indexOf('\r') != -1)) {
+			throw new IllegalArgumentException("Query cannot contain a line break.");
+		}
+		this.tag = tag;
+		this.cursor = cursor;
+		this.limit = limit;
+		this.query = query;
+	}
+
+	/**
+	 * Builds a request for a new search.
+	 *
+	 * @param tag Sent back with the results, to tell them apart
+	 * @param limit The most entries to send in the first page
+	 * @param query What to search for, matched the way
+	 *  <code>EntryMatcher</code> does once made lowercase,
+	 *  or by <code>FuzzyIndex</code> if it starts with
+	 *  <code>FuzzyIndex.FUZZY_PREFIX</code>, or everything
+	 *  in a place if it starts with
+	 *  <code>LocationTree.LOCATION_PREFIX</code>
+	 * @return The request
+	 * @throws IllegalArgumentException if the tag is negative,
+	 *  the limit is not positive, or the query has a line break
+	 */
+	public static QueryRequest find(int tag, int limit, String query) {
+		if(query == null) throw new NullPointerException("Query cannot be null.");
+		return new QueryRequest(tag, 0, limit, query);
+	}
+
+	/**
+	 * Builds a request for the next page of a search.
+	 *
+	 * @param tag Sent back with the results, to tell them apart
+	 * @param cursor The cursor the last page came with
+	 * @param limit The most entries to send
+	 * @return The request
+	 * @throws IllegalArgumentException if the tag is negative,
+	 *  the cursor is not positive, or the limit is not positive
+	 */
+	public static QueryRequest more(int tag, int cursor, int limit) {
+		if(cursor == 0) throw new IllegalArgumentException("Invalid cursor 0.");
+		return new QueryRequest(tag, cursor, limit, null);
+	}
+
+	/**
+	 * Checks if this asks for the next page of a search
+	 * rather than a new one.
+	 *
+	 * @return Whether it does
+	 */
+	public boolean isMore() {
+		return query == null;
+	}
+
+	/**
+	 * Gets the tag the results are sent back with.
+	 *
+	 * @return The tag
+	 */
+	public int getTag() {
+		return tag;
+	}
+
+	/**
+	 * Gets the cursor of the search to carry on with.
+	 *
+	 * @return The cursor, or 0 for a new search
+	 */
+	public int getCursor() {
+		return cursor;
+	}
+
+	/**
+	 * Gets the most entries to send.
+	 *
+	 * @return The limit
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Gets what to search for.
+	 *
+	 * @return The query, or null when carrying on with a search
+	 */
+	public String getQuery() {
+		return query;
+	}
+
+	/**
+	 * Builds the line for the text protocol.
+	 *
+	 * @return The line, without a newline
+	 */
+	public String toLine() {
+		if(isMore()) return WireProtocol.MORE_LINE + " " + tag + " " + cursor + " " + limit;
+		return WireProtocol.FIND_LINE + " " + tag + " " + limit + " " + query;
+	}
+
+	/**
+	 * Builds the frame for the binary protocol.
+	 *
+	 * @return The frame, length and all
+	 */
+	public byte[] toFrame() {
+		int bodyLength = 1 + EntryCodec.varintLength(tag) + EntryCodec.varintLength(limit)
+			+ (isMore() ? EntryCodec.varintLength(cursor) : EntryCodec.stringLength(query));
+		ByteBuffer buffer = ByteBuffer.allocate(EntryCodec.varintLength(bodyLength) + bodyLength);
+		EntryCodec.putVarint(buffer, bodyLength);
+		if(isMore()) {
+			buffer.put(WireProtocol.MORE);
+			EntryCodec.putVarint(buffer, tag);
+			EntryCodec.putVarint(buffer, cursor);
+			EntryCodec.putVarint(buffer, limit);
+		} else {
+			buffer.put(WireProtocol.FIND);
+			EntryCodec.putVarint(buffer, tag);
+			EntryCodec.putVarint(buffer, limit);
+			EntryCodec.putString(buffer, query);
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Checks if a line from a text client is a request,
+	 * rather than an update.
+	 *
+	 * @param line The line
+	 * @return Whether it is
+	 */
+	public static boolean isRequestLine(String line) {
+		return line.startsWith(WireProtocol.FIND_LINE + " ")
+			|| line.startsWith(WireProtocol.MORE_LINE + " ");
+	}
+
+	/**
+	 * Reads a request line.
+	 *
+	 * @param line The line
+	 * @return The request
+	 * @throws IllegalArgumentException if the line is not
+	 *  a request, or does not parse
+	 */
+	public static QueryRequest parseLine(String line) {
+		boolean more = line.startsWith(WireProtocol.MORE_LINE + " ");
+		if(!more && !line.startsWith(WireProtocol.FIND_LINE + " ")) {
+			throw new IllegalArgumentException("Not a query.");
+		}
+		String[] parts = line.split(" ", 4);
+		try {
+			if(more) {
+				if(parts.length != 4) throw new IllegalArgumentException("Corrupted query.");
+				return more(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+						Integer.parseInt(parts[3]));
+			}
+			if(parts.length < 3) throw new IllegalArgumentException("Corrupted query.");
+			return find(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+					parts.length == 4 ? parts[3] : "");
+		} catch(NumberFormatException nfe) {
+			throw new IllegalArgumentException("Corrupted query.");
+		}
+	}
+
+	/**
+	 * Checks if a frame from a binary client is a request,
+	 * rather than an update.
+	 *
+	 * @param body The body of the frame
+	 * @return Whether it is
+	 */
+	public static boolean isRequestFrame(ByteBuffer body) {
+		if(!body.hasRemaining()) return false;
+		byte type = WireProtocol.getType(body);
+		return type == WireProtocol.FIND || type == WireProtocol.MORE;
+	}
+
+	/**
+	 * Reads a request frame.
+	 *
+	 * @param body The body of the frame
+	 * @return The request
+	 * @throws IllegalArgumentException if the frame is not
+	 *  exactly one request
+	 */
+	public static QueryRequest fromFrame(ByteBuffer body) {
+		QueryRequest ret;
+		try {
+			byte type = body.get();
+			int tag = EntryCodec.getVarint(body);
+			if(type == WireProtocol.MORE) {
+				int cursor = EntryCodec.getVarint(body);
+				ret = more(tag, cursor, EntryCodec.getVarint(body));
+			} else if(type == WireProtocol.FIND) {
+				int limit = EntryCodec.getVarint(body);
+				ret = find(tag, limit, EntryCodec.getString(body));
+			} else {
+				throw new IllegalArgumentException("Not a query frame.");
+			}
+		} catch(BufferUnderflowException bue) {
+			throw new IllegalArgumentException("Query cut off.");
+		}
+		if(body.hasRemaining()) throw new IllegalArgumentException("Junk after query.");
+		return ret;
+	}
+}
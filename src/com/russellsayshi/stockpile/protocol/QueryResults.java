@@ -0,0 +1,259 @@
+package com.russellsayshi.stockpile.protocol;
+
+import com.russellsayshi.stockpile.inventory.Entry;
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * One page of the results of a search, sent back to the
+ * client that asked for it, or word that the search could
+ * not be done.
+ *
+ * As lines, a page is <code>RESULTS tag cursor count</code>
+ * followed by that many entries, one per line, and a failure
+ * is <code>QUERY_FAILED tag</code>. As frames, a
+ * <code>RESULTS</code> frame carries the tag, cursor and
+ * count as varints followed by the entries, and a
+ * <code>QUERY_FAILED</code> frame carries just the tag.
+ *
+ * The cursor is 0 on the last page. Otherwise it is what to
+ * ask for <code>MORE</code> of to get the next page.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ * @see QueryRequest
+ */
+public final class QueryResults {
+	private final int tag;
+	private final int cursor;
+	private final List<Entry> entries;
+
+	/**
+	 * Constructs a page of results.
+	 *
+	 * @param tag The tag the request came with
+	 * @param cursor What to ask for more of, or 0 if this
+	 *  is the last page
+	 * @param entries The entries, which must all have an
+	 *  absolute representation
+	 */
+	public QueryResults(int tag, int cursor, List<Entry> entries) {
+		if(entries == null) throw new NullPointerException("Entries cannot be null.");
+		this.tag = tag;
+		this.cursor = cursor;
+		this.entries = entries;
+	}
+
+	private QueryResults(int tag) {
+		this.tag = tag;
+		this.cursor = 0;
+		this.entries = null;
+	}
+
+	/**
+	 * Constructs word that a search could not be done,
+	 * because it asked for more of a search the server has
+	 * no cursor for.
+	 *
+	 * @param tag The tag the request came with
+	 * @return The failure
+	 */
+	public static QueryResults failed(int tag) {
+		return new QueryResults(tag);
+	}
+
+	/**
+	 * Checks if the search could not be done.
+	 *
+	 * @return Whether it failed
+	 */
+	public boolean isFailed() {
+		return entries == null;
+	}
+
+	/**
+	 * Gets the tag the request came with.
+	 *
+	 * @return The tag
+	 */
+	public int getTag() {
+		return tag;
+	}
+
+	/**
+	 * Gets what to ask for more of to get the next page.
+	 *
+	 * @return The cursor, or 0 if this is the last page
+	 */
+	public int getCursor() {
+		return cursor;
+	}
+
+	/**
+	 * Checks if there are more pages after this one.
+	 *
+	 * @return Whether there are
+	 */
+	public boolean hasMore() {
+		return cursor != 0;
+	}
+
+	/**
+	 * Gets the entries on this page, in the database's order.
+	 *
+	 * @return The entries, or null if the search failed
+	 */
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Builds the lines for the text protocol.
+	 *
+	 * @return The lines, without a newline on the end
+	 */
+	public String toText() {
+		if(isFailed()) return WireProtocol.QUERY_FAILED_LINE + " " + tag;
+		StringBuilder ret = new StringBuilder();
+		ret.append(WireProtocol.RESULTS_LINE).append(' ').append(tag)
+			.append(' ').append(cursor).append(' ').append(entries.size());
+		try {
+			for(Entry e : entries) {
+				ret.append('\n');
+				e.appendAbsoluteRepresentation(ret);
+			}
+		} catch(IOException ioe) {
+			//a StringBuilder never throws
+		}
+		return ret.toString();
+	}
+
+	/**
+	 * Builds the frame for the binary protocol.
+	 *
+	 * @return The frame, length and all
+	 */
+	public byte[] toFrame() {
+		int bodyLength = 1 + EntryCodec.varintLength(tag);
+		if(!isFailed()) {
+			bodyLength += EntryCodec.varintLength(cursor) + EntryCodec.varintLength(entries.size());
+			for(Entry e : entries) {
+				bodyLength += EntryCodec.encodedLength(e);
+			}
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(EntryCodec.varintLength(bodyLength) + bodyLength);
+		EntryCodec.putVarint(buffer, bodyLength);
+		if(isFailed()) {
+			buffer.put(WireProtocol.QUERY_FAILED);
+			EntryCodec.putVarint(buffer, tag);
+		} else {
+			buffer.put(WireProtocol.RESULTS);
+			EntryCodec.putVarint(buffer, tag);
+			EntryCodec.putVarint(buffer, cursor);
+			EntryCodec.putVarint(buffer, entries.size());
+			for(Entry e : entries) {
+				EntryCodec.encode(buffer, e);
+			}
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Checks if a line from a text server starts a page of
+	 * results or a failure, rather than being an update.
+	 *
+	 * @param line The line
+	 * @return Whether it does
+	 */
+	public static boolean isResultsLine(String line) {
+		return line.startsWith(WireProtocol.RESULTS_LINE + " ")
+			|| line.startsWith(WireProtocol.QUERY_FAILED_LINE + " ");
+	}
+
+	/**
+	 * Reads a page of results or a failure from a text server.
+	 *
+	 * @param first The line it starts with
+	 * @param reader Where the entries come from
+	 * @return The page
+	 * @throws IOException If the server hangs up partway
+	 *  through, or the lines do not parse
+	 */
+	public static QueryResults readLines(String first, BufferedReader reader) throws IOException {
+		String[] parts = first.split(" ");
+		try {
+			if(parts[0].equals(WireProtocol.QUERY_FAILED_LINE) && parts.length == 2) {
+				return failed(Integer.parseInt(parts[1]));
+			}
+			if(!parts[0].equals(WireProtocol.RESULTS_LINE) || parts.length != 4) {
+				throw new IOException("Corrupted results from server.");
+			}
+			int tag = Integer.parseInt(parts[1]);
+			int cursor = Integer.parseInt(parts[2]);
+			int count = Integer.parseInt(parts[3]);
+			if(count < 0 || count > WireProtocol.MAX_PAGE_ENTRIES) {
+				throw new IOException("Invalid number of results " + count + ".");
+			}
+			List<Entry> entries = new ArrayList<>(count);
+			for(int i = 0; i < count; i++) {
+				String read = reader.readLine();
+				if(read == null) throw new EOFException("Server hung up in the middle of results.");
+				entries.add(new Entry(read));
+			}
+			return new QueryResults(tag, cursor, entries);
+		} catch(IllegalArgumentException iae) {
+			throw new IOException("Corrupted results from server.", iae);
+		}
+	}
+
+	/**
+	 * Checks if a frame from a binary server is a page of
+	 * results or a failure, rather than an update.
+	 *
+	 * @param body The body of the frame
+	 * @return Whether it is
+	 */
+	public static boolean isResultsFrame(ByteBuffer body) {
+		if(!body.hasRemaining()) return false;
+		byte type = WireProtocol.getType(body);
+		return type == WireProtocol.RESULTS || type == WireProtocol.QUERY_FAILED;
+	}
+
+	/**
+	 * Reads a page of results or a failure frame.
+	 *
+	 * @param body The body of the frame
+	 * @return The page
+	 * @throws IllegalArgumentException if the frame is not
+	 *  exactly one page or failure
+	 */
+	public static QueryResults fromFrame(ByteBuffer body) {
+		QueryResults ret;
+		try {
+			byte type = body.get();
+			int tag = EntryCodec.getVarint(body);
+			if(type == WireProtocol.QUERY_FAILED) {
+				ret = failed(tag);
+			} else if(type == WireProtocol.RESULTS) {
+				int cursor = EntryCodec.getVarint(body);
+				int count = EntryCodec.getVarint(body);
+				if(count < 0 || count > WireProtocol.MAX_PAGE_ENTRIES) {
+					throw new IllegalArgumentException("Invalid number of results " + count + ".");
+				}
+				List<Entry> entries = new ArrayList<>(count);
+				for(int i = 0; i < count; i++) {
+					entries.add(EntryCodec.decode(body));
+				}
+				ret = new QueryResults(tag, cursor, entries);
+			} else {
+				throw new IllegalArgumentException("Not a results frame.");
+			}
+		} catch(BufferUnderflowException bue) {
+			throw new IllegalArgumentException("Results cut off.");
+		}
+		if(body.hasRemaining()) throw new IllegalArgumentException("Junk after results.");
+		return ret;
+	}
+}
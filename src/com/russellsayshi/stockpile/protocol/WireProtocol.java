@@ -0,0 +1,538 @@
+package com.russellsayshi.stockpile.protocol;
+
+import com.russellsayshi.stockpile.inventory.*;
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * What the server and its clients say to each other.
+ *
+ * Out of the box everything is newline separated text:
+ * the server says <code>ACK</code>, sends the database one
+ * entry per line, says <code>BULK_DONE</code>, and from then
+ * on both sides send update lines.
+ *
+ * A client that wants more says <code>HELLO</code> as soon as
+ * it connects, followed by the features it would like, separated
+ * by spaces. The server answers <code>ACK</code> followed by the
+ * features it agreed to; one from before features answers a plain
+ * <code>ACK</code> and the client carries on without any. Either
+ * way the greeting lines themselves are text. The features are:
+ * <ul>
+ * <li><code>BINARY</code>: frames instead of lines from then on</li>
+ * <li><code>DEFLATE</code>: the initial database, up to and including
+ *  the end of the bulk, is compressed as a
+ *  <code>ChunkedDeflaterOutputStream</code> writes it</li>
+ * <li><code>RESUME</code>: the client can pick up where it left off
+ *  after reconnecting; see below</li>
+ * <li><code>QUERY</code>: the server takes searches; see below</li>
+ * <li><code>QUERY_ONLY</code>: the client only wants to search, so
+ *  it gets no database and no updates at all, just results</li>
+ * <li><code>BATCHES</code>: the client understands batch frames, a
+ *  <code>#</code> and a count followed by that many update lines, so
+ *  batches are sent to it whole. A text client without it gets the
+ *  lines of a batch one after another with nothing in front.</li>
+ * </ul>
+ *
+ * Some features carry a value, written <code>name=value</code>.
+ *
+ * Every update the server applies has a sequence number, one
+ * per update line, batch or frame, counting up from where the
+ * server's data started. A client that asks to <code>RESUME</code>
+ * also says <code>CLIENT=</code> some id of its own, and if it has
+ * been connected before, <code>SINCE=</code> the position of the
+ * last update it got. If the server agrees it answers
+ * <code>SINCE=</code> the position the stream starts after, and
+ * the client counts one up from there for every update it gets
+ * and every <code>APPLIED</code>, which is what it gets in place
+ * of its own updates. If the server still has every update the
+ * client missed, it also says <code>DELTA</code>, sends no
+ * database at all, and the missed updates come first in the
+ * stream. A position is an epoch and a sequence number,
+ * separated by a colon. The epoch changes whenever numbers might
+ * have been reused, like after a crash, so a client with an
+ * unknown epoch always gets the whole database. A batch counts
+ * as one update, so a text client also has to ask for
+ * <code>BATCHES</code> to be able to <code>RESUME</code>.
+ *
+ * A client the server agreed to <code>QUERY</code> with can
+ * search the server's database instead of keeping a copy of
+ * its own, by sending a <code>QueryRequest</code> in place of
+ * an update. Each comes back as a <code>QueryResults</code>
+ * in the stream of updates, with the tag the client picked.
+ * The server finds every match at once, sends the first page,
+ * and holds on to the rest under a cursor until the client
+ * asks for <code>MORE</code> of it, so later pages are from
+ * the same moment as the first. A page never holds more than
+ * <code>MAX_PAGE_ENTRIES</code>. Results do not count towards
+ * the client's position.
+ *
+ * A frame is a varint length followed by that many bytes: a
+ * type byte and then whatever that type carries.
+ * <ul>
+ * <li><code>ADD</code>, <code>REMOVE</code>: an entry</li>
+ * <li><code>MOVE</code>: the entry to move from, then the one to move to</li>
+ * <li><code>BATCH</code>: a varint count, then that many updates,
+ *  each its own type byte and entries</li>
+ * <li><code>ENTRIES</code>: a varint count, then that many entries
+ *  of the initial database</li>
+ * <li><code>END_OF_BULK</code>: nothing; the initial database is done</li>
+ * <li><code>APPLIED</code>: nothing; one of the client's own updates
+ *  went through</li>
+ * <li><code>FIND</code>, <code>MORE</code>: a search, from the client</li>
+ * <li><code>RESULTS</code>, <code>QUERY_FAILED</code>: what came of it</li>
+ * </ul>
+ * See <code>EntryCodec</code> for how entries and varints look.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ * @see EntryCodec
+ */
+public final class WireProtocol {
+	public static final String ACK = "ACK_STOCKPILE_SERVER";
+	public static final String BULK_DONE = "BULK_DONE";
+	public static final String HELLO = "HELLO_STOCKPILE";
+	public static final String BINARY = "binary";
+	public static final String DEFLATE = "deflate";
+	public static final String RESUME = "resume";
+	public static final String CLIENT = "client";
+	public static final String SINCE = "since";
+	public static final String DELTA = "delta";
+	public static final String APPLIED_LINE = "APPLIED";
+	public static final String QUERY = "query";
+	public static final String QUERY_ONLY = "queryonly";
+	public static final String BATCHES = "batches";
+	public static final String FIND_LINE = "FIND";
+	public static final String MORE_LINE = "MORE";
+	public static final String RESULTS_LINE = "RESULTS";
+	public static final String QUERY_FAILED_LINE = "QUERY_FAILED";
+
+	public static final byte ADD = 1;
+	public static final byte REMOVE = 2;
+	public static final byte MOVE = 3;
+	public static final byte BATCH = 4;
+	public static final byte ENTRIES = 5;
+	public static final byte END_OF_BULK = 6;
+	public static final byte APPLIED = 7;
+	public static final byte FIND = 8;
+	public static final byte MORE = 9;
+	public static final byte RESULTS = 10;
+	public static final byte QUERY_FAILED = 11;
+
+	/**
+	 * Biggest frame either side will accept, not counting
+	 * its length.
+	 */
+	public static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+	/**
+	 * Most entries one page of search results holds. Asking
+	 * for more just gets this many.
+	 */
+	public static final int MAX_PAGE_ENTRIES = 1000;
+	//Greetings are short. Anything longer is not one.
+	private static final int MAX_GREETING_BYTES = 256;
+	//Smallest an update can be: a type byte and an entry
+	//with no name or location.
+	private static final int MIN_UPDATE_BYTES = 4;
+	//Same charset the text protocol's readers and writers use
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	private WireProtocol() {
+	}
+
+	/**
+	 * Builds a greeting line.
+	 *
+	 * @param word <code>HELLO</code> or <code>ACK</code>
+	 * @param features The features asked for or agreed to
+	 * @return The line, without a newline
+	 */
+	public static String greeting(String word, Collection<String> features) {
+		StringBuilder ret = new StringBuilder(word);
+		for(String feature : features) {
+			ret.append(' ').append(feature);
+		}
+		return ret.toString();
+	}
+
+	/**
+	 * Reads the features out of a greeting line.
+	 *
+	 * @param line The line
+	 * @param word <code>HELLO</code> or <code>ACK</code>
+	 * @return The features, or null if the line is not
+	 *  that greeting at all
+	 */
+	public static Set<String> parseGreeting(String line, String word) {
+		if(line == null || !line.startsWith(word)) return null;
+		if(line.length() > word.length() && line.charAt(word.length()) != ' ') return null;
+		Set<String> ret = new HashSet<>();
+		for(String feature : line.substring(word.length()).split(" ")) {
+			if(!feature.isEmpty()) ret.add(feature);
+		}
+		return ret;
+	}
+
+	/**
+	 * Builds a feature that carries a value.
+	 *
+	 * @param name The feature
+	 * @param value The value, without spaces
+	 * @return The feature, as it goes in a greeting
+	 */
+	public static String feature(String name, String value) {
+		return name + "=" + value;
+	}
+
+	/**
+	 * Finds the value of a feature in a greeting.
+	 *
+	 * @param features The features from <code>parseGreeting</code>
+	 * @param name The feature
+	 * @return The value, or null if the feature is not there
+	 */
+	public static String featureValue(Set<String> features, String name) {
+		String prefix = name + "=";
+		for(String feature : features) {
+			if(feature.startsWith(prefix)) return feature.substring(prefix.length());
+		}
+		return null;
+	}
+
+	/**
+	 * Builds a position in the stream of updates.
+	 *
+	 * @param epoch The server's epoch
+	 * @param sequence The sequence number
+	 * @return The position, as it goes after <code>SINCE=</code>
+	 */
+	public static String position(String epoch, long sequence) {
+		return epoch + ":" + sequence;
+	}
+
+	/**
+	 * Gets the epoch out of a position.
+	 *
+	 * @param position The position
+	 * @return The epoch
+	 * @throws IllegalArgumentException if it is not a position
+	 */
+	public static String positionEpoch(String position) {
+		int colon = position.lastIndexOf(':');
+		if(colon <= 0) throw new IllegalArgumentException(position + " is not a position.");
+		return position.substring(0, colon);
+	}
+
+	/**
+	 * Gets the sequence number out of a position.
+	 *
+	 * @param position The position
+	 * @return The sequence number
+	 * @throws IllegalArgumentException if it is not a position
+	 */
+	public static long positionSequence(String position) {
+		int colon = position.lastIndexOf(':');
+		if(colon <= 0) throw new IllegalArgumentException(position + " is not a position.");
+		long ret = Long.parseLong(position.substring(colon + 1));
+		if(ret < 0) throw new IllegalArgumentException(position + " is not a position.");
+		return ret;
+	}
+
+	/**
+	 * Builds an <code>APPLIED</code> frame.
+	 *
+	 * @return The frame, length and all
+	 */
+	public static byte[] appliedFrame() {
+		return new byte[] {1, APPLIED};
+	}
+
+	/**
+	 * Builds the frame for one update, or for a batch
+	 * of them if there is more than one.
+	 *
+	 * @param updates The updates
+	 * @return The frame, length and all
+	 */
+	public static byte[] toFrame(List<EntryUpdate> updates) {
+		int bodyLength;
+		if(updates.size() == 1) {
+			bodyLength = EntryCodec.encodedLength(updates.get(0));
+		} else {
+			bodyLength = 1 + EntryCodec.varintLength(updates.size());
+			for(EntryUpdate update : updates) {
+				bodyLength += EntryCodec.encodedLength(update);
+			}
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(EntryCodec.varintLength(bodyLength) + bodyLength);
+		EntryCodec.putVarint(buffer, bodyLength);
+		if(updates.size() == 1) {
+			EntryCodec.encode(buffer, updates.get(0));
+		} else {
+			buffer.put(BATCH);
+			EntryCodec.putVarint(buffer, updates.size());
+			for(EntryUpdate update : updates) {
+				EntryCodec.encode(buffer, update);
+			}
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Writes one <code>ENTRIES</code> frame holding as many
+	 * entries as fit in the rest of a buffer.
+	 *
+	 * @param buffer The buffer to write to
+	 * @param entries The entries to take from
+	 * @param from The index of the first entry to write
+	 * @return The index of the first entry not written. If this
+	 *  is <code>from</code>, not even one entry fit and nothing
+	 *  was written; see <code>entriesFrameLength</code>.
+	 */
+	public static int putEntries(ByteBuffer buffer, List<Entry> entries, int from) {
+		//room for the length, type and count, at their biggest
+		int room = buffer.remaining() - 1 - 2 * EntryCodec.MAX_VARINT_BYTES;
+		int to = from;
+		int entriesLength = 0;
+		while(to < entries.size()) {
+			int length = EntryCodec.encodedLength(entries.get(to));
+			if(entriesLength + length > room
+					|| entriesLength + length > MAX_FRAME_BYTES / 2) {
+				break;
+			}
+			entriesLength += length;
+			to++;
+		}
+		if(to == from) return from;
+		int count = to - from;
+		EntryCodec.putVarint(buffer, 1 + EntryCodec.varintLength(count) + entriesLength);
+		buffer.put(ENTRIES);
+		EntryCodec.putVarint(buffer, count);
+		for(int i = from; i < to; i++) {
+			EntryCodec.encode(buffer, entries.get(i));
+		}
+		return to;
+	}
+
+	/**
+	 * Gets how much room <code>putEntries</code> needs for
+	 * a frame holding just one entry.
+	 *
+	 * @param entry The entry
+	 * @return The number of bytes
+	 */
+	public static int entriesFrameLength(Entry entry) {
+		return 1 + 2 * EntryCodec.MAX_VARINT_BYTES + EntryCodec.encodedLength(entry);
+	}
+
+	/**
+	 * Writes an <code>END_OF_BULK</code> frame.
+	 *
+	 * @param buffer The buffer to write to, with at least
+	 *  two bytes remaining
+	 */
+	public static void putEndOfBulk(ByteBuffer buffer) {
+		EntryCodec.putVarint(buffer, 1);
+		buffer.put(END_OF_BULK);
+	}
+
+	/**
+	 * Writes the whole initial database to a stream as
+	 * <code>ENTRIES</code> frames, then <code>END_OF_BULK</code>.
+	 * Does not flush.
+	 *
+	 * @param out The stream
+	 * @param database The database
+	 * @param bufferSize How many bytes to pack before each write
+	 * @throws IOException If the stream could not be written
+	 */
+	public static void writeBulk(OutputStream out, List<Entry> database,
+			int bufferSize) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+		int next = 0;
+		while(next < database.size()) {
+			int written = putEntries(buffer, database, next);
+			if(written != next) {
+				next = written;
+			} else if(buffer.position() > 0) {
+				out.write(buffer.array(), 0, buffer.position());
+				buffer.clear();
+			} else {
+				//one entry too big for the buffer on its own
+				buffer = ByteBuffer.allocate(entriesFrameLength(database.get(next)));
+			}
+		}
+		if(buffer.remaining() < 2) {
+			out.write(buffer.array(), 0, buffer.position());
+			buffer.clear();
+		}
+		putEndOfBulk(buffer);
+		out.write(buffer.array(), 0, buffer.position());
+	}
+
+	/**
+	 * Looks at the start of a buffer to see how long the
+	 * frame there is. Does not move the buffer's position.
+	 *
+	 * @param buffer The buffer
+	 * @return The length of the whole frame, length included,
+	 *  or -1 if not even the length has arrived yet
+	 * @throws IOException if the frame is bigger than
+	 *  <code>MAX_FRAME_BYTES</code>
+	 */
+	public static int frameLength(ByteBuffer buffer) throws IOException {
+		int bodyLength = 0;
+		int position = buffer.position();
+		for(int i = 0; i < EntryCodec.MAX_VARINT_BYTES; i++) {
+			if(position + i >= buffer.limit()) return -1;
+			byte b = buffer.get(position + i);
+			bodyLength |= (b & 0x7F) << (7 * i);
+			if(b >= 0) {
+				if(bodyLength < 0 || bodyLength > MAX_FRAME_BYTES) {
+					throw new IOException("Frame too long.");
+				}
+				return i + 1 + bodyLength;
+			}
+		}
+		throw new IOException("Corrupted frame length.");
+	}
+
+	/**
+	 * Reads one frame from a stream.
+	 *
+	 * @param in The stream
+	 * @param reuse A buffer that can be written over, or null
+	 * @return The body of the frame, positioned at its type,
+	 *  or null if the stream ended between frames
+	 * @throws IOException If the stream ended partway through
+	 *  a frame, could not be read, or the frame is too big
+	 */
+	public static ByteBuffer readFrame(InputStream in, ByteBuffer reuse) throws IOException {
+		int bodyLength = 0;
+		for(int i = 0; ; i++) {
+			int b = in.read();
+			if(b == -1) {
+				if(i == 0) return null;
+				throw new EOFException("Stream ended in the middle of a frame.");
+			}
+			if(i == EntryCodec.MAX_VARINT_BYTES) throw new IOException("Corrupted frame length.");
+			bodyLength |= (b & 0x7F) << (7 * i);
+			if((b & 0x80) == 0) break;
+		}
+		if(bodyLength < 0 || bodyLength > MAX_FRAME_BYTES) {
+			throw new IOException("Frame too long.");
+		}
+		ByteBuffer ret = reuse != null && reuse.capacity() >= bodyLength
+			? reuse
+			: ByteBuffer.allocate(Math.max(bodyLength, 4096));
+		ret.clear();
+		int read = 0;
+		while(read < bodyLength) {
+			int now = in.read(ret.array(), read, bodyLength - read);
+			if(now == -1) throw new EOFException("Stream ended in the middle of a frame.");
+			read += now;
+		}
+		ret.limit(bodyLength);
+		return ret;
+	}
+
+	/**
+	 * Gets the type of a frame without reading it.
+	 *
+	 * @param body The body of the frame
+	 * @return The type
+	 * @throws IllegalArgumentException if the body is empty
+	 */
+	public static byte getType(ByteBuffer body) {
+		if(!body.hasRemaining()) throw new IllegalArgumentException("Empty frame.");
+		return body.get(body.position());
+	}
+
+	/**
+	 * Reads the updates out of an update or batch frame.
+	 *
+	 * @param body The body of the frame
+	 * @return The updates, in order
+	 * @throws IllegalArgumentException if the body is not
+	 *  exactly one update or one batch
+	 */
+	public static List<EntryUpdate> getUpdates(ByteBuffer body) {
+		List<EntryUpdate> ret;
+		if(getType(body) == BATCH) {
+			body.get();
+			int count = EntryCodec.getVarint(body);
+			if(count < 0 || count > body.remaining() / MIN_UPDATE_BYTES) {
+				throw new IllegalArgumentException("Invalid batch size " + count + ".");
+			}
+			ret = new ArrayList<>(count);
+			for(int i = 0; i < count; i++) {
+				ret.add(EntryCodec.decodeUpdate(body));
+			}
+		} else {
+			ret = Collections.singletonList(EntryCodec.decodeUpdate(body));
+		}
+		if(body.hasRemaining()) throw new IllegalArgumentException("Junk after updates.");
+		return ret;
+	}
+
+	/**
+	 * Reads the entries out of an <code>ENTRIES</code> frame.
+	 *
+	 * @param body The body of the frame
+	 * @param consumer Given each entry in turn
+	 * @throws IllegalArgumentException if the body is not
+	 *  exactly one <code>ENTRIES</code> frame
+	 */
+	public static void getEntries(ByteBuffer body, Consumer<Entry> consumer) {
+		try {
+			if(body.get() != ENTRIES) throw new IllegalArgumentException("Not an entries frame.");
+			int count = EntryCodec.getVarint(body);
+			for(int i = 0; i < count; i++) {
+				consumer.accept(EntryCodec.decode(body));
+			}
+		} catch(BufferUnderflowException bue) {
+			throw new IllegalArgumentException("Entries cut off.");
+		}
+		if(body.hasRemaining()) throw new IllegalArgumentException("Junk after entries.");
+	}
+
+	/**
+	 * Reads a greeting line a byte at a time, so that nothing
+	 * after it gets read. Meant for the stream right after
+	 * connecting, before it is known whether text or frames
+	 * come next.
+	 *
+	 * @param in The stream
+	 * @return The line without its newline, or null if the
+	 *  stream ended first
+	 * @throws IOException If the stream could not be read or
+	 *  the line is too long to be a greeting
+	 */
+	public static String readGreeting(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		while(true) {
+			int b = in.read();
+			if(b == -1) return line.size() == 0 ? null : line.toString(CHARSET.name());
+			if(b == '\n') break;
+			if(line.size() == MAX_GREETING_BYTES) throw new IOException("Greeting too long.");
+			line.write(b);
+		}
+		String ret = line.toString(CHARSET.name());
+		return ret.endsWith("\r") ? ret.substring(0, ret.length() - 1) : ret;
+	}
+
+	/**
+	 * Writes a greeting line.
+	 *
+	 * @param out The stream
+	 * @param line The line, without a newline
+	 * @throws IOException If the stream could not be written
+	 */
+	public static void writeGreeting(OutputStream out, String line) throws IOException {
+		out.write((line + "\n").getBytes(CHARSET));
+	}
+}
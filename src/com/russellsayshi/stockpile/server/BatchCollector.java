@@ -0,0 +1,65 @@
+package com.russellsayshi.stockpile.server;
+
+import java.util.*;
+
+/**
+ * Gathers the lines of a batch frame as they arrive one
+ * at a time, so that a batch can be handled as one unit.
+ * Single updates pass straight through.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+class BatchCollector {
+	private List<String> batch;
+	private int remaining = 0;
+
+	/**
+	 * Takes the next line.
+	 *
+	 * @param line The line
+	 * @return The commands of a complete update or batch,
+	 *  or null if a batch still needs more lines
+	 * @throws IllegalArgumentException if the line is a
+	 *  batch header that does not parse
+	 */
+	List<String> accept(String line) {
+		if(batch != null) {
+			batch.add(line);
+			if(--remaining > 0) return null;
+			List<String> ret = batch;
+			batch = null;
+			return ret;
+		}
+		if(!DatabaseUpdater.isBatchHeader(line)) {
+			return Collections.singletonList(line);
+		}
+		int size = DatabaseUpdater.parseBatchHeader(line);
+		if(size == 0) return Collections.emptyList();
+		batch = new ArrayList<>(Math.min(size, 1024));
+		remaining = size;
+		return null;
+	}
+
+	/**
+	 * Checks if taking a line would finish an update or a
+	 * batch, without taking it.
+	 *
+	 * @param line The line
+	 * @return Whether <code>accept</code> could give back
+	 *  commands for it
+	 */
+	boolean finishesWith(String line) {
+		if(batch != null) return remaining == 1;
+		return !DatabaseUpdater.isBatchHeader(line);
+	}
+
+	/**
+	 * Checks if a batch has been started but not finished.
+	 *
+	 * @return Whether or not lines are still expected
+	 */
+	boolean isPartial() {
+		return batch != null;
+	}
+}
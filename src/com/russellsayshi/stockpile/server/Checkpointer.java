@@ -0,0 +1,274 @@
+package com.russellsayshi.stockpile.server;
+
+import com.russellsayshi.stockpile.inventory.Entry;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+
+/**
+ * Folds the write-ahead log back into the database
+ * snapshot every so often so that the log does not
+ * grow forever.
+ *
+ * Only taking a snapshot of the database and rotating
+ * the log happen under the database lock, and taking the
+ * snapshot does not depend on how big the database is.
+ * The snapshot is written to a temporary file, fsynced,
+ * and renamed over the old one, so a crash part way
+ * through leaves the old snapshot (and the log segments
+ * it needs) untouched.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public class Checkpointer implements Runnable {
+	/**
+	 * First line of an old text snapshot. Followed by the
+	 * number of the newest log segment already folded into
+	 * the snapshot, then a space and <code>SEQUENCE_PREFIX</code>.
+	 * Snapshots are written as a <code>SnapshotFile</code> now.
+	 */
+	public static final String HEADER_PREFIX = "#checkpoint log=";
+	/**
+	 * Followed by the number of the newest update already
+	 * folded into the snapshot.
+	 */
+	public static final String SEQUENCE_PREFIX = "seq=";
+	private static final long POLL_MILLIS = 1000;
+
+	private final File databaseFile;
+	private final File logBaseFile;
+	private final WriteAheadLog log;
+	private final Lock databaseLock;
+	private final Supplier<List<Entry>> databaseCopier;
+	private final LongSupplier sequence;
+	private final long intervalMillis;
+	private final long logBytesThreshold;
+	private long lastCheckpointTime = System.currentTimeMillis();
+
+	//Stats from the last checkpoint, for sizing the interval
+	private volatile long lastDurationMillis;
+	private volatile long lastLockHeldMicros;
+	private volatile long lastBytesWritten;
+
+	/**
+	 * Constructs a checkpointer.
+	 *
+	 * @param databaseFile The snapshot file
+	 * @param logBaseFile The log file name segment numbers go after
+	 * @param log The log being written to
+	 * @param databaseLock The lock guarding the database
+	 * @param databaseCopier Takes a snapshot of the database,
+	 *  which must not change afterwards. Called with
+	 *  <code>databaseLock</code> held.
+	 * @param sequence Gets the number of the newest update
+	 *  applied. Called with <code>databaseLock</code> held.
+	 * @param intervalMillis How often to checkpoint if anything changed
+	 * @param logBytesThreshold Checkpoint early once the current
+	 *  log segment gets this big
+	 */
+	public Checkpointer(File databaseFile, File logBaseFile, WriteAheadLog log,
+			Lock databaseLock, Supplier<List<Entry>> databaseCopier,
+			LongSupplier sequence, long intervalMillis, long logBytesThreshold) {
+		this.databaseFile = databaseFile;
+		this.logBaseFile = logBaseFile;
+		this.log = log;
+		this.databaseLock = databaseLock;
+		this.databaseCopier = databaseCopier;
+		this.sequence = sequence;
+		this.intervalMillis = intervalMillis;
+		this.logBytesThreshold = logBytesThreshold;
+	}
+
+	/**
+	 * Logs checkpointer data out to terminal.
+	 *
+	 * @param toLog What to log.
+	 */
+	private <T> void log(T toLog) {
+		System.out.print("[CHECKPOINT] ");
+		System.out.println(toLog);
+	}
+
+	/**
+	 * Checkpoints whenever the log has anything in it and the
+	 * interval has passed, or the log has gotten too big.
+	 * Meant to be run on its own thread.
+	 */
+	public void run() {
+		try {
+			while(true) {
+				Thread.sleep(POLL_MILLIS);
+				long logBytes = log.getSegmentBytes();
+				boolean due = System.currentTimeMillis() - lastCheckpointTime >= intervalMillis;
+				if(logBytes >= logBytesThreshold || (due && logBytes > 0)) {
+					try {
+						checkpoint();
+					} catch(IOException ioe) {
+						log("Checkpoint failed. Will try again later.");
+						ioe.printStackTrace();
+					}
+				}
+			}
+		} catch(InterruptedException ie) {
+			//asked to stop
+		}
+	}
+
+	/**
+	 * Writes a new snapshot and deletes the log
+	 * segments it makes unnecessary.
+	 *
+	 * @throws IOException If the snapshot could not be written
+	 * @throws InterruptedException If interrupted while waiting
+	 *  for the log to finish the old segment
+	 */
+	public void checkpoint() throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		List<Entry> copy;
+		long coveredGeneration;
+		long coveredSequence;
+		long lockStart;
+		databaseLock.lock();
+		try {
+			lockStart = System.nanoTime();
+			copy = databaseCopier.get();
+			coveredSequence = sequence.getAsLong();
+			coveredGeneration = log.rotate();
+		} finally {
+			databaseLock.unlock();
+		}
+		long lockHeld = System.nanoTime() - lockStart;
+		lastCheckpointTime = System.currentTimeMillis();
+
+		long bytes = replaceSnapshot(databaseFile, coveredGeneration, coveredSequence, copy);
+
+		//The old segments are covered by the snapshot now
+		log.awaitRetired();
+		for(long generation : WriteAheadLog.generations(logBaseFile)) {
+			if(generation > coveredGeneration) break;
+			File segment = WriteAheadLog.segmentFile(logBaseFile, generation);
+			if(!segment.delete()) log("Could not delete " + segment + ".");
+		}
+
+		lastDurationMillis = (System.nanoTime() - start) / 1_000_000;
+		lastLockHeldMicros = lockHeld / 1000;
+		lastBytesWritten = bytes;
+		log("Wrote " + copy.size() + " entries (" + bytes + " bytes) in "
+				+ lastDurationMillis + " ms, " + lastLockHeldMicros
+				+ " us of it under the database lock.");
+	}
+
+	/**
+	 * Writes a snapshot next to the old one and renames
+	 * it over the top, so there is always one whole
+	 * snapshot on disk.
+	 *
+	 * @param databaseFile The snapshot file
+	 * @param coveredGeneration Newest log segment the snapshot includes
+	 * @param coveredSequence Newest update the snapshot includes
+	 * @param entries What goes in it
+	 * @return How many bytes were written
+	 */
+	static long replaceSnapshot(File databaseFile, long coveredGeneration,
+			long coveredSequence, List<Entry> entries) throws IOException {
+		File temp = new File(databaseFile.getPath() + ".tmp");
+		long bytes = writeSnapshot(temp, coveredGeneration, coveredSequence, entries);
+		Files.move(temp.toPath(), databaseFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory(databaseFile);
+		return bytes;
+	}
+
+	/**
+	 * Writes and fsyncs a snapshot file.
+	 *
+	 * @param file Where to write it
+	 * @param coveredGeneration Newest log segment the snapshot includes
+	 * @param coveredSequence Newest update the snapshot includes
+	 * @param entries What goes in it
+	 * @return How many bytes were written
+	 */
+	private static long writeSnapshot(File file, long coveredGeneration,
+			long coveredSequence, List<Entry> entries) throws IOException {
+		try(FileOutputStream fileOut = new FileOutputStream(file)) {
+			CountingOutputStream counter = new CountingOutputStream(
+					new BufferedOutputStream(fileOut, 1 << 16));
+			SnapshotFile.write(counter, coveredGeneration, coveredSequence, entries);
+			counter.flush();
+			fileOut.getFD().sync();
+			return counter.count;
+		}
+	}
+
+	/**
+	 * Fsyncs the directory a file is in so that a rename
+	 * inside it survives a crash. Not every platform lets
+	 * you do this, so failures are ignored.
+	 *
+	 * @param file A file in the directory
+	 */
+	private static void syncDirectory(File file) {
+		File directory = file.getAbsoluteFile().getParentFile();
+		try(FileChannel channel = FileChannel.open(directory.toPath(),
+				StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch(IOException ioe) {
+			//Windows, for one, can not open directories
+		}
+	}
+
+	/**
+	 * How long the last checkpoint took from start to finish.
+	 *
+	 * @return The duration in milliseconds
+	 */
+	public long getLastDurationMillis() {
+		return lastDurationMillis;
+	}
+
+	/**
+	 * How long the last checkpoint held the database lock.
+	 *
+	 * @return The time in microseconds
+	 */
+	public long getLastLockHeldMicros() {
+		return lastLockHeldMicros;
+	}
+
+	/**
+	 * How big the last snapshot was.
+	 *
+	 * @return The size in bytes
+	 */
+	public long getLastBytesWritten() {
+		return lastBytesWritten;
+	}
+
+	/**
+	 * Counts the bytes that go through it.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,230 @@
+package com.russellsayshi.stockpile.server;
+
+import com.russellsayshi.stockpile.inventory.Entry;
+import com.russellsayshi.stockpile.protocol.QueryResults;
+import com.russellsayshi.stockpile.protocol.WireProtocol;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A client connected to the server. Each server
+ * engine has its own way of talking to the socket;
+ * the server itself only needs to be able to queue
+ * updates and hang up.
+ *
+ * Broadcasts go into a bounded queue that the engine
+ * drains on its own time, so queueing an update never
+ * waits on the socket. A client that falls so far behind
+ * that its queue fills up gets dropped instead of holding
+ * everyone else back.
+ *
+ * A client that asked to resume gets its own updates
+ * back too, as a bare <code>APPLIED</code> so that it can
+ * keep count of where it is in the stream.
+ *
+ * The results of a client's searches that did not fit in
+ * the first page are kept here under their cursor until the
+ * client asks for them. Only the newest few searches are
+ * kept, so a client that never asks for the rest does not
+ * use up more and more memory.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+abstract class ClientConnection {
+	private static final byte[] APPLIED_FRAME = WireProtocol.appliedFrame();
+	//Most searches a client can have results left over from
+	private static final int MAX_CURSORS = 8;
+
+	/**
+	 * Results of a search that have not been sent yet.
+	 */
+	private static class Cursor {
+		final List<Entry> results;
+		int next = 0;
+
+		Cursor(List<Entry> results) {
+			this.results = results;
+		}
+	}
+
+	private final BlockingQueue<UpdateFrame> outbound;
+	//Set before the client joins the broadcast list, if it asked to resume
+	private volatile String clientId;
+	//Set before the client joins the broadcast list
+	private volatile boolean batches = false;
+	//Assembles batch frames coming from a text client.
+	//Only touched by whichever thread reads from the client.
+	final BatchCollector incoming = new BatchCollector();
+	//Oldest first. Only touched with the map locked.
+	private final LinkedHashMap<Integer, Cursor> cursors = new LinkedHashMap<>();
+
+	/**
+	 * Constructs a connection.
+	 *
+	 * @param outboundCapacity How many frames can wait to
+	 *  be sent before the client gets dropped
+	 */
+	ClientConnection(int outboundCapacity) {
+		outbound = new ArrayBlockingQueue<>(outboundCapacity);
+	}
+
+	/**
+	 * Queues an update or batch of updates to be sent to
+	 * the client, in whichever protocol it speaks. Never
+	 * blocks. Safe to call from any thread.
+	 *
+	 * @param frame The update or batch
+	 * @return Whether it fit, false if the client has too
+	 *  much waiting already
+	 */
+	boolean offer(UpdateFrame frame) {
+		if(!outbound.offer(frame)) return false;
+		outboundReady();
+		return true;
+	}
+
+	/**
+	 * Remembers the id a client that asked to resume gave.
+	 * Call before it starts getting updates.
+	 *
+	 * @param clientId The id
+	 */
+	void setClientId(String clientId) {
+		this.clientId = clientId;
+	}
+
+	/**
+	 * Sets whether a text client gets batches whole or
+	 * split into their lines. Call before it starts
+	 * getting updates.
+	 *
+	 * @param batches Whether it agreed to <code>BATCHES</code>
+	 */
+	void setBatches(boolean batches) {
+		this.batches = batches;
+	}
+
+	/**
+	 * Gets the id the client gave when it asked to resume.
+	 *
+	 * @return The id, or null if it did not ask
+	 */
+	String getClientId() {
+		return clientId;
+	}
+
+	/**
+	 * Gets what a text client gets sent for a frame.
+	 *
+	 * @param frame The frame
+	 * @return The line or lines, without a newline on the end
+	 */
+	String textFor(UpdateFrame frame) {
+		if(frame.isFrom(clientId)) return WireProtocol.APPLIED_LINE;
+		return batches ? frame.getText() : frame.getLines();
+	}
+
+	/**
+	 * Gets what a binary client gets sent for a frame.
+	 *
+	 * @param frame The frame
+	 * @return The bytes, length and all. Do not modify them.
+	 */
+	byte[] binaryFor(UpdateFrame frame) {
+		return frame.isFrom(clientId) ? APPLIED_FRAME : frame.getBinary();
+	}
+
+	/**
+	 * Keeps the rest of a search's results for the client
+	 * to ask for later, forgetting the oldest search kept
+	 * if there are too many.
+	 *
+	 * @param cursor What the client asks for more of to
+	 *  get them, which no other search has
+	 * @param results The results not sent yet
+	 */
+	void openCursor(int cursor, List<Entry> results) {
+		synchronized(cursors) {
+			cursors.put(cursor, new Cursor(results));
+			if(cursors.size() > MAX_CURSORS) {
+				cursors.remove(cursors.keySet().iterator().next());
+			}
+		}
+	}
+
+	/**
+	 * Takes the next page of a search's results.
+	 *
+	 * @param tag The tag the client asked with
+	 * @param cursor The cursor it asked for more of
+	 * @param limit The most entries to take
+	 * @return The page, with the same cursor if there is
+	 *  still more after it, or a failure if the client has
+	 *  no such cursor
+	 */
+	QueryResults nextPage(int tag, int cursor, int limit) {
+		synchronized(cursors) {
+			Cursor open = cursors.get(cursor);
+			if(open == null) return QueryResults.failed(tag);
+			int end = Math.min(open.results.size(), open.next + limit);
+			List<Entry> page = new ArrayList<>(open.results.subList(open.next, end));
+			open.next = end;
+			if(end < open.results.size()) return new QueryResults(tag, cursor, page);
+			cursors.remove(cursor);
+			return new QueryResults(tag, 0, page);
+		}
+	}
+
+	/**
+	 * Runs a search the client asked for. Runs it right
+	 * away by default; engines whose threads must not be
+	 * held up can hand it to another thread instead.
+	 *
+	 * @param query The search
+	 */
+	void runQuery(Runnable query) {
+		query.run();
+	}
+
+	/**
+	 * Gets the queue of frames waiting to be sent,
+	 * for the engine to drain.
+	 *
+	 * @return The queue
+	 */
+	BlockingQueue<UpdateFrame> outbound() {
+		return outbound;
+	}
+
+	/**
+	 * Sends the greeting, the given database, and
+	 * BULK_DONE, ahead of anything queued with
+	 * <code>offer</code>, then starts draining the queue.
+	 * Called once, without the database lock held.
+	 *
+	 * @param agreed The features to answer the greeting with
+	 * @param database A copy of the database, or null if the
+	 *  client is resuming and just gets what it missed, which
+	 *  is already queued
+	 */
+	abstract void sendInitialSync(Set<String> agreed, List<Entry> database);
+
+	/**
+	 * Lets the engine know a frame was just queued.
+	 */
+	abstract void outboundReady();
+
+	/**
+	 * Hangs up on the client. Safe to call more than
+	 * once and from any thread.
+	 */
+	abstract void close();
+
+	/**
+	 * Describes the client for logging.
+	 *
+	 * @return Usually the remote address
+	 */
+	abstract String describe();
+}
@@ -0,0 +1,193 @@
+package com.russellsayshi.stockpile.server;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Runs the classic engine's blocking client handlers,
+ * either on a thread each, on a bounded pool, or on a
+ * virtual thread each. Keeps count of what it is doing
+ * so the server can report it.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public class ClientExecutor {
+	/**
+	 * How client handlers get run.
+	 *
+	 * @author Russell Coleman
+	 * @version 1.0.0
+	 */
+	public enum Mode {
+		/** a new platform thread for every client */
+		THREAD,
+		/** a fixed pool of platform threads with a queue in front */
+		POOL,
+		/** a new virtual thread for every client (Java 21 and up) */
+		VIRTUAL
+	}
+
+	private final Mode mode;
+	private final ThreadPoolExecutor pool;
+	private final ThreadFactory virtualThreadFactory;
+	private final AtomicInteger running = new AtomicInteger();
+	private final AtomicInteger peakRunning = new AtomicInteger();
+	private final AtomicLong started = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong writersStarted = new AtomicLong();
+
+	/**
+	 * Constructs an executor.
+	 *
+	 * @param mode How to run handlers
+	 * @param poolThreads How many threads the pool has in POOL mode
+	 * @param acceptQueue How many clients can wait for a pool
+	 *  thread in POOL mode before new ones get turned away
+	 * @throws IllegalStateException If VIRTUAL mode is asked for
+	 *  on a Java without virtual threads
+	 */
+	ClientExecutor(Mode mode, int poolThreads, int acceptQueue) {
+		this.mode = mode;
+		if(mode == Mode.POOL) {
+			AtomicInteger threadNumber = new AtomicInteger();
+			pool = new ThreadPoolExecutor(poolThreads, poolThreads,
+					0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<>(acceptQueue),
+					r -> new Thread(r, "stockpile-client-" + threadNumber.getAndIncrement()),
+					new ThreadPoolExecutor.AbortPolicy());
+		} else {
+			pool = null;
+		}
+		virtualThreadFactory = mode == Mode.VIRTUAL ? findVirtualThreadFactory() : null;
+	}
+
+	/**
+	 * Looks up <code>Thread.ofVirtual().factory()</code>
+	 * reflectively, so the server still builds and runs
+	 * on Javas older than 21.
+	 *
+	 * @return A factory for virtual threads
+	 */
+	private static ThreadFactory findVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class)
+				.invoke(builder, "stockpile-client-", 0L);
+			return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+		} catch(ReflectiveOperationException roe) {
+			throw new IllegalStateException("Virtual threads need Java 21 or newer.", roe);
+		}
+	}
+
+	/**
+	 * Runs a client handler.
+	 *
+	 * @param handler The handler
+	 * @return Whether it was taken on, false if the pool
+	 *  and its queue are full
+	 */
+	boolean execute(Runnable handler) {
+		Runnable counted = () -> {
+			int now = running.incrementAndGet();
+			peakRunning.accumulateAndGet(now, Math::max);
+			try {
+				handler.run();
+			} finally {
+				running.decrementAndGet();
+			}
+		};
+		switch(mode) {
+			case POOL:
+				try {
+					pool.execute(counted);
+				} catch(RejectedExecutionException ree) {
+					rejected.incrementAndGet();
+					return false;
+				}
+				break;
+			case VIRTUAL:
+				virtualThreadFactory.newThread(counted).start();
+				break;
+			default:
+				new Thread(counted).start();
+				break;
+		}
+		started.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Starts a thread that writes to a client. Writers are
+	 * not counted against the pool, since a pooled handler
+	 * waiting on a pooled writer could starve it.
+	 *
+	 * @param writer What the thread runs
+	 * @return The started thread
+	 */
+	Thread startWriter(Runnable writer) {
+		Thread ret = virtualThreadFactory != null
+			? virtualThreadFactory.newThread(writer)
+			: new Thread(writer, "stockpile-writer-" + writersStarted.getAndIncrement());
+		ret.setDaemon(true);
+		ret.start();
+		return ret;
+	}
+
+	/**
+	 * Gets how handlers are being run.
+	 *
+	 * @return The mode
+	 */
+	Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Gets how many handlers are running right now.
+	 *
+	 * @return The number of running handlers
+	 */
+	int getRunning() {
+		return running.get();
+	}
+
+	/**
+	 * Gets how many clients are waiting for a pool thread.
+	 *
+	 * @return The queue length, always 0 outside of POOL mode
+	 */
+	int getQueued() {
+		return pool == null ? 0 : pool.getQueue().size();
+	}
+
+	/**
+	 * Gets how many clients were turned away because
+	 * the pool was full.
+	 *
+	 * @return The number of rejected clients
+	 */
+	long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Sums up what the executor is doing, for logging.
+	 *
+	 * @return The summary
+	 */
+	String describeStats() {
+		StringBuilder ret = new StringBuilder();
+		ret.append(mode).append(" handlers: ");
+		ret.append(running.get()).append(" running (peak ").append(peakRunning.get()).append("), ");
+		ret.append(started.get()).append(" started");
+		if(pool != null) {
+			ret.append(", ").append(pool.getActiveCount()).append('/')
+				.append(pool.getMaximumPoolSize()).append(" pool threads busy, ");
+			ret.append(getQueued()).append(" queued, ");
+			ret.append(rejected.get()).append(" rejected");
+		}
+		return ret.toString();
+	}
+}
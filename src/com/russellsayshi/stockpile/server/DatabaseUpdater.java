@@ -1,6 +1,6 @@
 package com.russellsayshi.stockpile.server;
 
-import com.russellsayshi.stockpile.inventory.Entry;
+import com.russellsayshi.stockpile.inventory.*;
 import java.util.*;
 
 /**
@@ -11,8 +11,23 @@ import java.util.*;
  */
 public class DatabaseUpdater {
 	/**
-	 * Parses a command string to update the
-	 * database accordingly.
+	 * Starts a batch of updates. Followed by the number of
+	 * updates in the batch, and then that many update lines.
+	 */
+	public static final char BATCH_PREFIX = '#';
+	/**
+	 * Most updates one batch is allowed to carry.
+	 */
+	public static final int MAX_BATCH_SIZE = 1 << 20;
+	/**
+	 * Starts a line in the log saying which client the next
+	 * update or batch came from. Followed by its id. Only
+	 * ever written to the log, never sent to clients.
+	 */
+	public static final char ORIGIN_PREFIX = '@';
+
+	/**
+	 * Parses a command string into an update.
 	 *
 	 * The format of the command string is one of three:
 	 * +entry
@@ -23,14 +38,13 @@ public class DatabaseUpdater {
 	 * the second of which removes said entry, and the
 	 * third of which changes one entry into another.
 	 *
-	 * @param list The list of entries to update
-	 * @param command The string to parse and update with
-	 * @throws IllegalArgumentException if any of the arguments
-	 *  are null, if command has 0 length, or if any entry
-	 *  does not parse as it should.
+	 * @param command The string to parse
+	 * @return The update
+	 * @throws IllegalArgumentException if command is null,
+	 *  has 0 length, or if any entry does not parse as it should.
 	 */
-	public static void updateWithString(List<Entry> list, String command) {
-		if(command == null || list == null || command.length() == 0) {
+	public static EntryUpdate parse(String command) {
+		if(command == null || command.length() == 0) {
 			throw new IllegalArgumentException();
 		}
 		char instruction = command.charAt(0);
@@ -39,11 +53,9 @@ public class DatabaseUpdater {
 			throw new IllegalArgumentException("Entry string empty.");
 		}
 		if(instruction == '+') {
-			Entry toAdd = new Entry(rest); //parse entry from string
-			list.add(toAdd);
+			return new EntryUpdate(EntryUpdate.Type.ADD, new Entry(rest), null);
 		} else if(instruction == '-') {
-			Entry toSub = new Entry(rest); //parse entry from string
-			list.remove(toSub);
+			return new EntryUpdate(EntryUpdate.Type.REMOVE, new Entry(rest), null);
 		} else if(instruction == '>') {
 			int cutoff = rest.indexOf('>');
 			if(cutoff == -1) throw new IllegalArgumentException("Invalid " +
@@ -53,13 +65,8 @@ public class DatabaseUpdater {
 				int entry1Len = Integer.parseInt(entry1Length);
 				String entry1Str = rest.substring(cutoff+1, cutoff+1+entry1Len);
 				String entry2Str = rest.substring(cutoff+1+entry1Len);
-				Entry entry1 = new Entry(entry1Str);
-				Entry entry2 = new Entry(entry2Str);
-				for(int i = 0; i < list.size(); i++) {
-					if(entry1.equals(list.get(i))) {
-						list.set(i, entry2);
-					}
-				}
+				return new EntryUpdate(EntryUpdate.Type.MOVE,
+						new Entry(entry1Str), new Entry(entry2Str));
 			} catch(NumberFormatException|IndexOutOfBoundsException e) {
 				throw new IllegalArgumentException("Corrupted move" +
 						" format string.");
@@ -68,4 +75,121 @@ public class DatabaseUpdater {
 			throw new IllegalArgumentException(instruction + " is not a valid command.");
 		}
 	}
+
+	/**
+	 * Parses a command string to update the
+	 * database accordingly.
+	 *
+	 * @param store The entries to update
+	 * @param command The string to parse and update with
+	 * @throws IllegalArgumentException if any of the arguments
+	 *  are null, if command has 0 length, or if any entry
+	 *  does not parse as it should.
+	 * @see #parse(String)
+	 */
+	public static void updateWithString(EntryStore store, String command) {
+		if(store == null) throw new IllegalArgumentException();
+		parse(command).applyTo(store);
+	}
+
+	/**
+	 * Same as the <code>EntryStore</code> version, for
+	 * plain lists. Removing and moving have to search
+	 * the whole list.
+	 *
+	 * @param list The list of entries to update
+	 * @param command The string to parse and update with
+	 * @throws IllegalArgumentException if any of the arguments
+	 *  are null, if command has 0 length, or if any entry
+	 *  does not parse as it should.
+	 * @see #parse(String)
+	 */
+	public static void updateWithString(List<Entry> list, String command) {
+		if(list == null) throw new IllegalArgumentException();
+		parse(command).applyTo(list);
+	}
+
+	/**
+	 * Checks if a line starts a batch.
+	 *
+	 * @param line The line
+	 * @return Whether or not it is a batch header
+	 */
+	public static boolean isBatchHeader(String line) {
+		return line.length() > 0 && line.charAt(0) == BATCH_PREFIX;
+	}
+
+	/**
+	 * Gets how many update lines follow a batch header.
+	 *
+	 * @param header The header line
+	 * @return The number of updates in the batch
+	 * @throws IllegalArgumentException if the header does not parse
+	 *  or the batch is bigger than <code>MAX_BATCH_SIZE</code>
+	 */
+	public static int parseBatchHeader(String header) {
+		try {
+			int size = Integer.parseInt(header.substring(1));
+			if(size < 0 || size > MAX_BATCH_SIZE) {
+				throw new IllegalArgumentException("Invalid batch size " + size + ".");
+			}
+			return size;
+		} catch(NumberFormatException nfe) {
+			throw new IllegalArgumentException("Corrupted batch header.");
+		}
+	}
+
+	/**
+	 * Builds a batch frame: the header followed
+	 * by every command, separated by newlines.
+	 *
+	 * @param commands The commands in the batch
+	 * @return The frame, without a newline on the end
+	 */
+	public static String toBatchFrame(List<String> commands) {
+		StringBuilder ret = new StringBuilder();
+		ret.append(BATCH_PREFIX).append(commands.size());
+		for(String command : commands) {
+			ret.append('\n').append(command);
+		}
+		return ret.toString();
+	}
+
+	/**
+	 * Puts the line saying which client an update or batch
+	 * came from in front of it, for the log.
+	 *
+	 * @param record The update or batch frame
+	 * @param clientId The client's id, or null if it never
+	 *  gave one
+	 * @return The record with its origin, or just the record
+	 *  if there is no id that fits on one line
+	 */
+	public static String withOrigin(String record, String clientId) {
+		if(clientId == null || clientId.indexOf('\n') != -1 || clientId.indexOf('\r') != -1) {
+			return record;
+		}
+		return ORIGIN_PREFIX + clientId + "\n" + record;
+	}
+
+	/**
+	 * Checks if a line says which client the next update
+	 * or batch came from.
+	 *
+	 * @param line The line
+	 * @return Whether or not it is an origin line
+	 */
+	public static boolean isOriginLine(String line) {
+		return line.length() > 0 && line.charAt(0) == ORIGIN_PREFIX;
+	}
+
+	/**
+	 * Gets the client id out of an origin line.
+	 *
+	 * @param line The origin line
+	 * @return The id
+	 */
+	public static String parseOriginLine(String line) {
+		return line.substring(1);
+	}
 }
@@ -0,0 +1,830 @@
+package com.russellsayshi.stockpile.server;
+
+import com.russellsayshi.stockpile.inventory.Entry;
+import com.russellsayshi.stockpile.protocol.*;
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.Deflater;
+
+/**
+ * Server engine that handles every client with a few
+ * selector threads instead of a thread per client.
+ * Speaks the same protocols as the classic engine,
+ * so clients can not tell the difference.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+class NioServerEngine {
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	private static final int OUTBOUND_CHUNK_SIZE = 16 * 1024;
+	//how far ahead of the socket queued lines get packed
+	private static final int MAX_DRAIN_CHUNKS = 4;
+	private static final int MAX_LINE_LENGTH = 1024 * 1024;
+	//Same charset the classic engine's readers and writers use
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	private final Server server;
+	private final IoThread[] ioThreads;
+	private final int outboundLines;
+	//Takes updates that have to be fsynced before they are
+	//applied, so the I/O threads never wait on the disk.
+	//One is enough, since the log does one fsync at a time.
+	private final ExecutorService syncLogger = Executors.newSingleThreadExecutor(r -> {
+		Thread ret = new Thread(r, "stockpile-nio-logger");
+		ret.setDaemon(true);
+		return ret;
+	});
+
+	/**
+	 * An update handed to the sync logger.
+	 */
+	private interface LoggedUpdate {
+		/**
+		 * Applies and logs the update.
+		 *
+		 * @return Its ticket, or -1 if nothing was applied
+		 * @throws IOException If it could not be logged
+		 */
+		long apply() throws IOException;
+	}
+
+	/**
+	 * Constructs an engine for a server.
+	 *
+	 * @param server The server to hand clients to
+	 * @param ioThreadCount How many selector threads to run
+	 * @param outboundLines How many lines can wait to go out
+	 *  to a client before it gets dropped
+	 */
+	NioServerEngine(Server server, int ioThreadCount, int outboundLines) {
+		this.server = server;
+		this.ioThreads = new IoThread[ioThreadCount];
+		this.outboundLines = outboundLines;
+	}
+
+	/**
+	 * Accepts clients forever on the calling thread,
+	 * handing them out to the I/O threads in turn.
+	 *
+	 * @param port The port to listen on
+	 */
+	void run(int port) {
+		try(ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+			for(int i = 0; i < ioThreads.length; i++) {
+				ioThreads[i] = new IoThread(i);
+				ioThreads[i].start();
+			}
+			if(server.getOptions().getReceiveBufferBytes() > 0) {
+				serverChannel.socket().setReceiveBufferSize(
+						server.getOptions().getReceiveBufferBytes());
+			}
+			serverChannel.bind(new InetSocketAddress(port));
+			server.log("Socket open on port " + port + " with "
+					+ ioThreads.length + " I/O threads.");
+			int next = 0;
+			while(true) {
+				try {
+					SocketChannel channel = serverChannel.accept();
+					server.log("Client found at " + channel.getRemoteAddress());
+					server.configureSocket(channel.socket());
+					channel.configureBlocking(false);
+					ioThreads[next].adopt(channel);
+					next = (next + 1) % ioThreads.length;
+				} catch(ClosedChannelException cce) {
+					throw cce;
+				} catch(IOException ioe) {
+					server.log("Unable to communicate with client.");
+					ioe.printStackTrace();
+				}
+			}
+		} catch(IOException ioe) {
+			server.log("Error with server.");
+			ioe.printStackTrace();
+		} finally {
+			for(IoThread ioThread : ioThreads) {
+				if(ioThread != null) ioThread.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * One selector and the thread that runs it.
+	 */
+	private class IoThread extends Thread {
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+		//connections that have something new to write
+		private final ConcurrentLinkedQueue<NioClientConnection> wantWrite = new ConcurrentLinkedQueue<>();
+		//connections whose last update is now as durable as promised
+		private final ConcurrentLinkedQueue<NioClientConnection> wantResume = new ConcurrentLinkedQueue<>();
+		//new connections that have not said which protocol they
+		//want yet, oldest first. Only touched by this thread.
+		private final ArrayDeque<NioClientConnection> awaitingHello = new ArrayDeque<>();
+		//shared by every connection on this thread
+		private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private volatile boolean running = true;
+
+		IoThread(int number) throws IOException {
+			super("stockpile-nio-" + number);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		/**
+		 * Hands a freshly accepted channel to this thread.
+		 *
+		 * @param channel The channel
+		 */
+		void adopt(SocketChannel channel) {
+			newChannels.add(channel);
+			selector.wakeup();
+		}
+
+		/**
+		 * Asks this thread to write out what a connection
+		 * has queued.
+		 *
+		 * @param connection The connection
+		 */
+		void requestWrite(NioClientConnection connection) {
+			wantWrite.add(connection);
+			if(Thread.currentThread() != this) selector.wakeup();
+		}
+
+		/**
+		 * Asks this thread to go back to reading from a
+		 * connection that was paused for its last update.
+		 *
+		 * @param connection The connection
+		 */
+		void requestResume(NioClientConnection connection) {
+			wantResume.add(connection);
+			if(Thread.currentThread() != this) selector.wakeup();
+		}
+
+		/**
+		 * Stops the thread and closes its selector.
+		 */
+		void shutdown() {
+			running = false;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while(running) {
+					long helloWait = expireGreetings();
+					//Work queued by this thread itself does not wake
+					//the selector, so do not block if there is any.
+					if(!newChannels.isEmpty() || !wantWrite.isEmpty() || !wantResume.isEmpty()) {
+						selector.selectNow();
+					}
+					else if(helloWait > 0) selector.select(helloWait);
+					else selector.select();
+					SocketChannel channel;
+					while((channel = newChannels.poll()) != null) {
+						register(channel);
+					}
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while(keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						NioClientConnection connection = (NioClientConnection)key.attachment();
+						if(!key.isValid()) continue;
+						if(key.isReadable()) connection.read();
+						if(key.isValid() && key.isWritable()) connection.flush();
+					}
+					NioClientConnection wanting;
+					while((wanting = wantWrite.poll()) != null) {
+						wanting.flush();
+					}
+					while((wanting = wantResume.poll()) != null) {
+						wanting.resume();
+					}
+				}
+			} catch(IOException ioe) {
+				server.log("I/O thread " + getName() + " failed.");
+				ioe.printStackTrace();
+			} finally {
+				for(SelectionKey key : selector.keys()) {
+					((NioClientConnection)key.attachment()).close();
+				}
+				try {
+					selector.close();
+				} catch(IOException ioe) {
+					ioe.printStackTrace();
+				}
+			}
+		}
+
+		/**
+		 * Gives every client that has gone quiet for longer
+		 * than the hello timeout the plain text protocol.
+		 * Clients from before protocol features always go
+		 * quiet, since they wait to hear from us first.
+		 *
+		 * @return How many milliseconds until the next client
+		 *  runs out of time, or 0 if none are waiting
+		 */
+		private long expireGreetings() {
+			NioClientConnection waiting;
+			while((waiting = awaitingHello.peekFirst()) != null) {
+				if(waiting.greeted || waiting.closed) {
+					awaitingHello.pollFirst();
+					continue;
+				}
+				long left = waiting.helloDeadline - System.nanoTime();
+				if(left > 0) return Math.max(1, TimeUnit.NANOSECONDS.toMillis(left));
+				awaitingHello.pollFirst();
+				waiting.greet(null);
+			}
+			return 0;
+		}
+
+		/**
+		 * Registers a new channel and waits for the client
+		 * to say which protocol it wants.
+		 *
+		 * @param channel The channel
+		 */
+		private void register(SocketChannel channel) {
+			NioClientConnection connection;
+			try {
+				connection = new NioClientConnection(this, channel);
+				connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+			} catch(IOException ioe) {
+				ioe.printStackTrace();
+				try {
+					channel.close();
+				} catch(IOException closeFailure) {
+					closeFailure.printStackTrace();
+				}
+				return;
+			}
+			connection.helloDeadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(server.getOptions().getHelloMillis());
+			awaitingHello.addLast(connection);
+		}
+	}
+
+	/**
+	 * A client handled by one of the I/O threads.
+	 * Everything except <code>offer</code> and <code>close</code>
+	 * is only ever called from that thread.
+	 */
+	private class NioClientConnection extends ClientConnection {
+		private final IoThread ioThread;
+		private final SocketChannel channel;
+		private final String description;
+		SelectionKey key;
+		//Bytes of a line or frame that has not finished arriving yet.
+		//Only allocated when a line gets split between reads.
+		private ByteBuffer partialLine;
+		//Bytes on their way out, packed into chunks. Lines only
+		//move here from the outbound queue once the socket has
+		//taken everything before them, so a stalled client fills
+		//up its bounded queue instead of our memory.
+		private final ReentrantLock outboundLock = new ReentrantLock();
+		private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+		//The database being sent to a new client, and the next
+		//entry of it to pack. It is packed a few chunks ahead of
+		//the socket like everything else, so a big database
+		//neither holds up the I/O thread nor sits in memory
+		//encoded. Null once it is all packed. Only touched with
+		//the outbound lock held, like the chunks.
+		private List<Entry> bulk;
+		private int bulkNext;
+		private OutputStream bulkOut;
+		private ChunkedDeflaterOutputStream bulkDeflater;
+		//Where bulk bytes end up, after compressing if they are
+		private final OutputStream toChunks = new OutputStream() {
+			@Override
+			public void write(int b) {
+				write(new byte[] {(byte)b}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				appendBytes(b, off, len);
+			}
+		};
+		private boolean synced = false;
+		private boolean writeRequested = false;
+		private volatile boolean closed = false;
+		//Set once the client has picked a protocol, or run
+		//out of time to. Only touched by the I/O thread.
+		boolean greeted = false;
+		//Set while the client's last update is not as durable
+		//as promised yet. Nothing more is read from it until
+		//then, the same as the classic engine. Only touched
+		//by the I/O thread.
+		private boolean paused = false;
+		//Why the last update could not be logged, if it could not
+		private volatile IOException logFailure;
+		long helloDeadline;
+		private volatile boolean binary = false;
+
+		NioClientConnection(IoThread ioThread, SocketChannel channel) throws IOException {
+			super(outboundLines);
+			this.ioThread = ioThread;
+			this.channel = channel;
+			this.description = String.valueOf(channel.getRemoteAddress());
+		}
+
+		/**
+		 * Settles which protocol features the client gets
+		 * and hands it to the server.
+		 *
+		 * @param asked The features the client asked for,
+		 *  or null if it did not say hello
+		 */
+		void greet(Set<String> asked) {
+			greeted = true;
+			binary = server.agreeTo(asked).contains(WireProtocol.BINARY);
+			server.clientConnected(this, asked);
+		}
+
+		@Override
+		void sendInitialSync(Set<String> agreed, List<Entry> database) {
+			outboundLock.lock();
+			try {
+				//let 'em know we're here
+				appendLine(WireProtocol.greeting(WireProtocol.ACK, agreed));
+				//resuming: what it missed is already queued
+				if(database != null) {
+					bulk = database;
+					bulkNext = 0;
+					bulkOut = toChunks;
+					if(agreed.contains(WireProtocol.DEFLATE)) {
+						bulkOut = bulkDeflater = new ChunkedDeflaterOutputStream(
+								toChunks, Deflater.BEST_SPEED);
+					}
+				}
+				synced = true;
+			} finally {
+				outboundLock.unlock();
+			}
+			requestFlush();
+		}
+
+		/**
+		 * Packs the next piece of the database being sent
+		 * into the outgoing chunks, in whichever protocol the
+		 * client speaks, or ends the bulk once it is all sent.
+		 * Only call with the outbound lock held.
+		 */
+		private void packMoreBulk() {
+			try {
+				if(bulkNext < bulk.size()) {
+					if(binary) packEntries();
+					else packLines();
+					return;
+				}
+				if(binary) {
+					ByteBuffer end = ByteBuffer.allocate(2);
+					WireProtocol.putEndOfBulk(end);
+					bulkOut.write(end.array(), 0, end.position());
+				} else {
+					byte[] bytes = (WireProtocol.BULK_DONE + "\n").getBytes(CHARSET);
+					bulkOut.write(bytes, 0, bytes.length);
+				}
+				endBulk();
+			} catch(IOException ioe) {
+				//only ever writing to memory
+				throw new IllegalStateException(ioe);
+			}
+		}
+
+		/**
+		 * Packs the next <code>ENTRIES</code> frame of the
+		 * database. Only call with the outbound lock held.
+		 */
+		private void packEntries() throws IOException {
+			ByteBuffer frame = ByteBuffer.allocate(OUTBOUND_CHUNK_SIZE);
+			int next = WireProtocol.putEntries(frame, bulk, bulkNext);
+			if(next == bulkNext) {
+				//one entry too big for a chunk on its own
+				frame = ByteBuffer.allocate(WireProtocol.entriesFrameLength(bulk.get(bulkNext)));
+				next = WireProtocol.putEntries(frame, bulk, bulkNext);
+			}
+			bulkNext = next;
+			bulkOut.write(frame.array(), 0, frame.position());
+		}
+
+		/**
+		 * Packs about a chunk's worth of the database as
+		 * lines. Only call with the outbound lock held.
+		 */
+		private void packLines() throws IOException {
+			StringBuilder lines = new StringBuilder(OUTBOUND_CHUNK_SIZE + 256);
+			while(bulkNext < bulk.size() && lines.length() < OUTBOUND_CHUNK_SIZE) {
+				bulk.get(bulkNext++).appendAbsoluteRepresentation(lines);
+				lines.append('\n');
+			}
+			byte[] bytes = lines.toString().getBytes(CHARSET);
+			bulkOut.write(bytes, 0, bytes.length);
+		}
+
+		/**
+		 * Finishes off the compressed stream, if there is one,
+		 * and lets go of the database being sent and of the
+		 * deflater's memory. Only call with the outbound lock held.
+		 */
+		private void endBulk() {
+			if(bulkDeflater != null) {
+				try {
+					bulkDeflater.finish();
+				} catch(IOException ioe) {
+					//only ever writing to memory
+				}
+			}
+			bulk = null;
+			bulkOut = null;
+			bulkDeflater = null;
+		}
+
+		@Override
+		void outboundReady() {
+			requestFlush();
+		}
+
+		@Override
+		void runQuery(Runnable query) {
+			//a big search would hold up every client on this thread
+			ForkJoinPool.commonPool().execute(query);
+		}
+
+		/**
+		 * Asks the I/O thread to flush, unless it
+		 * already has been asked.
+		 */
+		private void requestFlush() {
+			if(closed) return;
+			outboundLock.lock();
+			try {
+				if(!synced || writeRequested) return;
+				writeRequested = true;
+			} finally {
+				outboundLock.unlock();
+			}
+			ioThread.requestWrite(this);
+		}
+
+		/**
+		 * Packs a line onto the end of the outgoing chunks.
+		 * Only call with the outbound lock held.
+		 *
+		 * @param line The line
+		 */
+		private void appendLine(String line) {
+			byte[] bytes = (line + "\n").getBytes(CHARSET);
+			appendBytes(bytes, 0, bytes.length);
+		}
+
+		/**
+		 * Packs bytes onto the end of the outgoing chunks.
+		 * Only call with the outbound lock held.
+		 *
+		 * @param bytes The bytes
+		 * @param offset Where in the array to start
+		 * @param count How many bytes to pack
+		 */
+		private void appendBytes(byte[] bytes, int offset, int count) {
+			int end = offset + count;
+			while(offset < end) {
+				ByteBuffer tail = chunks.peekLast();
+				if(tail == null || !tail.hasRemaining()) {
+					tail = ByteBuffer.allocate(Math.max(OUTBOUND_CHUNK_SIZE, end - offset));
+					chunks.addLast(tail);
+				}
+				int length = Math.min(tail.remaining(), end - offset);
+				tail.put(bytes, offset, length);
+				offset += length;
+			}
+		}
+
+		/**
+		 * Writes as much as the socket will take without
+		 * blocking, and asks the selector to say when it can
+		 * take more if anything is left.
+		 */
+		void flush() {
+			if(closed) return;
+			outboundLock.lock();
+			try {
+				writeRequested = false;
+				while(true) {
+					if(chunks.isEmpty()) {
+						UpdateFrame frame;
+						//the database goes out before anything queued
+						while(bulk != null && chunks.size() < MAX_DRAIN_CHUNKS) {
+							packMoreBulk();
+						}
+						//a search still running holds up everything behind it,
+						//and asks for a flush when it is done
+						while(bulk == null && chunks.size() < MAX_DRAIN_CHUNKS
+								&& (frame = outbound().peek()) != null && frame.isReady()) {
+							outbound().poll();
+							if(binary) {
+								byte[] bytes = binaryFor(frame);
+								appendBytes(bytes, 0, bytes.length);
+							} else {
+								appendLine(textFor(frame));
+							}
+						}
+						if(chunks.isEmpty()) break;
+					}
+					//one gathering write for everything we have
+					ByteBuffer[] pending = chunks.toArray(new ByteBuffer[chunks.size()]);
+					for(ByteBuffer chunk : pending) chunk.flip();
+					channel.write(pending);
+					while(!chunks.isEmpty() && !chunks.peekFirst().hasRemaining()) {
+						chunks.pollFirst();
+					}
+					for(ByteBuffer chunk : chunks) chunk.compact();
+					if(!chunks.isEmpty()) break;
+				}
+				key.interestOps(interestOps());
+			} catch(IOException|CancelledKeyException e) {
+				server.log("Unable to write to client " + description + ". Breaking connection.");
+				close();
+			} finally {
+				outboundLock.unlock();
+			}
+		}
+
+		/**
+		 * Works out what the selector should watch for.
+		 *
+		 * @return The interest set
+		 */
+		private int interestOps() {
+			int ret = paused ? 0 : SelectionKey.OP_READ;
+			outboundLock.lock();
+			try {
+				if(!chunks.isEmpty()) ret |= SelectionKey.OP_WRITE;
+			} finally {
+				outboundLock.unlock();
+			}
+			return ret;
+		}
+
+		/**
+		 * Stops reading from the client until
+		 * <code>resume</code>.
+		 */
+		private void pause() {
+			paused = true;
+			try {
+				key.interestOps(interestOps());
+			} catch(CancelledKeyException cke) {
+				//closed already
+			}
+		}
+
+		/**
+		 * Goes back to reading from the client once its last
+		 * update is durable, starting with whatever it had
+		 * already sent.
+		 */
+		void resume() {
+			if(closed) return;
+			if(logFailure != null) {
+				server.log("Unable to log update from client " + description + ". Breaking connection.");
+				logFailure.printStackTrace();
+				close();
+				return;
+			}
+			paused = false;
+			try {
+				if(partialLine != null) {
+					partialLine.flip();
+					processInput(partialLine);
+					partialLine = keepRest(partialLine, partialLine);
+				}
+				if(!closed) key.interestOps(interestOps());
+			} catch(IOException|CancelledKeyException e) {
+				server.log("Unable to read from client " + description + ". Breaking connection.");
+				close();
+			}
+		}
+
+		/**
+		 * Pauses the client until an update is as
+		 * durable as promised, if it is not already.
+		 *
+		 * @param ticket The update's ticket, or -1
+		 */
+		private void waitForDurable(long ticket) {
+			if(server.isDurable(ticket)) return;
+			pause();
+			server.whenDurable(ticket, failure -> {
+				logFailure = failure;
+				ioThread.requestResume(this);
+			});
+		}
+
+		/**
+		 * Pauses the client and hands an update to the
+		 * sync logger, since fsyncing it would hold up
+		 * every client on this thread.
+		 *
+		 * @param update The update
+		 */
+		private void logElsewhere(LoggedUpdate update) {
+			pause();
+			syncLogger.execute(() -> {
+				try {
+					update.apply();
+				} catch(IOException ioe) {
+					logFailure = ioe;
+				}
+				ioThread.requestResume(this);
+			});
+		}
+
+		/**
+		 * Reads whatever has arrived and hands every
+		 * complete line or frame to the server.
+		 */
+		void read() {
+			if(paused) return;
+			ByteBuffer buffer = ioThread.readBuffer;
+			try {
+				while(true) {
+					buffer.clear();
+					int read = channel.read(buffer);
+					if(read == -1) {
+						server.log("Unable to read from client " + description + ". Breaking connection.");
+						close();
+						return;
+					}
+					if(read == 0) return;
+					buffer.flip();
+					if(partialLine != null) {
+						partialLine = append(partialLine, buffer);
+						partialLine.flip();
+						processInput(partialLine);
+						partialLine = keepRest(partialLine, partialLine);
+					} else {
+						processInput(buffer);
+						partialLine = keepRest(buffer, null);
+					}
+					if(closed || paused) return;
+				}
+			} catch(IOException ioe) {
+				server.log("Unable to read from client " + description + ". Breaking connection.");
+				close();
+			}
+		}
+
+		/**
+		 * Hands every complete line or frame in a buffer to the
+		 * server, leaving the buffer's position at the start of
+		 * whatever is left over. Stops early if an update
+		 * pauses the client.
+		 *
+		 * @param buffer A flipped buffer of bytes from the socket
+		 */
+		private void processInput(ByteBuffer buffer) throws IOException {
+			while(!closed && !paused && buffer.hasRemaining()) {
+				if(binary ? !processFrame(buffer) : !processLine(buffer)) break;
+			}
+		}
+
+		/**
+		 * Hands the line at the start of a buffer to the server,
+		 * unless it is the client saying hello.
+		 *
+		 * @param buffer A flipped buffer of bytes from the socket
+		 * @return Whether there was a whole line to take
+		 */
+		private boolean processLine(ByteBuffer buffer) throws IOException {
+			byte[] array = buffer.array();
+			int start = buffer.position();
+			int limit = buffer.limit();
+			int i = start;
+			while(i < limit && array[i] != '\n') i++;
+			if(i == limit) return false;
+			int end = i;
+			if(end > start && array[end - 1] == '\r') end--;
+			String line = new String(array, start, end - start, CHARSET);
+			buffer.position(i + 1);
+			if(!greeted) {
+				Set<String> asked = WireProtocol.parseGreeting(line, WireProtocol.HELLO);
+				greet(asked);
+				if(asked != null) return true;
+				//not a greeting after all, just an early update
+			}
+			//The selector thread can not stall on the log the way
+			//the classic engine's threads do, so the client is
+			//paused instead until its update is durable.
+			if(server.blocksOnLog(this, line)) {
+				logElsewhere(() -> server.clientLine(this, line));
+			} else {
+				waitForDurable(server.clientLine(this, line));
+			}
+			return true;
+		}
+
+		/**
+		 * Hands the frame at the start of a buffer to the server.
+		 *
+		 * @param buffer A flipped buffer of bytes from the socket
+		 * @return Whether there was a whole frame to take
+		 */
+		private boolean processFrame(ByteBuffer buffer) throws IOException {
+			int length = WireProtocol.frameLength(buffer);
+			if(length == -1 || length > buffer.remaining()) return false;
+			int bodyLength = EntryCodec.getVarint(buffer);
+			ByteBuffer body = buffer.duplicate();
+			body.limit(buffer.position() + bodyLength);
+			buffer.position(buffer.position() + bodyLength);
+			if(server.blocksOnLog(body)) {
+				//the buffer gets reused before the logger is done with it
+				ByteBuffer copy = ByteBuffer.allocate(body.remaining());
+				copy.put(body).flip();
+				logElsewhere(() -> server.clientFrame(this, copy));
+			} else {
+				waitForDurable(server.clientFrame(this, body));
+			}
+			return true;
+		}
+
+		/**
+		 * Copies the unprocessed rest of a buffer into a
+		 * buffer that belongs to this connection.
+		 *
+		 * @param from The buffer, positioned at the rest
+		 * @param reuse A buffer that can be written over, or null
+		 * @return The rest, ready to be appended to, or null if
+		 *  there was none
+		 */
+		private ByteBuffer keepRest(ByteBuffer from, ByteBuffer reuse) throws IOException {
+			if(!from.hasRemaining()) return null;
+			if(from.remaining() > (binary
+					? WireProtocol.MAX_FRAME_BYTES + EntryCodec.MAX_VARINT_BYTES
+					: MAX_LINE_LENGTH)) {
+				throw new IOException("Line too long.");
+			}
+			if(reuse == from) {
+				from.compact();
+				return from;
+			}
+			ByteBuffer ret = ByteBuffer.allocate(Math.max(256, from.remaining() * 2));
+			ret.put(from);
+			return ret;
+		}
+
+		/**
+		 * Appends a buffer to another, growing it if needed.
+		 *
+		 * @param to A buffer ready to be appended to
+		 * @param from The bytes to append
+		 * @return <code>to</code> or a bigger copy of it
+		 */
+		private ByteBuffer append(ByteBuffer to, ByteBuffer from) {
+			if(to.remaining() < from.remaining()) {
+				ByteBuffer bigger = ByteBuffer.allocate(
+						Math.max(to.capacity() * 2, to.position() + from.remaining()));
+				to.flip();
+				bigger.put(to);
+				to = bigger;
+			}
+			to.put(from);
+			return to;
+		}
+
+		@Override
+		void close() {
+			if(closed) return;
+			closed = true;
+			server.clientDisconnected(this);
+			outboundLock.lock();
+			try {
+				if(bulk != null) endBulk();
+			} finally {
+				outboundLock.unlock();
+			}
+			if(key != null) key.cancel();
+			try {
+				channel.close();
+			} catch(IOException ioe) {
+				ioe.printStackTrace();
+			}
+		}
+
+		@Override
+		String describe() {
+			return description;
+		}
+	}
+}
@@ -4,38 +4,100 @@ import java.util.*;
 import java.net.*;
 import java.io.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.concurrent.locks.*;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
 import com.russellsayshi.stockpile.inventory.*;
+import com.russellsayshi.stockpile.protocol.*;
 
 /**
  * TCP Server that handles all incoming connections
  *
+ * The database lock is only taken for writing to apply
+ * updates. Searching just needs it for reading, so searches
+ * can all go at once. Sending a new client the database and
+ * checkpointing only hold it long enough to take a snapshot
+ * of the database, which takes constant time, and then read
+ * the snapshot while updates carry on.
+ *
  * @author Russell Coleman
  * @version 1.0.0
  */
 public class Server implements Runnable {
 	public static final int PORT = 2377;
 	private ConcurrentLinkedQueue<ClientConnection> clients = new ConcurrentLinkedQueue<>();
-	private List<Entry> database = new ArrayList<Entry>();
-	private ReentrantLock databaseLock = new ReentrantLock();
+	private EntryStore database = new EntryStore();
+	private ReentrantReadWriteLock databaseLock = new ReentrantReadWriteLock();
+	//Kept up to date by the database itself, once it is loaded
+	private TrigramIndex searchIndex;
+	private FuzzyIndex fuzzyIndex;
+	private LocationTree locationTree;
+	//Cursors for the results of searches, never reused in one run
+	private final AtomicInteger lastCursor = new AtomicInteger();
 	private static final String DATABASE_FILENAME = "entries.db";
-	private volatile boolean databaseChangedSinceOnDisk = false;
-	private Thread diskWritingThread;
+	private static final String LOG_FILENAME = "entries.log";
+	//Only there between a clean shutdown and the next start
+	private static final String EPOCH_FILENAME = "entries.epoch";
+	private final ServerOptions options;
+	private WriteAheadLog writeAheadLog;
+	private long nextLogGeneration = 0;
+	//Numbers and remembers updates. Only touched with databaseLock.
+	private UpdateRing recentUpdates;
+	private volatile String epoch;
+	private Thread checkpointThread;
+	private volatile ClientExecutor clientExecutor;
+	//packed copy of the database for searches that check every entry
+	private volatile ScanCopy scanCopy;
+	private final AtomicBoolean packingScanCopy = new AtomicBoolean();
+
+	/**
+	 * Constructs a server with the given settings.
+	 *
+	 * @param options The settings
+	 */
+	public Server(ServerOptions options) {
+		this.options = options;
+	}
 
 	/**
-	 * Mark database data as changed since put on disk so that
-	 * it will get written to the disc at a future time.
+	 * Constructs a server with the default settings.
 	 */
-	private void markDatabaseDirty() {
-		databaseChangedSinceOnDisk = true;
+	public Server() {
+		this(new ServerOptions());
+	}
+
+	/**
+	 * The database packed into columns as it was after
+	 * some update. Searches that have to check every entry
+	 * scan this instead of a snapshot when it is still up
+	 * to date, since it is much quicker to go through.
+	 */
+	private static class ScanCopy {
+		final ColumnarEntryList entries;
+		final long sequence; //the last update in it
+
+		ScanCopy(ColumnarEntryList entries, long sequence) {
+			this.entries = entries;
+			this.sequence = sequence;
+		}
 	}
 
 	/**
 	 * Holds a socket,
 	 * input/output streams,
 	 * and lock object to client.
+	 * Used by the classic thread per client engine,
+	 * with a second thread that drains the outbound queue.
+	 * Text clients get a reader and writer, binary clients
+	 * just the buffered streams.
 	 */
-	private class ClientConnection {
+	private class BlockingClientConnection extends ClientConnection {
+		final boolean binary;
+		InputStream input;
+		OutputStream output;
 		BufferedReader reader;
 		PrintWriter writer;
 		Socket socket;
@@ -43,21 +105,177 @@ public class Server implements Runnable {
 		//only have one reader at a time.
 		ReentrantLock writeLock = new ReentrantLock();
 		ReentrantLock readLock = new ReentrantLock();
+		private volatile Thread writerThread;
+		private volatile boolean closed = false;
 
 		/**
 		 * Basic constructor
 		 *
-		 * @param reader The reaer
-		 * @param writer The writer
+		 * @param input The buffered input stream
+		 * @param output The buffered output stream
 		 * @param socket The socket
+		 * @param binary Whether the client gets the binary protocol
 		 */
-		public ClientConnection(BufferedReader reader,
-				PrintWriter writer,
-				Socket socket) {
-			this.reader = reader;
-			this.writer = writer;
+		public BlockingClientConnection(InputStream input,
+				OutputStream output,
+				Socket socket,
+				boolean binary) {
+			super(options.getOutboundLines());
+			this.binary = binary;
+			this.input = input;
+			this.output = output;
 			this.socket = socket;
+			if(!binary) {
+				this.reader = new BufferedReader(new InputStreamReader(input));
+				//no autoflush: the connection flushes once per batch
+				this.writer = new PrintWriter(new OutputStreamWriter(output), false);
+			}
+		}
+
+		@Override
+		void sendInitialSync(Set<String> agreed, List<Entry> database) {
+			writeLock.lock();
+			try {
+				//let 'em know we're here
+				WireProtocol.writeGreeting(output, WireProtocol.greeting(WireProtocol.ACK, agreed));
+
+				//send 'em over the current database, unless they
+				//are resuming and just need what is already queued
+				if(database != null) sendDatabase(database, agreed.contains(WireProtocol.DEFLATE));
+				output.flush();
+			} catch(IOException ioe) {
+				log("Unable to write to client " + describe() + ". Breaking connection.");
+				close();
+			} finally {
+				writeLock.unlock();
+			}
+			writerThread = clientExecutor.startWriter(() -> drainOutbound());
+			if(closed) writerThread.interrupt();
+		}
+
+		/**
+		 * Writes the database and the end of the bulk.
+		 * Only call with the write lock held.
+		 *
+		 * @param database The database
+		 * @param compress Whether to compress it
+		 */
+		private void sendDatabase(List<Entry> database, boolean compress) throws IOException {
+			ChunkedDeflaterOutputStream deflated = null;
+			OutputStream syncOutput = output;
+			if(compress) {
+				syncOutput = deflated = new ChunkedDeflaterOutputStream(output, Deflater.BEST_SPEED);
+			}
+			if(binary) {
+				WireProtocol.writeBulk(syncOutput, database, options.getWriteBufferBytes());
+			} else {
+				PrintWriter syncWriter = compress
+					? new PrintWriter(new OutputStreamWriter(syncOutput), false)
+					: writer;
+				for(Entry s : database) {
+					s.appendAbsoluteRepresentation(syncWriter);
+					syncWriter.println();
+				}
+				syncWriter.println(WireProtocol.BULK_DONE); //tell 'em that's all from the database
+				syncWriter.flush();
+				if(syncWriter.checkError()) throw new IOException("Unable to write.");
+			}
+			if(deflated != null) deflated.finish();
+		}
+
+		/**
+		 * Writes queued updates to the socket until the client
+		 * goes away. Run on the writer thread.
+		 *
+		 * Everything already queued goes out with one flush,
+		 * unless there is so much of it that the write buffer
+		 * fills or <code>flushMillis</code> passes first.
+		 */
+		private void drainOutbound() {
+			long flushNanos = TimeUnit.MILLISECONDS.toNanos(options.getFlushMillis());
+			try {
+				while(!closed) {
+					UpdateFrame frame = outbound().take();
+					frame.awaitReady();
+					long firstUnflushed = System.nanoTime();
+					boolean failed;
+					writeLock.lock();
+					try {
+						int unflushed = 0;
+						while(frame != null) {
+							if(binary) {
+								byte[] bytes = binaryFor(frame);
+								output.write(bytes);
+								unflushed += bytes.length;
+							} else {
+								String text = textFor(frame);
+								writer.println(text);
+								unflushed += text.length() + 1;
+							}
+							if(unflushed >= options.getWriteBufferBytes()
+									|| System.nanoTime() - firstUnflushed >= flushNanos) {
+								break;
+							}
+							//a search still running holds up everything behind it
+							frame = outbound().peek();
+							if(frame != null && frame.isReady()) {
+								outbound().poll();
+							} else {
+								frame = null;
+							}
+						}
+						if(binary) {
+							output.flush();
+							failed = false;
+						} else {
+							writer.flush();
+							failed = writer.checkError();
+						}
+					} catch(IOException ioe) {
+						failed = true;
+					} finally {
+						writeLock.unlock();
+					}
+					if(failed) {
+						log("Unable to write to client " + describe() + ". Breaking connection.");
+						close();
+					}
+				}
+			} catch(InterruptedException ie) {
+				//closed
+			}
+		}
+
+		@Override
+		void outboundReady() {
+			//the writer thread is already waiting on the queue
 		}
+
+		@Override
+		void close() {
+			closed = true;
+			Thread writing = writerThread;
+			if(writing != null && writing != Thread.currentThread()) writing.interrupt();
+			try {
+				if(!socket.isClosed()) socket.close();
+			} catch(IOException ioe) {
+				ioe.printStackTrace();
+			}
+		}
+
+		@Override
+		String describe() {
+			return socket.getRemoteSocketAddress().toString();
+		}
+	}
+
+	/**
+	 * Gets the settings the server was started with.
+	 *
+	 * @return The settings
+	 */
+	ServerOptions getOptions() {
+		return options;
 	}
 
 	/**
@@ -65,24 +283,465 @@ public class Server implements Runnable {
 	 *
 	 * @param log What to log.
 	 */
-	private <T> void log(T toLog) {
+	<T> void log(T toLog) {
 		System.out.print("[SERVER] ");
 		System.out.println(toLog);
 	}
 
 	/**
-	 * Writes some data to a ClientConnection
-	 * 
-	 * @param client The client to write to
-	 * @param data The string to write
+	 * Greets a newly connected client, sends it the whole
+	 * database or just what it missed, and starts sending it
+	 * updates. Called by whichever engine accepted the client.
+	 *
+	 * @param connection The client
+	 * @param asked The features it asked for, or null if it
+	 *  did not say hello
 	 */
-	private void writeToClient(ClientConnection client, String data) {
-		client.writeLock.lock();
+	void clientConnected(ClientConnection connection, Set<String> asked) {
+		Set<String> agreed = agreeTo(asked);
+		if(agreed.contains(WireProtocol.QUERY_ONLY)) {
+			//nothing to send and nothing to broadcast to it
+			log("Client " + connection.describe() + " is only here to search.");
+			connection.sendInitialSync(agreed, null);
+			return;
+		}
+		connection.setBatches(agreed.contains(WireProtocol.BATCHES));
+		String since = null;
+		if(agreed.contains(WireProtocol.RESUME)) {
+			connection.setClientId(WireProtocol.featureValue(asked, WireProtocol.CLIENT));
+			since = WireProtocol.featureValue(asked, WireProtocol.SINCE);
+		}
+		//Taking a snapshot of the database (or queueing what the
+		//client missed) and joining the broadcast list happen
+		//together under the database lock, so every update is
+		//either in the snapshot or queued behind it. The snapshot
+		//gets sent after letting go of the lock.
+		List<Entry> copy = null;
+		databaseLock.readLock().lock();
 		try {
-			client.writer.println(data);
+			List<UpdateFrame> missed = since == null ? null : missedSince(since);
+			if(missed != null) {
+				agreed.remove(WireProtocol.DEFLATE); //nothing to compress
+				agreed.add(WireProtocol.DELTA);
+				for(UpdateFrame frame : missed) {
+					connection.offer(frame);
+				}
+				log("Client " + connection.describe() + " resumed " + missed.size() + " updates behind.");
+			} else {
+				copy = database.snapshot();
+			}
+			if(agreed.contains(WireProtocol.RESUME)) {
+				agreed.add(WireProtocol.feature(WireProtocol.SINCE,
+						WireProtocol.position(epoch, recentUpdates.last() - (missed == null ? 0 : missed.size()))));
+			}
+			clients.add(connection);
 		} finally {
-			client.writeLock.unlock();
+			databaseLock.readLock().unlock();
+		}
+		connection.sendInitialSync(agreed, copy);
+	}
+
+	/**
+	 * Gets the updates a resuming client missed, if they
+	 * are few enough to be worth sending instead of the whole
+	 * database. Call with the database lock held.
+	 *
+	 * @param since The position of the last update the client got
+	 * @return The updates, or null if the client has to
+	 *  start over with the whole database
+	 */
+	private List<UpdateFrame> missedSince(String since) {
+		List<UpdateFrame> ret;
+		try {
+			if(!WireProtocol.positionEpoch(since).equals(epoch)) return null;
+			ret = recentUpdates.since(WireProtocol.positionSequence(since));
+		} catch(IllegalArgumentException iae) {
+			return null;
 		}
+		//the whole lot has to fit in the client's queue
+		if(ret == null || ret.size() > options.getOutboundLines() / 2) return null;
+		return ret;
+	}
+
+	/**
+	 * Takes a line from a client. Single updates get applied
+	 * right away; the lines of a batch are held until the
+	 * whole batch has arrived.
+	 *
+	 * @param connection The client the line came from
+	 * @param read The line
+	 * @return A ticket to wait on with <code>awaitDurable</code>,
+	 *  or -1 if nothing was applied
+	 * @throws IOException If an update could not be logged
+	 */
+	long clientLine(ClientConnection connection, String read) throws IOException {
+		if(!connection.incoming.isPartial() && QueryRequest.isRequestLine(read)) {
+			try {
+				QueryRequest request = QueryRequest.parseLine(read);
+				connection.runQuery(() -> clientQuery(connection, request));
+			} catch(IllegalArgumentException iae) {
+				log("Client " + connection.describe() + " gave an invalid query.");
+			}
+			return -1;
+		}
+		List<String> commands;
+		try {
+			commands = connection.incoming.accept(read);
+		} catch(IllegalArgumentException iae) {
+			log("Client " + connection.describe() + " gave an invalid batch header.");
+			return -1;
+		}
+		if(commands == null || commands.isEmpty()) return -1;
+		return clientUpdate(connection, commands);
+	}
+
+	/**
+	 * Applies update strings from a client, logs them, and
+	 * passes them on to every other client, all as one unit.
+	 *
+	 * If any of the updates does not parse, none of them
+	 * are applied.
+	 *
+	 * @param connection The client the updates came from
+	 * @param commands The update strings
+	 * @return A ticket to wait on with <code>awaitDurable</code>,
+	 *  or -1 if the updates were invalid
+	 * @throws IOException If the updates could not be logged
+	 */
+	long clientUpdate(ClientConnection connection, List<String> commands) throws IOException {
+		List<EntryUpdate> updates = new ArrayList<>(commands.size());
+		try {
+			for(String command : commands) {
+				updates.add(DatabaseUpdater.parse(command));
+			}
+		} catch(IllegalArgumentException iae) {
+			log("Client " + connection.describe() + " gave an invalid database update string.");
+			iae.printStackTrace();
+			return -1;
+		}
+		//one log record and one broadcast frame for the lot
+		String record = commands.size() == 1
+			? commands.get(0)
+			: DatabaseUpdater.toBatchFrame(commands);
+		return applyUpdates(connection, updates, record);
+	}
+
+	/**
+	 * Takes a frame from a binary client: one update
+	 * or a batch of them. Handled the same way as the
+	 * lines of a text client.
+	 *
+	 * Entries that the text protocol and the log can not
+	 * hold, because their name or location contains a
+	 * <code>|</code> or a line break, are turned away, and
+	 * so is the rest of their batch.
+	 *
+	 * @param connection The client the frame came from
+	 * @param body The body of the frame
+	 * @return A ticket to wait on with <code>awaitDurable</code>,
+	 *  or -1 if nothing was applied
+	 * @throws IOException If the updates could not be logged
+	 */
+	long clientFrame(ClientConnection connection, ByteBuffer body) throws IOException {
+		if(QueryRequest.isRequestFrame(body)) {
+			try {
+				QueryRequest request = QueryRequest.fromFrame(body);
+				connection.runQuery(() -> clientQuery(connection, request));
+			} catch(IllegalArgumentException iae) {
+				log("Client " + connection.describe() + " gave an invalid query frame.");
+			}
+			return -1;
+		}
+		List<EntryUpdate> updates;
+		try {
+			updates = WireProtocol.getUpdates(body);
+		} catch(IllegalArgumentException iae) {
+			log("Client " + connection.describe() + " gave an invalid database update frame.");
+			iae.printStackTrace();
+			return -1;
+		}
+		List<String> commands = new ArrayList<>(updates.size());
+		for(EntryUpdate update : updates) {
+			if(!update.getEntry().hasAbsoluteRepresentation()
+					|| (update.getTarget() != null && !update.getTarget().hasAbsoluteRepresentation())) {
+				log("Client " + connection.describe() + " gave an entry that can not be stored.");
+				return -1;
+			}
+			commands.add(update.toCommandString());
+		}
+		if(commands.isEmpty()) return -1;
+		String record = commands.size() == 1
+			? commands.get(0)
+			: DatabaseUpdater.toBatchFrame(commands);
+		return applyUpdates(connection, updates, record);
+	}
+
+	/**
+	 * Logs parsed updates, applies them, and passes them
+	 * on to every other client. Logging, applying and
+	 * broadcasting all happen under the database lock so
+	 * that the log and every client see updates in one order.
+	 * Nothing is applied unless it made it into the log, so
+	 * a failed append leaves the database as the log has it.
+	 *
+	 * @param connection The client the updates came from
+	 * @param updates The updates
+	 * @param record The updates as one log record, which is
+	 *  also what text clients get sent
+	 * @return A ticket to wait on with <code>awaitDurable</code>
+	 * @throws IOException If the updates could not be logged
+	 */
+	private long applyUpdates(ClientConnection connection, List<EntryUpdate> updates,
+			String record) throws IOException {
+		UpdateFrame frame = new UpdateFrame(record, updates, connection.getClientId());
+		databaseLock.writeLock().lock();
+		try {
+			//the origin goes in the log so a restart can still tell
+			//a resuming client which updates were its own
+			long ticket = writeAheadLog.append(DatabaseUpdater.withOrigin(record, connection.getClientId()));
+			for(EntryUpdate update : updates) {
+				update.applyTo(database);
+			}
+			recentUpdates.add(frame);
+			//out of date now, so no need to keep it around
+			if(scanCopy != null) scanCopy = null;
+			broadcast(connection, frame);
+			return ticket;
+		} finally {
+			databaseLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Searches the database for a client, or carries on with
+	 * a search it already started, and queues the page of
+	 * results for it.
+	 *
+	 * A new search finds every match at once, and its page
+	 * is queued with the database lock held for reading.
+	 * That way the page comes after every update it includes
+	 * and before every one it does not, and the rest of the
+	 * matches wait under a cursor without holding anything up.
+	 * Searches an index can answer are answered under the
+	 * lock. Ones that have to check every entry take the
+	 * packed copy of the database if nothing has changed
+	 * since it was made, or a snapshot if something has, and
+	 * queue a frame to hold the page's place, so the lock is
+	 * let go before they start. A snapshot gets packed
+	 * afterwards for the next search to use.
+	 *
+	 * @param connection The client
+	 * @param request What it asked for
+	 */
+	void clientQuery(ClientConnection connection, QueryRequest request) {
+		int limit = Math.min(request.getLimit(), WireProtocol.MAX_PAGE_ENTRIES);
+		if(request.isMore()) {
+			queueResults(connection, connection.nextPage(request.getTag(), request.getCursor(), limit));
+			return;
+		}
+		String query = request.getQuery().toLowerCase();
+		List<Entry> scanned = null;
+		EntryStore.Snapshot snapshot = null;
+		long sequence = 0;
+		UpdateFrame pending = null;
+		databaseLock.readLock().lock();
+		try {
+			List<Entry> matches;
+			if(FuzzyIndex.isFuzzyQuery(query)) {
+				matches = fuzzyIndex.search(query);
+			} else if(LocationTree.isLocationQuery(query)) {
+				matches = locationTree.entriesUnder(query);
+			} else if(searchIndex.canNarrow(query)) {
+				matches = searchIndex.search(query);
+			} else {
+				ScanCopy copy = scanCopy;
+				sequence = recentUpdates.last();
+				if(copy != null && copy.sequence == sequence) {
+					scanned = copy.entries;
+				} else {
+					scanned = snapshot = database.snapshot();
+				}
+				pending = new UpdateFrame();
+				if(!queueFrame(connection, pending)) return;
+				matches = null;
+			}
+			if(matches != null) queueResults(connection, firstPage(connection, request, matches, limit));
+		} finally {
+			databaseLock.readLock().unlock();
+		}
+		if(pending != null) {
+			QueryResults page = QueryResults.failed(request.getTag());
+			try {
+				page = firstPage(connection, request, EntrySearcher.search(scanned, query), limit);
+			} finally {
+				//the client hears nothing more until this goes out
+				pending.setResults(page);
+				connection.outboundReady();
+			}
+			if(snapshot != null) packScanCopy(snapshot, sequence);
+		}
+	}
+
+	/**
+	 * Packs a snapshot into columns on a thread of its own,
+	 * for searches to use until the next update. Does
+	 * nothing if another one is already being packed, so a
+	 * busy database is never packed more than once at a time.
+	 *
+	 * @param snapshot The snapshot
+	 * @param sequence The last update in it
+	 */
+	private void packScanCopy(EntryStore.Snapshot snapshot, long sequence) {
+		if(!packingScanCopy.compareAndSet(false, true)) return;
+		Thread packer = new Thread(() -> {
+			try {
+				scanCopy = new ScanCopy(new ColumnarEntryList(snapshot), sequence);
+			} finally {
+				packingScanCopy.set(false);
+			}
+		}, "stockpile-packer");
+		packer.setDaemon(true);
+		packer.start();
+	}
+
+	/**
+	 * Makes the first page of a search's results, keeping
+	 * the rest under a new cursor if they do not all fit.
+	 *
+	 * @param connection The client that searched
+	 * @param request What it asked for
+	 * @param matches Every match
+	 * @param limit The most entries on a page
+	 * @return The page
+	 */
+	private QueryResults firstPage(ClientConnection connection, QueryRequest request,
+			List<Entry> matches, int limit) {
+		if(matches.size() <= limit) return new QueryResults(request.getTag(), 0, matches);
+		int cursor = lastCursor.updateAndGet(c -> c == Integer.MAX_VALUE ? 1 : c + 1);
+		connection.openCursor(cursor, matches.subList(limit, matches.size()));
+		return new QueryResults(request.getTag(), cursor,
+				new ArrayList<>(matches.subList(0, limit)));
+	}
+
+	/**
+	 * Queues a page of search results for a client, dropping
+	 * it if its queue is full.
+	 *
+	 * @param connection The client
+	 * @param page The page
+	 */
+	private void queueResults(ClientConnection connection, QueryResults page) {
+		queueFrame(connection, new UpdateFrame(page));
+	}
+
+	/**
+	 * Queues a frame of search results for a client, dropping
+	 * it if its queue is full.
+	 *
+	 * @param connection The client
+	 * @param frame The frame
+	 * @return Whether it fit
+	 */
+	private boolean queueFrame(ClientConnection connection, UpdateFrame frame) {
+		if(connection.offer(frame)) return true;
+		log("Client " + connection.describe() + " fell too far behind. Dropping it.");
+		clients.remove(connection);
+		connection.close();
+		return false;
+	}
+
+	/**
+	 * Queues a frame for every client but the one it came
+	 * from, unless that one asked to resume and needs to
+	 * count it. Clients whose queues are full get dropped.
+	 * Call with the database lock held so that updates stay
+	 * in order.
+	 *
+	 * @param from The client the frame came from, or null
+	 * @param frame The update or batch
+	 */
+	private void broadcast(ClientConnection from, UpdateFrame frame) {
+		for(ClientConnection client : clients) {
+			if(client == from && client.getClientId() == null) continue;
+			if(!client.offer(frame)) {
+				log("Client " + client.describe() + " fell too far behind. Dropping it.");
+				clients.remove(client);
+				client.close();
+			}
+		}
+	}
+
+	/**
+	 * Waits until an update from <code>clientUpdate</code>
+	 * is as durable as the log promises.
+	 *
+	 * @param ticket The ticket, or -1 to not wait at all
+	 * @throws IOException If the log failed
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	void awaitDurable(long ticket) throws IOException, InterruptedException {
+		if(ticket != -1) writeAheadLog.awaitDurable(ticket);
+	}
+
+	/**
+	 * Checks, without waiting, if an update from
+	 * <code>clientUpdate</code> is as durable as the log promises.
+	 *
+	 * @param ticket The ticket, or -1 for nothing
+	 * @return Whether it is
+	 */
+	boolean isDurable(long ticket) {
+		return ticket == -1 || writeAheadLog.isDurable(ticket);
+	}
+
+	/**
+	 * Calls back once an update from <code>clientUpdate</code>
+	 * is as durable as the log promises, for clients handled
+	 * by threads that can not wait around.
+	 *
+	 * @param ticket The ticket
+	 * @param callback Gets null once it is durable, or what
+	 *  went wrong if the log failed. Run on the log's own
+	 *  thread, so it should be quick.
+	 */
+	void whenDurable(long ticket, Consumer<IOException> callback) {
+		writeAheadLog.whenDurable(ticket, callback);
+	}
+
+	/**
+	 * Checks if <code>clientLine</code> might take as long as
+	 * an fsync for a line, because it could finish an update
+	 * and every update is written to the disk right then.
+	 *
+	 * @param connection The client the line came from
+	 * @param read The line, not taken yet
+	 * @return Whether it might
+	 */
+	boolean blocksOnLog(ClientConnection connection, String read) {
+		if(options.getDurability() != WriteAheadLog.Durability.SYNC) return false;
+		if(!connection.incoming.isPartial() && QueryRequest.isRequestLine(read)) return false;
+		return connection.incoming.finishesWith(read);
+	}
+
+	/**
+	 * Checks if <code>clientFrame</code> might take as long
+	 * as an fsync for a frame.
+	 *
+	 * @param body The body of the frame
+	 * @return Whether it might
+	 */
+	boolean blocksOnLog(ByteBuffer body) {
+		return options.getDurability() == WriteAheadLog.Durability.SYNC
+			&& !QueryRequest.isRequestFrame(body);
+	}
+
+	/**
+	 * Stops sending updates to a client that has gone away.
+	 *
+	 * @param connection The client
+	 */
+	void clientDisconnected(ClientConnection connection) {
+		clients.remove(connection);
 	}
 
 	/**
@@ -93,81 +752,129 @@ public class Server implements Runnable {
 	 * @param socket The socket
 	 */
 	private void handleClient(Socket socket) throws IOException {
-		ClientConnection connection = new ClientConnection(
-			new BufferedReader(new InputStreamReader(
-					socket.getInputStream())),
-			new PrintWriter(socket.getOutputStream(), true),
-			socket
+		configureSocket(socket);
+		InputStream input = new BufferedInputStream(socket.getInputStream());
+		//Clients that want protocol features say so right away.
+		//Ones from before them say nothing until they hear from us.
+		String greeting = null;
+		socket.setSoTimeout((int)options.getHelloMillis());
+		try {
+			greeting = WireProtocol.readGreeting(input);
+		} catch(SocketTimeoutException ste) {
+			//plain text client
+		}
+		socket.setSoTimeout(0);
+		Set<String> features = WireProtocol.parseGreeting(greeting, WireProtocol.HELLO);
+		BlockingClientConnection connection = new BlockingClientConnection(
+			input,
+			new BufferedOutputStream(socket.getOutputStream(), options.getWriteBufferBytes()),
+			socket,
+			agreeTo(features).contains(WireProtocol.BINARY)
 		);
+		boolean binary = connection.binary;
 		try {
 			//We are the only ones that should ever hold the read
 			//lock. Keep it for the life cycle of the client.
 			connection.readLock.lock();
-			clients.add(connection);
-			String clientStringRepr = connection.socket.getRemoteSocketAddress().toString();
+			String clientStringRepr = connection.describe();
 			try {
-				connection.writeLock.lock();
-				try {
-					connection.writer.println("ACK_STOCKPILE_SERVER"); //let 'em know we're here
-
-					//send 'em over the current database
-					databaseLock.lock();
+				clientConnected(connection, features);
+				if(features == null && greeting != null) {
+					//not a greeting after all, just an early update
+					awaitDurable(clientLine(connection, greeting));
+				}
+				ByteBuffer frame = null;
+				while(true) {
+					String read = null;
 					try {
-						for(Entry s : database) {
-							connection.writer.println(s.getAbsoluteRepresentation());
+						if(binary) {
+							frame = WireProtocol.readFrame(connection.input, frame);
+						} else {
+							read = connection.reader.readLine();
 						}
-					} finally {
-						databaseLock.unlock();
+					} catch(IOException ioe) {
+						if(connection.closed) break; //we hung up on them
+						throw ioe;
 					}
-					connection.writer.println("BULK_DONE"); //tell 'em that's all from the database
-				} finally {
-					connection.writeLock.unlock();
-				}
-				while(true) {
-					String read = connection.reader.readLine();
-					if(read == null) {
+					if(binary ? frame == null : read == null) {
 						log("Unable to read from client " + clientStringRepr + ". Breaking connection.");
 						break;
 					}
-					//try and use this string to update our
-					//database
-					boolean isProperString = false;
-					try {
-						DatabaseUpdater.updateWithString(database, read);
-						markDatabaseDirty();
-						isProperString = true;
-					} catch(IllegalArgumentException iae) {
-						log("Client " + clientStringRepr + " gave an invalid database update string.");
-						iae.printStackTrace();
-					}
-					if(isProperString) {
-						databaseLock.lock();
-						try {
-							for(ClientConnection client : clients) {
-								if(client.equals(connection)) continue;
-								client.writeLock.lock();
-								try {
-									client.writer.println(read);
-								} finally {
-									client.writeLock.unlock();
-								}
-							}
-						} finally {
-							databaseLock.unlock();
-						}
-					}
+					//try and use this to update our database,
+					//then hold off on reading this client's next update
+					//until this one is as durable as we promised.
+					awaitDurable(binary
+						? clientFrame(connection, frame)
+						: clientLine(connection, read));
 				}
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
 			} finally {
 				connection.readLock.unlock();
 			}
 		} finally {
-			clients.remove(connection);
-			if(socket != null && !socket.isClosed()) socket.close();
+			clientDisconnected(connection);
+			connection.close();
+		}
+	}
+
+	/**
+	 * Picks which of the protocol features a client asked
+	 * for the server will go along with.
+	 *
+	 * @param asked The features asked for, or null if the
+	 *  client did not say hello
+	 * @return The features agreed to
+	 */
+	Set<String> agreeTo(Set<String> asked) {
+		Set<String> ret = new HashSet<>();
+		if(asked == null) return ret;
+		if(asked.contains(WireProtocol.BINARY)) ret.add(WireProtocol.BINARY);
+		if(asked.contains(WireProtocol.DEFLATE) && options.getCompressSync()) {
+			ret.add(WireProtocol.DEFLATE);
+		}
+		if(asked.contains(WireProtocol.BATCHES)) ret.add(WireProtocol.BATCHES);
+		//without an id there is no telling its own updates apart, and
+		//a text client that gets batches split up would count them wrong
+		if(asked.contains(WireProtocol.RESUME)
+				&& WireProtocol.featureValue(asked, WireProtocol.CLIENT) != null
+				&& (ret.contains(WireProtocol.BINARY) || ret.contains(WireProtocol.BATCHES))) {
+			ret.add(WireProtocol.RESUME);
+		}
+		if(asked.contains(WireProtocol.QUERY)) ret.add(WireProtocol.QUERY);
+		if(asked.contains(WireProtocol.QUERY_ONLY)) {
+			//no database to compress and no updates to resume
+			ret.remove(WireProtocol.DEFLATE);
+			ret.remove(WireProtocol.RESUME);
+			ret.add(WireProtocol.QUERY);
+			ret.add(WireProtocol.QUERY_ONLY);
+		}
+		return ret;
+	}
+
+	/**
+	 * Applies the configured socket options to a client socket.
+	 *
+	 * @param socket The socket
+	 * @throws SocketException If an option could not be set
+	 */
+	void configureSocket(Socket socket) throws SocketException {
+		socket.setTcpNoDelay(options.getTcpNoDelay());
+		if(options.getSendBufferBytes() > 0) {
+			socket.setSendBufferSize(options.getSendBufferBytes());
+		}
+		if(options.getReceiveBufferBytes() > 0) {
+			socket.setReceiveBufferSize(options.getReceiveBufferBytes());
 		}
 	}
 
 	/**
-	 * Populates the database with data.
+	 * Populates the database with data. Loads the
+	 * last snapshot and then replays the write-ahead
+	 * log segments it does not already include, numbering
+	 * the replayed updates and remembering who sent them so
+	 * that clients that were connected before can pick up
+	 * where they left off.
 	 */
 	private void populateDatabase() throws IOException {
 		if(database.size() != 0) return;
@@ -175,53 +882,154 @@ public class Server implements Runnable {
 		if(!file.exists()) {
 			file.createNewFile();
 		}
+		File logBase = new File(LOG_FILENAME);
+		if(logBase.exists()) {
+			//log from before it was split into segments
+			if(!logBase.renameTo(WriteAheadLog.segmentFile(logBase, 0))) {
+				throw new IOException("Unable to rename old log " + logBase + ".");
+			}
+		}
 
-		databaseLock.lock();
-		try(Scanner scan = new Scanner(file)) {
-			int line = 0;
-			while(scan.hasNextLine()) {
-				line++;
-				try {
-					database.add(new Entry(scan.nextLine()));
-				} catch(IllegalArgumentException iae) {
+		databaseLock.writeLock().lock();
+		try {
+			long loadStart = System.nanoTime();
+			long coveredGeneration;
+			long coveredSequence;
+			if(SnapshotFile.isSnapshotFile(file)) {
+				SnapshotFile snapshot = SnapshotFile.read(file);
+				snapshot.addTo(database);
+				coveredGeneration = snapshot.getCoveredGeneration();
+				coveredSequence = snapshot.getCoveredSequence();
+			} else {
+				TextSnapshot snapshot = TextSnapshot.read(file);
+				for(int line : snapshot.getInvalidLines()) {
 					log("Invalid database entry on line " + line + ". Continuing...");
 				}
+				snapshot.addTo(database);
+				coveredGeneration = snapshot.getCoveredGeneration();
+				coveredSequence = snapshot.getCoveredSequence();
+				//same contents and log position, so the log still lines up
+				Checkpointer.replaceSnapshot(file, coveredGeneration, coveredSequence,
+						database.snapshot());
+				log("Converted " + file + " from text to a binary snapshot.");
 			}
+			log("Loaded " + database.size() + " entries in "
+					+ (System.nanoTime() - loadStart) / 1_000_000 + " ms.");
+			nextLogGeneration = coveredGeneration + 1;
+			recentUpdates = new UpdateRing(options.getResyncUpdates(), coveredSequence);
+			int[] replayed = new int[2];
+			for(long generation : WriteAheadLog.generations(logBase)) {
+				File segment = WriteAheadLog.segmentFile(logBase, generation);
+				if(generation <= coveredGeneration) {
+					//left behind by a crash right after a checkpoint
+					segment.delete();
+					continue;
+				}
+				BatchCollector collector = new BatchCollector();
+				String[] origin = new String[1]; //who sent the next update, if the log says
+				WriteAheadLog.replay(segment, logLine -> {
+					if(!collector.isPartial() && DatabaseUpdater.isOriginLine(logLine)) {
+						//not an update, so not numbered
+						origin[0] = DatabaseUpdater.parseOriginLine(logLine);
+						return;
+					}
+					List<String> commands;
+					try {
+						commands = collector.accept(logLine);
+					} catch(IllegalArgumentException iae) {
+						log("Invalid batch header in log. Continuing...");
+						origin[0] = null;
+						return;
+					}
+					if(commands == null) return;
+					List<EntryUpdate> updates = new ArrayList<>(commands.size());
+					for(String command : commands) {
+						replayed[0]++;
+						try {
+							EntryUpdate update = DatabaseUpdater.parse(command);
+							update.applyTo(database);
+							updates.add(update);
+						} catch(IllegalArgumentException iae) {
+							replayed[1]++;
+							log("Invalid log entry " + replayed[0] + ". Continuing...");
+						}
+					}
+					//numbered even if invalid, the same as when it was logged
+					String record = commands.size() == 1
+						? commands.get(0)
+						: DatabaseUpdater.toBatchFrame(commands);
+					recentUpdates.add(new UpdateFrame(record, updates, origin[0]));
+					origin[0] = null;
+				});
+				if(collector.isPartial()) {
+					log("Dropped a batch cut off by a crash at the end of " + segment + ".");
+				}
+				nextLogGeneration = generation + 1;
+			}
+			if(replayed[0] > 0) {
+				log("Replayed " + (replayed[0] - replayed[1]) + " updates from the log.");
+			}
+			searchIndex = new TrigramIndex(database);
+			fuzzyIndex = new FuzzyIndex(database);
+			locationTree = new LocationTree(database, options.getLocationSeparator());
 		} finally {
-			databaseLock.unlock();
+			databaseLock.writeLock().unlock();
 		}
 	}
 
 	/**
-	 * Updates the disk every 15 minutes, if necessary.
-	 * Meant to be called as a separate thread
-	 * from within the run() method.
+	 * Picks the epoch for this run. It stays the same as the
+	 * last run's if that one shut down cleanly and the update
+	 * numbers carry on from where it left them; otherwise
+	 * numbers may have been handed out for updates that never
+	 * made it to the disk, so it changes and every client that
+	 * reconnects starts over with the whole database.
+	 *
+	 * Call before taking clients, once the database is loaded.
 	 */
-	private void updateDiskPeriodically() {
-		try {
-			while(true) {
-				if(databaseChangedSinceOnDisk) {
-					log("About to update database...");
-					try(PrintWriter writer = new PrintWriter(
-						DATABASE_FILENAME
-					)) {
-						databaseLock.lock();
-						try {
-							for(Entry e : database) {
-								writer.println(
-									e.getAbsoluteRepresentation());
-							}
-						} finally {
-							databaseLock.unlock();
-						}
-					}
-					log("Updated database on disk.");
-					databaseChangedSinceOnDisk = false;
+	private void pickEpoch() {
+		File file = new File(EPOCH_FILENAME);
+		String last = null;
+		if(file.exists()) {
+			try(Scanner scan = new Scanner(file)) {
+				if(scan.hasNext()) {
+					String previous = scan.next();
+					if(scan.hasNextLong() && scan.nextLong() == recentUpdates.last()) last = previous;
 				}
-				Thread.sleep(/*15 * 60 **/ 1000); //15 minutes
+			} catch(IOException ioe) {
+				ioe.printStackTrace();
 			}
-		} catch(InterruptedException|IOException ie) {
-			ie.printStackTrace();
+			//from now on a crash has to change it
+			if(!file.delete()) log("Could not delete " + file + ".");
+		}
+		if(last != null && !file.exists()) {
+			epoch = last;
+			log("Carrying on from update " + recentUpdates.last() + " of the last run.");
+		} else {
+			epoch = UUID.randomUUID().toString();
+		}
+	}
+
+	/**
+	 * Closes the log and, if nothing was lost, writes down
+	 * the epoch and the number of the last update so that
+	 * the next run can carry on with them. Run when the
+	 * process is asked to exit.
+	 */
+	private void shutDown() {
+		databaseLock.writeLock().lock();
+		try {
+			writeAheadLog.close();
+			try(Writer writer = new FileWriter(EPOCH_FILENAME)) {
+				writer.write(epoch + " " + recentUpdates.last() + "\n");
+			}
+			log("Shut down cleanly at update " + recentUpdates.last() + ".");
+		} catch(IOException ioe) {
+			log("Unable to shut down cleanly. Clients will have to resync.");
+			ioe.printStackTrace();
+			new File(EPOCH_FILENAME).delete();
+		} finally {
+			databaseLock.writeLock().unlock();
 		}
 	}
 
@@ -236,26 +1044,109 @@ public class Server implements Runnable {
 			ioe.printStackTrace();
 			return;
 		}
-		if(diskWritingThread == null || !diskWritingThread.isAlive()) {
-			diskWritingThread = new Thread(() -> updateDiskPeriodically());
-			diskWritingThread.start();
+		try {
+			writeAheadLog = new WriteAheadLog(new File(LOG_FILENAME), nextLogGeneration,
+					options.getDurability(), options.getGroupCommitMillis());
+		} catch(IOException ioe) {
+			System.err.println("Unable to open the database log. Exiting...");
+			ioe.printStackTrace();
+			return;
+		}
+		log("Logging updates with " + options.getDurability() + " durability.");
+		pickEpoch();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> shutDown(), "stockpile-shutdown"));
+		if(checkpointThread == null || !checkpointThread.isAlive()) {
+			Checkpointer checkpointer = new Checkpointer(new File(DATABASE_FILENAME),
+					new File(LOG_FILENAME), writeAheadLog, databaseLock.readLock(),
+					() -> database.snapshot(), () -> recentUpdates.last(),
+					options.getCheckpointMillis(), options.getCheckpointLogBytes());
+			checkpointThread = new Thread(checkpointer, "stockpile-checkpointer");
+			checkpointThread.setDaemon(true);
+			checkpointThread.start();
+		}
+		if(options.getStatsMillis() > 0) {
+			Thread statsThread = new Thread(() -> logStatsPeriodically(), "stockpile-stats");
+			statsThread.setDaemon(true);
+			statsThread.start();
 		}
+		try {
+			if(options.getEngine() == ServerOptions.Engine.NIO) {
+				new NioServerEngine(this, options.getIoThreads(),
+						options.getOutboundLines()).run(PORT);
+			} else {
+				runClassic();
+			}
+		} finally {
+			for(ClientConnection client : clients) {
+				client.close();
+			}
+			try {
+				writeAheadLog.close();
+			} catch(IOException ioe) {
+				ioe.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Logs how many clients and threads there are every
+	 * <code>statsMillis</code>. Meant to be run on its own thread.
+	 */
+	private void logStatsPeriodically() {
+		try {
+			while(true) {
+				Thread.sleep(options.getStatsMillis());
+				StringBuilder stats = new StringBuilder();
+				stats.append(clients.size()).append(" clients, ");
+				stats.append(java.lang.management.ManagementFactory.getThreadMXBean()
+						.getThreadCount()).append(" platform threads");
+				ClientExecutor executor = clientExecutor;
+				if(executor != null) stats.append("; ").append(executor.describeStats());
+				log(stats);
+			}
+		} catch(InterruptedException ie) {
+			//asked to stop
+		}
+	}
+
+	/**
+	 * Accepts clients forever, handing each one to
+	 * the client executor.
+	 */
+	private void runClassic() {
 		ServerSocket serverSocket = null;
 		try {
-			serverSocket = new ServerSocket(PORT);
-			log("Socket open on port " + PORT + ".");
+			try {
+				clientExecutor = new ClientExecutor(options.getConnectionMode(),
+						options.getPoolThreads(), options.getAcceptQueue());
+			} catch(IllegalStateException ise) {
+				log(ise.getMessage() + " Falling back to a thread per client.");
+				clientExecutor = new ClientExecutor(ClientExecutor.Mode.THREAD, 1, 1);
+			}
+			serverSocket = new ServerSocket();
+			//must be set before binding to get windows over 64K
+			if(options.getReceiveBufferBytes() > 0) {
+				serverSocket.setReceiveBufferSize(options.getReceiveBufferBytes());
+			}
+			serverSocket.bind(new InetSocketAddress(PORT));
+			log("Socket open on port " + PORT + ", one "
+					+ clientExecutor.getMode() + " handler per client.");
 			while(true) {
 				try {
 					Socket clientSocket = serverSocket.accept();
 					log("Client found at " + clientSocket.getRemoteSocketAddress().toString());
-					new Thread(() -> {
+					boolean accepted = clientExecutor.execute(() -> {
 						try {
 							handleClient(clientSocket);
 						} catch(IOException ioe) {
 							//something went wrong
 							ioe.printStackTrace();
 						}
-					}).start();
+					});
+					if(!accepted) {
+						log("Too many clients. Turning away " + clientSocket.getRemoteSocketAddress() + ".");
+						clientSocket.close();
+					}
 				} catch(IOException ioe) {
 					log("Unable to communicate with client.");
 					ioe.printStackTrace();
@@ -270,15 +1161,6 @@ public class Server implements Runnable {
 			} catch(IOException ioe) {
 				ioe.printStackTrace();
 			}
-			for(ClientConnection client : clients) {
-				if(client.socket != null && !client.socket.isClosed()) {
-					try {
-						client.socket.close();
-					} catch(IOException ioe) {
-						ioe.printStackTrace();
-					}
-				}
-			}
 		}
 	}
 
@@ -288,6 +1170,6 @@ public class Server implements Runnable {
 	 * @param args Command line arguments
 	 */
 	public static void main(String[] args) {
-		new Server().run();
+		new Server(ServerOptions.fromSystemProperties()).run();
 	}
 }
@@ -0,0 +1,375 @@
+package com.russellsayshi.stockpile.server;
+
+import com.russellsayshi.stockpile.inventory.LocationTree;
+
+/**
+ * Tunable settings for the server. Read from
+ * system properties so they can be set with
+ * <code>-Dstockpile.something=value</code> on
+ * the command line.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public class ServerOptions {
+	/**
+	 * Which way the server handles client sockets.
+	 *
+	 * @author Russell Coleman
+	 * @version 1.0.0
+	 */
+	public enum Engine {
+		/** a blocking thread for every client */
+		CLASSIC,
+		/** a few selector threads shared by every client */
+		NIO
+	}
+
+	private Engine engine = Engine.CLASSIC;
+	private int ioThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	private ClientExecutor.Mode connectionMode = ClientExecutor.Mode.THREAD;
+	private int poolThreads = 256;
+	private int acceptQueue = 1024;
+	private long statsMillis = 60 * 1000;
+	private int outboundLines = 64 * 1024;
+	private int writeBufferBytes = 64 * 1024;
+	private long flushMillis = 5;
+	private boolean tcpNoDelay = true;
+	private int sendBufferBytes = 0;
+	private int receiveBufferBytes = 0;
+	private long helloMillis = 100;
+	private boolean compressSync = true;
+	private int resyncUpdates = 16 * 1024;
+	private WriteAheadLog.Durability durability = WriteAheadLog.Durability.GROUP;
+	private long groupCommitMillis = 10;
+	private long checkpointMillis = 15 * 60 * 1000;
+	private long checkpointLogBytes = 16 * 1024 * 1024;
+	private String locationSeparator = LocationTree.DEFAULT_SEPARATOR;
+
+	/**
+	 * Constructs options with all of the defaults.
+	 */
+	public ServerOptions() {
+	}
+
+	/**
+	 * Constructs options from the <code>stockpile.*</code>
+	 * system properties, falling back to the defaults for
+	 * anything that is not set.
+	 *
+	 * @return The options
+	 * @throws IllegalArgumentException if a property is set
+	 *  to something that does not make sense.
+	 */
+	public static ServerOptions fromSystemProperties() {
+		ServerOptions options = new ServerOptions();
+		String engine = System.getProperty("stockpile.engine");
+		if(engine != null) {
+			try {
+				options.engine = Engine.valueOf(engine.trim().toUpperCase());
+			} catch(IllegalArgumentException iae) {
+				throw new IllegalArgumentException(engine + " is not a valid engine.");
+			}
+		}
+		options.ioThreads = getInt("stockpile.ioThreads", options.ioThreads);
+		if(options.ioThreads <= 0) {
+			throw new IllegalArgumentException("Need at least one I/O thread.");
+		}
+		String connectionMode = System.getProperty("stockpile.connections");
+		if(connectionMode != null) {
+			try {
+				options.connectionMode = ClientExecutor.Mode.valueOf(
+						connectionMode.trim().toUpperCase());
+			} catch(IllegalArgumentException iae) {
+				throw new IllegalArgumentException(connectionMode + " is not a valid connection mode.");
+			}
+		}
+		options.poolThreads = getInt("stockpile.poolThreads", options.poolThreads);
+		options.acceptQueue = getInt("stockpile.acceptQueue", options.acceptQueue);
+		if(options.poolThreads <= 0 || options.acceptQueue <= 0) {
+			throw new IllegalArgumentException("Pool and accept queue sizes must be positive.");
+		}
+		options.statsMillis = getLong("stockpile.statsMillis", options.statsMillis);
+		options.outboundLines = getInt("stockpile.outboundLines", options.outboundLines);
+		if(options.outboundLines <= 0) {
+			throw new IllegalArgumentException("Outbound queue size must be positive.");
+		}
+		options.writeBufferBytes = getInt("stockpile.writeBufferBytes", options.writeBufferBytes);
+		if(options.writeBufferBytes <= 0) {
+			throw new IllegalArgumentException("Write buffer size must be positive.");
+		}
+		options.flushMillis = getLong("stockpile.flushMillis", options.flushMillis);
+		String tcpNoDelay = System.getProperty("stockpile.tcpNoDelay");
+		if(tcpNoDelay != null) options.tcpNoDelay = Boolean.parseBoolean(tcpNoDelay.trim());
+		options.sendBufferBytes = getInt("stockpile.sendBufferBytes", options.sendBufferBytes);
+		options.receiveBufferBytes = getInt("stockpile.receiveBufferBytes", options.receiveBufferBytes);
+		options.helloMillis = getLong("stockpile.helloMillis", options.helloMillis);
+		if(options.helloMillis <= 0) {
+			throw new IllegalArgumentException("Hello timeout must be positive.");
+		}
+		String compressSync = System.getProperty("stockpile.compressSync");
+		if(compressSync != null) options.compressSync = Boolean.parseBoolean(compressSync.trim());
+		options.resyncUpdates = getInt("stockpile.resyncUpdates", options.resyncUpdates);
+		if(options.resyncUpdates < 0) {
+			throw new IllegalArgumentException("Resync history can not be negative.");
+		}
+		String durability = System.getProperty("stockpile.durability");
+		if(durability != null) {
+			try {
+				options.durability = WriteAheadLog.Durability.valueOf(
+						durability.trim().toUpperCase());
+			} catch(IllegalArgumentException iae) {
+				throw new IllegalArgumentException(durability + " is not a valid durability.");
+			}
+		}
+		options.groupCommitMillis = getLong("stockpile.groupCommitMillis", options.groupCommitMillis);
+		if(options.groupCommitMillis <= 0) {
+			throw new IllegalArgumentException("Group commit interval must be positive.");
+		}
+		options.checkpointMillis = getLong("stockpile.checkpointMillis", options.checkpointMillis);
+		options.checkpointLogBytes = getLong("stockpile.checkpointLogBytes", options.checkpointLogBytes);
+		if(options.checkpointMillis <= 0 || options.checkpointLogBytes <= 0) {
+			throw new IllegalArgumentException("Checkpoint interval and log size must be positive.");
+		}
+		String locationSeparator = System.getProperty("stockpile.locationSeparator");
+		if(locationSeparator != null) {
+			if(locationSeparator.isEmpty()) {
+				throw new IllegalArgumentException("Location separator cannot be empty.");
+			}
+			options.locationSeparator = locationSeparator;
+		}
+		return options;
+	}
+
+	/**
+	 * Reads a long from a system property.
+	 *
+	 * @param property The property name
+	 * @param fallback What to return if it is not set
+	 * @return The value of the property
+	 */
+	static long getLong(String property, long fallback) {
+		String value = System.getProperty(property);
+		if(value == null) return fallback;
+		try {
+			return Long.parseLong(value.trim());
+		} catch(NumberFormatException nfe) {
+			throw new IllegalArgumentException(property + " must be a number.");
+		}
+	}
+
+	/**
+	 * Reads an int from a system property.
+	 *
+	 * @param property The property name
+	 * @param fallback What to return if it is not set
+	 * @return The value of the property
+	 * @throws IllegalArgumentException if it is too big or
+	 *  too small to fit in an int
+	 */
+	static int getInt(String property, int fallback) {
+		long value = getLong(property, fallback);
+		if(value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(property + " is out of range.");
+		}
+		return (int)value;
+	}
+
+	/**
+	 * Which engine handles client sockets.
+	 *
+	 * @return The engine
+	 */
+	public Engine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * How many selector threads the NIO engine runs.
+	 *
+	 * @return The number of I/O threads
+	 */
+	public int getIoThreads() {
+		return ioThreads;
+	}
+
+	/**
+	 * How the classic engine runs its client handlers.
+	 *
+	 * @return The connection mode
+	 */
+	public ClientExecutor.Mode getConnectionMode() {
+		return connectionMode;
+	}
+
+	/**
+	 * How many threads handle clients in POOL mode.
+	 *
+	 * @return The pool size
+	 */
+	public int getPoolThreads() {
+		return poolThreads;
+	}
+
+	/**
+	 * How many clients can wait for a pool thread
+	 * before new ones get turned away.
+	 *
+	 * @return The accept queue size
+	 */
+	public int getAcceptQueue() {
+		return acceptQueue;
+	}
+
+	/**
+	 * How often, in milliseconds, the server logs connection
+	 * and thread counts. 0 turns it off.
+	 *
+	 * @return The stats interval
+	 */
+	public long getStatsMillis() {
+		return statsMillis;
+	}
+
+	/**
+	 * How many lines can wait to go out to a client
+	 * before it gets dropped for being too slow.
+	 *
+	 * @return The outbound queue size
+	 */
+	public int getOutboundLines() {
+		return outboundLines;
+	}
+
+	/**
+	 * How many bytes get buffered on the way to a client
+	 * before they are written out even without a flush.
+	 *
+	 * @return The write buffer size
+	 */
+	public int getWriteBufferBytes() {
+		return writeBufferBytes;
+	}
+
+	/**
+	 * How long, in milliseconds, a steady stream of updates
+	 * can go to a client before being flushed anyway.
+	 *
+	 * @return The longest time between flushes
+	 */
+	public long getFlushMillis() {
+		return flushMillis;
+	}
+
+	/**
+	 * Whether to turn off Nagle's algorithm on client sockets.
+	 * The server does its own coalescing, so it is on by default.
+	 *
+	 * @return The TCP_NODELAY setting
+	 */
+	public boolean getTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	/**
+	 * The socket send buffer size for client sockets.
+	 *
+	 * @return The size in bytes, or 0 for the system default
+	 */
+	public int getSendBufferBytes() {
+		return sendBufferBytes;
+	}
+
+	/**
+	 * The socket receive buffer size for client sockets.
+	 *
+	 * @return The size in bytes, or 0 for the system default
+	 */
+	public int getReceiveBufferBytes() {
+		return receiveBufferBytes;
+	}
+
+	/**
+	 * How long, in milliseconds, to wait for a new client
+	 * to ask for the binary protocol. Clients from before
+	 * the binary protocol never ask, and get the text
+	 * protocol once this runs out.
+	 *
+	 * @return The hello timeout
+	 */
+	public long getHelloMillis() {
+		return helloMillis;
+	}
+
+	/**
+	 * Whether to compress the initial database for
+	 * clients that ask for it.
+	 *
+	 * @return Whether compressed syncs are allowed
+	 */
+	public boolean getCompressSync() {
+		return compressSync;
+	}
+
+	/**
+	 * How many recent updates to remember for clients
+	 * that reconnect, so they can be sent just what they
+	 * missed instead of the whole database.
+	 *
+	 * @return The number of updates, or 0 to always send
+	 *  the whole database
+	 */
+	public int getResyncUpdates() {
+		return resyncUpdates;
+	}
+
+	/**
+	 * How hard the write-ahead log tries to get
+	 * each update onto the disk.
+	 *
+	 * @return The durability mode
+	 */
+	public WriteAheadLog.Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * How often, in milliseconds, the write-ahead log
+	 * flushes batched updates in GROUP and ASYNC mode.
+	 *
+	 * @return The group commit interval
+	 */
+	public long getGroupCommitMillis() {
+		return groupCommitMillis;
+	}
+
+	/**
+	 * How often, in milliseconds, the log gets folded
+	 * into a new snapshot if anything has changed.
+	 *
+	 * @return The checkpoint interval
+	 */
+	public long getCheckpointMillis() {
+		return checkpointMillis;
+	}
+
+	/**
+	 * How big the current log segment can get before
+	 * a checkpoint happens early.
+	 *
+	 * @return The size in bytes
+	 */
+	public long getCheckpointLogBytes() {
+		return checkpointLogBytes;
+	}
+
+	/**
+	 * What splits locations into the parts of their
+	 * paths, for browsing them as a tree.
+	 *
+	 * @return The separator
+	 */
+	public String getLocationSeparator() {
+		return locationSeparator;
+	}
+}
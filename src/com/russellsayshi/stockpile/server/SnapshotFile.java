@@ -0,0 +1,469 @@
+package com.russellsayshi.stockpile.server;
+
+import com.russellsayshi.stockpile.inventory.Entry;
+import com.russellsayshi.stockpile.inventory.EntryStore;
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.IntConsumer;
+
+/**
+ * The binary database snapshot. Reading it is meant to
+ * take little more than paging the file in, so a big
+ * inventory does not hold up starting the server.
+ *
+ * The file is mapped, not read. After the header it has
+ * two tables of strings, every different name and every
+ * different location, each sorted and front coded: a
+ * string only holds how much it shares with the one
+ * before it and the rest. The entries come last, in the
+ * database's order, as the numbers of their name and
+ * location in those tables, their flags and how many
+ * copies there are. Numbers are all written in as few
+ * bytes as they fit in.
+ *
+ * Every table is cut into blocks that start over, with
+ * where each block starts written before them, so the
+ * blocks are decoded at the same time on the common
+ * <code>ForkJoinPool</code>.
+ *
+ * <pre>
+ * magic (8 bytes), version, covered log segment, covered update
+ * names:     count, blocks, block offsets, data length, data
+ * locations: count, blocks, block offsets, data length, data
+ * entries:   count, blocks, block offsets, data length, data
+ * </pre>
+ *
+ * Snapshots from before this one were text, one
+ * absolute representation a line. The server still
+ * reads those, and replaces them with this the first
+ * time it does.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public class SnapshotFile {
+	/**
+	 * The version written, and the only one read.
+	 */
+	public static final int VERSION = 1;
+	//not text, so it can never be mistaken for an old snapshot
+	private static final byte[] MAGIC = {(byte)0x89, 'S', 'T', 'O', 'C', 'K', '\r', '\n'};
+	private static final int STRINGS_PER_BLOCK = 64;
+	private static final int ENTRIES_PER_BLOCK = 4096;
+	//Blocks each thread gets, so threads that finish early can take on more
+	private static final int TASKS_PER_THREAD = 4;
+
+	private final long coveredGeneration;
+	private final long coveredSequence;
+	private final Entry[] entries;
+	private final int[] copies;
+
+	private SnapshotFile(long coveredGeneration, long coveredSequence,
+			Entry[] entries, int[] copies) {
+		this.coveredGeneration = coveredGeneration;
+		this.coveredSequence = coveredSequence;
+		this.entries = entries;
+		this.copies = copies;
+	}
+
+	/**
+	 * Gets the number of the newest log segment
+	 * already folded into the snapshot.
+	 *
+	 * @return The segment number
+	 */
+	public long getCoveredGeneration() {
+		return coveredGeneration;
+	}
+
+	/**
+	 * Gets the number of the newest update already
+	 * folded into the snapshot.
+	 *
+	 * @return The update number
+	 */
+	public long getCoveredSequence() {
+		return coveredSequence;
+	}
+
+	/**
+	 * Counts the entries in the snapshot.
+	 *
+	 * @return The number of entries, counting every copy
+	 */
+	public int size() {
+		int ret = 0;
+		for(int count : copies) ret += count;
+		return ret;
+	}
+
+	/**
+	 * Adds every copy of every entry to a store,
+	 * in the order they were in when written.
+	 *
+	 * @param store The store
+	 */
+	public void addTo(EntryStore store) {
+		for(int i = 0; i < entries.length; i++) {
+			for(int j = copies[i]; j > 0; j--) store.add(entries[i]);
+		}
+	}
+
+	/**
+	 * Checks if a file is a binary snapshot, and not
+	 * an old text one.
+	 *
+	 * @param file The file
+	 * @return Whether it starts like a binary snapshot
+	 * @throws IOException If the file could not be read
+	 */
+	public static boolean isSnapshotFile(File file) throws IOException {
+		byte[] start = new byte[MAGIC.length];
+		try(DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			in.readFully(start);
+		} catch(EOFException eofe) {
+			return false;
+		}
+		return Arrays.equals(start, MAGIC);
+	}
+
+	/**
+	 * Writes a snapshot.
+	 *
+	 * @param out Where to write it. Not closed or flushed.
+	 * @param coveredGeneration Newest log segment the snapshot includes
+	 * @param coveredSequence Newest update the snapshot includes
+	 * @param entries What goes in it, with copies of an
+	 *  entry one after another, like <code>EntryStore.snapshot</code>
+	 * @throws IOException If it could not be written
+	 */
+	public static void write(OutputStream out, long coveredGeneration,
+			long coveredSequence, List<Entry> entries) throws IOException {
+		HashMap<String, Integer> nameIds = new HashMap<>();
+		HashMap<String, Integer> locationIds = new HashMap<>();
+		for(Entry e : entries) {
+			nameIds.putIfAbsent(e.getName(), 0);
+			locationIds.putIfAbsent(e.getLocation(), 0);
+		}
+		String[] names = numbered(nameIds);
+		String[] locations = numbered(locationIds);
+
+		DataOutputStream data = new DataOutputStream(out);
+		data.write(MAGIC);
+		data.writeInt(VERSION);
+		data.writeLong(coveredGeneration);
+		data.writeLong(coveredSequence);
+		writeStrings(data, names);
+		writeStrings(data, locations);
+
+		//copies of an entry are written once, with how many there are
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		List<Integer> offsets = new ArrayList<>();
+		int count = 0;
+		//gone over in order, so a snapshot never has to be laid out in an array
+		Iterator<Entry> it = entries.iterator();
+		Entry next = it.hasNext() ? it.next() : null;
+		while(next != null) {
+			Entry e = next;
+			int run = 1;
+			next = null;
+			while(it.hasNext()) {
+				Entry after = it.next();
+				if(!after.equals(e)) {
+					next = after;
+					break;
+				}
+				run++;
+			}
+			if(count % ENTRIES_PER_BLOCK == 0) offsets.add(body.size());
+			writeNumber(body, nameIds.get(e.getName()));
+			writeNumber(body, locationIds.get(e.getLocation()));
+			writeNumber(body, e.getFlags());
+			writeNumber(body, run);
+			count++;
+		}
+		writeTable(data, count, offsets, body);
+		data.flush();
+	}
+
+	/**
+	 * Numbers some strings in sorted order. Sorting them
+	 * once they are all found is a lot quicker than
+	 * keeping them sorted while finding them.
+	 *
+	 * @param ids The strings, each of which gets its number
+	 * @return The strings, sorted
+	 */
+	private static String[] numbered(HashMap<String, Integer> ids) {
+		String[] ret = ids.keySet().toArray(new String[0]);
+		Arrays.sort(ret);
+		for(int i = 0; i < ret.length; i++) ids.put(ret[i], i);
+		return ret;
+	}
+
+	/**
+	 * Writes a table of sorted strings, front coded.
+	 *
+	 * @param out Where to write it
+	 * @param strings The strings, in order
+	 */
+	private static void writeStrings(DataOutputStream out, String[] strings)
+			throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		List<Integer> offsets = new ArrayList<>();
+		byte[] previous = null;
+		int count = 0;
+		for(String s : strings) {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			int shared = 0;
+			if(count % STRINGS_PER_BLOCK == 0) {
+				//every block starts over, so it can be decoded alone
+				offsets.add(body.size());
+			} else {
+				int most = Math.min(previous.length, bytes.length);
+				while(shared < most && previous[shared] == bytes[shared]) shared++;
+				writeNumber(body, shared);
+			}
+			writeNumber(body, bytes.length - shared);
+			body.write(bytes, shared, bytes.length - shared);
+			previous = bytes;
+			count++;
+		}
+		writeTable(out, count, offsets, body);
+	}
+
+	/**
+	 * Writes a table: how many things are in it, where
+	 * each of its blocks starts, and then the blocks.
+	 */
+	private static void writeTable(DataOutputStream out, int count, List<Integer> offsets,
+			ByteArrayOutputStream body) throws IOException {
+		out.writeInt(count);
+		out.writeInt(offsets.size());
+		for(int offset : offsets) out.writeInt(offset);
+		out.writeInt(body.size());
+		body.writeTo(out);
+	}
+
+	/**
+	 * Writes a number seven bits a byte, lowest first,
+	 * with the top bit set on every byte but the last.
+	 * Negative numbers take five bytes.
+	 */
+	private static void writeNumber(OutputStream out, int number) throws IOException {
+		while((number & ~0x7F) != 0) {
+			out.write((number & 0x7F) | 0x80);
+			number >>>= 7;
+		}
+		out.write(number);
+	}
+
+	/**
+	 * Reads a snapshot.
+	 *
+	 * The file stays mapped until the garbage collector
+	 * gets to it. Windows will not replace a mapped file,
+	 * so a checkpoint soon after startup may fail there
+	 * and be tried again later.
+	 *
+	 * @param file The file
+	 * @return What was in it
+	 * @throws IOException If the file could not be read,
+	 *  is a version this does not know, or is corrupted
+	 */
+	public static SnapshotFile read(File file) throws IOException {
+		MappedByteBuffer map;
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if(channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Snapshot is too big to map.");
+			}
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		try {
+			Cursor cursor = new Cursor(map, 0);
+			byte[] magic = new byte[MAGIC.length];
+			cursor.buffer.get(magic);
+			if(!Arrays.equals(magic, MAGIC)) throw new IOException("Not a snapshot.");
+			int version = cursor.buffer.getInt();
+			if(version != VERSION) {
+				throw new IOException("Snapshot is version " + version + ", expected " + VERSION + ".");
+			}
+			long coveredGeneration = cursor.buffer.getLong();
+			long coveredSequence = cursor.buffer.getLong();
+			String[] names = readStrings(cursor);
+			String[] locations = readStrings(cursor);
+
+			Table table = new Table(cursor, ENTRIES_PER_BLOCK);
+			Entry[] entries = new Entry[table.count];
+			int[] copies = new int[table.count];
+			decodeBlocks(table.offsets.length, block -> {
+				Cursor at = table.block(block);
+				int end = Math.min(table.count, (block + 1) * ENTRIES_PER_BLOCK);
+				for(int i = block * ENTRIES_PER_BLOCK; i < end; i++) {
+					String name = names[at.readNumber()];
+					String location = locations[at.readNumber()];
+					entries[i] = new Entry(name, location, at.readNumber());
+					copies[i] = at.readNumber();
+					if(copies[i] <= 0) throw new IllegalArgumentException();
+				}
+			});
+			return new SnapshotFile(coveredGeneration, coveredSequence, entries, copies);
+		} catch(BufferUnderflowException | IndexOutOfBoundsException
+				| IllegalArgumentException | NegativeArraySizeException e) {
+			throw new IOException("Corrupted snapshot.", e);
+		}
+	}
+
+	/**
+	 * Reads a table of front coded strings.
+	 *
+	 * @param cursor Where the table starts. Moved past it.
+	 * @return The strings, in order
+	 */
+	private static String[] readStrings(Cursor cursor) {
+		Table table = new Table(cursor, STRINGS_PER_BLOCK);
+		String[] ret = new String[table.count];
+		decodeBlocks(table.offsets.length, block -> {
+			Cursor at = table.block(block);
+			byte[] bytes = new byte[64];
+			int length = 0;
+			int end = Math.min(table.count, (block + 1) * STRINGS_PER_BLOCK);
+			for(int i = block * STRINGS_PER_BLOCK; i < end; i++) {
+				int shared = i == block * STRINGS_PER_BLOCK ? 0 : at.readNumber();
+				int rest = at.readNumber();
+				if(shared > length || rest < 0) throw new IllegalArgumentException();
+				length = shared + rest;
+				if(length > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(length, bytes.length * 2));
+				at.buffer.get(bytes, shared, rest);
+				ret[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+			}
+		});
+		return ret;
+	}
+
+	/**
+	 * Decodes every block of a table, spread over the
+	 * common pool when there are enough to be worth it.
+	 * Also used for the chunks of a <code>TextSnapshot</code>.
+	 *
+	 * @param blocks How many blocks there are
+	 * @param decode Decodes one block
+	 */
+	static void decodeBlocks(int blocks, IntConsumer decode) {
+		int threads = ForkJoinPool.getCommonPoolParallelism();
+		if(blocks < 2 || threads < 2) {
+			for(int i = 0; i < blocks; i++) decode.accept(i);
+			return;
+		}
+		int grain = Math.max(1, blocks / (threads * TASKS_PER_THREAD));
+		ForkJoinPool.commonPool().invoke(new BlockTask(decode, 0, blocks, grain));
+	}
+
+	/**
+	 * Decodes a run of blocks, splitting it in half
+	 * until it is small enough.
+	 */
+	private static class BlockTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final IntConsumer decode;
+		private final int from;
+		private final int to;
+		private final int grain;
+
+		BlockTask(IntConsumer decode, int from, int to, int grain) {
+			this.decode = decode;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from <= grain) {
+				for(int i = from; i < to; i++) decode.accept(i);
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new BlockTask(decode, from, middle, grain),
+						new BlockTask(decode, middle, to, grain));
+			}
+		}
+	}
+
+	/**
+	 * The front of a table: how many things are in it
+	 * and where each block starts.
+	 */
+	private static class Table {
+		final int count;
+		final int[] offsets;
+		final ByteBuffer buffer;
+		final int start;
+		final int end;
+
+		/**
+		 * Reads the front of a table and moves the cursor
+		 * past the whole thing.
+		 *
+		 * @param cursor Where the table starts
+		 * @param perBlock How many things each block holds
+		 */
+		Table(Cursor cursor, int perBlock) {
+			count = cursor.buffer.getInt();
+			//everything takes at least a byte, so anything bigger is corrupted
+			if(count < 0 || count > cursor.buffer.remaining()) throw new IllegalArgumentException();
+			offsets = new int[(count + perBlock - 1) / perBlock];
+			if(cursor.buffer.getInt() != offsets.length) throw new IllegalArgumentException();
+			for(int i = 0; i < offsets.length; i++) offsets[i] = cursor.buffer.getInt();
+			int length = cursor.buffer.getInt();
+			if(length < 0) throw new IllegalArgumentException();
+			buffer = cursor.buffer;
+			start = cursor.buffer.position();
+			end = start + length;
+			cursor.buffer.position(end);
+		}
+
+		/**
+		 * Gets a cursor of its own at the start of a block,
+		 * which can not read past the end of the table.
+		 */
+		Cursor block(int block) {
+			ByteBuffer limited = buffer.duplicate();
+			limited.limit(end);
+			return new Cursor(limited, start + offsets[block]);
+		}
+	}
+
+	/**
+	 * Somewhere in the mapped file, for reading along.
+	 * Each thread gets its own.
+	 */
+	private static class Cursor {
+		final ByteBuffer buffer;
+
+		Cursor(ByteBuffer buffer, int position) {
+			this.buffer = buffer.duplicate();
+			this.buffer.position(position);
+		}
+
+		/**
+		 * Reads a number written by <code>writeNumber</code>.
+		 */
+		int readNumber() {
+			int ret = 0;
+			for(int shift = 0; shift < 32; shift += 7) {
+				byte b = buffer.get();
+				ret |= (b & 0x7F) << shift;
+				if(b >= 0) return ret;
+			}
+			throw new IllegalArgumentException();
+		}
+	}
+}
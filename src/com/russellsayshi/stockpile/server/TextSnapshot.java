@@ -0,0 +1,306 @@
+package com.russellsayshi.stockpile.server;
+
+import com.russellsayshi.stockpile.inventory.Entry;
+import com.russellsayshi.stockpile.inventory.EntryStore;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A database snapshot from before they were binary: an
+ * optional header line, then one absolute representation
+ * a line, in the platform's default charset.
+ *
+ * Big files are read using every core. The file is cut
+ * into chunks that each end on a newline, and each chunk
+ * is read, decoded and parsed on the common
+ * <code>ForkJoinPool</code> by itself. The chunks are put
+ * back together in order afterwards, and count their
+ * lines, so a bad line is still reported by its line
+ * number in the whole file. A chunk is read a piece at
+ * a time, so it can be any size; in a charset where a
+ * newline byte might not be a newline, the whole file is
+ * one chunk.
+ *
+ * Lines end the same places they did for the
+ * <code>Scanner</code> this used to be read with, so
+ * the same lines come out with the same numbers.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public class TextSnapshot {
+	//Big enough that a chunk is mostly parsing, small enough to spread out
+	private static final int CHUNK_BYTES = 4 * 1024 * 1024;
+	private static final int SEARCH_BYTES = 64 * 1024;
+	private static final int READ_BYTES = 256 * 1024;
+	//a line longer than a String can hold is no entry anyway
+	private static final int MAX_LINE_CHARS = Integer.MAX_VALUE - 8;
+
+	/**
+	 * What one chunk of the file turned into.
+	 */
+	private static class Chunk {
+		final long start;
+		final long end;
+		final List<Entry> entries = new ArrayList<>();
+		//line numbers from the start of the chunk, from 1
+		final List<Integer> invalidLines = new ArrayList<>();
+		int lines = 0;
+		String header;
+
+		Chunk(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	private final long coveredGeneration;
+	private final long coveredSequence;
+	private final Chunk[] chunks;
+
+	private TextSnapshot(long coveredGeneration, long coveredSequence, Chunk[] chunks) {
+		this.coveredGeneration = coveredGeneration;
+		this.coveredSequence = coveredSequence;
+		this.chunks = chunks;
+	}
+
+	/**
+	 * Gets the number of the newest log segment already
+	 * folded into the snapshot.
+	 *
+	 * @return The segment number, or -1 if the snapshot
+	 *  predates the log
+	 */
+	public long getCoveredGeneration() {
+		return coveredGeneration;
+	}
+
+	/**
+	 * Gets the number of the newest update already
+	 * folded into the snapshot.
+	 *
+	 * @return The update number, or 0 if the snapshot
+	 *  predates numbering
+	 */
+	public long getCoveredSequence() {
+		return coveredSequence;
+	}
+
+	/**
+	 * Gets the lines that could not be parsed.
+	 *
+	 * @return Their line numbers in the file, from 1, in order
+	 */
+	public List<Integer> getInvalidLines() {
+		List<Integer> ret = new ArrayList<>();
+		int linesBefore = 0;
+		for(Chunk chunk : chunks) {
+			for(int line : chunk.invalidLines) ret.add(linesBefore + line);
+			linesBefore += chunk.lines;
+		}
+		return ret;
+	}
+
+	/**
+	 * Adds every entry to a store, in file order.
+	 *
+	 * @param store The store
+	 */
+	public void addTo(EntryStore store) {
+		for(Chunk chunk : chunks) {
+			for(Entry e : chunk.entries) store.add(e);
+		}
+	}
+
+	/**
+	 * Reads a text snapshot.
+	 *
+	 * @param file The file
+	 * @return What was in it
+	 * @throws IOException If the file could not be read,
+	 *  or its header is corrupted
+	 */
+	public static TextSnapshot read(File file) throws IOException {
+		Charset charset = Charset.defaultCharset();
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			Chunk[] chunks = split(channel, charset);
+			try {
+				//positional reads leave the channel alone, so every thread can share it
+				SnapshotFile.decodeBlocks(chunks.length, i -> {
+					try {
+						parse(channel, charset, chunks[i], i == 0);
+					} catch(IOException ioe) {
+						throw new UncheckedIOException(ioe);
+					}
+				});
+			} catch(UncheckedIOException uioe) {
+				throw uioe.getCause();
+			}
+			long coveredGeneration = -1;
+			long coveredSequence = 0;
+			String header = chunks.length == 0 ? null : chunks[0].header;
+			if(header != null) {
+				try {
+					String[] parts = header.substring(Checkpointer.HEADER_PREFIX.length()).split(" ");
+					coveredGeneration = Long.parseLong(parts[0]);
+					if(parts.length > 1 && parts[1].startsWith(Checkpointer.SEQUENCE_PREFIX)) {
+						coveredSequence = Long.parseLong(
+								parts[1].substring(Checkpointer.SEQUENCE_PREFIX.length()));
+					}
+				} catch(NumberFormatException nfe) {
+					throw new IOException("Corrupted snapshot header.");
+				}
+			}
+			return new TextSnapshot(coveredGeneration, coveredSequence, chunks);
+		}
+	}
+
+	/**
+	 * Cuts a file into chunks that each end just after
+	 * a newline, or at the end of the file.
+	 *
+	 * @param channel The file
+	 * @param charset What it is written in
+	 * @return The chunks, in order
+	 */
+	private static Chunk[] split(FileChannel channel, Charset charset) throws IOException {
+		long size = channel.size();
+		List<Chunk> ret = new ArrayList<>();
+		//a newline byte can only be a newline if the charset writes it alone
+		boolean cuttable = Arrays.equals("\n".getBytes(charset), new byte[] {'\n'});
+		long start = 0;
+		while(start < size) {
+			long end = cuttable ? nextLineStart(channel, start + CHUNK_BYTES) : size;
+			ret.add(new Chunk(start, end));
+			start = end;
+		}
+		return ret.toArray(new Chunk[0]);
+	}
+
+	/**
+	 * Finds where the line after some spot starts.
+	 *
+	 * @param channel The file
+	 * @param from The spot
+	 * @return Just after the next newline, or the end of the file
+	 */
+	private static long nextLineStart(FileChannel channel, long from) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(SEARCH_BYTES);
+		long position = from;
+		while(true) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if(read <= 0) return channel.size();
+			for(int i = 0; i < read; i++) {
+				if(buffer.get(i) == '\n') return position + i + 1;
+			}
+			position += read;
+		}
+	}
+
+	/**
+	 * Reads, decodes and parses one chunk, a piece at a
+	 * time, so a chunk can be as big as the whole file.
+	 *
+	 * @param channel The file
+	 * @param charset What it is written in
+	 * @param chunk The chunk, which gets filled in
+	 * @param first Whether it is the first chunk, which
+	 *  may start with the header
+	 */
+	private static void parse(FileChannel channel, Charset charset, Chunk chunk,
+			boolean first) throws IOException {
+		//bad bytes become replacement characters, the same as with a Scanner
+		CharsetDecoder decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		ByteBuffer bytes = ByteBuffer.allocate(READ_BYTES);
+		//holds whole lines plus the start of the next, and grows for long lines
+		CharBuffer chars = CharBuffer.allocate(READ_BYTES);
+		long position = chunk.start;
+		boolean decoded = false;
+		boolean done = false;
+		while(!done) {
+			if(position < chunk.end) {
+				bytes.limit((int)Math.min(bytes.capacity(), bytes.position() + (chunk.end - position)));
+				int read = channel.read(bytes, position);
+				if(read < 0) throw new EOFException("Snapshot got shorter while being read.");
+				position += read;
+				bytes.limit(bytes.capacity());
+			}
+			boolean allRead = position == chunk.end;
+			if(!decoded) {
+				bytes.flip();
+				CoderResult result = decoder.decode(bytes, chars, allRead);
+				bytes.compact();
+				decoded = allRead && result.isUnderflow();
+			}
+			if(decoded) done = decoder.flush(chars).isUnderflow();
+			chars.flip();
+			parseLines(chars, chunk, first, done);
+			chars.compact();
+			if(!chars.hasRemaining()) {
+				//one line fills the whole buffer
+				if(chars.capacity() > MAX_LINE_CHARS / 2) {
+					throw new IOException("Snapshot has a line too long to read.");
+				}
+				CharBuffer bigger = CharBuffer.allocate(chars.capacity() * 2);
+				chars.flip();
+				bigger.put(chars);
+				chars = bigger;
+			}
+		}
+	}
+
+	/**
+	 * Parses the whole lines at the start of a buffer.
+	 *
+	 * @param chars The decoded text, which is left at the
+	 *  start of the first line not parsed
+	 * @param chunk The chunk the lines are from
+	 * @param first Whether it is the first chunk
+	 * @param last Whether the text runs to the end of the
+	 *  chunk, so the last line is whole even without a newline
+	 */
+	private static void parseLines(CharBuffer chars, Chunk chunk, boolean first, boolean last) {
+		int length = chars.remaining();
+		int lineStart = 0;
+		for(int i = 0; i <= length; i++) {
+			if(i == length) {
+				//the last line of the file may not end in a newline
+				if(!last || lineStart == length) break;
+			} else {
+				char c = chars.charAt(i);
+				if(c != '\n' && c != '\r' && c != '\u2028' && c != '\u2029' && c != '\u0085') continue;
+				//a \r at the end might be the start of a \r\n
+				if(c == '\r' && i == length - 1 && !last) break;
+			}
+			chunk.lines++;
+			if(first && chunk.lines == 1 && startsWith(chars, lineStart, i, Checkpointer.HEADER_PREFIX)) {
+				chunk.header = chars.subSequence(lineStart, i).toString();
+			} else {
+				try {
+					chunk.entries.add(Entry.parse(chars, lineStart, i));
+				} catch(IllegalArgumentException iae) {
+					chunk.invalidLines.add(chunk.lines);
+				}
+			}
+			if(i < length - 1 && chars.charAt(i) == '\r' && chars.charAt(i + 1) == '\n') i++;
+			lineStart = i + 1;
+		}
+		chars.position(chars.position() + Math.min(lineStart, length));
+	}
+
+	private static boolean startsWith(CharSequence chars, int start, int end, String prefix) {
+		if(end - start < prefix.length()) return false;
+		for(int i = 0; i < prefix.length(); i++) {
+			if(chars.charAt(start + i) != prefix.charAt(i)) return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,164 @@
+package com.russellsayshi.stockpile.server;
+
+import com.russellsayshi.stockpile.inventory.EntryUpdate;
+import com.russellsayshi.stockpile.protocol.QueryResults;
+import com.russellsayshi.stockpile.protocol.WireProtocol;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * One update or batch of updates on its way out to
+ * clients, ready to be sent in either protocol. The
+ * binary frame is only built once, the first time a
+ * binary client needs it, and then shared by every
+ * other binary client.
+ *
+ * Frames remember which client sent them, if it asked
+ * to resume, so it can be told its own update went
+ * through without being sent the update itself, even
+ * after it reconnects.
+ *
+ * A page of search results travels in a frame too, so that
+ * it takes its place in line with the updates around it,
+ * but only ever goes to the client that searched. The frame
+ * can be queued before the search is done, to keep its
+ * place while the search runs; it is not sent until it is
+ * ready, and neither is anything behind it.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+class UpdateFrame {
+	private final String text;
+	private final List<EntryUpdate> updates;
+	private final String origin;
+	private final CompletableFuture<QueryResults> results;
+	private volatile byte[] binary;
+	private volatile String lines;
+
+	/**
+	 * Constructs a frame.
+	 *
+	 * @param text The update line or batch frame for
+	 *  text clients, without a newline on the end
+	 * @param updates The updates themselves
+	 * @param origin The id of the client that sent them,
+	 *  or null if it did not give one
+	 */
+	UpdateFrame(String text, List<EntryUpdate> updates, String origin) {
+		this.text = text;
+		this.updates = updates;
+		this.origin = origin;
+		this.results = null;
+	}
+
+	/**
+	 * Constructs a frame for a page of search results.
+	 *
+	 * @param results The page
+	 */
+	UpdateFrame(QueryResults results) {
+		this();
+		this.results.complete(results);
+	}
+
+	/**
+	 * Constructs a frame for a page of search results
+	 * still being found. Set them with <code>setResults</code>.
+	 */
+	UpdateFrame() {
+		this.text = null;
+		this.updates = null;
+		this.origin = null;
+		this.results = new CompletableFuture<>();
+	}
+
+	/**
+	 * Fills in the results of a frame made before they
+	 * were found. Safe to call from any thread.
+	 *
+	 * @param results The page
+	 */
+	void setResults(QueryResults results) {
+		this.results.complete(results);
+	}
+
+	/**
+	 * Checks whether the frame can be sent yet.
+	 *
+	 * @return False if it is waiting on search results
+	 */
+	boolean isReady() {
+		return results == null || results.isDone();
+	}
+
+	/**
+	 * Waits until the frame can be sent.
+	 *
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	void awaitReady() throws InterruptedException {
+		if(results == null) return;
+		try {
+			results.get();
+		} catch(ExecutionException ee) {
+			//only ever completed normally
+		}
+	}
+
+	/**
+	 * Checks whether a client sent this frame.
+	 *
+	 * @param clientId The id the client gave, or null
+	 * @return Whether it did, always false without an id
+	 */
+	boolean isFrom(String clientId) {
+		return clientId != null && clientId.equals(origin);
+	}
+
+	/**
+	 * Gets the frame for text clients. Waits for search
+	 * results, so check <code>isReady</code> first.
+	 *
+	 * @return The line or lines, without a newline on the end
+	 */
+	String getText() {
+		return results != null ? results.join().toText() : text;
+	}
+
+	/**
+	 * Gets the frame for text clients that do not take
+	 * batches: a batch is just its update lines, with no
+	 * header in front. Waits for search results, so check
+	 * <code>isReady</code> first.
+	 *
+	 * @return The line or lines, without a newline on the end
+	 */
+	String getLines() {
+		if(results != null || !DatabaseUpdater.isBatchHeader(text)) return getText();
+		String ret = lines;
+		if(ret == null) {
+			//two threads racing here just cut it twice
+			ret = text.substring(text.indexOf('\n') + 1);
+			lines = ret;
+		}
+		return ret;
+	}
+
+	/**
+	 * Gets the frame for binary clients. Waits for search
+	 * results, so check <code>isReady</code> first.
+	 *
+	 * @return The frame, length and all. Do not modify it.
+	 */
+	byte[] getBinary() {
+		byte[] ret = binary;
+		if(ret == null) {
+			//two threads racing here just build it twice
+			ret = results != null ? results.join().toFrame() : WireProtocol.toFrame(updates);
+			binary = ret;
+		}
+		return ret;
+	}
+}
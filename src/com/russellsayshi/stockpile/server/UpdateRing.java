@@ -0,0 +1,82 @@
+package com.russellsayshi.stockpile.server;
+
+import java.util.*;
+
+/**
+ * Numbers every update the server applies and remembers
+ * the most recent ones, so that a client that drops off
+ * for a moment can be sent just what it missed.
+ *
+ * Numbers start after whatever the last snapshot was at
+ * and go up by one for every log record, so a batch gets
+ * one number for the lot. Once the ring is full the oldest
+ * update is forgotten for every new one.
+ *
+ * Not thread safe. The server only touches it with the
+ * database lock held, which also keeps the numbers in the
+ * same order as the log and the broadcasts.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+class UpdateRing {
+	private final UpdateFrame[] ring;
+	private long last;
+	//how many of the newest numbers are in the ring
+	private int size = 0;
+
+	/**
+	 * Constructs an empty ring.
+	 *
+	 * @param capacity How many updates to remember, or
+	 *  0 to just number them
+	 * @param last The number of the newest update already
+	 *  applied, which the next one follows
+	 */
+	UpdateRing(int capacity, long last) {
+		this.ring = new UpdateFrame[capacity];
+		this.last = last;
+	}
+
+	/**
+	 * Numbers an update and remembers it.
+	 *
+	 * @param frame The update
+	 * @return Its number
+	 */
+	long add(UpdateFrame frame) {
+		last++;
+		if(ring.length > 0) {
+			ring[(int)(last % ring.length)] = frame;
+			if(size < ring.length) size++;
+		}
+		return last;
+	}
+
+	/**
+	 * Gets the number of the newest update.
+	 *
+	 * @return The number
+	 */
+	long last() {
+		return last;
+	}
+
+	/**
+	 * Gets every update after a given one, oldest first.
+	 *
+	 * @param sequence The number of the last update the
+	 *  client has
+	 * @return The updates, or null if some of them have
+	 *  already been forgotten, or the client claims to have
+	 *  updates that never happened
+	 */
+	List<UpdateFrame> since(long sequence) {
+		if(sequence > last || sequence < last - size) return null;
+		List<UpdateFrame> ret = new ArrayList<>((int)(last - sequence));
+		for(long i = sequence + 1; i <= last; i++) {
+			ret.add(ring[(int)(i % ring.length)]);
+		}
+		return ret;
+	}
+}
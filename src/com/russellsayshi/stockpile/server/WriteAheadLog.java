@@ -0,0 +1,571 @@
+package com.russellsayshi.stockpile.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.*;
+
+/**
+ * Append-only log of every database update command
+ * the server has accepted, one command per line.
+ * Replaying the log on top of the last snapshot gives
+ * back the database as it was, so the snapshot itself
+ * only has to be rewritten once in a while.
+ *
+ * The log is split into numbered segments
+ * (<code>entries.log.1</code>, <code>entries.log.2</code>...).
+ * Only the newest segment is ever written to; a checkpoint
+ * rotates to a fresh one so that the old ones can be
+ * deleted once the snapshot covers them.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public class WriteAheadLog implements Closeable {
+	/**
+	 * How hard the log tries to get an update
+	 * onto the disk before letting the caller go.
+	 *
+	 * @author Russell Coleman
+	 * @version 1.0.0
+	 */
+	public enum Durability {
+		/** fsync after every single command */
+		SYNC,
+		/** batch commands, fsync the batch every so often, and wait for it */
+		GROUP,
+		/** batch commands and write them every so often, never wait */
+		ASYNC
+	}
+
+	private final File baseFile;
+	private final Durability durability;
+	private final long groupCommitMillis;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition committed = lock.newCondition();
+	private final Condition wakeUp = lock.newCondition();
+	private FileChannel channel;
+	private long generation;
+	private long segmentBytes = 0; //bytes appended to the current segment
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	//A rotated segment whose last batch still has to be
+	//written out by the committer before it can be closed.
+	private FileChannel retiredChannel;
+	private ByteArrayOutputStream retiredPending;
+	private long appendedTicket = 0; //last ticket handed out
+	private long durableTicket = 0; //last ticket that made it to disk
+	private IOException failure; //set if the committer, or a SYNC append, ever fails
+	//callbacks from whenDurable still waiting on their tickets
+	private final List<Waiter> waiters = new ArrayList<>();
+	private volatile boolean closed = false;
+	private Thread committerThread;
+
+	/**
+	 * Someone that wants to hear when a ticket is durable.
+	 */
+	private static class Waiter {
+		final long ticket;
+		final Consumer<IOException> callback;
+
+		Waiter(long ticket, Consumer<IOException> callback) {
+			this.ticket = ticket;
+			this.callback = callback;
+		}
+	}
+
+	/**
+	 * Opens a brand new log segment for appending.
+	 * Segments from earlier runs are never appended to,
+	 * so a half written command left by a crash can not
+	 * get glued onto a new one.
+	 *
+	 * @param baseFile The log file name that segment
+	 *  numbers are appended to
+	 * @param generation The number of the segment to start.
+	 *  Must be newer than any segment already on disk.
+	 * @param durability The durability mode
+	 * @param groupCommitMillis How often to commit batches
+	 *  in GROUP and ASYNC mode
+	 * @throws IOException If the file could not be opened
+	 */
+	public WriteAheadLog(File baseFile, long generation, Durability durability,
+			long groupCommitMillis) throws IOException {
+		this.baseFile = baseFile;
+		this.durability = durability;
+		this.groupCommitMillis = groupCommitMillis;
+		this.generation = generation;
+		this.channel = openSegment(generation);
+		if(durability != Durability.SYNC) {
+			committerThread = new Thread(() -> commitPeriodically(), "stockpile-wal-committer");
+			committerThread.setDaemon(true);
+			committerThread.start();
+		}
+	}
+
+	/**
+	 * Gets the file a given log segment lives in.
+	 *
+	 * @param baseFile The log file name
+	 * @param generation The segment number
+	 * @return The segment file
+	 */
+	public static File segmentFile(File baseFile, long generation) {
+		return new File(baseFile.getPath() + "." + generation);
+	}
+
+	/**
+	 * Lists the segment numbers that exist on disk,
+	 * oldest first.
+	 *
+	 * @param baseFile The log file name
+	 * @return The segment numbers
+	 */
+	public static List<Long> generations(File baseFile) {
+		File directory = baseFile.getAbsoluteFile().getParentFile();
+		String prefix = baseFile.getName() + ".";
+		List<Long> ret = new ArrayList<>();
+		String[] names = directory == null ? null : directory.list();
+		if(names == null) return ret;
+		for(String name : names) {
+			if(!name.startsWith(prefix)) continue;
+			try {
+				ret.add(Long.parseLong(name.substring(prefix.length())));
+			} catch(NumberFormatException nfe) {
+				//not one of ours
+			}
+		}
+		Collections.sort(ret);
+		return ret;
+	}
+
+	/**
+	 * Reads every complete command out of a log file,
+	 * in order. A trailing command with no newline is
+	 * the remains of a crash and is skipped.
+	 *
+	 * @param file The log file
+	 * @param consumer Gets called with each command
+	 * @return How many bytes of the file hold complete commands
+	 * @throws IOException If the file could not be read
+	 */
+	public static long replay(File file, Consumer<String> consumer) throws IOException {
+		if(!file.exists()) return 0;
+		long validLength = 0;
+		long position = 0;
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		try(InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			int read;
+			while((read = in.read()) != -1) {
+				position++;
+				if(read == '\n') {
+					consumer.accept(new String(line.toByteArray(), StandardCharsets.UTF_8));
+					line.reset();
+					validLength = position;
+				} else {
+					line.write(read);
+				}
+			}
+		}
+		return validLength;
+	}
+
+	/**
+	 * Creates the file for a segment and opens it.
+	 *
+	 * @param generation The segment number
+	 * @return The channel to write to
+	 */
+	private FileChannel openSegment(long generation) throws IOException {
+		return FileChannel.open(segmentFile(baseFile, generation).toPath(),
+				StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Appends a command to the log. Callers that need the
+	 * log order to match the order commands are applied in
+	 * should hold the database lock while calling this.
+	 *
+	 * In SYNC mode the command is on disk by the time this
+	 * returns. Otherwise it is only queued; pass the returned
+	 * ticket to <code>awaitDurable</code> (preferably after
+	 * letting go of any locks) to wait for it.
+	 *
+	 * @param command The command to log. Batch frames (which
+	 *  span several lines) go in with a single append.
+	 * @return A ticket for this command
+	 * @throws IOException If the log could not be written
+	 */
+	public long append(String command) throws IOException {
+		byte[] bytes = (command + "\n").getBytes(StandardCharsets.UTF_8);
+		lock.lock();
+		try {
+			checkUsable();
+			appendedTicket++;
+			segmentBytes += bytes.length;
+			if(durability == Durability.SYNC) {
+				ByteBuffer buffer = ByteBuffer.wrap(bytes);
+				try {
+					while(buffer.hasRemaining()) channel.write(buffer);
+					channel.force(false);
+				} catch(IOException ioe) {
+					//part of it may be on disk, so nothing more can go after it
+					failure = ioe;
+					throw ioe;
+				}
+				durableTicket = appendedTicket;
+			} else {
+				pending.write(bytes, 0, bytes.length);
+			}
+			return appendedTicket;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the command with the given ticket
+	 * is as durable as this log promises. Returns right
+	 * away in SYNC and ASYNC mode.
+	 *
+	 * @param ticket The ticket from <code>append</code>
+	 * @throws IOException If the log failed before the
+	 *  command got written
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public void awaitDurable(long ticket) throws IOException, InterruptedException {
+		if(durability != Durability.GROUP) return;
+		lock.lock();
+		try {
+			while(durableTicket < ticket) {
+				//close() commits whatever is pending, so only
+				//a failure means the ticket will never arrive
+				if(failure != null) throw new IOException("Write-ahead log failed.", failure);
+				committed.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Checks, without waiting, if the command with the given
+	 * ticket is as durable as this log promises. Always true
+	 * in SYNC and ASYNC mode.
+	 *
+	 * @param ticket The ticket from <code>append</code>
+	 * @return Whether it is
+	 */
+	public boolean isDurable(long ticket) {
+		if(durability != Durability.GROUP) return true;
+		lock.lock();
+		try {
+			return durableTicket >= ticket;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Calls back once the command with the given ticket is
+	 * as durable as this log promises, for callers that can
+	 * not block in <code>awaitDurable</code>. If it already
+	 * is, the callback is run right away. Otherwise it is run
+	 * by the committer thread, so it should be quick.
+	 *
+	 * @param ticket The ticket from <code>append</code>
+	 * @param callback Gets null once the command is durable,
+	 *  or what went wrong if the log failed before it got written
+	 */
+	public void whenDurable(long ticket, Consumer<IOException> callback) {
+		IOException failed = null;
+		lock.lock();
+		try {
+			if(durability == Durability.GROUP && durableTicket < ticket) {
+				if(failure == null) {
+					waiters.add(new Waiter(ticket, callback));
+					return;
+				}
+				failed = new IOException("Write-ahead log failed.", failure);
+			}
+		} finally {
+			lock.unlock();
+		}
+		callback.accept(failed);
+	}
+
+	/**
+	 * Takes out every waiter whose ticket is durable,
+	 * or every one at all if the log has failed. Only
+	 * call with the lock held.
+	 *
+	 * @return The waiters to call back
+	 */
+	private List<Waiter> takeReadyWaiters() {
+		if(waiters.isEmpty()) return Collections.emptyList();
+		List<Waiter> ret = new ArrayList<>();
+		Iterator<Waiter> it = waiters.iterator();
+		while(it.hasNext()) {
+			Waiter waiter = it.next();
+			if(failure != null || waiter.ticket <= durableTicket) {
+				ret.add(waiter);
+				it.remove();
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Calls back waiters taken out by <code>takeReadyWaiters</code>.
+	 * Only call without the lock held.
+	 *
+	 * @param ready The waiters
+	 * @param failed What went wrong, or null if their tickets are durable
+	 */
+	private static void callBack(List<Waiter> ready, IOException failed) {
+		for(Waiter waiter : ready) {
+			waiter.callback.accept(failed == null
+					? null
+					: new IOException("Write-ahead log failed.", failed));
+		}
+	}
+
+	/**
+	 * Starts a new segment. Everything appended before this
+	 * call is in the old segment and everything after it is in
+	 * the new one, so callers should hold the database lock to
+	 * line the switch up with a copy of the database.
+	 * Does no fsyncing of its own.
+	 *
+	 * @return The number of the segment that was retired
+	 * @throws IOException If the new segment could not be created
+	 */
+	public long rotate() throws IOException {
+		lock.lock();
+		try {
+			checkUsable();
+			FileChannel next = openSegment(generation + 1);
+			if(durability == Durability.SYNC) {
+				//everything is already on disk
+				channel.close();
+			} else {
+				//the committer writes out and closes the old segment
+				retiredChannel = channel;
+				retiredPending = pending;
+				pending = new ByteArrayOutputStream();
+				wakeUp.signalAll();
+			}
+			channel = next;
+			segmentBytes = 0;
+			return generation++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the segment retired by the last
+	 * <code>rotate</code> has been written out and closed.
+	 *
+	 * @throws IOException If the log failed first
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public void awaitRetired() throws IOException, InterruptedException {
+		lock.lock();
+		try {
+			while(retiredChannel != null) {
+				if(failure != null) throw new IOException("Write-ahead log failed.", failure);
+				committed.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * How many bytes have been appended to the
+	 * current segment so far.
+	 *
+	 * @return The segment size in bytes
+	 */
+	public long getSegmentBytes() {
+		lock.lock();
+		try {
+			return segmentBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Throws if the log can no longer be written to.
+	 * Only call with the lock held.
+	 */
+	private void checkUsable() throws IOException {
+		if(failure != null) throw new IOException("Write-ahead log failed.", failure);
+		if(closed) throw new IOException("Write-ahead log is closed.");
+	}
+
+	/**
+	 * Writes a batch of commands to a channel.
+	 *
+	 * @param to Where to write
+	 * @param batch What to write
+	 * @param force Whether or not to fsync afterwards
+	 */
+	private static void writeBatch(FileChannel to, ByteArrayOutputStream batch,
+			boolean force) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+		while(buffer.hasRemaining()) to.write(buffer);
+		if(force) to.force(false);
+	}
+
+	/**
+	 * Writes out whatever commands are queued, in one go,
+	 * finishing off a retired segment first if there is one.
+	 *
+	 * @param force Whether or not to fsync afterwards
+	 */
+	private void commitPending(boolean force) throws IOException {
+		FileChannel retired;
+		ByteArrayOutputStream retiredBatch;
+		FileChannel current;
+		ByteArrayOutputStream batch;
+		long batchTicket;
+		lock.lock();
+		try {
+			retired = retiredChannel;
+			retiredBatch = retiredPending;
+			if(retired == null && pending.size() == 0) return;
+			current = channel;
+			batch = pending;
+			batchTicket = appendedTicket;
+			pending = new ByteArrayOutputStream();
+		} finally {
+			lock.unlock();
+		}
+		//Only the committer thread (or close, after it is done)
+		//writes to the channels outside of SYNC mode, so no lock
+		//is needed for the I/O itself.
+		if(retired != null) {
+			writeBatch(retired, retiredBatch, force);
+			retired.close();
+		}
+		if(batch.size() > 0) writeBatch(current, batch, force);
+		List<Waiter> ready;
+		lock.lock();
+		try {
+			if(retired != null) {
+				retiredChannel = null;
+				retiredPending = null;
+			}
+			durableTicket = batchTicket;
+			committed.signalAll();
+			ready = takeReadyWaiters();
+		} finally {
+			lock.unlock();
+		}
+		callBack(ready, null);
+	}
+
+	/**
+	 * Marks the log as broken and wakes up
+	 * anyone waiting on a ticket.
+	 *
+	 * @param ioe What went wrong
+	 */
+	private void fail(IOException ioe) {
+		List<Waiter> ready;
+		lock.lock();
+		try {
+			failure = ioe;
+			committed.signalAll();
+			ready = takeReadyWaiters();
+		} finally {
+			lock.unlock();
+		}
+		callBack(ready, ioe);
+	}
+
+	/**
+	 * Commits batched commands every <code>groupCommitMillis</code>.
+	 * Run on its own thread in GROUP and ASYNC mode.
+	 */
+	private void commitPeriodically() {
+		try {
+			while(!closed) {
+				commitPending(durability == Durability.GROUP);
+				//Not Thread.sleep: interrupting a thread in the middle
+				//of FileChannel I/O closes the channel, so close()
+				//and rotate() wake us up with a signal instead.
+				lock.lock();
+				try {
+					if(!closed && retiredChannel == null) {
+						wakeUp.await(groupCommitMillis, TimeUnit.MILLISECONDS);
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+		} catch(IOException ioe) {
+			fail(ioe);
+			ioe.printStackTrace();
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Writes out anything still queued, fsyncs,
+	 * and closes the log. Closing again does nothing
+	 * but throw again if the log failed.
+	 *
+	 * @throws IOException If the last batch could not be
+	 *  written, or the log had already failed so that some
+	 *  updates never made it
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if(closed) {
+				if(failure != null) throw new IOException("Write-ahead log failed.", failure);
+				return;
+			}
+			closed = true;
+			wakeUp.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		//The committer may be in the middle of writing a batch.
+		//The last commit and closing the channel have to wait
+		//for it to finish, however long that takes, or they
+		//would race it on the channel.
+		boolean interrupted = false;
+		while(committerThread != null && committerThread.isAlive()) {
+			try {
+				committerThread.join();
+			} catch(InterruptedException ie) {
+				interrupted = true;
+			}
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+		try {
+			if(failure != null) throw new IOException("Write-ahead log failed.", failure);
+			try {
+				commitPending(true);
+				channel.force(true);
+			} catch(IOException ioe) {
+				fail(ioe);
+				throw ioe;
+			}
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,12 @@
+@echo off
+call build.bat
+if not exist build-test mkdir build-test
+javac -cp build -d build-test test\com\russellsayshi\stockpile\inventory\*.java test\com\russellsayshi\stockpile\protocol\*.java test\com\russellsayshi\stockpile\server\*.java || exit /b 1
+java -cp build;build-test com.russellsayshi.stockpile.inventory.ColumnarEntryListTest || exit /b 1
+java -cp build;build-test com.russellsayshi.stockpile.inventory.EntryTest || exit /b 1
+java -cp build;build-test com.russellsayshi.stockpile.inventory.EntryStoreTest || exit /b 1
+java -cp build;build-test com.russellsayshi.stockpile.inventory.PrefixIndexTest || exit /b 1
+java -cp build;build-test com.russellsayshi.stockpile.protocol.EntryCodecTest || exit /b 1
+java -cp build;build-test com.russellsayshi.stockpile.server.RestartTest || exit /b 1
+java -cp build;build-test com.russellsayshi.stockpile.server.UpdateRingTest || exit /b 1
+java -cp build;build-test com.russellsayshi.stockpile.server.WriteAheadLogTest || exit /b 1
@@ -0,0 +1,10 @@
+#!/bin/bash
+bash build.sh || exit 1
+mkdir -p build-test
+cd test
+javac -cp ../build -d ../build-test com/russellsayshi/stockpile/*/*.java || exit 1
+cd ..
+for test in test/com/russellsayshi/stockpile/*/*Test.java; do
+	test=${test#test/}
+	java -cp build:build-test "$(echo "${test%.java}" | tr / .)" || exit 1
+done
@@ -0,0 +1,148 @@
+package com.russellsayshi.stockpile.inventory;
+
+import java.util.*;
+
+/**
+ * Checks a <code>ColumnarEntryList</code> against a plain
+ * list through random changes, and that searching its
+ * columns finds exactly what checking each entry does.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public class ColumnarEntryListTest {
+	private static final String[] NAMES = {"bolt", "Bolt", "\u00dcber Nut", "\u65e5\u672c", "washer", "",
+			"missing bolt", "\ud83d\udce6 box"};
+	private static final String[] LOCATIONS = {"Shelf 1", "shelf 1", "Bin \u00c4", "", "drawer"};
+
+	/**
+	 * Runs every check, throwing on the first failure.
+	 *
+	 * @param args Not used
+	 */
+	public static void main(String[] args) {
+		for(long seed = 0; seed < 10; seed++) randomChanges(seed);
+		searchesColumns();
+		viewsStayPut();
+		System.out.println("ColumnarEntryListTest passed.");
+	}
+
+	/**
+	 * Makes random changes to a columnar list and a plain
+	 * one side by side, often enough to pack the names.
+	 *
+	 * @param seed The random seed
+	 */
+	private static void randomChanges(long seed) {
+		Random random = new Random(seed);
+		ColumnarEntryList columns = new ColumnarEntryList();
+		List<Entry> plain = new ArrayList<>();
+		for(int change = 0; change < 20000; change++) {
+			int what = random.nextInt(100);
+			if(what < 50 || plain.isEmpty()) {
+				int at = random.nextInt(plain.size() + 1);
+				Entry e = randomEntry(random);
+				columns.add(at, e);
+				plain.add(at, e);
+			} else if(what < 70) {
+				int at = random.nextInt(plain.size());
+				Entry e = randomEntry(random);
+				check(columns.set(at, e).equals(plain.set(at, e)), "set gives back the old entry");
+			} else if(what < 99) {
+				int at = random.nextInt(plain.size());
+				check(columns.remove(at).equals(plain.remove(at)), "remove gives back the entry");
+			} else {
+				columns.clear();
+				plain.clear();
+			}
+			if(change % 500 == 0) compare(columns, plain);
+		}
+		compare(columns, plain);
+	}
+
+	/**
+	 * Searching the columns finds the same entries in the
+	 * same order as checking every entry of a plain list,
+	 * for lists small enough to search on one thread and
+	 * big enough to be split up where there are more.
+	 */
+	private static void searchesColumns() {
+		searchesColumns(1000);
+		searchesColumns(50000);
+	}
+
+	/**
+	 * Searches a list of random entries both ways.
+	 *
+	 * @param size How many entries
+	 */
+	private static void searchesColumns(int size) {
+		Random random = new Random(size);
+		List<Entry> plain = new ArrayList<>();
+		for(int i = 0; i < size; i++) plain.add(randomEntry(random));
+		ColumnarEntryList columns = new ColumnarEntryList(plain);
+		String[] queries = {"", "b", "bo", "bolt", "\u00fcber", "\u65e5", "shelf", "bin \u00e4", "missing",
+				"t s", "\ud83d\udce6", "nothing like it", "1"};
+		for(String query : queries) {
+			List<Entry> expected = new ArrayList<>();
+			for(Entry e : plain) {
+				if(EntryMatcher.matchesLowerCaseQuery(e, query)) expected.add(e);
+			}
+			check(EntrySearcher.search(columns, query).equals(expected), "search for \"" + query + "\"");
+			check(EntrySearcher.search(columns, query, 10, () -> false)
+					.equals(expected.subList(0, Math.min(10, expected.size()))), "first ten of \"" + query + "\"");
+		}
+	}
+
+	/**
+	 * Entries handed out stay the same after the list
+	 * changes, and can not be changed themselves.
+	 */
+	private static void viewsStayPut() {
+		ColumnarEntryList columns = new ColumnarEntryList();
+		for(int i = 0; i < 10000; i++) columns.add(new Entry("name " + i, "place", i % 2));
+		Entry first = columns.get(0);
+		//enough removals to pack the names into a new array
+		while(columns.size() > 1) columns.remove(0);
+		check(first.getName().equals("name 0") && first.isMissing() == false, "view kept what it read");
+		check(first.equals(new Entry("name 0", "place", 0)), "equal to a plain entry");
+		check(first.hashCode() == new Entry("name 0", "place", 0).hashCode(), "same hash as a plain entry");
+		check(columns.get(0).isMissing(), "last entry is missing");
+		try {
+			first.setMissing(true);
+			throw new AssertionError("changed a view");
+		} catch(UnsupportedOperationException uoe) {
+			//expected
+		}
+	}
+
+	/**
+	 * Checks a columnar list holds what a plain one does,
+	 * down to the lowercase forms.
+	 *
+	 * @param columns The columnar list
+	 * @param plain The plain list
+	 */
+	private static void compare(ColumnarEntryList columns, List<Entry> plain) {
+		check(columns.size() == plain.size(), "size");
+		for(int i = 0; i < plain.size(); i++) {
+			Entry expected = plain.get(i);
+			Entry actual = columns.get(i);
+			check(expected.getName().equals(actual.getName())
+					&& expected.getLocation().equals(actual.getLocation())
+					&& expected.getFlags() == actual.getFlags()
+					&& expected.getNameLower().equals(actual.getNameLower())
+					&& expected.getLocationLower().equals(actual.getLocationLower()),
+					"entry " + i + ": expected " + expected + " but got " + actual);
+		}
+	}
+
+	private static Entry randomEntry(Random random) {
+		return new Entry(NAMES[random.nextInt(NAMES.length)] + " " + random.nextInt(1000),
+				LOCATIONS[random.nextInt(LOCATIONS.length)], random.nextInt(4) == 0 ? 1 : 0);
+	}
+
+	private static void check(boolean condition, String what) {
+		if(!condition) throw new AssertionError(what);
+	}
+}
@@ -0,0 +1,233 @@
+package com.russellsayshi.stockpile.inventory;
+
+import java.util.*;
+
+/**
+ * Checks an <code>EntryStore</code> against a plain model
+ * of what it should hold, through enough random changes
+ * to grow, copy and rebuild its tree, and checks that
+ * snapshots never see a change made after them.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public class EntryStoreTest {
+	/**
+	 * What a store should hold: each different entry once,
+	 * in the order of the spot it has, and its copies.
+	 */
+	private static class Model {
+		final List<Entry> order = new ArrayList<>();
+		final Map<Entry, Integer> counts = new HashMap<>();
+
+		void add(Entry e) {
+			if(!counts.containsKey(e)) order.add(e);
+			counts.merge(e, 1, Integer::sum);
+		}
+
+		void remove(Entry e) {
+			Integer count = counts.get(e);
+			if(count == null) return;
+			if(count == 1) {
+				counts.remove(e);
+				order.remove(e);
+			} else {
+				counts.put(e, count - 1);
+			}
+		}
+
+		void move(Entry from, Entry to) {
+			Integer moved = counts.get(from);
+			if(moved == null || from.equals(to)) return;
+			counts.remove(from);
+			if(counts.containsKey(to)) {
+				//the copies join the ones already there
+				order.remove(from);
+				counts.merge(to, moved, Integer::sum);
+			} else {
+				//the new entry takes the old one's spot
+				order.set(order.indexOf(from), to);
+				counts.put(to, moved);
+			}
+		}
+
+		List<Entry> toList() {
+			List<Entry> ret = new ArrayList<>();
+			for(Entry e : order) {
+				for(int i = 0; i < counts.get(e); i++) ret.add(e);
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Keeps count of every copy a listener hears about.
+	 */
+	private static class Counter implements EntryStoreListener {
+		final Map<Entry, Integer> counts = new HashMap<>();
+
+		@Override
+		public void entryAdded(Entry entry) {
+		}
+
+		@Override
+		public void entryRemoved(Entry entry) {
+		}
+
+		@Override
+		public void entryMoved(Entry from, Entry to) {
+		}
+
+		@Override
+		public void copiesChanged(Entry entry, int change) {
+			if(counts.merge(entry, change, Integer::sum) == 0) counts.remove(entry);
+		}
+
+		@Override
+		public void cleared() {
+			counts.clear();
+		}
+	}
+
+	/**
+	 * Runs every check, throwing on the first failure.
+	 *
+	 * @param args Not used
+	 */
+	public static void main(String[] args) {
+		emptyStore();
+		for(long seed = 0; seed < 20; seed++) {
+			randomChanges(seed, 8, 3000);
+			randomChanges(seed, 2000, 20000);
+		}
+		snapshotsStayPut();
+		System.out.println("EntryStoreTest passed.");
+	}
+
+	/**
+	 * An empty store has nothing to give back.
+	 */
+	private static void emptyStore() {
+		EntryStore store = new EntryStore();
+		check(store.isEmpty() && store.size() == 0, "new store is empty");
+		check(!store.iterator().hasNext(), "nothing to iterate");
+		check(store.snapshot().isEmpty(), "empty snapshot");
+		check(!store.remove(new Entry("a", "b", 0)), "nothing to remove");
+		check(store.move(new Entry("a", "b", 0), new Entry("c", "d", 0)) == 0, "nothing to move");
+		try {
+			store.get(0);
+			throw new AssertionError("get on an empty store");
+		} catch(IndexOutOfBoundsException ioobe) {
+			//expected
+		}
+	}
+
+	/**
+	 * Makes random changes to a store and a model side by
+	 * side, checking they agree and that every snapshot
+	 * still holds what it did when it was taken.
+	 *
+	 * @param seed The random seed
+	 * @param distinct How many different entries to pick from
+	 * @param changes How many changes to make
+	 */
+	private static void randomChanges(long seed, int distinct, int changes) {
+		Random random = new Random(seed);
+		Entry[] entries = new Entry[distinct];
+		for(int i = 0; i < distinct; i++) entries[i] = new Entry("item" + i, "shelf" + (i % 7), i % 3);
+		EntryStore store = new EntryStore();
+		Model model = new Model();
+		Counter counter = new Counter();
+		store.addListener(counter);
+		List<EntryStore.Snapshot> snapshots = new ArrayList<>();
+		List<List<Entry>> expected = new ArrayList<>();
+		for(int change = 0; change < changes; change++) {
+			Entry e = entries[random.nextInt(distinct)];
+			int what = random.nextInt(100);
+			if(what < 55) {
+				store.add(e);
+				model.add(e);
+			} else if(what < 85) {
+				boolean had = model.counts.containsKey(e);
+				check(store.remove(e) == had, "remove says whether there was a copy");
+				model.remove(e);
+			} else if(what < 98) {
+				Entry to = entries[random.nextInt(distinct)];
+				int copies = model.counts.getOrDefault(e, 0);
+				check(store.move(e, to) == copies, "move says how many copies");
+				model.move(e, to);
+			} else if(what < 99) {
+				store.clear();
+				model.order.clear();
+				model.counts.clear();
+			} else {
+				snapshots.add(store.snapshot());
+				expected.add(model.toList());
+			}
+			if(change % 97 == 0 || change == changes - 1) {
+				compare(store, model, random);
+				check(counter.counts.equals(model.counts), "listener heard about every copy");
+			}
+		}
+		for(int i = 0; i < snapshots.size(); i++) {
+			check(new ArrayList<>(snapshots.get(i)).equals(expected.get(i)), "snapshot " + i + " by iterator");
+			List<Entry> byIndex = new ArrayList<>();
+			for(int j = 0; j < snapshots.get(i).size(); j++) byIndex.add(snapshots.get(i).get(j));
+			check(byIndex.equals(expected.get(i)), "snapshot " + i + " by index");
+		}
+	}
+
+	/**
+	 * Takes snapshots of a big store between changes that
+	 * copy nodes, grow the tree and rebuild it.
+	 */
+	private static void snapshotsStayPut() {
+		EntryStore store = new EntryStore();
+		for(int i = 0; i < 50000; i++) store.add(new Entry("n" + i, "l", 0));
+		EntryStore.Snapshot full = store.snapshot();
+		List<Entry> fullList = store.toList();
+		//empty most of it so the tree gets rebuilt
+		for(int i = 0; i < 40000; i++) store.remove(new Entry("n" + i, "l", 0));
+		EntryStore.Snapshot sparse = store.snapshot();
+		List<Entry> sparseList = store.toList();
+		for(int i = 0; i < 70000; i++) store.add(new Entry("m" + i, "l", 0));
+		store.move(new Entry("n45000", "l", 0), new Entry("moved", "l", 1));
+		check(full.size() == 50000 && new ArrayList<>(full).equals(fullList), "first snapshot kept");
+		check(full.get(12345).getName().equals("n12345"), "first snapshot by index");
+		check(sparse.size() == 10000 && new ArrayList<>(sparse).equals(sparseList), "sparse snapshot kept");
+		check(sparse.get(0).getName().equals("n40000"), "sparse snapshot by index");
+		check(store.size() == 80000, "store size");
+		check(store.get(5000).getName().equals("moved"), "move kept its spot");
+		check(store.get(10000).getName().equals("m0"), "adds go on the end");
+		check(store.get(79999).getName().equals("m69999"), "last entry");
+	}
+
+	/**
+	 * Checks a store holds what the model says, every way
+	 * it can be read.
+	 *
+	 * @param store The store
+	 * @param model What it should hold
+	 * @param random Picks which entries to get by index
+	 */
+	private static void compare(EntryStore store, Model model, Random random) {
+		List<Entry> expected = model.toList();
+		check(store.size() == expected.size(), "size " + store.size() + " vs " + expected.size());
+		check(store.distinctSize() == model.counts.size(), "distinct size");
+		check(store.isEmpty() == expected.isEmpty(), "empty");
+		check(store.toList().equals(expected), "contents in order");
+		check(new ArrayList<>(store.snapshot()).equals(expected), "fresh snapshot");
+		for(int i = 0; i < 20 && !expected.isEmpty(); i++) {
+			int at = random.nextInt(expected.size());
+			check(store.get(at).equals(expected.get(at)), "get " + at);
+		}
+		for(Map.Entry<Entry, Integer> count : model.counts.entrySet()) {
+			check(store.count(count.getKey()) == count.getValue(), "copies of " + count.getKey());
+			check(store.contains(count.getKey()), "contains " + count.getKey());
+		}
+	}
+
+	private static void check(boolean condition, String what) {
+		if(!condition) throw new AssertionError(what);
+	}
+}
@@ -0,0 +1,242 @@
+package com.russellsayshi.stockpile.inventory;
+
+import java.util.*;
+
+/**
+ * Checks that entries turn into their absolute
+ * representation and back, and that parsing one accepts
+ * and rejects exactly what splitting it on <code>|</code>
+ * used to.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public class EntryTest {
+	private static final Random RANDOM = new Random(22);
+
+	/**
+	 * Runs every check, throwing on the first failure.
+	 *
+	 * @param args Not used
+	 */
+	public static void main(String[] args) {
+		formatsLikeBefore();
+		roundTrips();
+		parsesInPlace();
+		rejectsWhatSplittingRejected();
+		matchesSplittingOnRandomStrings();
+		System.out.println("EntryTest passed.");
+	}
+
+	/**
+	 * The representation is still lengths and flags in
+	 * lowercase hex, the way <code>Integer.toHexString</code>
+	 * writes them.
+	 */
+	private static void formatsLikeBefore() {
+		int[] flags = {0, 1, 9, 10, 15, 16, 255, 0x7fffffff, -1, Integer.MIN_VALUE};
+		for(int f : flags) {
+			Entry e = new Entry("name", "place", f);
+			check(e.getAbsoluteRepresentation().equals(oldFormat(e)),
+					"format of flags " + f + " was " + e.getAbsoluteRepresentation());
+		}
+		Entry longName = new Entry("x".repeat(300), "y", 0);
+		check(longName.getAbsoluteRepresentation().startsWith("12c|0|"), "long name length");
+		StringBuilder appended = new StringBuilder("before ");
+		try {
+			longName.appendAbsoluteRepresentation(appended);
+		} catch(java.io.IOException ioe) {
+			throw new AssertionError(ioe);
+		}
+		check(appended.toString().equals("before " + longName.getAbsoluteRepresentation()),
+				"appending matches building a string");
+	}
+
+	/**
+	 * Every entry that can be written comes back the same.
+	 */
+	private static void roundTrips() {
+		String[] names = {"", "a", "Apple", "two words", "\u00fcn\u00efc\u00f6d\u00e9", "\u65e5\u672c\u8a9e", "tab\there", "trailing ", " leading"};
+		String[] locations = {"", "b", "Shelf 3", "bin-4/left", "\u00fc", "  "};
+		for(String name : names) {
+			for(String location : locations) {
+				if(name.isEmpty() && location.isEmpty()) continue;
+				for(int flags : new int[] {0, 1, 6, 0x7fffffff}) {
+					Entry e = new Entry(name, location, flags);
+					check(e.hasAbsoluteRepresentation(), "plain entry can be written");
+					Entry back = new Entry(e.getAbsoluteRepresentation());
+					checkSame(e, back, "round trip of " + e.getAbsoluteRepresentation());
+				}
+			}
+		}
+		for(int i = 0; i < 10000; i++) {
+			Entry e = new Entry(randomPlain(), "x" + randomPlain(), RANDOM.nextInt(Integer.MAX_VALUE));
+			checkSame(e, new Entry(e.getAbsoluteRepresentation()), "random round trip");
+		}
+		//with nothing after the last | there were only two parts
+		check(rejects(new Entry("", "", 0).getAbsoluteRepresentation()), "empty entry does not parse back");
+		//flags with the top bit set are written unsigned and
+		//never did parse back
+		Entry negative = new Entry("a", "b", -1);
+		check(rejects(negative.getAbsoluteRepresentation()), "negative flags do not parse back");
+		check(!new Entry("a|b", "c", 0).hasAbsoluteRepresentation(), "| in a name can not be written");
+		check(!new Entry("a", "c\n", 0).hasAbsoluteRepresentation(), "newline in a location can not be written");
+	}
+
+	/**
+	 * Parsing from the middle of a bigger run of characters
+	 * gives the same entry as parsing it on its own.
+	 */
+	private static void parsesInPlace() {
+		Entry e = new Entry("Widget", "Drawer 2", 3);
+		String line = e.getAbsoluteRepresentation();
+		String buffer = "junk|1|2\n" + line + "\nmore|junk";
+		int start = buffer.indexOf('\n') + 1;
+		Entry parsed = Entry.parse(buffer, start, start + line.length());
+		checkSame(e, parsed, "parse in place");
+		parsed = Entry.parse(new StringBuilder(buffer), start, start + line.length());
+		checkSame(e, parsed, "parse from a StringBuilder");
+		check(rejectsInPlace(buffer, 0, start - 1), "bad line before it still fails in place");
+	}
+
+	/**
+	 * The edge cases of the old split: parts dropped off
+	 * the end, signs, and numbers too big for an int.
+	 */
+	private static void rejectsWhatSplittingRejected() {
+		String[] cases = {
+			//trailing bars were dropped by split, so they do not count
+			"1|0|ab|", "1|0|ab||", "1|0|a|||", "0|0|", "0|0||", "|||", "", "|",
+			//leading and middle empty parts were not
+			"|0|ab", "1||ab", "1|0", "1", "1|0|a|b", "1|0||b",
+			//signs, the way Integer.parseInt takes them
+			"+1|0|ab", "-1|0|ab", "1|+0|ab", "1|-0|ab", "1|-1|ab", "+|0|ab", "-|0|ab",
+			"1|+|ab", "++1|0|ab", "+-1|0|ab", " 1|0|ab", "1 |0|ab",
+			//hex digits in either case, and other digits Character.digit knows
+			"A|0|abcdefghijk", "a|F|abcdefghijk", "1|fF|ab", "\u0661|0|ab", "\uff11|0|ab", "g|0|ab",
+			//name lengths past the end, and zero
+			"3|0|ab", "2|0|ab", "0|0|ab", "ffffffff|0|ab",
+			//overflow, on both sides of the limits
+			"1|7fffffff|ab", "1|80000000|ab", "1|-80000000|ab", "1|-80000001|ab",
+			"1|ffffffff|ab", "1|100000000|ab", "1|0000000000001|ab", "1|-0|ab",
+			"1|fffffffffffffffffffff|ab", "80000000|0|ab", "-80000000|0|ab",
+		};
+		for(String c : cases) compareWithSplit(c);
+	}
+
+	/**
+	 * Random strings made of the characters that matter
+	 * parse the same as they did.
+	 */
+	private static void matchesSplittingOnRandomStrings() {
+		String alphabet = "0123456789abcdefABCDEF+-|||xyz \u0661";
+		for(int i = 0; i < 200000; i++) {
+			StringBuilder s = new StringBuilder();
+			int length = RANDOM.nextInt(16);
+			for(int j = 0; j < length; j++) {
+				s.append(alphabet.charAt(RANDOM.nextInt(alphabet.length())));
+			}
+			compareWithSplit(s.toString());
+		}
+	}
+
+	/**
+	 * Checks a representation parses, or fails to, the
+	 * same as it did when it was split on <code>|</code>.
+	 *
+	 * @param representation The representation
+	 */
+	private static void compareWithSplit(String representation) {
+		Entry expected;
+		try {
+			expected = oldParse(representation);
+		} catch(IllegalArgumentException iae) {
+			check(rejects(representation), "should reject \"" + representation + "\"");
+			check(rejectsInPlace("x" + representation + "\n", 1, representation.length() + 1),
+					"should reject in place \"" + representation + "\"");
+			return;
+		}
+		checkSame(expected, new Entry(representation), "parse of \"" + representation + "\"");
+		String buffer = "x" + representation + "\n";
+		checkSame(expected, Entry.parse(buffer, 1, buffer.length() - 1),
+				"parse in place of \"" + representation + "\"");
+	}
+
+	/**
+	 * How the representation used to be parsed, before
+	 * it was parsed in place.
+	 *
+	 * @param representation The representation
+	 * @return The entry
+	 * @throws IllegalArgumentException if it is not valid
+	 */
+	private static Entry oldParse(String representation) {
+		String[] parts = representation.split("\\|");
+		if(parts.length != 3) {
+			throw new IllegalArgumentException("Invalid representation string for Entry");
+		}
+		try {
+			int nameLen = Integer.parseInt(parts[0], 16);
+			int flags = Integer.parseInt(parts[1], 16);
+			String namelocation = parts[2];
+			return new Entry(namelocation.substring(0, nameLen), namelocation.substring(nameLen), flags);
+		} catch(NumberFormatException|IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * How the representation used to be written.
+	 *
+	 * @param e The entry
+	 * @return Its representation
+	 */
+	private static String oldFormat(Entry e) {
+		return Integer.toHexString(e.getName().length()) + "|"
+			+ Integer.toHexString(e.getFlags()) + "|"
+			+ e.getName() + e.getLocation();
+	}
+
+	private static boolean rejects(String representation) {
+		try {
+			new Entry(representation);
+			return false;
+		} catch(IllegalArgumentException iae) {
+			return true;
+		}
+	}
+
+	private static boolean rejectsInPlace(CharSequence chars, int start, int end) {
+		try {
+			Entry.parse(chars, start, end);
+			return false;
+		} catch(IllegalArgumentException iae) {
+			return true;
+		}
+	}
+
+	private static String randomPlain() {
+		StringBuilder s = new StringBuilder();
+		int length = RANDOM.nextInt(12);
+		for(int i = 0; i < length; i++) {
+			char c = (char)(' ' + RANDOM.nextInt(0x250));
+			if(c == '|') c = '!';
+			s.append(c);
+		}
+		return s.toString();
+	}
+
+	private static void checkSame(Entry expected, Entry actual, String what) {
+		check(expected.getName().equals(actual.getName())
+				&& expected.getLocation().equals(actual.getLocation())
+				&& expected.getFlags() == actual.getFlags()
+				&& expected.getNameLower().equals(actual.getNameLower())
+				&& expected.getLocationLower().equals(actual.getLocationLower()),
+				what + ": expected " + expected + " flags " + expected.getFlags()
+				+ " but got " + actual + " flags " + actual.getFlags());
+	}
+
+	private static void check(boolean condition, String what) {
+		if(!condition) throw new AssertionError(what);
+	}
+}
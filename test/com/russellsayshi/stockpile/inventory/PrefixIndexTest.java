@@ -0,0 +1,86 @@
+package com.russellsayshi.stockpile.inventory;
+
+import java.util.*;
+
+/**
+ * Checks that completions come back with the ones the
+ * most entries have first, ties in order, the same as
+ * sorting everything with the prefix would give.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public class PrefixIndexTest {
+	/**
+	 * Runs every check, throwing on the first failure.
+	 *
+	 * @param args Not used
+	 */
+	public static void main(String[] args) {
+		ranksByCopies();
+		for(long seed = 0; seed < 20; seed++) matchesSorting(seed);
+		System.out.println("PrefixIndexTest passed.");
+	}
+
+	/**
+	 * A few names with known counts.
+	 */
+	private static void ranksByCopies() {
+		EntryStore store = new EntryStore();
+		PrefixIndex index = new PrefixIndex(store);
+		add(store, "bolt", 2);
+		add(store, "bolts", 5);
+		add(store, "bolt cutter", 5);
+		add(store, "bottle", 9);
+		add(store, "box", 1);
+		check(index.complete(PrefixIndex.Field.NAME, "bo", 3)
+				.equals(Arrays.asList("bottle", "bolt cutter", "bolts")), "top three");
+		check(index.complete(PrefixIndex.Field.NAME, "bol", 10)
+				.equals(Arrays.asList("bolt cutter", "bolts", "bolt")), "all with the prefix");
+		check(index.complete(PrefixIndex.Field.NAME, "bo", 0).isEmpty(), "none asked for");
+		check(index.complete(PrefixIndex.Field.NAME, "z", 5).isEmpty(), "nothing starts with it");
+		store.remove(new Entry("bottle", "shelf", 0));
+		add(store, "box", 8);
+		check(index.complete(PrefixIndex.Field.NAME, "bo", 2)
+				.equals(Arrays.asList("box", "bottle")), "keeps up with the store");
+	}
+
+	/**
+	 * Random names and counts rank the same as sorting
+	 * every one of them.
+	 *
+	 * @param seed The random seed
+	 */
+	private static void matchesSorting(long seed) {
+		Random random = new Random(seed);
+		EntryStore store = new EntryStore();
+		PrefixIndex index = new PrefixIndex(store);
+		for(int i = 0; i < 2000; i++) {
+			String name = "";
+			for(int j = random.nextInt(4) + 1; j > 0; j--) name += (char)('a' + random.nextInt(3));
+			store.add(new Entry(name, "l" + random.nextInt(3), 0));
+		}
+		for(String prefix : new String[] {"", "a", "ab", "cc", "abc"}) {
+			for(PrefixIndex.Field field : PrefixIndex.Field.values()) {
+				List<Map.Entry<String, Integer>> all = new ArrayList<>(index.withPrefix(field, prefix).entrySet());
+				all.sort((a, b) -> a.getValue().equals(b.getValue())
+						? a.getKey().compareTo(b.getKey())
+						: b.getValue() - a.getValue());
+				for(int count : new int[] {1, 5, 100}) {
+					List<String> expected = new ArrayList<>();
+					for(int i = 0; i < Math.min(count, all.size()); i++) expected.add(all.get(i).getKey());
+					check(index.complete(field, prefix, count).equals(expected),
+							"seed " + seed + " " + field + " \"" + prefix + "\" top " + count);
+				}
+			}
+		}
+	}
+
+	private static void add(EntryStore store, String name, int copies) {
+		for(int i = 0; i < copies; i++) store.add(new Entry(name, "shelf", 0));
+	}
+
+	private static void check(boolean condition, String what) {
+		if(!condition) throw new AssertionError(what);
+	}
+}
@@ -0,0 +1,198 @@
+package com.russellsayshi.stockpile.protocol;
+
+import com.russellsayshi.stockpile.inventory.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Checks that varints, strings, entries and updates come
+ * back out of the binary protocol the same as they went
+ * in, take up the space they say they will, and fail
+ * cleanly when they are cut off.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public class EntryCodecTest {
+	private static final Random RANDOM = new Random(9);
+
+	/**
+	 * Runs every check, throwing on the first failure.
+	 *
+	 * @param args Not used
+	 */
+	public static void main(String[] args) {
+		varintsRoundTrip();
+		stringsRoundTrip();
+		updatesRoundTrip();
+		framesRoundTrip();
+		rejectsCutOffUpdates();
+		System.out.println("EntryCodecTest passed.");
+	}
+
+	/**
+	 * Every varint reads back as written, in as many bytes
+	 * as <code>varintLength</code> says, negatives taking
+	 * the most.
+	 */
+	private static void varintsRoundTrip() {
+		int[] values = {0, 1, 0x7F, 0x80, 0x3FFF, 0x4000, 0x1FFFFF, 0x200000,
+				0xFFFFFFF, 0x10000000, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+		int[] lengths = {1, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 5, 5};
+		for(int i = 0; i < values.length; i++) {
+			check(EntryCodec.varintLength(values[i]) == lengths[i], "length of " + values[i]);
+			checkVarint(values[i]);
+		}
+		for(int i = 0; i < 100000; i++) checkVarint(RANDOM.nextInt() >>> RANDOM.nextInt(32));
+		ByteBuffer tooLong = ByteBuffer.wrap(new byte[] {-1, -1, -1, -1, -1, 1});
+		check(rejectsVarint(tooLong), "six byte varint");
+		check(rejectsVarint(ByteBuffer.wrap(new byte[] {-128})), "varint cut off");
+	}
+
+	/**
+	 * Strings come back the same, in the bytes their
+	 * lengths say, with unpaired surrogates turned into
+	 * <code>?</code> the way <code>getBytes</code> does.
+	 */
+	private static void stringsRoundTrip() {
+		String[] strings = {"", "plain", "caf\u00e9", "\u65e5\u672c", "\ud83d\udce6 box",
+				"lone \ud83d high", "lone \udce6 low", "\udce6\ud83d", "\u07ff\u0800\uffff"};
+		for(String s : strings) checkString(s);
+		for(int i = 0; i < 10000; i++) {
+			char[] chars = new char[RANDOM.nextInt(20)];
+			for(int j = 0; j < chars.length; j++) chars[j] = (char)RANDOM.nextInt(0x10000);
+			checkString(new String(chars));
+		}
+	}
+
+	/**
+	 * Adds, removes and moves come back the same.
+	 */
+	private static void updatesRoundTrip() {
+		Entry a = new Entry("Widget", "Drawer 2", 3);
+		Entry b = new Entry("\u00fcber \ud83d\udce6", "", -1);
+		Entry c = new Entry("", "empty name", Integer.MAX_VALUE);
+		List<EntryUpdate> updates = Arrays.asList(
+				new EntryUpdate(EntryUpdate.Type.ADD, a, null),
+				new EntryUpdate(EntryUpdate.Type.REMOVE, b, null),
+				new EntryUpdate(EntryUpdate.Type.MOVE, c, a));
+		for(EntryUpdate update : updates) {
+			ByteBuffer buffer = ByteBuffer.allocate(EntryCodec.encodedLength(update));
+			EntryCodec.encode(buffer, update);
+			check(!buffer.hasRemaining(), "update fills its length");
+			buffer.flip();
+			checkSame(update, EntryCodec.decodeUpdate(buffer), "update round trip");
+			check(!buffer.hasRemaining(), "update read to the end");
+		}
+		ByteBuffer bad = ByteBuffer.wrap(new byte[] {WireProtocol.ENTRIES, 0, 0, 0});
+		try {
+			EntryCodec.decodeUpdate(bad);
+			fail("not an update type");
+		} catch(IllegalArgumentException iae) {
+			//expected
+		}
+	}
+
+	/**
+	 * One update goes out as its own frame and more go
+	 * out as a batch, and both read back the same.
+	 */
+	private static void framesRoundTrip() {
+		List<EntryUpdate> batch = new ArrayList<>();
+		for(int i = 0; i < 300; i++) {
+			batch.add(new EntryUpdate(EntryUpdate.Type.ADD, new Entry("item" + i, "shelf", i), null));
+		}
+		for(List<EntryUpdate> updates : Arrays.asList(batch.subList(0, 1), batch)) {
+			ByteBuffer frame = ByteBuffer.wrap(WireProtocol.toFrame(updates));
+			int length = EntryCodec.getVarint(frame);
+			check(length == frame.remaining(), "frame length");
+			check((WireProtocol.getType(frame) == WireProtocol.BATCH) == (updates.size() > 1), "frame type");
+			List<EntryUpdate> back = WireProtocol.getUpdates(frame);
+			check(back.size() == updates.size(), "as many updates");
+			for(int i = 0; i < back.size(); i++) checkSame(updates.get(i), back.get(i), "frame update " + i);
+		}
+		ByteBuffer applied = ByteBuffer.wrap(WireProtocol.appliedFrame());
+		check(EntryCodec.getVarint(applied) == 1 && WireProtocol.getType(applied) == WireProtocol.APPLIED,
+				"applied frame");
+	}
+
+	/**
+	 * An update cut off anywhere is an
+	 * <code>IllegalArgumentException</code>, never
+	 * anything else.
+	 */
+	private static void rejectsCutOffUpdates() {
+		EntryUpdate update = new EntryUpdate(EntryUpdate.Type.MOVE,
+				new Entry("caf\u00e9", "bin", 200), new Entry("tea", "\u65e5", 0));
+		ByteBuffer buffer = ByteBuffer.allocate(EntryCodec.encodedLength(update));
+		EntryCodec.encode(buffer, update);
+		byte[] bytes = buffer.array();
+		for(int cut = 0; cut < bytes.length; cut++) {
+			try {
+				EntryCodec.decodeUpdate(ByteBuffer.wrap(Arrays.copyOf(bytes, cut)));
+				fail("cut at " + cut + " decoded");
+			} catch(IllegalArgumentException iae) {
+				//expected
+			}
+		}
+	}
+
+	private static void checkVarint(int value) {
+		ByteBuffer buffer = ByteBuffer.allocate(EntryCodec.MAX_VARINT_BYTES);
+		EntryCodec.putVarint(buffer, value);
+		check(buffer.position() == EntryCodec.varintLength(value), "bytes written for " + value);
+		buffer.flip();
+		check(EntryCodec.getVarint(buffer) == value, "read back " + value);
+	}
+
+	private static boolean rejectsVarint(ByteBuffer buffer) {
+		try {
+			EntryCodec.getVarint(buffer);
+			return false;
+		} catch(IllegalArgumentException iae) {
+			return true;
+		}
+	}
+
+	private static void checkString(String s) {
+		byte[] expected = s.getBytes(StandardCharsets.UTF_8);
+		check(EntryCodec.utf8Length(s) == expected.length, "UTF-8 length of " + s);
+		ByteBuffer buffer = ByteBuffer.allocate(EntryCodec.stringLength(s));
+		EntryCodec.putString(buffer, s);
+		check(!buffer.hasRemaining(), "string fills its length");
+		buffer.flip();
+		check(EntryCodec.getString(buffer).equals(new String(expected, StandardCharsets.UTF_8)),
+				"read back " + s);
+		//the same bytes from a buffer that is not backed by an array
+		ByteBuffer direct = ByteBuffer.allocateDirect(buffer.limit());
+		direct.put(buffer.rewind()).flip();
+		check(EntryCodec.getString(direct).equals(new String(expected, StandardCharsets.UTF_8)),
+				"read back from a direct buffer " + s);
+	}
+
+	private static void checkSame(EntryUpdate expected, EntryUpdate actual, String what) {
+		check(expected.getType() == actual.getType(), what + " type");
+		checkSame(expected.getEntry(), actual.getEntry(), what + " entry");
+		if(expected.getTarget() == null) {
+			check(actual.getTarget() == null, what + " has no target");
+		} else {
+			checkSame(expected.getTarget(), actual.getTarget(), what + " target");
+		}
+	}
+
+	private static void checkSame(Entry expected, Entry actual, String what) {
+		check(expected.getName().equals(actual.getName())
+				&& expected.getLocation().equals(actual.getLocation())
+				&& expected.getFlags() == actual.getFlags(),
+				what + ": expected " + expected + " but got " + actual);
+	}
+
+	private static void fail(String what) {
+		throw new AssertionError(what);
+	}
+
+	private static void check(boolean condition, String what) {
+		if(!condition) throw new AssertionError(what);
+	}
+}
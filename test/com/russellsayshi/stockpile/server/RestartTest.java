@@ -0,0 +1,212 @@
+package com.russellsayshi.stockpile.server;
+
+import com.russellsayshi.stockpile.protocol.WireProtocol;
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Runs a real server, restarts it cleanly, and checks
+ * that clients resuming from before the restart are told
+ * which of the updates they missed were their own, the
+ * same as if the server had never gone away, and that
+ * after a crash they start over instead. Needs the
+ * server's port to be free.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public class RestartTest {
+	private static final String MINE = "+4|0|mineshelf";
+	private static final String OTHER = "+5|0|otherbin";
+
+	/**
+	 * A client of the text protocol, talking to the
+	 * server a line at a time. It has to take batches to
+	 * be allowed to resume.
+	 */
+	private static class TextClient implements Closeable {
+		final Socket socket;
+		final BufferedReader reader;
+		final PrintWriter writer;
+		final Set<String> agreed;
+
+		TextClient(String... features) throws IOException {
+			socket = new Socket("localhost", Server.PORT);
+			socket.setSoTimeout(10000);
+			reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+			writer.println(WireProtocol.greeting(WireProtocol.HELLO, Arrays.asList(features)));
+			agreed = WireProtocol.parseGreeting(reader.readLine(), WireProtocol.ACK);
+			check(agreed != null && agreed.contains(WireProtocol.RESUME), "server agreed to resume");
+			if(!agreed.contains(WireProtocol.DELTA)) {
+				//the whole database
+				String line;
+				while(!WireProtocol.BULK_DONE.equals(line = reader.readLine())) {
+					check(line != null, "whole database sent");
+				}
+			}
+		}
+
+		String since() {
+			return WireProtocol.featureValue(agreed, WireProtocol.SINCE);
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Runs every check, throwing on the first failure.
+	 *
+	 * @param args Not used
+	 * @throws Exception If something outside the checks fails
+	 */
+	public static void main(String[] args) throws Exception {
+		File directory = Files.createTempDirectory("stockpile-restart-test").toFile();
+		try {
+			resumesAcrossRestart(directory);
+			startsOverAfterCrash(directory);
+		} finally {
+			for(File f : directory.listFiles()) f.delete();
+			directory.delete();
+		}
+		System.out.println("RestartTest passed.");
+	}
+
+	/**
+	 * Two clients send an update each, the server shuts
+	 * down cleanly and comes back with the same epoch, and
+	 * both clients resume from before either update.
+	 *
+	 * @param directory Where the server keeps its files
+	 */
+	private static void resumesAcrossRestart(File directory) throws Exception {
+		String since;
+		Process server = start(directory);
+		try {
+			try(TextClient alice = new TextClient(WireProtocol.RESUME, WireProtocol.BATCHES, "client=alice");
+					TextClient bob = new TextClient(WireProtocol.RESUME, WireProtocol.BATCHES, "client=bob")) {
+				since = alice.since();
+				alice.writer.println(MINE);
+				check(WireProtocol.APPLIED_LINE.equals(alice.reader.readLine()), "alice applied");
+				check(MINE.equals(bob.reader.readLine()), "bob heard from alice");
+				bob.writer.println(OTHER);
+				check(WireProtocol.APPLIED_LINE.equals(bob.reader.readLine()), "bob applied");
+				check(OTHER.equals(alice.reader.readLine()), "alice heard from bob");
+			}
+		} finally {
+			stop(server);
+		}
+		check(new File(directory, "entries.epoch").exists(), "shut down cleanly");
+
+		server = start(directory);
+		try {
+			try(TextClient alice = new TextClient(WireProtocol.RESUME, WireProtocol.BATCHES,
+					"client=alice", "since=" + since)) {
+				check(alice.agreed.contains(WireProtocol.DELTA), "alice resumed");
+				check(WireProtocol.APPLIED_LINE.equals(alice.reader.readLine()), "alice's own update");
+				check(OTHER.equals(alice.reader.readLine()), "bob's update for alice");
+			}
+			try(TextClient bob = new TextClient(WireProtocol.RESUME, WireProtocol.BATCHES,
+					"client=bob", "since=" + since)) {
+				check(bob.agreed.contains(WireProtocol.DELTA), "bob resumed");
+				check(MINE.equals(bob.reader.readLine()), "alice's update for bob");
+				check(WireProtocol.APPLIED_LINE.equals(bob.reader.readLine()), "bob's own update");
+			}
+		} finally {
+			stop(server);
+		}
+	}
+
+	/**
+	 * A server that was killed might have handed out
+	 * numbers for updates it never logged, so it comes back
+	 * with a new epoch and nobody gets to resume.
+	 *
+	 * @param directory Where the server keeps its files,
+	 *  left by a clean shutdown
+	 */
+	private static void startsOverAfterCrash(File directory) throws Exception {
+		String since;
+		Process server = start(directory);
+		try {
+			try(TextClient alice = new TextClient(WireProtocol.RESUME, WireProtocol.BATCHES, "client=alice")) {
+				since = alice.since();
+			}
+		} finally {
+			server.destroyForcibly();
+			server.waitFor();
+		}
+		check(!new File(directory, "entries.epoch").exists(), "no clean shutdown");
+
+		server = start(directory);
+		try {
+			try(TextClient alice = new TextClient(WireProtocol.RESUME, WireProtocol.BATCHES,
+					"client=alice", "since=" + since)) {
+				check(!alice.agreed.contains(WireProtocol.DELTA), "alice starts over");
+				check(!WireProtocol.positionEpoch(alice.since()).equals(WireProtocol.positionEpoch(since)),
+						"new epoch");
+			}
+		} finally {
+			stop(server);
+		}
+	}
+
+	/**
+	 * Starts a server in a directory and waits for it to
+	 * take clients.
+	 *
+	 * @param directory Where it keeps its files
+	 * @return The server
+	 */
+	private static Process start(File directory) throws IOException {
+		//the server runs somewhere else, so the class path can not be relative
+		StringJoiner classPath = new StringJoiner(File.pathSeparator);
+		for(String part : System.getProperty("java.class.path").split(File.pathSeparator)) {
+			classPath.add(new File(part).getAbsolutePath());
+		}
+		Process server = new ProcessBuilder(
+				new File(System.getProperty("java.home"), "bin/java").getPath(),
+				"-cp", classPath.toString(),
+				Server.class.getName())
+			.directory(directory)
+			.redirectErrorStream(true)
+			.start();
+		BufferedReader output = new BufferedReader(new InputStreamReader(server.getInputStream()));
+		String line;
+		while((line = output.readLine()) != null) {
+			if(line.contains("Socket open on port")) break;
+		}
+		check(line != null, "server started");
+		//keep its output from filling up the pipe
+		Thread drain = new Thread(() -> {
+			try {
+				while(output.readLine() != null);
+			} catch(IOException ioe) {
+				//gone
+			}
+		});
+		drain.setDaemon(true);
+		drain.start();
+		return server;
+	}
+
+	/**
+	 * Asks a server to exit, which it does cleanly, and
+	 * waits for it to.
+	 *
+	 * @param server The server
+	 */
+	private static void stop(Process server) throws InterruptedException {
+		server.destroy();
+		server.waitFor();
+	}
+
+	private static void check(boolean condition, String what) {
+		if(!condition) throw new AssertionError(what);
+	}
+}
@@ -0,0 +1,164 @@
+package com.russellsayshi.stockpile.server;
+
+import com.russellsayshi.stockpile.inventory.*;
+import com.russellsayshi.stockpile.protocol.WireProtocol;
+import java.util.*;
+
+/**
+ * Checks that recent updates are numbered one after
+ * another, that a client resuming gets just what it missed
+ * until the ring has moved past it, and that its own
+ * updates come back to it as <code>APPLIED</code>.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public class UpdateRingTest {
+	/**
+	 * A connection with nowhere to send anything, for
+	 * seeing what it would be sent.
+	 */
+	private static class QuietConnection extends ClientConnection {
+		QuietConnection(String clientId, boolean batches) {
+			super(16);
+			setClientId(clientId);
+			setBatches(batches);
+		}
+
+		@Override
+		void sendInitialSync(Set<String> agreed, List<Entry> database) {
+		}
+
+		@Override
+		void outboundReady() {
+		}
+
+		@Override
+		void close() {
+		}
+
+		@Override
+		String describe() {
+			return "quiet";
+		}
+	}
+
+	/**
+	 * Runs every check, throwing on the first failure.
+	 *
+	 * @param args Not used
+	 */
+	public static void main(String[] args) {
+		countsAndResumes();
+		overflowsToFullSync();
+		carriesOnFromSnapshot();
+		remembersNothing();
+		substitutesApplied();
+		System.out.println("UpdateRingTest passed.");
+	}
+
+	/**
+	 * Each update gets the next number, and resuming from
+	 * any number the ring still has gives everything after
+	 * it, oldest first.
+	 */
+	private static void countsAndResumes() {
+		UpdateRing ring = new UpdateRing(8, 0);
+		check(ring.last() == 0, "starts at nothing");
+		check(ring.since(0).isEmpty(), "nothing missed");
+		UpdateFrame[] frames = new UpdateFrame[5];
+		for(int i = 0; i < frames.length; i++) {
+			frames[i] = frame("+1|0|" + i, null);
+			check(ring.add(frames[i]) == i + 1, "numbered " + (i + 1));
+		}
+		check(ring.last() == 5, "last number");
+		for(int since = 0; since <= 5; since++) {
+			List<UpdateFrame> missed = ring.since(since);
+			check(missed.equals(Arrays.asList(frames).subList(since, 5)), "missed since " + since);
+		}
+		check(ring.since(6) == null, "from the future");
+		check(ring.since(-1) == null, "from before the start");
+	}
+
+	/**
+	 * Once more updates than the ring holds have gone by,
+	 * a client from before them has to start over.
+	 */
+	private static void overflowsToFullSync() {
+		UpdateRing ring = new UpdateRing(4, 0);
+		List<UpdateFrame> frames = new ArrayList<>();
+		for(int i = 0; i < 10; i++) {
+			UpdateFrame frame = frame("+1|0|" + i, null);
+			frames.add(frame);
+			ring.add(frame);
+		}
+		check(ring.since(5) == null, "moved past");
+		check(ring.since(6).equals(frames.subList(6, 10)), "just fits");
+		check(ring.since(9).equals(frames.subList(9, 10)), "one behind");
+		check(ring.since(10).isEmpty(), "up to date");
+	}
+
+	/**
+	 * Numbers carry on from where the snapshot left them,
+	 * and nothing from before it can be resumed.
+	 */
+	private static void carriesOnFromSnapshot() {
+		UpdateRing ring = new UpdateRing(4, 1000);
+		check(ring.since(1000).isEmpty(), "up to date with the snapshot");
+		check(ring.since(999) == null, "from before the snapshot");
+		UpdateFrame frame = frame("+1|0|x", null);
+		check(ring.add(frame) == 1001, "carries on");
+		check(ring.since(1000).equals(Collections.singletonList(frame)), "missed since the snapshot");
+	}
+
+	/**
+	 * A ring that holds nothing still counts, but only
+	 * lets clients that missed nothing resume.
+	 */
+	private static void remembersNothing() {
+		UpdateRing ring = new UpdateRing(0, 0);
+		check(ring.add(frame("+1|0|x", null)) == 1, "still counts");
+		check(ring.since(1).isEmpty(), "up to date");
+		check(ring.since(0) == null, "missed one");
+	}
+
+	/**
+	 * A client gets <code>APPLIED</code> for its own updates,
+	 * and everyone else the update itself, in either protocol.
+	 */
+	private static void substitutesApplied() {
+		List<String> commands = Arrays.asList("+1|0|ab", "-1|0|cd");
+		String batch = DatabaseUpdater.toBatchFrame(commands);
+		UpdateFrame frame = frame(batch, "alice");
+		ClientConnection alice = new QuietConnection("alice", true);
+		ClientConnection bob = new QuietConnection("bob", true);
+		ClientConnection old = new QuietConnection(null, false);
+		check(frame.isFrom("alice") && !frame.isFrom("bob") && !frame.isFrom(null), "origin");
+		check(alice.textFor(frame).equals(WireProtocol.APPLIED_LINE), "alice's text");
+		check(Arrays.equals(alice.binaryFor(frame), WireProtocol.appliedFrame()), "alice's frame");
+		check(bob.textFor(frame).equals(batch), "bob's text");
+		check(Arrays.equals(bob.binaryFor(frame), WireProtocol.toFrame(parse(commands))), "bob's frame");
+		check(old.textFor(frame).equals(String.join("\n", commands)), "batch split up for an old client");
+		//replayed from a log that never said who sent it
+		UpdateFrame unknown = frame("+1|0|ab", null);
+		check(!unknown.isFrom(null), "no origin is nobody's");
+		check(alice.textFor(unknown).equals("+1|0|ab"), "no origin goes to everyone");
+	}
+
+	private static UpdateFrame frame(String record, String origin) {
+		List<String> commands = DatabaseUpdater.isBatchHeader(record)
+			? Arrays.asList(record.substring(record.indexOf('\n') + 1).split("\n"))
+			: Collections.singletonList(record);
+		return new UpdateFrame(record, parse(commands), origin);
+	}
+
+	private static List<EntryUpdate> parse(List<String> commands) {
+		List<EntryUpdate> ret = new ArrayList<>();
+		for(String command : commands) ret.add(DatabaseUpdater.parse(command));
+		return ret;
+	}
+
+	private static void check(boolean condition, String what) {
+		if(!condition) throw new AssertionError(what);
+	}
+}
@@ -0,0 +1,270 @@
+package com.russellsayshi.stockpile.server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Checks that what goes into the write-ahead log comes
+ * back out on replay, in every durability mode, and that
+ * the remains of a crash at the end of a segment are left
+ * out: half a command, or a batch missing its last lines.
+ *
+ * @author Russell Coleman
+ * @version 1.0.0
+ */
+public class WriteAheadLogTest {
+	/**
+	 * Runs every check, throwing on the first failure.
+	 *
+	 * @param args Not used
+	 * @throws Exception If something outside the checks fails
+	 */
+	public static void main(String[] args) throws Exception {
+		File directory = Files.createTempDirectory("stockpile-wal-test").toFile();
+		try {
+			replaysNothingFromNothing(directory);
+			dropsTornTail(directory);
+			dropsTornBatch(directory);
+			for(WriteAheadLog.Durability durability : WriteAheadLog.Durability.values()) {
+				appendsAndReplays(directory, durability);
+				rotates(directory, durability);
+			}
+			callsBackWhenDurable(directory);
+			closesWhileCommitting(directory);
+		} finally {
+			for(File f : directory.listFiles()) f.delete();
+			directory.delete();
+		}
+		System.out.println("WriteAheadLogTest passed.");
+	}
+
+	/**
+	 * A missing or empty segment holds no commands.
+	 *
+	 * @param directory Where to put the log files
+	 */
+	private static void replaysNothingFromNothing(File directory) throws IOException {
+		File missing = new File(directory, "missing.log");
+		check(WriteAheadLog.replay(missing, line -> fail("missing file replayed " + line)) == 0, "missing file");
+		File empty = write(directory, "empty.log", new byte[0]);
+		check(WriteAheadLog.replay(empty, line -> fail("empty file replayed " + line)) == 0, "empty file");
+	}
+
+	/**
+	 * A command with no newline on the end was cut off by a
+	 * crash, wherever in it the cut came, even halfway
+	 * through a character.
+	 *
+	 * @param directory Where to put the log files
+	 */
+	private static void dropsTornTail(File directory) throws IOException {
+		String whole = "+3|0|abcshelf\n-1|0|x\n+4|0|Caf\u00e9\u4e2d\n";
+		byte[] bytes = whole.getBytes(StandardCharsets.UTF_8);
+		List<String> lines = Arrays.asList(whole.split("\n"));
+		for(int cut = 0; cut <= bytes.length; cut++) {
+			File file = write(directory, "torn.log", Arrays.copyOf(bytes, cut));
+			List<String> replayed = new ArrayList<>();
+			long valid = WriteAheadLog.replay(file, replayed::add);
+			//everything up to the last newline before the cut
+			int complete = 0;
+			long expectedValid = 0;
+			for(int i = 0; i < cut; i++) {
+				if(bytes[i] == '\n') {
+					complete++;
+					expectedValid = i + 1;
+				}
+			}
+			check(replayed.equals(lines.subList(0, complete)), "cut at " + cut + " replayed " + replayed);
+			check(valid == expectedValid, "cut at " + cut + " valid length " + valid);
+		}
+	}
+
+	/**
+	 * A batch goes in with one append but comes back a line
+	 * at a time, so a crash can leave the start of one. The
+	 * server gathers the lines back up with a
+	 * <code>BatchCollector</code>, which must never let a
+	 * partial batch through.
+	 *
+	 * @param directory Where to put the log files
+	 */
+	private static void dropsTornBatch(File directory) throws IOException {
+		List<String> batch = Arrays.asList("+1|0|ab", "+1|0|cd", "+1|0|ef");
+		String log = "+1|0|gh\n" + DatabaseUpdater.toBatchFrame(batch) + "\n";
+		byte[] bytes = log.getBytes(StandardCharsets.UTF_8);
+		//where the batch header's line ends
+		int headerEnd = log.indexOf('\n', log.indexOf('\n') + 1) + 1;
+		for(int cut = 0; cut <= bytes.length; cut++) {
+			File file = write(directory, "batch.log", Arrays.copyOf(bytes, cut));
+			BatchCollector collector = new BatchCollector();
+			List<List<String>> applied = new ArrayList<>();
+			WriteAheadLog.replay(file, line -> {
+				List<String> commands = collector.accept(line);
+				if(commands != null) applied.add(commands);
+			});
+			if(cut == bytes.length) {
+				check(applied.size() == 2 && applied.get(1).equals(batch), "whole batch replayed");
+				check(!collector.isPartial(), "whole batch finished");
+			} else {
+				for(List<String> commands : applied) {
+					check(commands.size() == 1 && commands.get(0).equals("+1|0|gh"),
+							"cut at " + cut + " let through " + commands);
+				}
+				check(collector.isPartial() == (cut >= headerEnd),
+						"cut at " + cut + " partial " + collector.isPartial());
+			}
+		}
+	}
+
+	/**
+	 * Everything appended, single commands and batches, is
+	 * in the segment in order once the log is closed.
+	 *
+	 * @param directory Where to put the log files
+	 * @param durability The durability mode
+	 */
+	private static void appendsAndReplays(File directory, WriteAheadLog.Durability durability)
+			throws IOException, InterruptedException {
+		File base = new File(directory, "append-" + durability + ".log");
+		List<String> appended = new ArrayList<>();
+		WriteAheadLog log = new WriteAheadLog(base, 1, durability, 5);
+		try {
+			long last = 0;
+			for(int i = 0; i < 200; i++) {
+				String record = i % 10 == 0
+					? DatabaseUpdater.toBatchFrame(Arrays.asList("+1|0|b" + i, "-1|0|b" + i))
+					: "+2|0|\u00e9" + i + "\u4e2d";
+				long ticket = log.append(record);
+				check(ticket > last, "tickets go up");
+				last = ticket;
+				appended.addAll(Arrays.asList(record.split("\n")));
+				if(i % 50 == 0) {
+					log.awaitDurable(ticket);
+					check(log.isDurable(ticket), durability + " durable after waiting");
+				}
+			}
+			if(durability != WriteAheadLog.Durability.GROUP) {
+				check(log.isDurable(last), durability + " never waits");
+			}
+		} finally {
+			log.close();
+		}
+		List<String> replayed = new ArrayList<>();
+		File segment = WriteAheadLog.segmentFile(base, 1);
+		long valid = WriteAheadLog.replay(segment, replayed::add);
+		check(replayed.equals(appended), durability + " replayed what was appended");
+		check(valid == segment.length(), durability + " has no torn tail");
+		try {
+			log.append("+1|0|late");
+			fail(durability + " appended after closing");
+		} catch(IOException ioe) {
+			//expected
+		}
+	}
+
+	/**
+	 * Rotating puts everything after it in the next segment.
+	 *
+	 * @param directory Where to put the log files
+	 * @param durability The durability mode
+	 */
+	private static void rotates(File directory, WriteAheadLog.Durability durability)
+			throws IOException, InterruptedException {
+		File base = new File(directory, "rotate-" + durability + ".log");
+		write(directory, base.getName() + ".notanumber", new byte[0]);
+		WriteAheadLog log = new WriteAheadLog(base, 4, durability, 5);
+		try {
+			log.append("+1|0|before");
+			check(log.getSegmentBytes() == "+1|0|before\n".length(), "segment bytes");
+			check(log.rotate() == 4, "rotate gives back the old segment");
+			check(log.getSegmentBytes() == 0, "new segment is empty");
+			log.append("+1|0|after");
+			log.awaitRetired();
+		} finally {
+			log.close();
+		}
+		check(WriteAheadLog.generations(base).equals(Arrays.asList(4L, 5L)), "generations");
+		List<String> old = new ArrayList<>();
+		WriteAheadLog.replay(WriteAheadLog.segmentFile(base, 4), old::add);
+		List<String> next = new ArrayList<>();
+		WriteAheadLog.replay(WriteAheadLog.segmentFile(base, 5), next::add);
+		check(old.equals(Arrays.asList("+1|0|before")), durability + " old segment " + old);
+		check(next.equals(Arrays.asList("+1|0|after")), durability + " new segment " + next);
+	}
+
+	/**
+	 * <code>whenDurable</code> calls back once a group
+	 * commit has the command, and right away if it
+	 * already had it.
+	 *
+	 * @param directory Where to put the log files
+	 */
+	private static void callsBackWhenDurable(File directory) throws Exception {
+		File base = new File(directory, "callback.log");
+		WriteAheadLog log = new WriteAheadLog(base, 1, WriteAheadLog.Durability.GROUP, 200);
+		try {
+			long ticket = log.append("+1|0|waited");
+			CompletableFuture<IOException> called = new CompletableFuture<>();
+			log.whenDurable(ticket, failure -> {
+				check(log.isDurable(ticket), "durable by the callback");
+				called.complete(failure);
+			});
+			check(called.get(5, TimeUnit.SECONDS) == null, "no failure");
+			CompletableFuture<Thread> again = new CompletableFuture<>();
+			log.whenDurable(ticket, failure -> again.complete(Thread.currentThread()));
+			check(again.getNow(null) == Thread.currentThread(), "called back right away");
+		} finally {
+			log.close();
+		}
+	}
+
+	/**
+	 * Closing while the committer is busy waits for it, so
+	 * the last commit never races it on the channel, and
+	 * every append that went through is in the segment.
+	 *
+	 * @param directory Where to put the log files
+	 */
+	private static void closesWhileCommitting(File directory) throws Exception {
+		for(int round = 0; round < 20; round++) {
+			File base = new File(directory, "closing-" + round + ".log");
+			WriteAheadLog log = new WriteAheadLog(base, 1, WriteAheadLog.Durability.GROUP, 1);
+			int[] appended = {0};
+			Thread writer = new Thread(() -> {
+				try {
+					while(true) {
+						log.append("+1|0|" + "x".repeat(1000) + appended[0]);
+						appended[0]++;
+					}
+				} catch(IOException ioe) {
+					//closed
+				}
+			});
+			writer.start();
+			Thread.sleep(20);
+			log.close();
+			writer.join();
+			int[] replayed = {0};
+			WriteAheadLog.replay(WriteAheadLog.segmentFile(base, 1), line -> replayed[0]++);
+			check(replayed[0] == appended[0], "round " + round + " replayed " + replayed[0]
+					+ " of " + appended[0]);
+		}
+	}
+
+	private static File write(File directory, String name, byte[] bytes) throws IOException {
+		File file = new File(directory, name);
+		Files.write(file.toPath(), bytes);
+		return file;
+	}
+
+	private static void fail(String what) {
+		throw new AssertionError(what);
+	}
+
+	private static void check(boolean condition, String what) {
+		if(!condition) throw new AssertionError(what);
+	}
+}